@@ -0,0 +1,544 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints, such as the ordinals of the intents
+ * in a capture which have some value.
+ *
+ * The bitmap is split into containers of 65536 values which share the same
+ * high 16 bits, in the style of a roaring bitmap. A container with at most
+ * 4096 values stores them as a sorted array of their low 16 bits. A fuller
+ * container stores a bit for each of its 65536 values, which takes 8 KB, the
+ * same as a full array. Sparse sets therefore take two bytes per value and
+ * dense ones an eighth of a byte, and and(), or() and andNot() only touch
+ * containers with the same high bits, a word at a time for full containers.
+ *
+ * Bitmaps are serialized as the number of containers as an int and then for
+ * each container its high 16 bits as a short, the number of values in it as
+ * an int and either the low bits of each value as shorts or, if there are
+ * more than 4096 values, 1024 longs of bits.
+ *
+ * A bitmap is not thread safe. and(), or() and andNot() return new bitmaps
+ * and don't change their operands.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSBitmap {
+
+    final static int ARRAY_MAX = 4096;
+    private final static int WORDS = 1024;
+
+    private char[] KEYS;
+    private Container[] CONTAINERS;
+    private int SIZE;
+
+    /**
+     * Creates an empty bitmap.
+     */
+    public AICSBitmap() {
+        this(4);
+    }
+
+    private AICSBitmap(int capacity) {
+        KEYS = new char[Math.max(capacity, 1)];
+        CONTAINERS = new Container[Math.max(capacity, 1)];
+        SIZE = 0;
+    }
+
+    /**
+     * Creates a bitmap holding every value from one value up to another.
+     *
+     * @param from The first value.
+     * @param to The value after the last value.
+     * @return The bitmap.
+     */
+    public static AICSBitmap range(int from, int to) {
+        if (from < 0 || to < from)
+            throw new IllegalArgumentException("Invalid range.");
+        AICSBitmap bitmap = new AICSBitmap((to >>> 16) - (from >>> 16) + 1);
+        int value = from;
+        while (value < to) {
+            // Fill up to the end of the container or the range
+            int end = (int) Math.min(to, ((long) (value >>> 16) + 1) << 16);
+            Container container = new Container();
+            if (end - value <= ARRAY_MAX) {
+                container.ARRAY = new char[end - value];
+                for (int i = value; i < end; i++)
+                    container.ARRAY[i - value] = (char) i;
+            } else {
+                container.BITS = new long[WORDS];
+                for (int i = value; i < end; i++)
+                    container.BITS[(i & 0xFFFF) >>> 6] |= 1L << i;
+            }
+            container.CARDINALITY = end - value;
+            bitmap.append((char) (value >>> 16), container);
+            value = end;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a value to the bitmap. Adding values in increasing order is the
+     * fastest.
+     *
+     * @param value The value, which can't be negative.
+     * @return Itself.
+     */
+    public AICSBitmap add(int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Value can't be negative.");
+        char key = (char) (value >>> 16);
+        int index;
+        if (SIZE > 0 && KEYS[SIZE - 1] == key) index = SIZE - 1;
+        else index = Arrays.binarySearch(KEYS, 0, SIZE, key);
+        if (index < 0) {
+            index = -index - 1;
+            insert(index, key, new Container());
+        }
+        CONTAINERS[index].add((char) value);
+        return this;
+    }
+
+    /**
+     * Checks if a value is in the bitmap.
+     *
+     * @param value The value.
+     * @return True if the bitmap holds the value.
+     */
+    public boolean contains(int value) {
+        if (value < 0) return false;
+        int index = Arrays.binarySearch(KEYS, 0, SIZE, (char) (value >>> 16));
+        return index >= 0 && CONTAINERS[index].contains((char) value);
+    }
+
+    /**
+     * Returns how many values are in the bitmap.
+     *
+     * @return The number of values.
+     */
+    public int getCardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < SIZE; i++)
+            cardinality += CONTAINERS[i].CARDINALITY;
+        return cardinality;
+    }
+
+    /**
+     * Checks if the bitmap has no values.
+     *
+     * @return True if the bitmap is empty.
+     */
+    public boolean isEmpty() { return SIZE == 0; }
+
+    /**
+     * Returns the largest value in the bitmap, or -1 if it is empty.
+     */
+    int last() {
+        if (SIZE == 0) return -1;
+        Container container = CONTAINERS[SIZE - 1];
+        int high = KEYS[SIZE - 1] << 16;
+        if (container.BITS == null)
+            return high | container.ARRAY[container.CARDINALITY - 1];
+        int word = WORDS - 1;
+        while (container.BITS[word] == 0) word--;
+        return high | word << 6
+                | 63 - Long.numberOfLeadingZeros(container.BITS[word]);
+    }
+
+    /**
+     * Returns the values in the bitmap.
+     *
+     * @return The values in increasing order.
+     */
+    public int[] toArray() {
+        int[] values = new int[getCardinality()];
+        int length = 0;
+        for (int i = 0; i < SIZE; i++)
+            length = CONTAINERS[i].decode(KEYS[i] << 16, values, length);
+        return values;
+    }
+
+    /**
+     * Returns the values which are in both bitmaps.
+     *
+     * @param other The other bitmap.
+     * @return A new bitmap.
+     */
+    public AICSBitmap and(AICSBitmap other) {
+        AICSBitmap result = new AICSBitmap(Math.min(SIZE, other.SIZE));
+        int i = 0;
+        int j = 0;
+        while (i < SIZE && j < other.SIZE) {
+            if (KEYS[i] < other.KEYS[j]) {
+                i++;
+            } else if (KEYS[i] > other.KEYS[j]) {
+                j++;
+            } else {
+                Container container = CONTAINERS[i++].and(other.CONTAINERS[j]);
+                if (container.CARDINALITY > 0)
+                    result.append(other.KEYS[j], container);
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values which are in either bitmap.
+     *
+     * @param other The other bitmap.
+     * @return A new bitmap.
+     */
+    public AICSBitmap or(AICSBitmap other) {
+        AICSBitmap result = new AICSBitmap(SIZE + other.SIZE);
+        int i = 0;
+        int j = 0;
+        while (i < SIZE || j < other.SIZE) {
+            if (j == other.SIZE || (i < SIZE && KEYS[i] < other.KEYS[j])) {
+                result.append(KEYS[i], CONTAINERS[i++].copy());
+            } else if (i == SIZE || KEYS[i] > other.KEYS[j]) {
+                result.append(other.KEYS[j], other.CONTAINERS[j++].copy());
+            } else {
+                result.append(KEYS[i], CONTAINERS[i++].or(other.CONTAINERS[j]));
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values which are in this bitmap but not the other.
+     *
+     * @param other The other bitmap.
+     * @return A new bitmap.
+     */
+    public AICSBitmap andNot(AICSBitmap other) {
+        AICSBitmap result = new AICSBitmap(SIZE);
+        int j = 0;
+        for (int i = 0; i < SIZE; i++) {
+            while (j < other.SIZE && other.KEYS[j] < KEYS[i]) j++;
+            Container container;
+            if (j < other.SIZE && other.KEYS[j] == KEYS[i])
+                container = CONTAINERS[i].andNot(other.CONTAINERS[j]);
+            else
+                container = CONTAINERS[i].copy();
+            if (container.CARDINALITY > 0) result.append(KEYS[i], container);
+        }
+        return result;
+    }
+
+    /**
+     * Returns how many bytes writeTo() writes.
+     *
+     * @return The serialized size of the bitmap.
+     */
+    public int getSerializedSize() {
+        int size = 4;
+        for (int i = 0; i < SIZE; i++) {
+            Container container = CONTAINERS[i];
+            size += 6 + (container.BITS != null ? WORDS * 8
+                    : container.CARDINALITY * 2);
+        }
+        return size;
+    }
+
+    /**
+     * Writes the bitmap at the buffer's position.
+     *
+     * @param dst The buffer to write into.
+     */
+    public void writeTo(ByteBuffer dst) {
+        dst.putInt(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            Container container = CONTAINERS[i];
+            dst.putShort((short) KEYS[i]).putInt(container.CARDINALITY);
+            if (container.BITS != null) {
+                for (long word : container.BITS) dst.putLong(word);
+            } else {
+                for (int k = 0; k < container.CARDINALITY; k++)
+                    dst.putShort((short) container.ARRAY[k]);
+            }
+        }
+    }
+
+    /**
+     * Reads a bitmap written by writeTo() at the buffer's position.
+     *
+     * @param src The buffer to read from.
+     * @return The bitmap.
+     * @throws ParseException If the bitmap isn't valid.
+     * @throws BufferUnderflowException If the buffer ends inside the bitmap.
+     */
+    public static AICSBitmap readFrom(ByteBuffer src)
+            throws ParseException, BufferUnderflowException {
+        int size = src.getInt();
+        if (size < 0 || size > 1 << 15 || size * 6 > src.remaining())
+            throw new ParseException("Invalid bitmap.", src.position() - 4);
+        AICSBitmap bitmap = new AICSBitmap(size);
+        for (int i = 0; i < size; i++) {
+            char key = (char) src.getShort();
+            int cardinality = src.getInt();
+            if ((i > 0 && key <= bitmap.KEYS[i - 1]) || key > 0x7FFF
+                    || cardinality <= 0 || cardinality > 1 << 16)
+                throw new ParseException("Invalid bitmap.", src.position());
+            Container container = new Container();
+            container.CARDINALITY = cardinality;
+            if (cardinality > ARRAY_MAX) {
+                container.BITS = new long[WORDS];
+                int count = 0;
+                for (int k = 0; k < WORDS; k++) {
+                    container.BITS[k] = src.getLong();
+                    count += Long.bitCount(container.BITS[k]);
+                }
+                if (count != cardinality)
+                    throw new ParseException("Invalid bitmap.", src.position());
+            } else {
+                if (cardinality * 2 > src.remaining())
+                    throw new BufferUnderflowException();
+                container.ARRAY = new char[cardinality];
+                for (int k = 0; k < cardinality; k++) {
+                    container.ARRAY[k] = (char) src.getShort();
+                    if (k > 0 && container.ARRAY[k] <= container.ARRAY[k - 1])
+                        throw new ParseException("Invalid bitmap.",
+                                src.position());
+                }
+            }
+            bitmap.append(key, container);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a container after the last one.
+     */
+    private void append(char key, Container container) {
+        insert(SIZE, key, container);
+    }
+
+    private void insert(int index, char key, Container container) {
+        if (SIZE == KEYS.length) {
+            KEYS = Arrays.copyOf(KEYS, SIZE * 2);
+            CONTAINERS = Arrays.copyOf(CONTAINERS, SIZE * 2);
+        }
+        System.arraycopy(KEYS, index, KEYS, index + 1, SIZE - index);
+        System.arraycopy(CONTAINERS, index, CONTAINERS, index + 1,
+                SIZE - index);
+        KEYS[index] = key;
+        CONTAINERS[index] = container;
+        SIZE++;
+    }
+
+    /**
+     * The values with the same high 16 bits. Exactly one of ARRAY and BITS is
+     * used. Only the first CARDINALITY chars of ARRAY are values.
+     */
+    private final static class Container {
+        char[] ARRAY;
+        long[] BITS;
+        int CARDINALITY;
+
+        Container() {
+            ARRAY = new char[4];
+            CARDINALITY = 0;
+        }
+
+        private Container(char[] array, int cardinality) {
+            ARRAY = array;
+            CARDINALITY = cardinality;
+        }
+
+        private Container(long[] bits) {
+            BITS = bits;
+            CARDINALITY = 0;
+            for (long word : bits) CARDINALITY += Long.bitCount(word);
+        }
+
+        void add(char value) {
+            if (BITS != null) {
+                long bit = 1L << value;
+                if ((BITS[value >>> 6] & bit) == 0) {
+                    BITS[value >>> 6] |= bit;
+                    CARDINALITY++;
+                }
+                return;
+            }
+            int index;
+            if (CARDINALITY == 0 || ARRAY[CARDINALITY - 1] < value) {
+                index = CARDINALITY;
+            } else {
+                index = Arrays.binarySearch(ARRAY, 0, CARDINALITY, value);
+                if (index >= 0) return;
+                index = -index - 1;
+            }
+            if (CARDINALITY == ARRAY_MAX) {
+                toBits();
+                add(value);
+                return;
+            }
+            if (CARDINALITY == ARRAY.length)
+                ARRAY = Arrays.copyOf(ARRAY, Math.min(CARDINALITY * 2,
+                        ARRAY_MAX));
+            System.arraycopy(ARRAY, index, ARRAY, index + 1,
+                    CARDINALITY - index);
+            ARRAY[index] = value;
+            CARDINALITY++;
+        }
+
+        boolean contains(char value) {
+            if (BITS != null) return (BITS[value >>> 6] & 1L << value) != 0;
+            return Arrays.binarySearch(ARRAY, 0, CARDINALITY, value) >= 0;
+        }
+
+        Container copy() {
+            if (BITS != null) return new Container(BITS.clone());
+            return new Container(Arrays.copyOf(ARRAY, CARDINALITY),
+                    CARDINALITY);
+        }
+
+        Container and(Container other) {
+            if (BITS != null && other.BITS != null) {
+                long[] bits = new long[WORDS];
+                for (int i = 0; i < WORDS; i++)
+                    bits[i] = BITS[i] & other.BITS[i];
+                return new Container(bits).shrink();
+            }
+            if (BITS != null) return other.and(this);
+            char[] array = new char[CARDINALITY];
+            int length = 0;
+            if (other.BITS != null) {
+                for (int i = 0; i < CARDINALITY; i++)
+                    if (other.contains(ARRAY[i])) array[length++] = ARRAY[i];
+            } else {
+                int j = 0;
+                for (int i = 0; i < CARDINALITY && j < other.CARDINALITY;) {
+                    if (ARRAY[i] < other.ARRAY[j]) i++;
+                    else if (ARRAY[i] > other.ARRAY[j]) j++;
+                    else {
+                        array[length++] = ARRAY[i++];
+                        j++;
+                    }
+                }
+            }
+            return new Container(array, length);
+        }
+
+        Container or(Container other) {
+            if (BITS != null || other.BITS != null) {
+                long[] bits = BITS != null ? BITS.clone() : other.BITS.clone();
+                Container array = BITS != null ? other : this;
+                if (array.BITS != null) {
+                    for (int i = 0; i < WORDS; i++) bits[i] |= array.BITS[i];
+                } else {
+                    for (int i = 0; i < array.CARDINALITY; i++)
+                        bits[array.ARRAY[i] >>> 6] |= 1L << array.ARRAY[i];
+                }
+                return new Container(bits);
+            }
+            char[] array = new char[CARDINALITY + other.CARDINALITY];
+            int length = 0;
+            int i = 0;
+            int j = 0;
+            while (i < CARDINALITY || j < other.CARDINALITY) {
+                if (j == other.CARDINALITY
+                        || (i < CARDINALITY && ARRAY[i] < other.ARRAY[j]))
+                    array[length++] = ARRAY[i++];
+                else if (i == CARDINALITY || ARRAY[i] > other.ARRAY[j])
+                    array[length++] = other.ARRAY[j++];
+                else {
+                    array[length++] = ARRAY[i++];
+                    j++;
+                }
+            }
+            Container container = new Container(array, length);
+            return length > ARRAY_MAX ? container.toBits() : container;
+        }
+
+        Container andNot(Container other) {
+            if (BITS != null) {
+                long[] bits = BITS.clone();
+                if (other.BITS != null) {
+                    for (int i = 0; i < WORDS; i++) bits[i] &= ~other.BITS[i];
+                } else {
+                    for (int i = 0; i < other.CARDINALITY; i++)
+                        bits[other.ARRAY[i] >>> 6] &= ~(1L << other.ARRAY[i]);
+                }
+                return new Container(bits).shrink();
+            }
+            char[] array = new char[CARDINALITY];
+            int length = 0;
+            for (int i = 0; i < CARDINALITY; i++)
+                if (!other.contains(ARRAY[i])) array[length++] = ARRAY[i];
+            return new Container(array, length);
+        }
+
+        /**
+         * Switches from an array to bits.
+         */
+        Container toBits() {
+            long[] bits = new long[WORDS];
+            for (int i = 0; i < CARDINALITY; i++)
+                bits[ARRAY[i] >>> 6] |= 1L << ARRAY[i];
+            BITS = bits;
+            ARRAY = null;
+            return this;
+        }
+
+        /**
+         * Switches from bits to an array if there are few enough values.
+         */
+        Container shrink() {
+            if (CARDINALITY > ARRAY_MAX) return this;
+            char[] array = new char[CARDINALITY];
+            int length = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long word = BITS[i];
+                while (word != 0) {
+                    array[length++] = (char) (i << 6
+                            | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new Container(array, CARDINALITY);
+        }
+
+        /**
+         * Decodes the values into an array and returns the array's new
+         * length.
+         */
+        int decode(int high, int[] values, int length) {
+            if (BITS == null) {
+                for (int i = 0; i < CARDINALITY; i++)
+                    values[length++] = high | ARRAY[i];
+                return length;
+            }
+            for (int i = 0; i < WORDS; i++) {
+                long word = BITS[i];
+                while (word != 0) {
+                    values[length++] = high | i << 6
+                            | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return length;
+        }
+    }
+}
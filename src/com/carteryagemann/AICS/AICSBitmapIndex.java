@@ -0,0 +1,364 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bitmap indexes of the intent type, caller UID, receiver UID and user ID of
+ * the intents in an AICS file, for answering filters such as "broadcasts from
+ * UID 10123 to user 0" without reading the capture.
+ *
+ * For each field the index holds an AICSBitmap per distinct value of the
+ * ordinals of the intents with that value. Ordinals are the intents'
+ * positions in the capture, the same as in AICSStringIndex, so the results of
+ * both can be combined. A filter is answered by combining bitmaps with and(),
+ * or() and andNot():
+ *
+ * <pre>
+ * AICSBitmap matches = index.get(AICSBitmapIndex.FIELD_INTENT_TYPE,
+ *         IntentHeader.TYPE_BROADCAST)
+ *         .and(index.get(AICSBitmapIndex.FIELD_CALLER_UID, 10123))
+ *         .and(index.get(AICSBitmapIndex.FIELD_USER_ID, 0));
+ * </pre>
+ *
+ * The index is stored in a sidecar file next to the capture, with the magic
+ * number 0x4149424D. The sidecar header is followed by the offset of the last
+ * indexed intent as a long, the number of intents as an int and the number
+ * of bitmaps as an int. Each bitmap is then stored as its field as a byte,
+ * its value as an int and the bitmap as written by AICSBitmap.writeTo().
+ *
+ * An index is not thread safe.
+ *
+ * @see AICSSidecar
+ * @author Carter Yagemann
+ */
+public class AICSBitmapIndex {
+
+    /**
+     * The extension used for bitmap index sidecar files.
+     */
+    public final static String EXTENSION = ".aicsbmp";
+
+    /**
+     * The intent's type.
+     */
+    public final static int FIELD_INTENT_TYPE = 0;
+
+    /**
+     * The UID of the intent's caller.
+     */
+    public final static int FIELD_CALLER_UID = 1;
+
+    /**
+     * The UID of the intent's receiver.
+     */
+    public final static int FIELD_RECEIVER_UID = 2;
+
+    /**
+     * The user the intent was sent as.
+     */
+    public final static int FIELD_USER_ID = 3;
+
+    final static int FIELD_COUNT = 4;
+    final static int MAGIC_NUMBER = 0x4149424D;
+    final static short VERSION = 1;
+    final static int HEADER_SIZE = AICSSidecar.HEADER_SIZE + 16;
+
+    private final static AICSSidecar SIDECAR = new AICSSidecar("bitmap index",
+            EXTENSION, MAGIC_NUMBER, VERSION);
+
+    private final ArrayList<HashMap<Integer, AICSBitmap>> FIELDS;
+    private int SIZE;
+    private long INDEXED_SIZE;
+    private long LAST_OFFSET;
+
+    /**
+     * Creates an empty index.
+     */
+    public AICSBitmapIndex() {
+        FIELDS = new ArrayList<>(FIELD_COUNT);
+        for (int i = 0; i < FIELD_COUNT; i++) FIELDS.add(new HashMap<>());
+        SIZE = 0;
+        INDEXED_SIZE = 0;
+        LAST_OFFSET = -1;
+    }
+
+    /**
+     * Returns where the bitmap index sidecar for a capture is stored.
+     *
+     * @param capture The capture file.
+     * @return The path of the capture's bitmap index.
+     */
+    public static Path getIndexPath(Path capture) {
+        return SIDECAR.getPath(capture);
+    }
+
+    /**
+     * Builds or updates the bitmap index sidecar for a capture. If the capture
+     * has only been appended to since the sidecar was saved, only the new
+     * intents are read. Like AICSIndex.build(), indexing stops at the first
+     * intent that can't be parsed or is incomplete.
+     *
+     * @param capture The capture file to index.
+     * @return The index.
+     * @throws IOException If the capture or the index can't be read or
+     * written.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSBitmapIndex build(Path capture)
+            throws IOException, ParseException {
+        Path path = getIndexPath(capture);
+        AICSBitmapIndex index = SIDECAR.loadExisting(path,
+                AICSBitmapIndex::load);
+        try (AICSFileReader reader = new AICSFileReader(capture)) {
+            reader.setProjection(IntentProjection.headersOnly());
+            if (index == null || !AICSSidecar.canResume(reader, index.SIZE,
+                    index.LAST_OFFSET, -1, index.INDEXED_SIZE))
+                index = new AICSBitmapIndex();
+            index.scan(reader);
+        }
+        index.save(path);
+        return index;
+    }
+
+    /**
+     * Indexes a capture in memory without reading or writing a sidecar.
+     *
+     * @param capture The capture file to index.
+     * @return The index.
+     * @throws IOException If the capture can't be read.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSBitmapIndex scan(Path capture)
+            throws IOException, ParseException {
+        AICSBitmapIndex index = new AICSBitmapIndex();
+        try (AICSFileReader reader = new AICSFileReader(capture)) {
+            reader.setProjection(IntentProjection.headersOnly());
+            index.scan(reader);
+        }
+        return index;
+    }
+
+    /**
+     * Loads a bitmap index sidecar.
+     *
+     * @param path The index file.
+     * @return The loaded index.
+     * @throws IOException If the index can't be read.
+     * @throws ParseException If the file isn't a valid bitmap index.
+     */
+    public static AICSBitmapIndex load(Path path)
+            throws IOException, ParseException {
+        ByteBuffer buffer = SIDECAR.read(path, HEADER_SIZE);
+        AICSBitmapIndex loaded = new AICSBitmapIndex();
+        loaded.INDEXED_SIZE = buffer.getLong();
+        loaded.LAST_OFFSET = buffer.getLong();
+        loaded.SIZE = buffer.getInt();
+        int bitmaps = buffer.getInt();
+        if (loaded.INDEXED_SIZE < 0 || loaded.SIZE < 0 || bitmaps < 0)
+            throw SIDECAR.invalid(0);
+        try {
+            for (int i = 0; i < bitmaps; i++) {
+                int field = buffer.get();
+                if (field < 0 || field >= FIELD_COUNT)
+                    throw new ParseException("Unknown field.",
+                            buffer.position() - 1);
+                int value = buffer.getInt();
+                AICSBitmap bitmap = AICSBitmap.readFrom(buffer);
+                if (bitmap.last() >= loaded.SIZE)
+                    throw new ParseException("Ordinal is out of range.",
+                            buffer.position());
+                loaded.FIELDS.get(field).put(value, bitmap);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("Bitmap index is truncated.",
+                    buffer.position());
+        }
+        if (buffer.hasRemaining()) throw SIDECAR.invalid(buffer.position());
+        return loaded;
+    }
+
+    /**
+     * Adds an intent to the index as the next ordinal.
+     *
+     * @param intent The intent. Its intent data isn't needed.
+     * @return The intent's ordinal.
+     */
+    public int add(IntentHeader intent) {
+        if (SIZE == Integer.MAX_VALUE)
+            throw new IllegalStateException("Bitmap index is full.");
+        int ordinal = SIZE++;
+        add(FIELD_INTENT_TYPE, intent.getIntentType(), ordinal);
+        add(FIELD_CALLER_UID, intent.getCallerUID(), ordinal);
+        add(FIELD_RECEIVER_UID, intent.getReceiverUID(), ordinal);
+        add(FIELD_USER_ID, intent.getUserID(), ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Adds an intent which was read from a capture at a known offset, so
+     * build() can later tell where to resume from.
+     */
+    private void add(IntentHeader intent, long offset, long end) {
+        add(intent);
+        LAST_OFFSET = offset;
+        INDEXED_SIZE = end;
+    }
+
+    private void add(int field, int value, int ordinal) {
+        HashMap<Integer, AICSBitmap> values = FIELDS.get(field);
+        AICSBitmap bitmap = values.get(value);
+        if (bitmap == null) {
+            bitmap = new AICSBitmap();
+            values.put(value, bitmap);
+        }
+        bitmap.add(ordinal);
+    }
+
+    /**
+     * Returns how many intents are in the index.
+     *
+     * @return The number of indexed intents.
+     */
+    public int size() { return SIZE; }
+
+    /**
+     * Returns how many bytes of the capture are covered by the index.
+     *
+     * @return The number of indexed bytes.
+     */
+    public long getIndexedSize() { return INDEXED_SIZE; }
+
+    /**
+     * Returns the distinct values of a field.
+     *
+     * @param field One of the FIELD constants.
+     * @return The values in increasing order.
+     */
+    public int[] getValues(int field) {
+        HashMap<Integer, AICSBitmap> values = getField(field);
+        int[] result = new int[values.size()];
+        int length = 0;
+        for (int value : values.keySet()) result[length++] = value;
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the intents whose field has a value. The bitmap belongs to the
+     * index and must not be added to.
+     *
+     * @param field One of the FIELD constants.
+     * @param value The value.
+     * @return The ordinals of the matching intents.
+     */
+    public AICSBitmap get(int field, int value) {
+        AICSBitmap bitmap = getField(field).get(value);
+        return bitmap == null ? new AICSBitmap() : bitmap;
+    }
+
+    /**
+     * Returns every intent in the index, for use with andNot().
+     *
+     * @return The ordinals of all the indexed intents.
+     */
+    public AICSBitmap getAll() { return AICSBitmap.range(0, SIZE); }
+
+    /**
+     * Returns the intents which match the type, UID and user ID settings of a
+     * filter. The filter's other settings aren't checked, so the intents
+     * still have to be checked against the filter once they are read. Like
+     * get(), the bitmap may belong to the index and must not be added to.
+     *
+     * @param filter The filter.
+     * @return The ordinals of the intents which could match.
+     */
+    public AICSBitmap find(IntentFilter filter) {
+        AICSBitmap result = null;
+        int types = filter.getIntentTypes();
+        if ((types & 7) != 7) {
+            result = new AICSBitmap();
+            for (short type = 0; type < 3; type++)
+                if ((types & 1 << type) != 0)
+                    result = result.or(get(FIELD_INTENT_TYPE, type));
+        }
+        result = and(result, FIELD_CALLER_UID, filter.getCallerUID());
+        result = and(result, FIELD_RECEIVER_UID, filter.getReceiverUID());
+        result = and(result, FIELD_USER_ID, filter.getUserID());
+        return result == null ? getAll() : result;
+    }
+
+    private AICSBitmap and(AICSBitmap result, int field, Integer value) {
+        if (value == null) return result;
+        AICSBitmap bitmap = get(field, value);
+        return result == null ? bitmap : result.and(bitmap);
+    }
+
+    /**
+     * Writes the index to a sidecar, replacing anything already there.
+     *
+     * @param path The index file.
+     * @throws IOException If the index can't be written.
+     */
+    public void save(Path path) throws IOException {
+        long size = HEADER_SIZE;
+        int bitmaps = 0;
+        for (HashMap<Integer, AICSBitmap> field : FIELDS) {
+            for (AICSBitmap bitmap : field.values()) {
+                size += 5 + bitmap.getSerializedSize();
+                bitmaps++;
+            }
+        }
+        ByteBuffer buffer = SIDECAR.allocate(size, INDEXED_SIZE);
+        buffer.putLong(LAST_OFFSET)
+                .putInt(SIZE)
+                .putInt(bitmaps);
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            for (Map.Entry<Integer, AICSBitmap> entry
+                    : FIELDS.get(field).entrySet()) {
+                buffer.put((byte) field).putInt(entry.getKey());
+                entry.getValue().writeTo(buffer);
+            }
+        }
+        SIDECAR.write(path, buffer);
+    }
+
+    private HashMap<Integer, AICSBitmap> getField(int field) {
+        if (field < 0 || field >= FIELD_COUNT)
+            throw new IllegalArgumentException("Unknown field.");
+        return FIELDS.get(field);
+    }
+
+    /**
+     * Indexes every intent from the reader's position until the first one
+     * that can't be parsed or is incomplete.
+     */
+    private void scan(AICSFileReader reader) throws IOException {
+        AICSSidecar.scan(reader, this::add);
+        if (SIZE == 0) INDEXED_SIZE = reader.getPosition();
+    }
+}
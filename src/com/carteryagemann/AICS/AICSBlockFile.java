@@ -0,0 +1,674 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a block-compressed AICS file written by AICSBlockWriter. The block
+ * index in the footer is read when the file is opened, after which any block
+ * can be decompressed on its own and several blocks can be decompressed in
+ * parallel. If the footer is missing, for example because the writer crashed,
+ * the index is rebuilt by reading every complete block.
+ *
+ * The footer also holds statistics about each block, such as its time range,
+ * UID ranges and a Bloom filter of its actions and components.
+ * readIntents(IntentFilter) uses them to skip blocks which can't hold a
+ * matching intent without reading or decompressing them. Files without a
+ * footer, or written before statistics were added, have no statistics and
+ * every block is read.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSBlockFile implements Closeable {
+
+    private final FileChannel CHANNEL;
+    private final ByteBuffer BUFFER;
+    private final AICSFile.AICSFileHeader FILE_HEADER;
+
+    // The block index, one entry per block
+    private final long[] OFFSETS;
+    private final int[] COMPRESSED_SIZES;
+    private final int[] UNCOMPRESSED_SIZES;
+    private final long[] FIRST_INTENTS;
+    private final int[] INTENT_COUNTS;
+    private final int[] FIRST_TIMESTAMPS;
+    private final short[] FIRST_OFFSETS;
+    private final AICSBlockStatistics[] STATISTICS;
+    private final int BLOCK_COUNT;
+
+    /**
+     * Opens a block-compressed AICS file.
+     *
+     * @param path The file to read.
+     * @return The opened file.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If the file isn't a block-compressed AICS file.
+     */
+    public static AICSBlockFile open(Path path)
+            throws IOException, ParseException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new AICSBlockFile(channel, null);
+        } catch (IOException | ParseException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a block-compressed AICS file held in a buffer. The file starts at
+     * the buffer's position and ends at its limit. The buffer's position isn't
+     * changed.
+     *
+     * @param buffer The buffer to read.
+     * @return The file.
+     * @throws ParseException If the buffer doesn't hold a block-compressed
+     * AICS file.
+     */
+    public static AICSBlockFile wrap(ByteBuffer buffer) throws ParseException {
+        try {
+            return new AICSBlockFile(null, buffer.slice());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Buffers don't do I/O
+        }
+    }
+
+    private AICSBlockFile(FileChannel channel, ByteBuffer buffer)
+            throws IOException, ParseException {
+        CHANNEL = channel;
+        BUFFER = buffer;
+        long end = getFileSize();
+
+        ByteBuffer header = ByteBuffer.allocate(12);
+        if (!read(header, 0))
+            throw new ParseException("File is too small to be an AICS file.",
+                    0);
+        header.flip();
+        FILE_HEADER = AICSFile.AICSFileHeader.readFromBuffer(header);
+        if (!FILE_HEADER.isBlockCompressed())
+            throw new ParseException("File is not block compressed.", 0);
+        if (FILE_HEADER.getByteOrder() != ByteOrder.BIG_ENDIAN)
+            throw new ParseException("Block-compressed files must be big "
+                    + "endian.", 0);
+
+        // Use the footer's index if there is one
+        ByteBuffer footer = readFooter(end);
+        ByteBuffer statistics = null;
+        if (footer == null) footer = recoverIndex(end);
+        else statistics = readStatistics(end, footer.remaining());
+        BLOCK_COUNT = footer.remaining() / AICSBlockWriter.INDEX_ENTRY_SIZE;
+        OFFSETS = new long[BLOCK_COUNT];
+        COMPRESSED_SIZES = new int[BLOCK_COUNT];
+        UNCOMPRESSED_SIZES = new int[BLOCK_COUNT];
+        FIRST_INTENTS = new long[BLOCK_COUNT];
+        INTENT_COUNTS = new int[BLOCK_COUNT];
+        FIRST_TIMESTAMPS = new int[BLOCK_COUNT];
+        FIRST_OFFSETS = new short[BLOCK_COUNT];
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            OFFSETS[i] = footer.getLong();
+            COMPRESSED_SIZES[i] = footer.getInt();
+            UNCOMPRESSED_SIZES[i] = footer.getInt();
+            FIRST_INTENTS[i] = footer.getLong();
+            INTENT_COUNTS[i] = footer.getInt();
+            FIRST_TIMESTAMPS[i] = footer.getInt();
+            FIRST_OFFSETS[i] = footer.getShort();
+            footer.getShort(); // Padding
+            if (OFFSETS[i] < 12 || COMPRESSED_SIZES[i] < 0
+                    || UNCOMPRESSED_SIZES[i] < 0 || INTENT_COUNTS[i] < 0
+                    || OFFSETS[i] + AICSBlockWriter.BLOCK_HEADER_SIZE
+                    + COMPRESSED_SIZES[i] > end)
+                throw new ParseException("Block index entry " + i
+                        + " is invalid.", 0);
+        }
+
+        STATISTICS = new AICSBlockStatistics[BLOCK_COUNT];
+        if (statistics != null) {
+            try {
+                for (int i = 0; i < BLOCK_COUNT; i++)
+                    STATISTICS[i] = AICSBlockStatistics.readFrom(statistics);
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("Block statistics are truncated.",
+                        0);
+            }
+            if (statistics.hasRemaining())
+                throw new ParseException("Block statistics are invalid.", 0);
+        }
+    }
+
+    /**
+     * Returns the Android major version the intents were captured on.
+     *
+     * @return The major version.
+     */
+    public short getAndroidMajorVersion() {
+        return FILE_HEADER.getAndroidMajorVersion();
+    }
+
+    /**
+     * Returns the Android minor version the intents were captured on.
+     *
+     * @return The minor version.
+     */
+    public byte getAndroidMinorVersion() {
+        return FILE_HEADER.getAndroidMinorVersion();
+    }
+
+    /**
+     * Returns the Android patch version the intents were captured on.
+     *
+     * @return The patch version.
+     */
+    public byte getAndroidPatchVersion() {
+        return FILE_HEADER.getAndroidPatchVersion();
+    }
+
+    /**
+     * Returns how many blocks are in the file.
+     *
+     * @return The number of blocks.
+     */
+    public int getBlockCount() { return BLOCK_COUNT; }
+
+    /**
+     * Returns how many intents are in the file.
+     *
+     * @return The number of intents.
+     */
+    public long size() {
+        if (BLOCK_COUNT == 0) return 0;
+        return FIRST_INTENTS[BLOCK_COUNT - 1] + INTENT_COUNTS[BLOCK_COUNT - 1];
+    }
+
+    /**
+     * Returns the number of the first intent in a block.
+     *
+     * @param block Which block.
+     * @return The number of the block's first intent.
+     */
+    public long getFirstIntent(int block) { return FIRST_INTENTS[block]; }
+
+    /**
+     * Returns how many intents are in a block.
+     *
+     * @param block Which block.
+     * @return The number of intents in the block.
+     */
+    public int getIntentCount(int block) { return INTENT_COUNTS[block]; }
+
+    /**
+     * Returns the timestamp of the first intent in a block.
+     *
+     * @param block Which block.
+     * @return The timestamp of the block's first intent.
+     */
+    public int getFirstTimestamp(int block) { return FIRST_TIMESTAMPS[block]; }
+
+    /**
+     * Returns the millisecond offset of the first intent in a block.
+     *
+     * @param block Which block.
+     * @return The millisecond offset of the block's first intent.
+     */
+    public short getFirstOffset(int block) { return FIRST_OFFSETS[block]; }
+
+    /**
+     * Returns the statistics of a block.
+     *
+     * @param block Which block.
+     * @return The block's statistics, or null if the file doesn't have any.
+     */
+    public AICSBlockStatistics getStatistics(int block) {
+        return STATISTICS[block];
+    }
+
+    /**
+     * Checks if a block could hold an intent which matches a filter, using
+     * only the block's statistics.
+     *
+     * @param block Which block.
+     * @param filter The filter.
+     * @return False if no intent in the block matches. Always true if the file
+     * doesn't have statistics.
+     */
+    public boolean mightMatch(int block, IntentFilter filter) {
+        return STATISTICS[block] == null
+                || STATISTICS[block].mightMatch(filter);
+    }
+
+    /**
+     * Finds the block which holds an intent.
+     *
+     * @param intent The number of the intent.
+     * @return The block holding the intent.
+     * @throws IndexOutOfBoundsException If the intent isn't in the file.
+     */
+    public int findBlock(long intent) {
+        if (intent < 0 || intent >= size())
+            throw new IndexOutOfBoundsException("Intent " + intent
+                    + " is not in the file.");
+        int block = Arrays.binarySearch(FIRST_INTENTS, intent);
+        if (block >= 0) {
+            // Skip over empty blocks which share a first intent
+            while (INTENT_COUNTS[block] == 0) block++;
+            return block;
+        }
+        return -block - 2;
+    }
+
+    /**
+     * Finds the first block which could hold intents captured at or after a
+     * time. Assumes intents were written in the order they were captured.
+     *
+     * @param timestamp The time in seconds.
+     * @param offset The millisecond offset.
+     * @return The last block whose first intent is before the time, or 0 if
+     * every block starts after it.
+     */
+    public int findBlockByTime(int timestamp, short offset) {
+        int low = 0;
+        int high = BLOCK_COUNT - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = Integer.compare(FIRST_TIMESTAMPS[middle], timestamp);
+            if (compare == 0)
+                compare = Short.compare(FIRST_OFFSETS[middle], offset);
+            if (compare < 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Decompresses a block. The returned buffer holds the block's intents
+     * flattened exactly as they are in an uncompressed AICS file.
+     *
+     * @param block Which block.
+     * @return A new buffer holding the decompressed block.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If the block is corrupt.
+     */
+    public ByteBuffer readBlock(int block) throws IOException, ParseException {
+        ByteBuffer compressed = ByteBuffer.allocate(COMPRESSED_SIZES[block]);
+        if (!read(compressed,
+                OFFSETS[block] + AICSBlockWriter.BLOCK_HEADER_SIZE))
+            throw new EOFException("Block " + block + " is truncated.");
+        byte[] output = new byte[UNCOMPRESSED_SIZES[block]];
+        if (!inflate(compressed.array(), compressed.limit(), output))
+            throw new ParseException("Block " + block + " is corrupt.", 0);
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * Decompresses a block and parses its intents.
+     *
+     * @param block Which block.
+     * @return The block's intents in order.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If the block is corrupt.
+     */
+    public List<IntentHeader> readIntents(int block)
+            throws IOException, ParseException {
+        ByteBuffer buffer = readBlock(block);
+        List<IntentHeader> intents = new ArrayList<>(INTENT_COUNTS[block]);
+        try {
+            for (int i = 0; i < INTENT_COUNTS[block]; i++)
+                intents.add(IntentHeader.parseIntent(buffer));
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("Block " + block + " ends early.", 0);
+        }
+        return intents;
+    }
+
+    /**
+     * Reads every intent which matches a filter. Blocks whose statistics show
+     * they can't hold a match are skipped without being read.
+     *
+     * @param filter The filter.
+     * @return The matching intents in order.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If a block which is read is corrupt.
+     */
+    public List<IntentHeader> readIntents(IntentFilter filter)
+            throws IOException, ParseException {
+        List<IntentHeader> intents = new ArrayList<>();
+        for (int block = 0; block < BLOCK_COUNT; block++) {
+            if (!mightMatch(block, filter)) continue;
+            for (IntentHeader intent : readIntents(block))
+                if (filter.matches(intent)) intents.add(intent);
+        }
+        return intents;
+    }
+
+    /**
+     * Decompresses a range of blocks in parallel and parses their intents.
+     *
+     * @param from The first block.
+     * @param to The block after the last one.
+     * @param pool The pool to decompress the blocks in.
+     * @return The blocks' intents in order.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If a block is corrupt.
+     */
+    public List<IntentHeader> readIntents(int from, int to, ForkJoinPool pool)
+            throws IOException, ParseException {
+        if (from < 0 || to > BLOCK_COUNT || from > to)
+            throw new IndexOutOfBoundsException("Invalid block range.");
+        List<?>[] blocks = new List<?>[to - from];
+        Exception[] failure = new Exception[1];
+        pool.invoke(new InflateTask(this, blocks, failure, from, 0,
+                blocks.length));
+        if (failure[0] instanceof IOException) throw (IOException) failure[0];
+        if (failure[0] instanceof ParseException)
+            throw (ParseException) failure[0];
+
+        int count = 0;
+        for (List<?> intents : blocks) count += intents.size();
+        List<IntentHeader> intents = new ArrayList<>(count);
+        for (List<?> block : blocks)
+            for (Object intent : block) intents.add((IntentHeader) intent);
+        return intents;
+    }
+
+    /**
+     * Reads a single intent by decompressing only its block.
+     *
+     * @param intent The number of the intent.
+     * @return The parsed intent.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If the intent's block is corrupt.
+     * @throws IndexOutOfBoundsException If the intent isn't in the file.
+     */
+    public IntentHeader getIntent(long intent)
+            throws IOException, ParseException {
+        int block = findBlock(intent);
+        ByteBuffer buffer = readBlock(block);
+        try {
+            for (long i = FIRST_INTENTS[block]; i < intent; i++)
+                buffer.position(buffer.position()
+                        + IntentHeader.parseIntentSize(buffer));
+            return IntentHeader.parseIntent(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new ParseException("Block " + block + " ends early.", 0);
+        }
+    }
+
+    /**
+     * Decompresses the whole file in parallel on the common fork-join pool.
+     *
+     * @return An AICSFile holding every intent.
+     * @throws ParseException If the file can't be read or a block is corrupt.
+     */
+    public AICSFile toAICSFile() throws ParseException {
+        AICSFile file = new AICSFile(getAndroidMajorVersion(),
+                getAndroidMinorVersion(), getAndroidPatchVersion());
+        try {
+            for (IntentHeader intent : readIntents(0, BLOCK_COUNT,
+                    ForkJoinPool.commonPool()))
+                file.appendIntent(intent);
+        } catch (IOException e) {
+            ParseException parse = new ParseException(e.toString(), 0);
+            parse.initCause(e);
+            throw parse;
+        }
+        return file;
+    }
+
+    /**
+     * Closes the file, if it was opened from a path.
+     *
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (CHANNEL != null) CHANNEL.close();
+    }
+
+    private long getFileSize() throws IOException {
+        return CHANNEL != null ? CHANNEL.size() : BUFFER.remaining();
+    }
+
+    /**
+     * Fills a buffer from an absolute position in the file. Safe to call from
+     * several threads at once.
+     *
+     * @return False if the file ended first.
+     */
+    private boolean read(ByteBuffer dst, long position) throws IOException {
+        if (CHANNEL != null) {
+            while (dst.hasRemaining()) {
+                int read = CHANNEL.read(dst, position);
+                if (read < 0) return false;
+                position += read;
+            }
+            return true;
+        }
+        if (position < 0 || BUFFER.limit() - position < dst.remaining())
+            return false;
+        ByteBuffer src = BUFFER.duplicate();
+        src.position((int) position).limit((int) position + dst.remaining());
+        dst.put(src);
+        return true;
+    }
+
+    /**
+     * Reads the block index from the footer, or returns null if the file
+     * doesn't end with a valid trailer.
+     */
+    private ByteBuffer readFooter(long end) throws IOException {
+        if (end < 12 + AICSBlockWriter.TRAILER_SIZE) return null;
+        ByteBuffer trailer = ByteBuffer.allocate(AICSBlockWriter.TRAILER_SIZE);
+        if (!read(trailer, end - AICSBlockWriter.TRAILER_SIZE)) return null;
+        trailer.flip();
+        long footer = trailer.getLong();
+        int blocks = trailer.getInt();
+        int magic = trailer.getInt();
+        long indexEnd = footer + (long) blocks
+                * AICSBlockWriter.INDEX_ENTRY_SIZE;
+        long trailerStart = end - AICSBlockWriter.TRAILER_SIZE;
+        if (footer < 12 || blocks < 0) return null;
+        if (magic == AICSBlockWriter.FOOTER_MAGIC) {
+            if (indexEnd != trailerStart) return null;
+        } else if (magic == AICSBlockWriter.FOOTER_MAGIC_STATISTICS) {
+            // Each block has at least the fixed part of its statistics
+            if (indexEnd + (long) blocks * AICSBlockStatistics.FIXED_SIZE
+                    > trailerStart)
+                return null;
+        } else {
+            return null;
+        }
+        ByteBuffer index = ByteBuffer.allocate(blocks
+                * AICSBlockWriter.INDEX_ENTRY_SIZE);
+        if (!read(index, footer)) return null;
+        index.flip();
+        return index;
+    }
+
+    /**
+     * Reads the block statistics between the block index and the trailer, or
+     * returns null if the file was written without them. Only called once
+     * readFooter() has checked the trailer.
+     */
+    private ByteBuffer readStatistics(long end, int indexSize)
+            throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(AICSBlockWriter.TRAILER_SIZE);
+        if (!read(trailer, end - AICSBlockWriter.TRAILER_SIZE)) return null;
+        if (trailer.getInt(12) != AICSBlockWriter.FOOTER_MAGIC_STATISTICS)
+            return null;
+        long start = trailer.getLong(0) + indexSize;
+        ByteBuffer statistics = ByteBuffer.allocate((int) (end
+                - AICSBlockWriter.TRAILER_SIZE - start));
+        if (!read(statistics, start)) return null;
+        statistics.flip();
+        return statistics;
+    }
+
+    /**
+     * Rebuilds the block index by reading every complete block after the file
+     * header. Stops at the first block which is truncated or corrupt.
+     */
+    private ByteBuffer recoverIndex(long end) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(AICSBlockWriter.INDEX_ENTRY_SIZE
+                * 64);
+        ByteBuffer header = ByteBuffer.allocate(
+                AICSBlockWriter.BLOCK_HEADER_SIZE);
+        long position = 12;
+        long count = 0;
+        while (true) {
+            header.clear();
+            if (!read(header, position)) break;
+            int uncompressed = header.getInt(0);
+            int compressed = header.getInt(4);
+            if (uncompressed <= 0 || compressed <= 0 || position
+                    + AICSBlockWriter.BLOCK_HEADER_SIZE + compressed > end)
+                break;
+            ByteBuffer input = ByteBuffer.allocate(compressed);
+            if (!read(input, position + AICSBlockWriter.BLOCK_HEADER_SIZE))
+                break;
+            byte[] output = new byte[uncompressed];
+            if (!inflate(input.array(), compressed, output)) break;
+
+            // Count the block's intents
+            ByteBuffer block = ByteBuffer.wrap(output);
+            int intents = 0;
+            try {
+                while (block.hasRemaining()) {
+                    block.position(block.position()
+                            + IntentHeader.parseIntentSize(block));
+                    intents++;
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException
+                    | ParseException e) {
+                break;
+            }
+
+            if (index.remaining() < AICSBlockWriter.INDEX_ENTRY_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2);
+                index.flip();
+                index = larger.put(index);
+            }
+            index.putLong(position)
+                    .putInt(compressed)
+                    .putInt(uncompressed)
+                    .putLong(count)
+                    .putInt(intents)
+                    .putInt(block.getInt(0))
+                    .putShort(block.getShort(4))
+                    .putShort((short) 0);
+            count += intents;
+            position += AICSBlockWriter.BLOCK_HEADER_SIZE + compressed;
+        }
+        index.flip();
+        return index;
+    }
+
+    /**
+     * Inflates a whole block, returning false if the data is corrupt or
+     * doesn't inflate to exactly the expected size.
+     */
+    private static boolean inflate(byte[] input, int length, byte[] output) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, 0, length);
+            int inflated = 0;
+            while (inflated < output.length && !inflater.finished()) {
+                int n = inflater.inflate(output, inflated,
+                        output.length - inflated);
+                if (n == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary()))
+                    return false;
+                inflated += n;
+            }
+            if (!inflater.finished()) {
+                // The block should end exactly where the output fills up
+                byte[] extra = new byte[1];
+                if (inflater.inflate(extra) != 0 || !inflater.finished())
+                    return false;
+            }
+            return inflated == output.length;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a range of blocks, splitting the range in half until each
+     * task has a single block.
+     */
+    private static class InflateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AICSBlockFile FILE;
+        private final List<?>[] RESULTS;
+        private final Exception[] FAILURE;
+        private final int FIRST_BLOCK;
+        private final int FROM;
+        private final int TO;
+
+        InflateTask(AICSBlockFile file, List<?>[] results, Exception[] failure,
+                int firstBlock, int from, int to) {
+            FILE = file;
+            RESULTS = results;
+            FAILURE = failure;
+            FIRST_BLOCK = firstBlock;
+            FROM = from;
+            TO = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (TO - FROM > 1) {
+                int middle = (FROM + TO) >>> 1;
+                invokeAll(new InflateTask(FILE, RESULTS, FAILURE, FIRST_BLOCK,
+                        FROM, middle), new InflateTask(FILE, RESULTS, FAILURE,
+                        FIRST_BLOCK, middle, TO));
+                return;
+            }
+            if (TO == FROM) return;
+            try {
+                RESULTS[FROM] = FILE.readIntents(FIRST_BLOCK + FROM);
+            } catch (IOException | ParseException e) {
+                synchronized (FAILURE) {
+                    if (FAILURE[0] == null) FAILURE[0] = e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Statistics about the intents in one block of a block-compressed AICS file,
+ * which let a reader skip blocks that can't hold an intent it is looking for.
+ *
+ * The statistics are the earliest and latest time in the block in
+ * milliseconds, the smallest and largest caller and receiver UIDs, the
+ * number of intents of each type and a Bloom filter of the block's actions,
+ * service actions and component names. The Bloom filter has about 10 bits
+ * per distinct string and 7 hashes, so it wrongly claims to hold a string
+ * about 1% of the time, and never wrongly claims not to.
+ *
+ * Statistics are stored as the earliest and latest times as longs, the
+ * smallest and largest caller UIDs and receiver UIDs as ints, the number of
+ * activity, broadcast and service intents as ints, the number of longs in
+ * the Bloom filter as an int and the Bloom filter's longs.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSBlockStatistics {
+
+    final static int FIXED_SIZE = 48;
+
+    private final static int BITS_PER_STRING = 10;
+    private final static int HASH_COUNT = 7;
+    private final static int MAX_WORDS = 1024;
+
+    private long MIN_TIME;
+    private long MAX_TIME;
+    private int MIN_CALLER_UID;
+    private int MAX_CALLER_UID;
+    private int MIN_RECEIVER_UID;
+    private int MAX_RECEIVER_UID;
+    private final int[] TYPE_COUNTS;
+    private long[] BLOOM;
+
+    // The hashes of the strings added so far, until the filter is built
+    private long[] HASHES;
+    private int HASH_LENGTH;
+
+    /**
+     * Creates empty statistics for a block which is being written.
+     */
+    AICSBlockStatistics() {
+        MIN_TIME = Long.MAX_VALUE;
+        MAX_TIME = Long.MIN_VALUE;
+        MIN_CALLER_UID = Integer.MAX_VALUE;
+        MAX_CALLER_UID = Integer.MIN_VALUE;
+        MIN_RECEIVER_UID = Integer.MAX_VALUE;
+        MAX_RECEIVER_UID = Integer.MIN_VALUE;
+        TYPE_COUNTS = new int[3];
+        HASHES = new long[64];
+        HASH_LENGTH = 0;
+    }
+
+    /**
+     * Adds an intent to the statistics.
+     *
+     * @param intent The intent, with its intent data attached.
+     */
+    void add(IntentHeader intent) {
+        long time = AICSTimeIndex.getTime(intent);
+        MIN_TIME = Math.min(MIN_TIME, time);
+        MAX_TIME = Math.max(MAX_TIME, time);
+        MIN_CALLER_UID = Math.min(MIN_CALLER_UID, intent.getCallerUID());
+        MAX_CALLER_UID = Math.max(MAX_CALLER_UID, intent.getCallerUID());
+        MIN_RECEIVER_UID = Math.min(MIN_RECEIVER_UID, intent.getReceiverUID());
+        MAX_RECEIVER_UID = Math.max(MAX_RECEIVER_UID, intent.getReceiverUID());
+        TYPE_COUNTS[intent.getIntentType()]++;
+        switch (intent.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) intent;
+                addString(activity.getReceiverComponent());
+                addString(activity.getCallerComponent());
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast =
+                        (BroadcastIntentHeader) intent;
+                addString(broadcast.getReceiverComponent());
+                addString(broadcast.getCallerComponent());
+                break;
+            default:
+                ServiceIntentHeader service = (ServiceIntentHeader) intent;
+                addString(service.getReceiverComponent());
+                addString(service.getCallerComponent());
+                addString(service.getAction());
+        }
+        IntentData data = intent.getIntentData();
+        if (data != null) addString(data.getAction());
+    }
+
+    private void addString(String string) {
+        if (string == null || string.isEmpty()) return;
+        if (HASH_LENGTH == HASHES.length)
+            HASHES = Arrays.copyOf(HASHES, HASH_LENGTH * 2);
+        HASHES[HASH_LENGTH++] = hash(string);
+    }
+
+    /**
+     * Builds the Bloom filter from the strings which were added. Nothing can
+     * be added afterwards.
+     */
+    void finish() {
+        long[] hashes = Arrays.copyOf(HASHES, HASH_LENGTH);
+        Arrays.sort(hashes);
+        int distinct = 0;
+        for (int i = 0; i < hashes.length; i++)
+            if (i == 0 || hashes[i] != hashes[i - 1])
+                hashes[distinct++] = hashes[i];
+
+        // A power of two so bits can be picked with a mask
+        int words = 1;
+        while (words < MAX_WORDS
+                && (long) words * 64 < (long) distinct * BITS_PER_STRING)
+            words <<= 1;
+        BLOOM = new long[words];
+        for (int i = 0; i < distinct; i++) {
+            int h1 = (int) hashes[i];
+            int h2 = (int) (hashes[i] >>> 32) | 1;
+            for (int k = 0; k < HASH_COUNT; k++) {
+                int bit = (h1 + k * h2) & (words * 64 - 1);
+                BLOOM[bit >>> 6] |= 1L << bit;
+            }
+        }
+        HASHES = null;
+    }
+
+    /**
+     * Returns how many bytes writeTo() writes.
+     */
+    int getSize() { return FIXED_SIZE + BLOOM.length * 8; }
+
+    /**
+     * Writes the statistics at the buffer's position.
+     */
+    void writeTo(ByteBuffer dst) {
+        dst.putLong(MIN_TIME)
+                .putLong(MAX_TIME)
+                .putInt(MIN_CALLER_UID)
+                .putInt(MAX_CALLER_UID)
+                .putInt(MIN_RECEIVER_UID)
+                .putInt(MAX_RECEIVER_UID);
+        for (int count : TYPE_COUNTS) dst.putInt(count);
+        dst.putInt(BLOOM.length);
+        for (long word : BLOOM) dst.putLong(word);
+    }
+
+    /**
+     * Reads statistics written by writeTo() at the buffer's position.
+     *
+     * @throws ParseException If the statistics aren't valid.
+     * @throws BufferUnderflowException If the buffer ends first.
+     */
+    static AICSBlockStatistics readFrom(ByteBuffer src)
+            throws ParseException, BufferUnderflowException {
+        AICSBlockStatistics statistics = new AICSBlockStatistics();
+        statistics.HASHES = null;
+        statistics.MIN_TIME = src.getLong();
+        statistics.MAX_TIME = src.getLong();
+        statistics.MIN_CALLER_UID = src.getInt();
+        statistics.MAX_CALLER_UID = src.getInt();
+        statistics.MIN_RECEIVER_UID = src.getInt();
+        statistics.MAX_RECEIVER_UID = src.getInt();
+        for (int i = 0; i < 3; i++) statistics.TYPE_COUNTS[i] = src.getInt();
+        int words = src.getInt();
+        if (words <= 0 || words > MAX_WORDS || Integer.bitCount(words) != 1)
+            throw new ParseException("Invalid Bloom filter size.",
+                    src.position() - 4);
+        statistics.BLOOM = new long[words];
+        for (int i = 0; i < words; i++) statistics.BLOOM[i] = src.getLong();
+        return statistics;
+    }
+
+    /**
+     * Returns the earliest time in the block.
+     *
+     * @return The time in milliseconds.
+     * @see AICSTimeIndex#getTime(IntentHeader)
+     */
+    public long getMinTime() { return MIN_TIME; }
+
+    /**
+     * Returns the latest time in the block.
+     *
+     * @return The time in milliseconds.
+     * @see AICSTimeIndex#getTime(IntentHeader)
+     */
+    public long getMaxTime() { return MAX_TIME; }
+
+    public int getMinCallerUID() { return MIN_CALLER_UID; }
+
+    public int getMaxCallerUID() { return MAX_CALLER_UID; }
+
+    public int getMinReceiverUID() { return MIN_RECEIVER_UID; }
+
+    public int getMaxReceiverUID() { return MAX_RECEIVER_UID; }
+
+    /**
+     * Returns how many intents of a type are in the block.
+     *
+     * @param type IntentHeader.TYPE_ACTIVITY, TYPE_BROADCAST or TYPE_SERVICE.
+     * @return The number of intents of the type.
+     */
+    public int getIntentCount(short type) { return TYPE_COUNTS[type]; }
+
+    /**
+     * Checks if any action or component name in the block could be a string.
+     *
+     * @param string The string.
+     * @return False if no action or component name in the block is the
+     * string. True if one probably is.
+     */
+    public boolean mightContain(String string) {
+        long hash = hash(string);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int mask = BLOOM.length * 64 - 1;
+        for (int k = 0; k < HASH_COUNT; k++) {
+            int bit = (h1 + k * h2) & mask;
+            if ((BLOOM[bit >>> 6] & 1L << bit) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if any intent in the block could match a filter, using the
+     * filter's types, time range, caller and receiver UIDs, components and
+     * action.
+     *
+     * @param filter The filter.
+     * @return False if no intent in the block matches the filter.
+     */
+    public boolean mightMatch(IntentFilter filter) {
+        int types = filter.getIntentTypes();
+        boolean typeFound = false;
+        for (int type = 0; type < 3; type++)
+            if ((types & 1 << type) != 0 && TYPE_COUNTS[type] > 0)
+                typeFound = true;
+        return typeFound
+                && Math.floorDiv(MAX_TIME, 1000) >= filter.getFrom()
+                && Math.floorDiv(MIN_TIME, 1000) <= filter.getTo()
+                && inRange(filter.getCallerUID(), MIN_CALLER_UID,
+                        MAX_CALLER_UID)
+                && inRange(filter.getReceiverUID(), MIN_RECEIVER_UID,
+                        MAX_RECEIVER_UID)
+                && mightContain(filter.getReceiverComponent())
+                && mightContain(filter.getCallerComponent())
+                && mightContain(filter.getAction());
+    }
+
+    private static boolean inRange(Integer value, int min, int max) {
+        return value == null || (value >= min && value <= max);
+    }
+
+    /**
+     * Checks an encoded string from a filter, which matches anything if it
+     * is null and only intents without the field if it is empty.
+     */
+    private boolean mightContain(byte[] string) {
+        return string == null || string.length == 0
+                || mightContain(new String(string, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hashes a string's chars with 64 bit FNV-1a followed by a final mix so
+     * both halves of the hash are usable.
+     */
+    private static long hash(String string) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ hash >>> 33;
+    }
+}
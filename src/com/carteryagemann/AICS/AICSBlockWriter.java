@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a block-compressed AICS file. Intents are flattened exactly as they
+ * would be in an uncompressed file, gathered into blocks of about 64 KB and
+ * each block is compressed on its own, so a reader only has to decompress the
+ * blocks it needs.
+ *
+ * The file starts with the usual file header using format minor version 2.
+ * Each block follows as its uncompressed size and compressed size, both
+ * ints, and then the deflated intents. When the writer is closed a footer is
+ * appended with one entry per block: the block's offset as a long, its
+ * compressed and uncompressed sizes as ints, the number of the block's first
+ * intent as a long, the number of intents in the block as an int and the
+ * timestamp and offset of the block's first intent as an int and a short,
+ * padded to 36 bytes. The index is followed by the statistics of each block,
+ * as written by AICSBlockStatistics, which let readers skip blocks that
+ * can't hold the intents they are looking for. The file ends with a 16 byte
+ * trailer: the footer's offset as a long, the number of blocks as an int and
+ * the magic number 0x41494253. Files written before block statistics were
+ * added end with the magic number 0x41494342 instead and have no statistics.
+ *
+ * A block writer is not thread safe.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSBlockWriter implements Closeable {
+
+    /**
+     * The default number of uncompressed bytes gathered into each block.
+     */
+    public final static int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    final static int FOOTER_MAGIC = 0x41494342;
+    final static int FOOTER_MAGIC_STATISTICS = 0x41494253;
+    final static int BLOCK_HEADER_SIZE = 8;
+    final static int INDEX_ENTRY_SIZE = 36;
+    final static int TRAILER_SIZE = 16;
+
+    private final WritableByteChannel CHANNEL;
+    private final Deflater DEFLATER;
+    private final int BLOCK_SIZE;
+    private ByteBuffer BLOCK;
+    private byte[] COMPRESSED;
+    private ByteBuffer INDEX;
+    private ByteBuffer STATISTICS;
+    private AICSBlockStatistics BLOCK_STATISTICS;
+    private long SIZE;
+    private long COUNT;
+    private int BLOCK_COUNT;
+    private int BLOCK_INTENTS;
+    private int FIRST_TIMESTAMP;
+    private short FIRST_OFFSET;
+    private boolean CLOSED;
+
+    /**
+     * Creates a new block-compressed AICS file, replacing any existing file at
+     * the path.
+     *
+     * @param path The file to write.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     * @throws IOException If the file can't be created.
+     */
+    public AICSBlockWriter(Path path, short major, byte minor, byte patch)
+            throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                major, minor, patch, DEFAULT_BLOCK_SIZE,
+                Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a writer which writes a new block-compressed AICS file to a
+     * channel.
+     *
+     * @param channel The channel to write to.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     * @param blockSize How many uncompressed bytes to gather into each block.
+     * An intent larger than this gets a block of its own.
+     * @param level The Deflater compression level.
+     * @throws IOException If the file header can't be written.
+     */
+    public AICSBlockWriter(WritableByteChannel channel, short major,
+            byte minor, byte patch, int blockSize, int level)
+            throws IOException {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Block size must be positive.");
+        CHANNEL = channel;
+        DEFLATER = new Deflater(level);
+        BLOCK_SIZE = blockSize;
+        BLOCK = ByteBuffer.allocate(blockSize);
+        COMPRESSED = new byte[blockSize + blockSize / 8 + 64];
+        INDEX = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 64);
+        STATISTICS = ByteBuffer.allocate(AICSBlockStatistics.FIXED_SIZE * 64);
+        BLOCK_STATISTICS = new AICSBlockStatistics();
+        COUNT = 0;
+        BLOCK_COUNT = 0;
+        BLOCK_INTENTS = 0;
+        CLOSED = false;
+
+        AICSFile.AICSFileHeader header = new AICSFile.AICSFileHeader(
+                AICSFile.AICSFileHeader.FORMAT_MINOR_VERSION_BLOCK, major,
+                minor, patch);
+        ByteBuffer buffer = header.toByteBuffer();
+        SIZE = buffer.remaining();
+        writeFully(buffer);
+    }
+
+    /**
+     * Appends an intent and its intent data to the current block, first
+     * compressing and writing the block if the intent doesn't fit.
+     *
+     * @param intent The intent to write.
+     * @return Itself.
+     * @throws IOException If the channel can't be written to.
+     * @throws IllegalStateException If the writer is closed.
+     */
+    public AICSBlockWriter write(IntentHeader intent) throws IOException {
+        if (CLOSED) throw new IllegalStateException("Writer is closed.");
+        IntentData data = intent.getIntentData();
+        int size = intent.getSize() + data.getSize();
+        if (size > BLOCK.remaining()) {
+            flushBlock();
+            if (size > BLOCK.capacity()) BLOCK = ByteBuffer.allocate(size);
+        }
+        if (BLOCK_INTENTS == 0) {
+            FIRST_TIMESTAMP = intent.getTimestamp();
+            FIRST_OFFSET = intent.getOffset();
+        }
+        intent.writeTo(BLOCK);
+        data.writeTo(BLOCK);
+        BLOCK_STATISTICS.add(intent);
+        BLOCK_INTENTS++;
+        COUNT++;
+        return this;
+    }
+
+    /**
+     * Returns how many intents have been written so far.
+     *
+     * @return The number of intents.
+     */
+    public long getIntentCount() { return COUNT; }
+
+    /**
+     * Returns how many compressed bytes have been written to the channel so
+     * far. Intents in the current block aren't counted until it's written.
+     *
+     * @return The number of bytes written.
+     */
+    public long size() { return SIZE; }
+
+    /**
+     * Compresses and writes the current block, if it holds any intents.
+     * Writing small blocks hurts compression, so this should only be called
+     * when the intents have to reach the channel, for example before a
+     * checkpoint.
+     *
+     * @throws IOException If the channel can't be written to.
+     */
+    public void flushBlock() throws IOException {
+        if (BLOCK_INTENTS == 0) return;
+        int length = BLOCK.position();
+
+        // Compress the whole block in one go
+        DEFLATER.reset();
+        DEFLATER.setInput(BLOCK.array(), 0, length);
+        DEFLATER.finish();
+        int compressed = 0;
+        while (!DEFLATER.finished()) {
+            if (compressed == COMPRESSED.length)
+                COMPRESSED = Arrays.copyOf(COMPRESSED, COMPRESSED.length * 2);
+            compressed += DEFLATER.deflate(COMPRESSED, compressed,
+                    COMPRESSED.length - compressed);
+        }
+
+        if (INDEX.remaining() < INDEX_ENTRY_SIZE) {
+            ByteBuffer index = ByteBuffer.allocate(INDEX.capacity() * 2);
+            INDEX.flip();
+            INDEX = index.put(INDEX);
+        }
+        INDEX.putLong(SIZE)
+                .putInt(compressed)
+                .putInt(length)
+                .putLong(COUNT - BLOCK_INTENTS)
+                .putInt(BLOCK_INTENTS)
+                .putInt(FIRST_TIMESTAMP)
+                .putShort(FIRST_OFFSET)
+                .putShort((short) 0);
+
+        BLOCK_STATISTICS.finish();
+        int size = BLOCK_STATISTICS.getSize();
+        if (STATISTICS.remaining() < size) {
+            ByteBuffer statistics = ByteBuffer.allocate(Math.max(
+                    STATISTICS.capacity() * 2, STATISTICS.position() + size));
+            STATISTICS.flip();
+            STATISTICS = statistics.put(STATISTICS);
+        }
+        BLOCK_STATISTICS.writeTo(STATISTICS);
+        BLOCK_STATISTICS = new AICSBlockStatistics();
+
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putInt(length).putInt(compressed).flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(COMPRESSED, 0, compressed));
+        SIZE += BLOCK_HEADER_SIZE + compressed;
+
+        BLOCK_COUNT++;
+        BLOCK_INTENTS = 0;
+        if (BLOCK.capacity() > BLOCK_SIZE)
+            BLOCK = ByteBuffer.allocate(BLOCK_SIZE); // Drop oversized buffer
+        else BLOCK.clear();
+    }
+
+    /**
+     * Writes the last block, the footer and the trailer and closes the
+     * channel.
+     *
+     * @throws IOException If the channel can't be written to or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (CLOSED) return;
+        CLOSED = true;
+        try {
+            flushBlock();
+            long footer = SIZE;
+            INDEX.flip();
+            writeFully(INDEX);
+            STATISTICS.flip();
+            writeFully(STATISTICS);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(footer).putInt(BLOCK_COUNT)
+                    .putInt(FOOTER_MAGIC_STATISTICS).flip();
+            writeFully(trailer);
+        } finally {
+            DEFLATER.end();
+            CHANNEL.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) CHANNEL.write(buffer);
+    }
+}
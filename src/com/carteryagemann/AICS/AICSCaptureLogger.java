@@ -0,0 +1,364 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Logs intents captured on many threads to a single AICSWriter without
+ * locking. Intents are encoded by the thread which logs them straight into a
+ * preallocated ring of fixed-sized slots and a single writer thread drains
+ * the ring to the writer in batches.
+ *
+ * Logging an intent only claims a slot with one compare-and-set, encodes the
+ * intent into the slot and publishes it. A thread only has to wait if the ring
+ * is full, which means the writer thread has fallen a whole ring behind.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSCaptureLogger implements Closeable {
+
+    /**
+     * The default number of slots in the ring.
+     */
+    public final static int DEFAULT_SLOT_COUNT = 4096;
+
+    /**
+     * The default size of each slot, which is the largest intent that can be
+     * logged.
+     */
+    public final static int DEFAULT_SLOT_SIZE = 4096;
+
+    // Set in CLAIMED once the logger is closed so no slot can be claimed after
+    private final static long CLOSED = Long.MIN_VALUE;
+
+    private final AICSWriter WRITER;
+    private final WaitStrategy WAIT_STRATEGY;
+    private final ByteBuffer[] SLOTS;
+    private final AtomicIntegerArray PUBLISHED;
+    private final int SLOT_SIZE;
+    private final int MASK;
+    private final int SHIFT;
+    private final AtomicLong CLAIMED;
+    private final AtomicLong CONSUMED;
+    private final Thread THREAD;
+
+    private volatile IOException FAILURE;
+
+    /**
+     * Decides what the writer thread does while there are no intents to
+     * write.
+     */
+    public interface WaitStrategy {
+
+        /**
+         * Called by the writer thread each time it finds no intents to write.
+         *
+         * @param idleCount How many times in a row no intents were found.
+         * @throws InterruptedException If the writer thread is interrupted.
+         */
+        void await(int idleCount) throws InterruptedException;
+
+        /**
+         * Called by a logging thread after it publishes an intent.
+         */
+        void signal();
+    }
+
+    /**
+     * Returns a wait strategy which keeps the writer thread spinning. This
+     * gives the lowest latency but uses a whole core.
+     *
+     * @return A busy spin wait strategy.
+     */
+    public static WaitStrategy busySpinWaitStrategy() {
+        return new WaitStrategy() {
+            @Override
+            public void await(int idleCount) {}
+
+            @Override
+            public void signal() {}
+        };
+    }
+
+    /**
+     * Returns a wait strategy which yields the writer thread's time slice
+     * while idle.
+     *
+     * @return A yielding wait strategy.
+     */
+    public static WaitStrategy yieldingWaitStrategy() {
+        return new WaitStrategy() {
+            @Override
+            public void await(int idleCount) { Thread.yield(); }
+
+            @Override
+            public void signal() {}
+        };
+    }
+
+    /**
+     * Returns a wait strategy which spins, then yields and finally sleeps for
+     * the given time while idle. Logging threads never have to signal the
+     * writer thread.
+     *
+     * @param sleepNanos How long to sleep once the writer thread has been idle
+     * for a while.
+     * @return A sleeping wait strategy.
+     */
+    public static WaitStrategy sleepingWaitStrategy(final long sleepNanos) {
+        return new WaitStrategy() {
+            @Override
+            public void await(int idleCount) {
+                if (idleCount < 100) return;
+                if (idleCount < 200) Thread.yield();
+                else LockSupport.parkNanos(sleepNanos);
+            }
+
+            @Override
+            public void signal() {}
+        };
+    }
+
+    /**
+     * Returns a wait strategy which blocks the writer thread until an intent
+     * is logged. This uses the least CPU, but logging threads have to take a
+     * lock to wake the writer thread when it's waiting.
+     *
+     * @return A blocking wait strategy.
+     */
+    public static WaitStrategy blockingWaitStrategy() {
+        return new WaitStrategy() {
+            private final ReentrantLock LOCK = new ReentrantLock();
+            private final Condition LOGGED = LOCK.newCondition();
+            private volatile boolean WAITING = false;
+
+            @Override
+            public void await(int idleCount) throws InterruptedException {
+                LOCK.lock();
+                try {
+                    WAITING = true;
+                    // Wake up now and then in case a signal was missed
+                    LOGGED.await(1, TimeUnit.MILLISECONDS);
+                } finally {
+                    WAITING = false;
+                    LOCK.unlock();
+                }
+            }
+
+            @Override
+            public void signal() {
+                if (!WAITING) return;
+                LOCK.lock();
+                try {
+                    LOGGED.signal();
+                } finally {
+                    LOCK.unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a logger with the default ring size and a sleeping wait
+     * strategy.
+     *
+     * @param writer The writer to log intents to. It's closed when the logger
+     * is closed.
+     */
+    public AICSCaptureLogger(AICSWriter writer) {
+        this(writer, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE,
+                sleepingWaitStrategy(TimeUnit.MICROSECONDS.toNanos(100)));
+    }
+
+    /**
+     * Creates a logger and starts its writer thread.
+     *
+     * @param writer The writer to log intents to. It's closed when the logger
+     * is closed.
+     * @param slotCount How many intents the ring can hold. Must be a power of
+     * two.
+     * @param slotSize The size of each slot, which is the largest intent that
+     * can be logged.
+     * @param waitStrategy What the writer thread does while idle.
+     */
+    public AICSCaptureLogger(AICSWriter writer, int slotCount, int slotSize,
+            WaitStrategy waitStrategy) {
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1)
+            throw new IllegalArgumentException("Slot count must be a power "
+                    + "of two.");
+        if (slotSize <= 0 || (long) slotCount * slotSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid slot size.");
+        WRITER = writer;
+        WAIT_STRATEGY = waitStrategy;
+        SLOT_SIZE = slotSize;
+        MASK = slotCount - 1;
+        SHIFT = Integer.numberOfTrailingZeros(slotCount);
+
+        // Carve all the slots out of one direct buffer
+        ByteBuffer ring = ByteBuffer.allocateDirect(slotCount * slotSize);
+        SLOTS = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            ring.limit((i + 1) * slotSize);
+            ring.position(i * slotSize);
+            // Intents are encoded in the file's byte order so they can be
+            // copied to the writer as they are
+            SLOTS[i] = ring.slice().order(writer.getByteOrder());
+        }
+
+        // A slot is published once it holds the lap number of its sequence
+        PUBLISHED = new AtomicIntegerArray(slotCount);
+        for (int i = 0; i < slotCount; i++) PUBLISHED.set(i, -1);
+
+        CLAIMED = new AtomicLong(0);
+        CONSUMED = new AtomicLong(0);
+        THREAD = new Thread(new Runnable() {
+            @Override
+            public void run() { drain(); }
+        }, "AICSCaptureLogger");
+        THREAD.setDaemon(true);
+        THREAD.start();
+    }
+
+    /**
+     * Logs an intent. The intent is encoded before this returns, so it can be
+     * changed or reused afterwards. Safe to call from any number of threads.
+     *
+     * @param intent The intent to log, with its intent data attached.
+     * @throws IOException If the writer thread failed to write earlier
+     * intents.
+     * @throws IllegalArgumentException If the intent is larger than a slot.
+     * @throws IllegalStateException If the logger is closed.
+     */
+    public void log(IntentHeader intent) throws IOException {
+        IntentData data = intent.getIntentData();
+        if (intent.getSize() + data.getSize() > SLOT_SIZE)
+            throw new IllegalArgumentException("Intent is larger than a "
+                    + "slot.");
+        // Don't hand intents to a writer thread which has already died
+        if (FAILURE != null) throw FAILURE;
+
+        // Claim a slot, unless the logger is closed, and wait for the writer
+        // thread to free it
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if ((sequence & CLOSED) != 0)
+                throw new IllegalStateException("Logger is closed.");
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+        while (sequence - CONSUMED.get() > MASK) {
+            if (FAILURE != null) throw FAILURE;
+            LockSupport.parkNanos(1);
+        }
+
+        int index = (int) (sequence & MASK);
+        ByteBuffer slot = SLOTS[index];
+        boolean encoded = false;
+        try {
+            slot.clear();
+            intent.writeTo(slot);
+            data.writeTo(slot);
+            encoded = true;
+        } finally {
+            // Always publish the slot, or the writer thread would wait for it
+            // forever. A slot that couldn't be encoded is left empty and
+            // skipped.
+            if (!encoded) slot.clear();
+            PUBLISHED.lazySet(index, (int) (sequence >>> SHIFT));
+            WAIT_STRATEGY.signal();
+        }
+    }
+
+    /**
+     * Writes every logged intent, waits for the writer thread to finish and
+     * closes the writer.
+     *
+     * @throws IOException If the intents couldn't be written or the writer
+     * couldn't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        long claimed;
+        do {
+            claimed = CLAIMED.get();
+            if ((claimed & CLOSED) != 0) return;
+        } while (!CLAIMED.compareAndSet(claimed, claimed | CLOSED));
+        WAIT_STRATEGY.signal();
+        try {
+            THREAD.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing.");
+        }
+        try {
+            if (FAILURE != null) throw FAILURE;
+        } finally {
+            WRITER.close();
+        }
+    }
+
+    private boolean isPublished(long sequence) {
+        return PUBLISHED.get((int) (sequence & MASK))
+                == (int) (sequence >>> SHIFT);
+    }
+
+    /**
+     * The writer thread's loop. Writes every contiguous run of published
+     * slots and then frees them for logging threads to reuse.
+     */
+    private void drain() {
+        long next = 0;
+        int idleCount = 0;
+        try {
+            while (true) {
+                long end = next;
+                while (end - next <= MASK && isPublished(end)) end++;
+
+                if (end == next) {
+                    // Nothing to write so finish once every slot claimed
+                    // before closing is written, or wait
+                    if (CLAIMED.get() == (next | CLOSED)) break;
+                    if (idleCount == 0) WRITER.flush();
+                    WAIT_STRATEGY.await(idleCount++);
+                    continue;
+                }
+
+                idleCount = 0;
+                for (long sequence = next; sequence < end; sequence++) {
+                    ByteBuffer slot = SLOTS[(int) (sequence & MASK)];
+                    slot.flip();
+                    if (slot.hasRemaining()) WRITER.writeEncoded(slot);
+                }
+                next = end;
+                CONSUMED.lazySet(next);
+            }
+            WRITER.flush();
+        } catch (IOException e) {
+            FAILURE = e;
+        } catch (InterruptedException e) {
+            FAILURE = new InterruptedIOException("Writer thread interrupted.");
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Holds the intents of an AICS file in columns instead of as objects. Every
+ * fixed-sized field is kept in a primitive array of its own and the
+ * variable-sized fields of every intent are packed one after another into a
+ * single byte array, with an array of offsets marking where each field
+ * starts. An intent costs about 80 bytes plus its variable-sized fields,
+ * compared with several hundred for an IntentHeader, its IntentData and their
+ * Strings and arrays.
+ *
+ * Fields can be read by index without creating any objects, so scans such as
+ * filtering by UID or time walk a few arrays in order. IntentHeader objects are
+ * only built when getIntent() is called and aren't kept.
+ *
+ * A column file is not thread safe.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSColumnFile {
+
+    private final static int FIELDS = 9;
+    private final static int INITIAL_CAPACITY = 64;
+
+    private final short ANDROID_MAJOR_VERSION;
+    private final byte ANDROID_MINOR_VERSION;
+    private final byte ANDROID_PATCH_VERSION;
+
+    private final IntentHeaderView[] VIEWS;
+    private ByteBuffer SCRATCH;
+
+    private int COUNT;
+    private byte[] TYPES;
+    private int[] TIMESTAMPS;
+    private short[] OFFSETS;
+    private int[] CALLER_UIDS;
+    private int[] CALLER_PIDS;
+    private int[] RECEIVER_UIDS;
+    private int[] RECEIVER_PIDS;
+    private int[] USER_IDS;
+    private int[] REQUEST_CODES;
+    private int[] FLAGS;
+    private int[] DATA_FLAGS;
+
+    // Field f of intent i spans FIELD_STARTS[i * FIELDS + f] up to the start
+    // of the next field. Fields are stored in the order the raw format stores
+    // them: the header's three variable-sized fields, then the intent data's
+    // action, data, category, type, clip data and extras.
+    private int[] FIELD_STARTS;
+    private byte[] ARENA;
+    private int ARENA_SIZE;
+
+    /**
+     * Creates an empty column file.
+     *
+     * @param major The major Android version upon which the intents were
+     * captured on.
+     * @param minor The minor Android version upon which the intents were
+     * captured on.
+     * @param patch The patch Android version upon which the intents were
+     * captured on.
+     */
+    public AICSColumnFile(short major, byte minor, byte patch) {
+        ANDROID_MAJOR_VERSION = major;
+        ANDROID_MINOR_VERSION = minor;
+        ANDROID_PATCH_VERSION = patch;
+        VIEWS = new IntentHeaderView[] { new ActivityIntentHeaderView(),
+                new BroadcastIntentHeaderView(),
+                new ServiceIntentHeaderView() };
+        SCRATCH = ByteBuffer.allocate(1024);
+        COUNT = 0;
+        allocate(INITIAL_CAPACITY);
+        ARENA = new byte[INITIAL_CAPACITY * 64];
+        ARENA_SIZE = 0;
+    }
+
+    /**
+     * Creates a column file from a ByteBuffer holding an AICS file. Raw files
+     * are copied straight into the columns without creating any intent
+     * objects. Other formats are decoded with AICSFile first. Like
+     * AICSFile.readFromBuffer(), reading stops at the first intent which
+     * can't be parsed. The buffer's position is unchanged.
+     *
+     * @param buffer The buffer to parse.
+     * @return An AICSColumnFile.
+     * @throws ParseException If the file header can't be parsed.
+     */
+    public static AICSColumnFile readFromBuffer(ByteBuffer buffer)
+            throws ParseException {
+        ByteBuffer records = buffer.duplicate();
+        AICSFile.AICSFileHeader header =
+                AICSFile.AICSFileHeader.readFromBuffer(records);
+        records.order(header.getByteOrder());
+        AICSColumnFile file = new AICSColumnFile(
+                header.getAndroidMajorVersion(),
+                header.getAndroidMinorVersion(),
+                header.getAndroidPatchVersion());
+
+        if (header.getFormatMinorVersion()
+                != AICSFile.AICSFileHeader.FORMAT_MINOR_VERSION) {
+            AICSFile decoded = AICSFile.readFromBuffer(buffer);
+            for (int i = 0; i < decoded.size(); i++)
+                file.appendIntent(decoded.getIntent(i));
+            return file;
+        }
+
+        // Every header has to have at least 8 bytes for the timestamp, offset,
+        // and intent type.
+        while (records.remaining() > 8) {
+            try {
+                file.appendRaw(records);
+            } catch (BufferUnderflowException | ParseException e) {
+                break; // Keep as much as we could parse.
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Creates a column file from an array of bytes holding an AICS file.
+     *
+     * @param array The array to parse.
+     * @return An AICSColumnFile.
+     * @throws ParseException If the file header can't be parsed.
+     */
+    public static AICSColumnFile readFromArray(byte[] array)
+            throws ParseException {
+        return readFromBuffer(ByteBuffer.wrap(array));
+    }
+
+    /**
+     * Copies an intent and its intent data into the columns. The intent
+     * isn't kept.
+     *
+     * @param intent The intent to append.
+     * @return Itself.
+     */
+    public AICSColumnFile appendIntent(IntentHeader intent) {
+        IntentData data = intent.getIntentData();
+        int size = intent.getSize() + data.getSize();
+        if (SCRATCH.capacity() < size)
+            SCRATCH = ByteBuffer.allocate(Math.max(size,
+                    SCRATCH.capacity() * 2));
+        SCRATCH.clear();
+        intent.writeTo(SCRATCH);
+        data.writeTo(SCRATCH);
+        SCRATCH.flip();
+        try {
+            appendRaw(SCRATCH);
+        } catch (ParseException e) {
+            // Only happens if the intent flattened itself incorrectly
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Returns how many intents are in this file.
+     *
+     * @return The number of intents.
+     */
+    public int size() { return COUNT; }
+
+    /**
+     * Deletes all the intents in this file. The memory used by the columns is
+     * kept for reuse.
+     *
+     * @return Itself.
+     */
+    public AICSColumnFile clearIntents() {
+        COUNT = 0;
+        ARENA_SIZE = 0;
+        return this;
+    }
+
+    /**
+     * Shrinks the columns to fit the intents they hold. Useful once a file
+     * has been loaded and won't grow any more.
+     *
+     * @return Itself.
+     */
+    public AICSColumnFile trimToSize() {
+        int count = Math.max(COUNT, 1);
+        if (count < TYPES.length) resize(count);
+        ARENA = Arrays.copyOf(ARENA, ARENA_SIZE);
+        return this;
+    }
+
+    public short getAndroidMajorVersion() { return ANDROID_MAJOR_VERSION; }
+
+    public byte getAndroidMinorVersion() { return ANDROID_MINOR_VERSION; }
+
+    public byte getAndroidPatchVersion() { return ANDROID_PATCH_VERSION; }
+
+    public short getIntentType(int index) {
+        return TYPES[checkIndex(index)];
+    }
+
+    public int getTimestamp(int index) {
+        return TIMESTAMPS[checkIndex(index)];
+    }
+
+    public short getOffset(int index) { return OFFSETS[checkIndex(index)]; }
+
+    public int getCallerUID(int index) {
+        return CALLER_UIDS[checkIndex(index)];
+    }
+
+    public int getCallerPID(int index) {
+        return CALLER_PIDS[checkIndex(index)];
+    }
+
+    public int getReceiverUID(int index) {
+        return RECEIVER_UIDS[checkIndex(index)];
+    }
+
+    public int getReceiverPID(int index) {
+        return RECEIVER_PIDS[checkIndex(index)];
+    }
+
+    public int getUserID(int index) { return USER_IDS[checkIndex(index)]; }
+
+    /**
+     * Returns the request code of an activity or broadcast.
+     *
+     * @param index Which intent.
+     * @return The request code, or 0 for a service.
+     */
+    public int getRequestCode(int index) {
+        return REQUEST_CODES[checkIndex(index)];
+    }
+
+    /**
+     * Returns the start flags of an activity or the flags of a broadcast or
+     * service.
+     *
+     * @param index Which intent.
+     * @return The intent header's flags.
+     */
+    public int getFlags(int index) { return FLAGS[checkIndex(index)]; }
+
+    public int getIntentDataFlags(int index) {
+        return DATA_FLAGS[checkIndex(index)];
+    }
+
+    public String getReceiverComponent(int index) {
+        return getString(checkIndex(index), 0);
+    }
+
+    public String getCallerComponent(int index) {
+        return getString(checkIndex(index), 1);
+    }
+
+    /**
+     * Returns the action of an intent's intent data. For services this is
+     * not the action stored in the header.
+     *
+     * @param index Which intent.
+     * @return The action, or null if there isn't one.
+     */
+    public String getAction(int index) {
+        return getString(checkIndex(index), 3);
+    }
+
+    /**
+     * Builds a new IntentHeader and IntentData holding copies of an intent's
+     * fields.
+     *
+     * @param index Which intent.
+     * @return A new intent with its intent data attached.
+     */
+    public IntentHeader getIntent(int index) {
+        checkIndex(index);
+        IntentData data = new IntentData()
+                .setFlags(DATA_FLAGS[index])
+                .setAction(getString(index, 3))
+                .setData(getString(index, 4))
+                .setCategory(getString(index, 5))
+                .setType(getString(index, 6));
+        // Empty byte fields are left null, as they are in a parsed intent
+        byte[] clipData = getBytes(index, 7);
+        if (clipData != null) data.setClipData(clipData);
+        byte[] extras = getBytes(index, 8);
+        if (extras != null) data.setExtras(extras);
+
+        IntentHeader intent;
+        switch (TYPES[index]) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = new ActivityIntentHeader()
+                        .setRequestCode(REQUEST_CODES[index])
+                        .setStartFlags(FLAGS[index])
+                        .setReceiverComponent(getString(index, 0))
+                        .setCallerComponent(getString(index, 1));
+                byte[] options = getBytes(index, 2);
+                if (options != null) activity.setOptions(options);
+                intent = activity;
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                intent = new BroadcastIntentHeader()
+                        .setRequestCode(REQUEST_CODES[index])
+                        .setFlags(FLAGS[index])
+                        .setReceiverComponent(getString(index, 0))
+                        .setCallerComponent(getString(index, 1))
+                        .setRequiredPermission(getString(index, 2));
+                break;
+            default:
+                intent = new ServiceIntentHeader()
+                        .setFlags(FLAGS[index])
+                        .setReceiverComponent(getString(index, 0))
+                        .setCallerComponent(getString(index, 1))
+                        .setAction(getString(index, 2));
+        }
+        intent.setTimestamp(TIMESTAMPS[index])
+                .setCallerUID(CALLER_UIDS[index])
+                .setCallerPID(CALLER_PIDS[index])
+                .setReceiverUID(RECEIVER_UIDS[index])
+                .setReceiverPID(RECEIVER_PIDS[index])
+                .setUserID(USER_IDS[index])
+                .setIntentData(data);
+        intent.MILLI_OFFSET = OFFSETS[index]; // Kept as read, like parsing
+        return intent;
+    }
+
+    /**
+     * Builds an AICSFile holding every intent in this file.
+     *
+     * @return A new AICSFile.
+     */
+    public AICSFile toAICSFile() {
+        AICSFile file = new AICSFile(ANDROID_MAJOR_VERSION,
+                ANDROID_MINOR_VERSION, ANDROID_PATCH_VERSION);
+        for (int i = 0; i < COUNT; i++) file.appendIntent(getIntent(i));
+        return file;
+    }
+
+    /**
+     * Copies the raw intent at the buffer's position into the columns and
+     * moves the buffer past it. Nothing is stored if the intent is invalid.
+     */
+    private void appendRaw(ByteBuffer buffer)
+            throws ParseException, BufferUnderflowException {
+        int start = buffer.position();
+        int size = IntentHeader.parseIntentSize(buffer);
+        if (size > buffer.remaining()) throw new BufferUnderflowException();
+        short type = IntentHeader.parseIntentType(buffer);
+        IntentHeaderView header = VIEWS[type].wrap(buffer, start);
+        IntentDataView data = header.getIntentData();
+        if (header.getSize() + data.getSize() != size)
+            throw new ParseException("Intent data has the wrong size.", start);
+
+        int index = COUNT;
+        if (index == TYPES.length) resize(index * 2);
+        int headerFields = header.getSize()
+                - (header.getFieldPosition(0) - start);
+        int dataFields = data.getSize() - 4 * 7;
+        if ((long) ARENA_SIZE + headerFields + dataFields
+                > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("Column file is full.");
+        if (ARENA_SIZE + headerFields + dataFields > ARENA.length)
+            ARENA = Arrays.copyOf(ARENA, (int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max((long) ARENA.length * 2,
+                            ARENA_SIZE + headerFields + dataFields)));
+
+        TYPES[index] = (byte) type;
+        TIMESTAMPS[index] = header.getTimestamp();
+        OFFSETS[index] = header.getOffset();
+        CALLER_UIDS[index] = header.getCallerUID();
+        CALLER_PIDS[index] = header.getCallerPID();
+        RECEIVER_UIDS[index] = header.getReceiverUID();
+        RECEIVER_PIDS[index] = header.getReceiverPID();
+        USER_IDS[index] = header.getUserID();
+        switch (type) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeaderView activity =
+                        (ActivityIntentHeaderView) header;
+                REQUEST_CODES[index] = activity.getRequestCode();
+                FLAGS[index] = activity.getStartFlags();
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeaderView broadcast =
+                        (BroadcastIntentHeaderView) header;
+                REQUEST_CODES[index] = broadcast.getRequestCode();
+                FLAGS[index] = broadcast.getFlags();
+                break;
+            default:
+                REQUEST_CODES[index] = 0;
+                FLAGS[index] = ((ServiceIntentHeaderView) header).getFlags();
+        }
+        DATA_FLAGS[index] = data.getFlags();
+
+        int field = index * FIELDS;
+        int position = ARENA_SIZE;
+        for (int i = 0; i < 3; i++) {
+            FIELD_STARTS[field++] = position;
+            position += header.getFieldSize(i);
+        }
+        FIELD_STARTS[field++] = position;
+        position += data.getActionSize();
+        FIELD_STARTS[field++] = position;
+        position += data.getDataSize();
+        FIELD_STARTS[field++] = position;
+        position += data.getCategorySize();
+        FIELD_STARTS[field++] = position;
+        position += data.getTypeSize();
+        FIELD_STARTS[field++] = position;
+        position += data.getClipDataSize();
+        FIELD_STARTS[field++] = position;
+        FIELD_STARTS[field] = ARENA_SIZE + headerFields + dataFields;
+
+        // Both groups of variable-sized fields are contiguous in the buffer
+        copy(buffer, header.getFieldPosition(0), headerFields);
+        copy(buffer, data.getPosition() + 4 * 7, dataFields);
+        COUNT++;
+        buffer.position(start + size);
+    }
+
+    private void copy(ByteBuffer buffer, int position, int length) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + position,
+                    ARENA, ARENA_SIZE, length);
+        } else {
+            ByteBuffer source = buffer.duplicate();
+            source.position(position);
+            source.get(ARENA, ARENA_SIZE, length);
+        }
+        ARENA_SIZE += length;
+    }
+
+    private String getString(int index, int field) {
+        int start = FIELD_STARTS[index * FIELDS + field];
+        int length = FIELD_STARTS[index * FIELDS + field + 1] - start;
+        if (length == 0) return null;
+        return new String(ARENA, start, length, StandardCharsets.UTF_8);
+    }
+
+    private byte[] getBytes(int index, int field) {
+        int start = FIELD_STARTS[index * FIELDS + field];
+        int end = FIELD_STARTS[index * FIELDS + field + 1];
+        if (start == end) return null;
+        return Arrays.copyOfRange(ARENA, start, end);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= COUNT)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + COUNT);
+        return index;
+    }
+
+    private void allocate(int capacity) {
+        TYPES = new byte[capacity];
+        TIMESTAMPS = new int[capacity];
+        OFFSETS = new short[capacity];
+        CALLER_UIDS = new int[capacity];
+        CALLER_PIDS = new int[capacity];
+        RECEIVER_UIDS = new int[capacity];
+        RECEIVER_PIDS = new int[capacity];
+        USER_IDS = new int[capacity];
+        REQUEST_CODES = new int[capacity];
+        FLAGS = new int[capacity];
+        DATA_FLAGS = new int[capacity];
+        FIELD_STARTS = new int[capacity * FIELDS + 1];
+    }
+
+    private void resize(int capacity) {
+        TYPES = Arrays.copyOf(TYPES, capacity);
+        TIMESTAMPS = Arrays.copyOf(TIMESTAMPS, capacity);
+        OFFSETS = Arrays.copyOf(OFFSETS, capacity);
+        CALLER_UIDS = Arrays.copyOf(CALLER_UIDS, capacity);
+        CALLER_PIDS = Arrays.copyOf(CALLER_PIDS, capacity);
+        RECEIVER_UIDS = Arrays.copyOf(RECEIVER_UIDS, capacity);
+        RECEIVER_PIDS = Arrays.copyOf(RECEIVER_PIDS, capacity);
+        USER_IDS = Arrays.copyOf(USER_IDS, capacity);
+        REQUEST_CODES = Arrays.copyOf(REQUEST_CODES, capacity);
+        FLAGS = Arrays.copyOf(FLAGS, capacity);
+        DATA_FLAGS = Arrays.copyOf(DATA_FLAGS, capacity);
+        FIELD_STARTS = Arrays.copyOf(FIELD_STARTS, capacity * FIELDS + 1);
+    }
+}
@@ -15,8 +15,20 @@
  */
 package com.carteryagemann.AICS;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.text.ParseException;
 import java.nio.BufferUnderflowException;
 
@@ -30,12 +42,26 @@ import java.nio.BufferUnderflowException;
  */
 public class AICSFile {
     
-    private final static String MAGIC_PARSE_ERROR = "Failed to read magic "
-            + "number. File is either corrupt or in little endian order "
-            + "(currently not implemented).";
-    
     private final AICSFileHeader FILE_HEADER;
     private final ArrayList<IntentHeader> INTENTS;
+    private AICSStringIndex STRING_INDEX;
+    
+    /**
+     * Told about the bytes which are skipped when a file is read in recovery
+     * mode.
+     */
+    public interface CorruptionListener {
+        
+        /**
+         * Called once for each run of bytes which couldn't be parsed.
+         * 
+         * @param offset Where the skipped bytes start, relative to the start
+         * of the file.
+         * @param length How many bytes were skipped.
+         * @param cause Why the first skipped intent couldn't be parsed.
+         */
+        void skipped(long offset, int length, Exception cause);
+    }
     
     /**
      * Creates an AICSFile object from a ByteBuffer.
@@ -46,51 +72,149 @@ public class AICSFile {
      */
     public static AICSFile readFromBuffer(ByteBuffer buffer)
             throws ParseException {
+        return readFromBuffer(buffer, null);
+    }
+    
+    /**
+     * Creates an AICSFile object from a ByteBuffer, keeping only the intents
+     * which match a filter. In raw and dictionary-encoded files the filter is
+     * checked before an intent is parsed, so intents which don't match are
+     * skipped using only their size fields. Other formats are decoded in full
+     * and then filtered.
+     * 
+     * @param buffer The buffer to parse.
+     * @param filter The filter intents must match, or null to keep them all.
+     * @return An AICSFile.
+     * @throws java.text.ParseException If the buffer can't be parsed.
+     */
+    public static AICSFile readFromBuffer(ByteBuffer buffer,
+            IntentFilter filter) throws ParseException {
+        return readFromBuffer(buffer, filter, null);
+    }
+    
+    /**
+     * Creates an AICSFile object from a ByteBuffer, keeping only the intents
+     * which match a filter and only reading the fields included in a
+     * projection. Compact files are decoded in full. Block-compressed files
+     * skip the blocks whose statistics show they can't hold a match and
+     * decode the other blocks in full, ignoring the projection.
+     * 
+     * @param buffer The buffer to parse.
+     * @param filter The filter intents must match, or null to keep them all.
+     * @param projection Which fields to read, or null to read them all.
+     * @return An AICSFile.
+     * @throws java.text.ParseException If the buffer can't be parsed.
+     */
+    public static AICSFile readFromBuffer(ByteBuffer buffer,
+            IntentFilter filter, IntentProjection projection)
+            throws ParseException {
+        return readFromBuffer(buffer, filter, projection, null);
+    }
+    
+    /**
+     * Creates an AICSFile object from a ByteBuffer in recovery mode. Normally
+     * reading stops at the first intent which can't be parsed. In recovery
+     * mode a raw or dictionary-encoded file is scanned forward from a bad
+     * intent for the next offset where an intent can be parsed and reading
+     * resumes there, so a few damaged bytes only lose the intents they touch.
+     * Compact files can't be resynced, since their timestamps are relative to
+     * the previous intent, so reading them still stops at the first bad
+     * intent. Block-compressed files are checked by their blocks' sizes
+     * instead, so the listener is ignored for them, as is the projection.
+     * 
+     * @param buffer The buffer to parse.
+     * @param filter The filter intents must match, or null to keep them all.
+     * @param projection Which fields to read, or null to read them all.
+     * @param listener Told about every run of skipped bytes, or null to stop
+     * at the first bad intent.
+     * @return An AICSFile.
+     * @throws java.text.ParseException If the file header can't be parsed.
+     */
+    public static AICSFile readFromBuffer(ByteBuffer buffer,
+            IntentFilter filter, IntentProjection projection,
+            CorruptionListener listener) throws ParseException {
         
         int originalPos = buffer.position();
         
         /* Read File Header */
         
-        // Magic Number
-        int magic = buffer.getInt();
-        if (magic != AICSFileHeader.MAGIC_NUMBER)
-            throw new ParseException(MAGIC_PARSE_ERROR, buffer.position());
-        
-        // File Format Version
-        short formatMajor = buffer.getShort();
-        short formatMinor = buffer.getShort();
-        if (formatMajor != AICSFileHeader.FORMAT_MAJOR_VERSION ||
-                formatMinor != AICSFileHeader.FORMAT_MINOR_VERSION)
-            throw new ParseException("File's format version " + formatMajor +
-                    "." + formatMinor + " does not match library's supported" +
-                    "version " + AICSFileHeader.FORMAT_MAJOR_VERSION + "." +
-                    AICSFileHeader.FORMAT_MINOR_VERSION, buffer.position());
-        
-        // Android Version
-        AICSFile file = new AICSFile(buffer.getShort(), buffer.get(),
-                buffer.get());
+        AICSFile file;
+        StringTable strings = null;
+        ByteBuffer records = buffer;
+        boolean compact;
+        try {
+            AICSFileHeader header = AICSFileHeader.readFromBuffer(buffer);
+            if (header.isBlockCompressed()) {
+                buffer.position(originalPos);
+                return readBlockCompressed(buffer, filter);
+            }
+            compact = header.isCompact();
+            // Intents are decoded in the file's own byte order
+            records = buffer.duplicate().order(header.getByteOrder());
+            if (header.isDictionaryEncoded()) {
+                // The intents end where the string table starts
+                ByteBuffer whole = records.duplicate()
+                        .order(header.getByteOrder());
+                whole.position(originalPos);
+                strings = StringTable.readFromFooter(whole);
+                records.limit(originalPos + (int) strings.getOffset());
+            }
+            file = new AICSFile(header);
+        } catch (ParseException e) {
+            buffer.position(originalPos); // Restore original position
+            throw e;
+        }
         
         /* Read Intents */
         
+        if (compact) {
+            readCompact(file, records, originalPos, listener);
+            buffer.position(originalPos); // Restore original position
+            return file.filter(filter);
+        }
+        
         // Every header has to have at least 8 bytes for the timestamp, offset,
         // and intent type.
-        while (buffer.remaining() > 8) {
+        int minTimestamp = Integer.MIN_VALUE;
+        int maxTimestamp = Integer.MAX_VALUE;
+        while (records.remaining() > 8) {
+            int start = records.position();
             try { // Try to parse the intent
-                switch (IntentHeader.parseIntentType(buffer)) {
-                    case IntentHeader.TYPE_ACTIVITY:
-                        file.appendIntent(new ActivityIntentHeader(buffer));
-                        break;
-                    case IntentHeader.TYPE_BROADCAST:
-                        file.appendIntent(new BroadcastIntentHeader(buffer));
-                        break;
-                    case IntentHeader.TYPE_SERVICE:
-                        file.appendIntent(new ServiceIntentHeader(buffer));
-                        break;
+                // Damaged sizes could make the parser allocate huge arrays
+                if (listener != null && !IntentScanner.isPlausible(records,
+                        start, Integer.MIN_VALUE, Integer.MAX_VALUE))
+                    throw new ParseException("Implausible intent.", start);
+                if (filter != null) {
+                    int size = IntentHeader.parseIntentSize(records);
+                    if (size > records.remaining())
+                        throw new BufferUnderflowException();
+                    if (!filter.matches(records, records.position(),
+                            strings)) {
+                        records.position(records.position() + size);
+                        continue;
+                    }
                 }
-            } catch (BufferUnderflowException | ParseException e) {
-                System.err.println(e.toString());
-                buffer.position(originalPos); // Restore original position
-                return file; // Return as much as we could parse.
+                IntentHeader intent = IntentHeader.parseIntent(records,
+                        strings, projection);
+                file.appendIntent(intent);
+                // Resynced intents must be close to the last good one
+                long timestamp = intent.getTimestamp();
+                minTimestamp = (int) Math.max(Integer.MIN_VALUE,
+                        timestamp - IntentScanner.MAX_CLOCK_SKEW);
+                maxTimestamp = (int) Math.min(Integer.MAX_VALUE,
+                        timestamp + IntentScanner.MAX_CLOCK_SKEW);
+            } catch (BufferUnderflowException | ParseException
+                    | IndexOutOfBoundsException e) {
+                if (listener == null) {
+                    System.err.println(e.toString());
+                    buffer.position(originalPos); // Restore original position
+                    return file; // Return as much as we could parse.
+                }
+                int next = IntentScanner.find(records, start + 1, strings,
+                        minTimestamp, maxTimestamp);
+                int end = next < 0 ? records.limit() : next;
+                listener.skipped(start - originalPos, end - start, e);
+                records.position(end);
             }
         }
         
@@ -98,6 +222,87 @@ public class AICSFile {
         return file; // Success!
     }
     
+    /**
+     * Creates an AICSFile object from a ByteBuffer, parsing the intents in
+     * parallel on the common fork-join pool.
+     * 
+     * @param buffer The buffer to parse.
+     * @return An AICSFile.
+     * @throws java.text.ParseException If the buffer can't be parsed.
+     * @see #readFromBufferParallel(ByteBuffer, ForkJoinPool)
+     */
+    public static AICSFile readFromBufferParallel(ByteBuffer buffer)
+            throws ParseException {
+        return readFromBufferParallel(buffer, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Creates an AICSFile object from a ByteBuffer, parsing the intents in
+     * parallel. First the start of every intent is found using only the size
+     * fields in the headers, then groups of intents are parsed as separate
+     * tasks in the pool. The intents are returned in the same order as they
+     * appear in the buffer and, like readFromBuffer(), parsing stops at the
+     * first intent which can't be parsed.
+     * 
+     * @param buffer The buffer to parse.
+     * @param pool The pool to parse the intents in.
+     * @return An AICSFile.
+     * @throws java.text.ParseException If the buffer can't be parsed.
+     */
+    public static AICSFile readFromBufferParallel(ByteBuffer buffer,
+            ForkJoinPool pool) throws ParseException {
+        
+        int originalPos = buffer.position();
+        
+        /* Read File Header */
+        
+        AICSFile file;
+        StringTable strings = null;
+        ByteBuffer records = buffer;
+        try {
+            AICSFileHeader header = AICSFileHeader.readFromBuffer(buffer);
+            if (header.isBlockCompressed()) {
+                buffer.position(originalPos);
+                return AICSBlockFile.wrap(buffer).toAICSFile();
+            }
+            if (header.isCompact()) {
+                // Delta-encoded timestamps have to be decoded in order
+                buffer.position(originalPos);
+                return readFromBuffer(buffer);
+            }
+            records = buffer.duplicate().order(header.getByteOrder());
+            if (header.isDictionaryEncoded()) {
+                // The intents end where the string table starts
+                ByteBuffer whole = records.duplicate()
+                        .order(header.getByteOrder());
+                whole.position(originalPos);
+                strings = StringTable.readFromFooter(whole);
+                records.limit(originalPos + (int) strings.getOffset());
+            }
+            file = new AICSFile(header);
+        } catch (ParseException e) {
+            buffer.position(originalPos); // Restore original position
+            throw e;
+        }
+        
+        /* Read Intents */
+        
+        int[] offsets = findIntents(records);
+        IntentHeader[] intents = new IntentHeader[offsets.length - 1];
+        pool.invoke(new ParseTask(records, strings, offsets, intents, 0,
+                intents.length, Math.max(ParseTask.MIN_INTENTS,
+                        intents.length / (pool.getParallelism() * 4))));
+        
+        file.INTENTS.ensureCapacity(intents.length);
+        for (IntentHeader intent : intents) {
+            if (intent == null) break; // Return as much as we could parse.
+            file.appendIntent(intent);
+        }
+        
+        buffer.position(originalPos); // Restore original position
+        return file;
+    }
+    
     /**
      * Creates an AICSFile from an array of bytes.
      * 
@@ -113,6 +318,57 @@ public class AICSFile {
         }
     }
     
+    /**
+     * Streams the intents of an AICS file on disk without loading the whole
+     * file into memory. The file is first scanned to find where each intent
+     * starts, using only the size fields in the headers, so a parallel stream
+     * splits the file on intent boundaries and parses each part on its own
+     * thread. The stream should be closed to close the file.
+     * 
+     * @param path The file to stream.
+     * @return A sequential stream of the file's intents.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If the file doesn't start with a supported file
+     * header.
+     */
+    public static Stream<IntentHeader> stream(Path path)
+            throws IOException, ParseException {
+        return stream(path, AICSIndex.scan(path));
+    }
+    
+    /**
+     * Streams the intents of an AICS file on disk using an existing index to
+     * find where each intent starts. The stream should be closed to close the
+     * file.
+     * 
+     * @param path The file to stream.
+     * @param index The file's index.
+     * @return A sequential stream of the indexed intents.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If the file doesn't start with a supported file
+     * header.
+     * @see AICSIndex
+     */
+    public static Stream<IntentHeader> stream(Path path, AICSIndex index)
+            throws IOException, ParseException {
+        final FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ);
+        try {
+            return StreamSupport.stream(new AICSSpliterator(channel, index,
+                    AICSFileReader.DEFAULT_WINDOW_SIZE), false)
+                    .onClose(() -> {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException | ParseException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
     /**
      * The default constructor for creating a new AICSFile.
      * 
@@ -124,7 +380,15 @@ public class AICSFile {
      * this file were captured on.
      */
     public AICSFile(short major, byte minor, byte patch) {
-        FILE_HEADER = new AICSFileHeader(major, minor, patch);
+        this(new AICSFileHeader(major, minor, patch));
+    }
+    
+    private AICSFile(AICSFileHeader header) {
+        // Intents are held decoded, so the file is always flattened raw and
+        // big endian
+        FILE_HEADER = new AICSFileHeader(header.getAndroidMajorVersion(),
+                header.getAndroidMinorVersion(),
+                header.getAndroidPatchVersion());
         INTENTS = new ArrayList<>();
     }
     
@@ -137,6 +401,22 @@ public class AICSFile {
      */
     public AICSFile appendIntent(IntentHeader packet) {
         INTENTS.add(packet);
+        if (STRING_INDEX != null) STRING_INDEX.add(packet);
+        return this;
+    }
+    
+    /**
+     * Attaches a string index which every intent appended from now on is
+     * added to. The intents already in the file are added first, so an empty
+     * index ends up with the same ordinals as the file.
+     * 
+     * @param index The index to keep up to date, or null to stop.
+     * @return Itself.
+     */
+    public AICSFile setStringIndex(AICSStringIndex index) {
+        if (index != null)
+            for (IntentHeader intent : INTENTS) index.add(intent);
+        STRING_INDEX = index;
         return this;
     }
     
@@ -149,12 +429,14 @@ public class AICSFile {
     public IntentHeader getIntent(int index) { return INTENTS.get(index); }
     
     /**
-     * Deletes all the intents in this file.
+     * Deletes all the intents in this file. Any attached string index is
+     * detached since its ordinals no longer match.
      * 
      * @return Itself.
      */
     public AICSFile clearIntents() {
         INTENTS.clear();
+        STRING_INDEX = null;
         return this;
     }
     
@@ -165,6 +447,25 @@ public class AICSFile {
      */
     public int size() { return INTENTS.size(); }
     
+    public short getAndroidMajorVersion() {
+        return FILE_HEADER.getAndroidMajorVersion();
+    }
+    
+    public byte getAndroidMinorVersion() {
+        return FILE_HEADER.getAndroidMinorVersion();
+    }
+    
+    public byte getAndroidPatchVersion() {
+        return FILE_HEADER.getAndroidPatchVersion();
+    }
+    
+    /**
+     * Returns a sequential stream of the intents in this file, in order.
+     * 
+     * @return A stream of this file's intents.
+     */
+    public Stream<IntentHeader> stream() { return INTENTS.stream(); }
+    
     /**
      * Flattens the AICSFile into a ByteBuffer for writing.
      * 
@@ -179,22 +480,181 @@ public class AICSFile {
         
         // Merge list of buffers into one buffer
         ByteBuffer output = ByteBuffer.allocate(size);
-        output.put(FILE_HEADER.toByteBuffer());
+        FILE_HEADER.writeTo(output);
         for (IntentHeader intent : INTENTS) {
-            output.put(intent.toByteBuffer());
-            output.put(intent.getIntentData().toByteBuffer());
+            intent.writeTo(output);
+            intent.getIntentData().writeTo(output);
         }
         
         output.rewind();
         return output;
     }
     
+    /**
+     * Removes the intents which don't match a filter.
+     */
+    private AICSFile filter(IntentFilter filter) {
+        if (filter != null) {
+            int kept = 0;
+            for (IntentHeader intent : INTENTS)
+                if (filter.matches(intent)) INTENTS.set(kept++, intent);
+            INTENTS.subList(kept, INTENTS.size()).clear();
+        }
+        return this;
+    }
+    
+    /**
+     * Reads a block-compressed file, only decompressing the blocks which
+     * could hold an intent matching the filter.
+     */
+    private static AICSFile readBlockCompressed(ByteBuffer buffer,
+            IntentFilter filter) throws ParseException {
+        AICSBlockFile blocks = AICSBlockFile.wrap(buffer);
+        if (filter == null) return blocks.toAICSFile();
+        AICSFile file = new AICSFile(blocks.getAndroidMajorVersion(),
+                blocks.getAndroidMinorVersion(),
+                blocks.getAndroidPatchVersion());
+        try {
+            for (IntentHeader intent : blocks.readIntents(filter))
+                file.appendIntent(intent);
+        } catch (IOException e) {
+            ParseException parse = new ParseException(e.toString(), 0);
+            parse.initCause(e);
+            throw parse;
+        }
+        return file;
+    }
+    
+    /**
+     * Decodes compact intents from the buffer's position to its limit and
+     * appends them to the file, stopping at the first intent which can't be
+     * decoded.
+     */
+    private static void readCompact(AICSFile file, ByteBuffer buffer,
+            int fileStart, CorruptionListener listener) {
+        CompactCodec codec = new CompactCodec();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            try {
+                file.appendIntent(codec.decode(buffer));
+            } catch (BufferUnderflowException | ParseException e) {
+                if (listener != null) listener.skipped(start - fileStart,
+                        buffer.limit() - start, e);
+                return; // Keep as much as we could decode.
+            }
+        }
+    }
+    
+    /**
+     * Finds where every intent starts, from the buffer's position onwards,
+     * without parsing the intents. The search stops at the first intent whose
+     * size can't be determined or which doesn't fit in the buffer.
+     * 
+     * @param buffer The buffer to search. Its position is restored.
+     * @return The offset of every intent followed by the offset just past the
+     * last intent.
+     */
+    private static int[] findIntents(ByteBuffer buffer) {
+        int start = buffer.position();
+        int[] offsets = new int[64];
+        int count = 0;
+        offsets[count++] = start;
+        while (buffer.remaining() > 8) {
+            int size;
+            try {
+                size = IntentHeader.parseIntentSize(buffer);
+            } catch (BufferUnderflowException | ParseException e) {
+                break; // Keep the intents found so far.
+            }
+            if (size > buffer.remaining()) break; // Truncated
+            buffer.position(buffer.position() + size);
+            if (count == offsets.length)
+                offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count++] = buffer.position();
+        }
+        buffer.position(start);
+        return Arrays.copyOf(offsets, count);
+    }
+    
+    /**
+     * Parses a range of intents whose offsets are already known, splitting
+     * the range in half until it's small enough to parse in one task. An
+     * intent which fails to parse is left null, as are the rest of the intents
+     * in its task.
+     */
+    private static class ParseTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final static int MIN_INTENTS = 256;
+        
+        private final ByteBuffer BUFFER;
+        private final StringTable STRINGS;
+        private final int[] OFFSETS;
+        private final IntentHeader[] INTENTS;
+        private final int FROM;
+        private final int TO;
+        private final int THRESHOLD;
+        
+        ParseTask(ByteBuffer buffer, StringTable strings, int[] offsets,
+                IntentHeader[] intents, int from, int to, int threshold) {
+            BUFFER = buffer;
+            STRINGS = strings;
+            OFFSETS = offsets;
+            INTENTS = intents;
+            FROM = from;
+            TO = to;
+            THRESHOLD = threshold;
+        }
+        
+        @Override
+        protected void compute() {
+            if (TO - FROM > THRESHOLD) {
+                int middle = (FROM + TO) >>> 1;
+                invokeAll(new ParseTask(BUFFER, STRINGS, OFFSETS, INTENTS, FROM,
+                        middle, THRESHOLD), new ParseTask(BUFFER, STRINGS,
+                        OFFSETS, INTENTS, middle, TO, THRESHOLD));
+                return;
+            }
+            
+            ByteBuffer buffer = BUFFER.duplicate().order(BUFFER.order());
+            for (int i = FROM; i < TO; i++) {
+                buffer.limit(OFFSETS[i + 1]);
+                buffer.position(OFFSETS[i]);
+                try {
+                    INTENTS[i] = IntentHeader.parseIntent(buffer, STRINGS);
+                } catch (BufferUnderflowException | ParseException e) {
+                    return; // Leave the rest of this task's intents null.
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes the AICSFile to a channel one intent at a time. Unlike
+     * toByteBuffer(), the whole file is never held in a single buffer. The
+     * channel is left open.
+     * 
+     * @param channel The channel to write to.
+     * @throws IOException If the channel can't be written to.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        AICSWriter writer = new AICSWriter(channel,
+                FILE_HEADER.getAndroidMajorVersion(),
+                FILE_HEADER.getAndroidMinorVersion(),
+                FILE_HEADER.getAndroidPatchVersion());
+        for (IntentHeader intent : INTENTS) writer.write(intent);
+        writer.flush();
+    }
+    
     /**
      * Every AICS file starts with a file header. The first part is a 32 bit
      * magic number 0xA1B2C3D4. This magic number is included so the program
      * reading the file can determine the endian order of the file. If the
      * reader reads 0xD4C3B2A1, then the ordering of the bytes for all the other
-     * fields will need to be swapped.
+     * fields will need to be swapped. Rather than swapping them, readers decode
+     * little-endian files through buffers set to little-endian order.
+     * Block-compressed files are always big endian.
      * 
      * AICS major version and minor version are both short integers and
      * represent the file formatting version used in the file. This is to
@@ -204,12 +664,20 @@ public class AICSFile {
      * version of Android the intents were captured on. This is included to
      * anticipate future changes made to the structure of Android intents.
      */
-    private class AICSFileHeader {
+    static class AICSFileHeader {
+        
+        private final static String MAGIC_PARSE_ERROR = "Failed to read "
+                + "magic number. File is either corrupt or not an AICS file.";
         
         public final static int MAGIC_NUMBER = 0xA1B2C3D4;
         public final static short FORMAT_MAJOR_VERSION = 0;
         public final static short FORMAT_MINOR_VERSION = 1;
+        public final static short FORMAT_MINOR_VERSION_BLOCK = 2;
+        public final static short FORMAT_MINOR_VERSION_DICTIONARY = 3;
+        public final static short FORMAT_MINOR_VERSION_COMPACT = 4;
         
+        private final short FORMAT_MINOR;
+        private final ByteOrder ORDER;
         private final short ANDROID_MAJOR_VERSION;
         private final byte ANDROID_MINOR_VERSION;
         private final byte ANDROID_PATCH_VERSION;
@@ -223,11 +691,96 @@ public class AICSFile {
          * @param patch Patch Android version.
          */
         AICSFileHeader(short major, byte minor, byte patch) {
+            this(FORMAT_MINOR_VERSION, major, minor, patch);
+        }
+        
+        /**
+         * Creates a file header for one of the other layouts, such as the
+         * block-compressed layout written by AICSBlockWriter.
+         * 
+         * @param format The format minor version.
+         * @param major Major Android version.
+         * @param minor Minor Android version.
+         * @param patch Patch Android version.
+         */
+        AICSFileHeader(short format, short major, byte minor, byte patch) {
+            this(format, major, minor, patch, ByteOrder.BIG_ENDIAN);
+        }
+        
+        /**
+         * Creates a file header for a file whose fields are written in the
+         * given byte order.
+         * 
+         * @param format The format minor version.
+         * @param major Major Android version.
+         * @param minor Minor Android version.
+         * @param patch Patch Android version.
+         * @param order The byte order of the file.
+         */
+        AICSFileHeader(short format, short major, byte minor, byte patch,
+                ByteOrder order) {
+            FORMAT_MINOR = format;
+            ORDER = order;
             ANDROID_MAJOR_VERSION = major;
             ANDROID_MINOR_VERSION = minor;
             ANDROID_PATCH_VERSION = patch;
         }
         
+        /**
+         * Parses a file header from the current position of a ByteBuffer and
+         * checks that its magic number and format version are supported.
+         * Headers of block-compressed and dictionary-encoded files are
+         * accepted too, so callers which only read raw intents have to check
+         * the format minor version. The file's byte order is detected from the
+         * magic number. The buffer's own byte order is left unchanged.
+         * 
+         * @param buffer The buffer to parse.
+         * @return The parsed file header.
+         * @throws ParseException If the buffer doesn't start with a supported
+         * file header.
+         * @throws BufferUnderflowException If the buffer is too small to hold
+         * a file header.
+         */
+        static AICSFileHeader readFromBuffer(ByteBuffer buffer)
+                throws ParseException, BufferUnderflowException {
+            
+            // Magic Number
+            int magic = buffer.getInt();
+            ByteOrder saved = buffer.order();
+            ByteOrder order = saved;
+            if (magic == Integer.reverseBytes(MAGIC_NUMBER))
+                order = saved == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN
+                        : ByteOrder.BIG_ENDIAN;
+            else if (magic != MAGIC_NUMBER)
+                throw new ParseException(MAGIC_PARSE_ERROR, buffer.position());
+            
+            // File Format Version
+            short formatMajor;
+            short formatMinor;
+            short androidMajor;
+            buffer.order(order);
+            try {
+                formatMajor = buffer.getShort();
+                formatMinor = buffer.getShort();
+                androidMajor = buffer.getShort();
+            } finally {
+                buffer.order(saved);
+            }
+            if (formatMajor != FORMAT_MAJOR_VERSION ||
+                    formatMinor < FORMAT_MINOR_VERSION ||
+                    formatMinor > FORMAT_MINOR_VERSION_COMPACT)
+                throw new ParseException("File's format version " + formatMajor
+                        + "." + formatMinor + " does not match library's "
+                        + "supported versions " + FORMAT_MAJOR_VERSION + "."
+                        + FORMAT_MINOR_VERSION + " to " + FORMAT_MAJOR_VERSION
+                        + "." + FORMAT_MINOR_VERSION_COMPACT,
+                        buffer.position());
+            
+            // Android Version
+            return new AICSFileHeader(formatMinor, androidMajor, buffer.get(),
+                    buffer.get(), order);
+        }
+        
         /**
          * Convert the file header into a ByteBuffer which is ready to be
          * written to a file.
@@ -235,19 +788,54 @@ public class AICSFile {
          * @return A ByteBuffer containing the file header.
          */
         protected ByteBuffer toByteBuffer() {
-            ByteBuffer buffer = ByteBuffer.allocate(12)
-                    .putInt(MAGIC_NUMBER)
+            ByteBuffer buffer = ByteBuffer.allocate(getSize());
+            writeTo(buffer);
+            buffer.rewind();
+            return buffer;
+        }
+        
+        /**
+         * Writes the file header into a buffer at its current position, which
+         * is advanced past the header.
+         * 
+         * @param dst The buffer to write into.
+         */
+        protected void writeTo(ByteBuffer dst) {
+            ByteOrder saved = dst.order();
+            dst.order(ORDER);
+            dst.putInt(MAGIC_NUMBER)
                     .putShort(FORMAT_MAJOR_VERSION)
-                    .putShort(FORMAT_MINOR_VERSION)
+                    .putShort(FORMAT_MINOR)
                     .putShort(ANDROID_MAJOR_VERSION)
                     .put(ANDROID_MINOR_VERSION)
                     .put(ANDROID_PATCH_VERSION);
-            buffer.rewind();
-            return buffer;
+            dst.order(saved);
         }
         
         protected int getSize() {
             return 12; // File header is fixed size
         }
+        
+        short getFormatMinorVersion() { return FORMAT_MINOR; }
+        
+        ByteOrder getByteOrder() { return ORDER; }
+        
+        boolean isBlockCompressed() {
+            return FORMAT_MINOR == FORMAT_MINOR_VERSION_BLOCK;
+        }
+        
+        boolean isDictionaryEncoded() {
+            return FORMAT_MINOR == FORMAT_MINOR_VERSION_DICTIONARY;
+        }
+        
+        boolean isCompact() {
+            return FORMAT_MINOR == FORMAT_MINOR_VERSION_COMPACT;
+        }
+        
+        short getAndroidMajorVersion() { return ANDROID_MAJOR_VERSION; }
+        
+        byte getAndroidMinorVersion() { return ANDROID_MINOR_VERSION; }
+        
+        byte getAndroidPatchVersion() { return ANDROID_PATCH_VERSION; }
     }
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor for reading the intents of an AICS file one at a time without
+ * loading the whole file into memory. The file is memory mapped in windows so
+ * files larger than 2 GB can be read and the heap used by the reader stays the
+ * same no matter how large the file is.
+ *
+ * Dictionary-encoded files are read too. Their string table is loaded when
+ * the file is opened and shared by every intent read. Compact files aren't,
+ * since their timestamps can only be decoded from the start of the file.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSFileReader implements Closeable {
+
+    /**
+     * The default number of bytes mapped at a time.
+     */
+    public final static int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel CHANNEL;
+    private final boolean OWNS_CHANNEL;
+    private final AICSFile.AICSFileHeader FILE_HEADER;
+    private final StringTable STRINGS;
+    private final int WINDOW_SIZE;
+    private final long END;
+
+    private IntentProjection PROJECTION;
+    private MappedByteBuffer WINDOW;
+    private long WINDOW_START;
+    private long POSITION;
+
+    /**
+     * Opens an AICS file for reading.
+     *
+     * @param path The file to read.
+     * @throws IOException If the file can't be opened.
+     * @throws ParseException If the file doesn't start with a supported file
+     * header.
+     */
+    public AICSFileReader(Path path) throws IOException, ParseException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Opens an AICS file for reading.
+     *
+     * @param path The file to read.
+     * @param windowSize How many bytes to map at a time. Intents larger than
+     * this are mapped on their own.
+     * @throws IOException If the file can't be opened.
+     * @throws ParseException If the file doesn't start with a supported file
+     * header.
+     */
+    public AICSFileReader(Path path, int windowSize)
+            throws IOException, ParseException {
+        this(FileChannel.open(path, StandardOpenOption.READ), true, windowSize);
+    }
+
+    /**
+     * Creates a reader over an already opened channel. The channel is not
+     * closed when the reader is closed.
+     *
+     * @param channel The channel to read. Only the bytes present when the
+     * reader is created are read.
+     * @param windowSize How many bytes to map at a time. Intents larger than
+     * this are mapped on their own.
+     * @throws IOException If the channel can't be read.
+     * @throws ParseException If the channel doesn't start with a supported
+     * file header.
+     */
+    public AICSFileReader(FileChannel channel, int windowSize)
+            throws IOException, ParseException {
+        this(channel, false, windowSize);
+    }
+
+    private AICSFileReader(FileChannel channel, boolean ownsChannel,
+            int windowSize) throws IOException, ParseException {
+        if (windowSize < IntentHeader.MAX_FIXED_SIZE)
+            throw new IllegalArgumentException("Window size is too small.");
+        CHANNEL = channel;
+        OWNS_CHANNEL = ownsChannel;
+        WINDOW_SIZE = windowSize;
+        try {
+            long end = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            while (header.hasRemaining())
+                if (channel.read(header, header.position()) < 0)
+                    throw new EOFException("File is too small to be an AICS "
+                            + "file.");
+            header.flip();
+            FILE_HEADER = AICSFile.AICSFileHeader.readFromBuffer(header);
+            if (FILE_HEADER.isBlockCompressed())
+                throw new ParseException("Block-compressed files must be read "
+                        + "with AICSBlockFile.", 0);
+            if (FILE_HEADER.isCompact())
+                throw new ParseException("Compact files must be read with "
+                        + "AICSFile.", 0);
+            if (FILE_HEADER.isDictionaryEncoded()) {
+                // The intents end where the string table starts
+                STRINGS = StringTable.readFromFooter(channel,
+                        FILE_HEADER.getByteOrder());
+                end = STRINGS.getOffset();
+            } else {
+                STRINGS = null;
+            }
+            END = end;
+            POSITION = header.limit();
+        } catch (IOException | ParseException e) {
+            if (ownsChannel) channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if there are more intents to read.
+     *
+     * @return True if another intent can be read.
+     */
+    public boolean hasNext() {
+        // Every header has to have at least 8 bytes for the timestamp, offset,
+        // and intent type.
+        return END - POSITION > 8;
+    }
+
+    /**
+     * Reads the next intent in the file and moves past it.
+     *
+     * @return The next intent with its intent data attached.
+     * @throws IOException If the file can't be mapped.
+     * @throws ParseException If the next intent can't be parsed.
+     * @throws BufferUnderflowException If the file ends in the middle of the
+     * intent.
+     * @throws NoSuchElementException If there are no more intents.
+     */
+    public IntentHeader next() throws IOException, ParseException {
+        if (!hasNext()) throw new NoSuchElementException();
+        ByteBuffer buffer = map(POSITION, (int) Math.min(
+                IntentHeader.MAX_FIXED_SIZE, END - POSITION));
+        int size = IntentHeader.parseIntentSize(buffer);
+        buffer = map(POSITION, size);
+        IntentHeader intent = IntentHeader.parseIntent(buffer, STRINGS,
+                PROJECTION);
+        POSITION += size;
+        return intent;
+    }
+
+    /**
+     * Sets which fields next() reads. Fields left out are skipped without
+     * being copied out of the file.
+     *
+     * @param projection Which fields to read, or null to read them all.
+     * @return Itself.
+     */
+    public AICSFileReader setProjection(IntentProjection projection) {
+        PROJECTION = projection;
+        return this;
+    }
+
+    /**
+     * Reads the next intent in the file which matches a filter. Intents which
+     * don't match are skipped without being parsed.
+     *
+     * @param filter The filter the intent must match.
+     * @return The next matching intent with its intent data attached, or null
+     * if no more intents match.
+     * @throws IOException If the file can't be mapped.
+     * @throws ParseException If an intent can't be parsed.
+     * @throws BufferUnderflowException If the file ends in the middle of an
+     * intent.
+     */
+    public IntentHeader next(IntentFilter filter)
+            throws IOException, ParseException {
+        while (hasNext()) {
+            ByteBuffer buffer = map(POSITION, (int) Math.min(
+                    IntentHeader.MAX_FIXED_SIZE, END - POSITION));
+            int size = IntentHeader.parseIntentSize(buffer);
+            buffer = map(POSITION, size);
+            if (filter.matches(buffer, buffer.position(), STRINGS))
+                return next();
+            POSITION += size;
+        }
+        return null;
+    }
+
+    /**
+     * Moves past the next intent in the file without parsing it. Only the
+     * size fields of the intent's header are read.
+     *
+     * @return The type of the skipped intent.
+     * @throws IOException If the file can't be mapped.
+     * @throws ParseException If the next intent's sizes can't be determined.
+     * @throws BufferUnderflowException If the file ends in the middle of the
+     * intent.
+     * @throws NoSuchElementException If there are no more intents.
+     */
+    public short skip() throws IOException, ParseException {
+        if (!hasNext()) throw new NoSuchElementException();
+        ByteBuffer buffer = map(POSITION, (int) Math.min(
+                IntentHeader.MAX_FIXED_SIZE, END - POSITION));
+        short type = IntentHeader.parseIntentType(buffer);
+        int size = IntentHeader.parseIntentSize(buffer);
+        if (END - POSITION < size) throw new BufferUnderflowException();
+        POSITION += size;
+        return type;
+    }
+
+    /**
+     * Moves the reader to an offset in the file. The offset should be the
+     * start of an intent, such as one returned by getPosition() or found in
+     * an AICSIndex.
+     *
+     * @param position The offset of the next intent to read.
+     * @throws IllegalArgumentException If the offset is outside the intents
+     * in the file.
+     */
+    public void seek(long position) throws IllegalArgumentException {
+        if (position < FILE_HEADER.getSize() || position > END)
+            throw new IllegalArgumentException("Position is outside the "
+                    + "file's intents.");
+        POSITION = position;
+    }
+
+    /**
+     * Returns the offset in the file of the next intent to be read.
+     *
+     * @return The offset of the next intent.
+     */
+    public long getPosition() { return POSITION; }
+
+    /**
+     * Unmaps the file and closes it if it was opened by this reader.
+     *
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        WINDOW = null;
+        if (OWNS_CHANNEL) CHANNEL.close();
+    }
+
+    /**
+     * Makes sure the given range of the file is mapped and returns the window
+     * positioned at the start of that range.
+     */
+    private ByteBuffer map(long offset, int length) throws IOException {
+        if (WINDOW == null || offset < WINDOW_START
+                || offset + length > WINDOW_START + WINDOW.limit()) {
+            long size = Math.min(Math.max(WINDOW_SIZE, length), END - offset);
+            if (size < length) throw new BufferUnderflowException();
+            WINDOW = CHANNEL.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            WINDOW.order(FILE_HEADER.getByteOrder());
+            WINDOW_START = offset;
+        }
+        WINDOW.position((int) (offset - WINDOW_START));
+        return WINDOW;
+    }
+}
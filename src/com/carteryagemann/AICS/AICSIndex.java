@@ -0,0 +1,325 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An index of where every intent in an AICS file starts. The index is stored
+ * in a sidecar file next to the capture so any intent can be reached without
+ * reading the ones before it.
+ *
+ * The sidecar's magic number is 0x41494458 and its header is followed by the
+ * number of entries as a long. Each entry is a long holding the intent's
+ * offset in the capture shifted left by two with the intent's type in the
+ * lowest two bits.
+ *
+ * @see AICSSidecar
+ * @author Carter Yagemann
+ */
+public class AICSIndex {
+
+    /**
+     * The extension used for index sidecar files.
+     */
+    public final static String EXTENSION = ".aicsidx";
+
+    final static int MAGIC_NUMBER = 0x41494458;
+    final static short VERSION = 1;
+    final static int HEADER_SIZE = AICSSidecar.HEADER_SIZE + 8;
+
+    // Entries are mapped in chunks since a single mapping is limited to 2 GB
+    private final static int CHUNK_SHIFT = 27;
+    private final static long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+    private final static int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final static AICSSidecar SIDECAR = new AICSSidecar("index",
+            EXTENSION, MAGIC_NUMBER, VERSION);
+
+    private final LongBuffer[] CHUNKS;
+    private final long INDEXED_SIZE;
+    private final long SIZE;
+
+    /**
+     * Returns where the index sidecar for a capture is stored.
+     *
+     * @param capture The capture file.
+     * @return The path of the capture's index.
+     */
+    public static Path getIndexPath(Path capture) {
+        return SIDECAR.getPath(capture);
+    }
+
+    /**
+     * Builds or updates the index sidecar for a capture and then loads it. If
+     * the capture has only been appended to since the index was last built,
+     * only the new intents are read. Otherwise the index is rebuilt from
+     * scratch. Indexing stops at the first intent that can't be parsed or is
+     * incomplete, so an index can be built while the capture is still being
+     * written and updated later.
+     *
+     * @param capture The capture file to index.
+     * @return The loaded index.
+     * @throws IOException If the capture or the index can't be read or
+     * written.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSIndex build(Path capture)
+            throws IOException, ParseException {
+        Path path = getIndexPath(capture);
+        try (AICSFileReader reader = new AICSFileReader(capture);
+                FileChannel index = FileChannel.open(path,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+
+            long count = 0;
+            long indexed = reader.getPosition();
+
+            // Resume from the existing index if the capture was only appended
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (readFully(index, header, 0)) {
+                header.flip();
+                long[] resume = checkHeader(header, index.size());
+                if (resume != null && canResume(reader, index, resume[0],
+                        resume[1])) {
+                    indexed = resume[0];
+                    count = resume[1];
+                }
+            }
+            reader.seek(indexed);
+
+            // Index the new intents
+            long position = HEADER_SIZE + count * 8;
+            ByteBuffer entries = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            while (reader.hasNext()) {
+                long offset = reader.getPosition();
+                short type;
+                try {
+                    type = reader.skip();
+                } catch (BufferUnderflowException | ParseException e) {
+                    break; // Index as much as we can.
+                }
+                if (!entries.hasRemaining())
+                    position += writeFully(index, entries, position);
+                entries.putLong(offset << 2 | type);
+                indexed = reader.getPosition();
+                count++;
+            }
+            position += writeFully(index, entries, position);
+            index.truncate(position);
+
+            // The header is written last so a crash leaves the old count
+            header.clear();
+            SIDECAR.putHeader(header, indexed);
+            header.putLong(count);
+            writeFully(index, header, 0);
+            index.force(true);
+        }
+        return load(path);
+    }
+
+    /**
+     * Indexes a capture in memory without reading or writing a sidecar. Like
+     * build(), indexing stops at the first intent that can't be parsed or is
+     * incomplete.
+     *
+     * @param capture The capture file to index.
+     * @return The index.
+     * @throws IOException If the capture can't be read.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSIndex scan(Path capture)
+            throws IOException, ParseException {
+        try (AICSFileReader reader = new AICSFileReader(capture)) {
+            ArrayList<LongBuffer> chunks = new ArrayList<>();
+            long[] chunk = new long[1024];
+            int length = 0;
+            long count = 0;
+            long indexed = reader.getPosition();
+            while (reader.hasNext()) {
+                long offset = reader.getPosition();
+                short type;
+                try {
+                    type = reader.skip();
+                } catch (BufferUnderflowException | ParseException e) {
+                    break; // Index as much as we can.
+                }
+                if (length == chunk.length) {
+                    if (length > CHUNK_MASK) {
+                        chunks.add(LongBuffer.wrap(chunk));
+                        chunk = new long[1024];
+                        length = 0;
+                    } else {
+                        chunk = Arrays.copyOf(chunk, length * 2);
+                    }
+                }
+                chunk[length++] = offset << 2 | type;
+                indexed = reader.getPosition();
+                count++;
+            }
+            chunks.add(LongBuffer.wrap(chunk, 0, length).slice());
+            return new AICSIndex(chunks.toArray(new LongBuffer[0]), indexed,
+                    count);
+        }
+    }
+
+    /**
+     * Loads an index sidecar by memory mapping it.
+     *
+     * @param path The index file.
+     * @return The loaded index.
+     * @throws IOException If the index can't be read.
+     * @throws ParseException If the file isn't a valid index.
+     */
+    public static AICSIndex load(Path path)
+            throws IOException, ParseException {
+        try (FileChannel index = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!readFully(index, header, 0))
+                throw new ParseException("Index is too small.", 0);
+            header.flip();
+            long[] fields = checkHeader(header, index.size());
+            if (fields == null) throw SIDECAR.invalid(0);
+
+            long count = fields[1];
+            LongBuffer[] chunks = new LongBuffer[
+                    (int) ((count + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = (long) i << CHUNK_SHIFT;
+                long entries = Math.min(CHUNK_MASK + 1, count - first);
+                chunks[i] = index.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + first * 8, entries * 8).asLongBuffer();
+            }
+            return new AICSIndex(chunks, fields[0], count);
+        }
+    }
+
+    private AICSIndex(LongBuffer[] chunks, long indexedSize, long size) {
+        CHUNKS = chunks;
+        INDEXED_SIZE = indexedSize;
+        SIZE = size;
+    }
+
+    /**
+     * Returns how many intents are in the index.
+     *
+     * @return The number of indexed intents.
+     */
+    public long size() { return SIZE; }
+
+    /**
+     * Returns how many bytes of the capture are covered by the index. This is
+     * the offset just past the last indexed intent.
+     *
+     * @return The number of indexed bytes.
+     */
+    public long getIndexedSize() { return INDEXED_SIZE; }
+
+    /**
+     * Returns the offset of an intent in the capture. The offset can be passed
+     * to AICSFileReader.seek() to read the intent.
+     *
+     * @param index Which intent.
+     * @return The offset of the intent's header.
+     * @throws IndexOutOfBoundsException If index isn't in the index.
+     */
+    public long getOffset(long index) { return getEntry(index) >>> 2; }
+
+    /**
+     * Returns the type of an intent without reading the capture.
+     *
+     * @param index Which intent.
+     * @return The type of the intent.
+     * @throws IndexOutOfBoundsException If index isn't in the index.
+     */
+    public short getIntentType(long index) {
+        return (short) (getEntry(index) & 3);
+    }
+
+    private long getEntry(long index) {
+        if (index < 0 || index >= SIZE)
+            throw new IndexOutOfBoundsException("Intent " + index
+                    + " is not in the index.");
+        return CHUNKS[(int) (index >>> CHUNK_SHIFT)]
+                .get((int) (index & CHUNK_MASK));
+    }
+
+    /**
+     * Checks an index header and returns the indexed size and entry count, or
+     * null if the header isn't valid.
+     */
+    private static long[] checkHeader(ByteBuffer header, long fileSize) {
+        if (!SIDECAR.checkHeader(header)) return null;
+        long indexed = header.getLong();
+        long count = header.getLong();
+        if (indexed < 0 || count < 0
+                || count > (fileSize - HEADER_SIZE) / 8)
+            return null;
+        return new long[] { indexed, count };
+    }
+
+    /**
+     * Reads the last entry of the existing index and checks that its intent
+     * still ends where indexing stopped.
+     */
+    private static boolean canResume(AICSFileReader reader, FileChannel index,
+            long indexed, long count) throws IOException {
+        long entry = -1;
+        if (count > 0) {
+            ByteBuffer last = ByteBuffer.allocate(8);
+            if (!readFully(index, last, HEADER_SIZE + (count - 1) * 8))
+                return false;
+            entry = last.getLong(0);
+        }
+        return AICSSidecar.canResume(reader, count, entry >>> 2,
+                (int) (entry & 3), indexed);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) return false;
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * Writes everything put into the buffer and clears it.
+     */
+    private static int writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        buffer.flip();
+        int written = buffer.remaining();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+        return written;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.util.ArrayList;
+
+/**
+ * Holds intents off the Java heap. Intents are stored in the raw format,
+ * exactly as they appear in an uncompressed AICS file, packed one after
+ * another into pages of direct memory. The offset of every intent is kept in
+ * direct memory too, so the heap used by an arena is a few objects per page
+ * no matter how many intents it holds and the garbage collector never has to
+ * look at them.
+ *
+ * Intents are read back through views which read straight from the pages.
+ * Nothing is copied into IntentHeader or IntentData objects unless a view's
+ * toIntentHeader() is called.
+ *
+ * Memory is only released when the pages are garbage collected, so clear() and
+ * close() drop the arena's references to its pages rather than freeing them
+ * immediately. Views returned by an arena must not be used after it has been
+ * cleared or closed.
+ *
+ * An arena is not thread safe.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSRecordArena implements Closeable {
+
+    /**
+     * The default size of each page of intents.
+     */
+    public final static int DEFAULT_PAGE_SIZE = 16 * 1024 * 1024;
+
+    private final static int INDEX_PAGE_SHIFT = 17;
+    private final static int INDEX_PAGE_ENTRIES = 1 << INDEX_PAGE_SHIFT;
+
+    private final int PAGE_SIZE;
+    private final IntentHeaderView[] VIEWS;
+    private final ArrayList<ByteBuffer> PAGES;
+    private final ArrayList<ByteBuffer> INDEX;
+    private ByteBuffer PAGE;
+    private long COUNT;
+    private long BYTES;
+    private boolean CLOSED;
+
+    /**
+     * Creates an empty arena with the default page size.
+     */
+    public AICSRecordArena() {
+        this(DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Creates an empty arena. No memory is allocated until the first intent
+     * is appended.
+     *
+     * @param pageSize The size of each page of intents. An intent larger than
+     * this gets a page of its own.
+     */
+    public AICSRecordArena(int pageSize) {
+        if (pageSize < IntentHeader.MAX_FIXED_SIZE)
+            throw new IllegalArgumentException("Page size is too small.");
+        PAGE_SIZE = pageSize;
+        VIEWS = new IntentHeaderView[] { new ActivityIntentHeaderView(),
+                new BroadcastIntentHeaderView(),
+                new ServiceIntentHeaderView() };
+        PAGES = new ArrayList<>();
+        INDEX = new ArrayList<>();
+        COUNT = 0;
+        BYTES = 0;
+        CLOSED = false;
+    }
+
+    /**
+     * Creates an arena holding the intents of an AICS file. Raw files are
+     * copied straight into the arena. Other formats are decoded with AICSFile
+     * first. Like AICSFile.readFromBuffer(), reading stops at the first intent
+     * which can't be parsed. The buffer's position is unchanged.
+     *
+     * @param buffer The buffer to parse.
+     * @param pageSize The size of each page of intents.
+     * @return An AICSRecordArena.
+     * @throws ParseException If the file header can't be parsed.
+     */
+    public static AICSRecordArena readFromBuffer(ByteBuffer buffer,
+            int pageSize) throws ParseException {
+        ByteBuffer records = buffer.duplicate();
+        AICSFile.AICSFileHeader header =
+                AICSFile.AICSFileHeader.readFromBuffer(records);
+        AICSRecordArena arena = new AICSRecordArena(pageSize);
+
+        // Pages are big endian so little-endian files are decoded too
+        if (header.getFormatMinorVersion()
+                != AICSFile.AICSFileHeader.FORMAT_MINOR_VERSION
+                || header.getByteOrder() != ByteOrder.BIG_ENDIAN) {
+            AICSFile decoded = AICSFile.readFromBuffer(buffer);
+            for (int i = 0; i < decoded.size(); i++)
+                arena.append(decoded.getIntent(i));
+            return arena;
+        }
+
+        // Every header has to have at least 8 bytes for the timestamp, offset,
+        // and intent type.
+        while (records.remaining() > 8) {
+            try {
+                arena.append(records);
+            } catch (BufferUnderflowException | ParseException e) {
+                break; // Keep as much as we could parse.
+            }
+        }
+        return arena;
+    }
+
+    /**
+     * Appends an intent and its intent data to the arena.
+     *
+     * @param intent The intent to append.
+     * @return The index of the appended intent.
+     * @throws IllegalStateException If the arena is closed.
+     */
+    public long append(IntentHeader intent) {
+        IntentData data = intent.getIntentData();
+        int size = intent.getSize() + data.getSize();
+        ByteBuffer page = reserve(size);
+        int offset = page.position();
+        intent.writeTo(page);
+        data.writeTo(page);
+        return index(offset, size);
+    }
+
+    /**
+     * Copies a flattened intent, such as one produced by IntentHeader.writeTo()
+     * followed by IntentData.writeTo(), into the arena. The buffer's position
+     * is moved past the intent. Intents in a little-endian buffer are
+     * re-encoded big endian.
+     *
+     * @param intent The buffer positioned at the intent.
+     * @return The index of the appended intent.
+     * @throws ParseException If the intent's sizes aren't consistent.
+     * @throws BufferUnderflowException If the buffer ends before the intent
+     * does.
+     * @throws IllegalStateException If the arena is closed.
+     */
+    public long append(ByteBuffer intent)
+            throws ParseException, BufferUnderflowException {
+        int start = intent.position();
+        int size = IntentHeader.parseIntentSize(intent);
+        if (size > intent.remaining()) throw new BufferUnderflowException();
+        IntentHeaderView header = VIEWS[IntentHeader.parseIntentType(intent)]
+                .wrap(intent, start);
+        if (header.getIntentData().getSize() != header.getIntentDataSize())
+            throw new ParseException("Intent data has the wrong size.", start);
+        if (intent.order() != ByteOrder.BIG_ENDIAN)
+            return append(IntentHeader.parseIntent(intent));
+
+        ByteBuffer page = reserve(size);
+        int offset = page.position();
+        ByteBuffer source = intent.duplicate();
+        source.limit(start + size);
+        page.put(source);
+        intent.position(start + size);
+        return index(offset, size);
+    }
+
+    /**
+     * Returns how many intents are in the arena.
+     *
+     * @return The number of intents.
+     */
+    public long size() { return COUNT; }
+
+    /**
+     * Returns how many bytes of intents are in the arena. The memory
+     * allocated is rounded up to whole pages.
+     *
+     * @return The number of bytes used by intents.
+     */
+    public long getBytesUsed() { return BYTES; }
+
+    /**
+     * Returns the type of an intent without wrapping a view.
+     *
+     * @param index Which intent.
+     * @return The intent's type.
+     */
+    public short getIntentType(long index) {
+        long entry = entry(index);
+        return PAGES.get((int) (entry >>> 32)).getShort((int) entry + 6);
+    }
+
+    /**
+     * Returns a view of an intent. The arena has one view per intent type and
+     * returns the same view object every time, rewrapped over the requested
+     * intent, so a view is only valid until the next call to get().
+     *
+     * @param index Which intent.
+     * @return A view of the intent.
+     */
+    public IntentHeaderView get(long index) {
+        long entry = entry(index);
+        ByteBuffer page = PAGES.get((int) (entry >>> 32));
+        int offset = (int) entry;
+        try {
+            return VIEWS[page.getShort(offset + 6)].wrap(page, offset);
+        } catch (ParseException e) {
+            // Every intent was checked when it was appended
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a read-only buffer holding a flattened intent and its intent
+     * data, sharing the arena's memory.
+     *
+     * @param index Which intent.
+     * @return A buffer whose position is 0 and limit is the intent's size.
+     */
+    public ByteBuffer getBuffer(long index) {
+        IntentHeaderView view = get(index);
+        return BufferUtils.slice(view.BUFFER, view.getPosition(),
+                view.getIntentSize());
+    }
+
+    /**
+     * Drops every intent, keeping the first page for reuse. Every other page
+     * is released to the garbage collector.
+     *
+     * @return Itself.
+     */
+    public AICSRecordArena clear() {
+        if (CLOSED) throw new IllegalStateException("Arena is closed.");
+        ByteBuffer first = PAGES.isEmpty() ? null : PAGES.get(0);
+        PAGES.clear();
+        INDEX.subList(Math.min(1, INDEX.size()), INDEX.size()).clear();
+        if (first != null && first.capacity() == PAGE_SIZE) {
+            first.clear();
+            PAGES.add(first);
+            PAGE = first;
+        } else {
+            PAGE = null;
+        }
+        COUNT = 0;
+        BYTES = 0;
+        return this;
+    }
+
+    /**
+     * Drops every intent and every page. The arena can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        CLOSED = true;
+        PAGES.clear();
+        INDEX.clear();
+        PAGE = null;
+        COUNT = 0;
+        BYTES = 0;
+    }
+
+    /**
+     * Returns a page with room for an intent, positioned where the intent
+     * should be written.
+     */
+    private ByteBuffer reserve(int size) {
+        if (CLOSED) throw new IllegalStateException("Arena is closed.");
+        if (PAGE == null || PAGE.remaining() < size) {
+            PAGE = ByteBuffer.allocateDirect(Math.max(PAGE_SIZE, size));
+            PAGES.add(PAGE);
+        }
+        return PAGE;
+    }
+
+    /**
+     * Records where the intent just written to the current page starts.
+     */
+    private long index(int offset, int size) {
+        int slot = (int) (COUNT & (INDEX_PAGE_ENTRIES - 1));
+        if (slot == 0 && INDEX.size() <= COUNT >>> INDEX_PAGE_SHIFT)
+            INDEX.add(ByteBuffer.allocateDirect(INDEX_PAGE_ENTRIES * 8));
+        INDEX.get((int) (COUNT >>> INDEX_PAGE_SHIFT)).putLong(slot * 8,
+                (long) (PAGES.size() - 1) << 32 | offset);
+        BYTES += size;
+        return COUNT++;
+    }
+
+    /**
+     * Returns the page number in the high 32 bits and the offset in the page
+     * in the low 32 bits.
+     */
+    private long entry(long index) {
+        if (index < 0 || index >= COUNT)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + COUNT);
+        return INDEX.get((int) (index >>> INDEX_PAGE_SHIFT))
+                .getLong((int) (index & (INDEX_PAGE_ENTRIES - 1)) * 8);
+    }
+}
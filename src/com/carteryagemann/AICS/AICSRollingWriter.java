@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a capture as a series of AICS files, called segments, starting a new
+ * segment whenever the current one reaches a size or age limit. Every segment
+ * is a complete AICS file with its own file header, so a crash only loses the
+ * intents which hadn't been written to the current segment yet.
+ *
+ * Segments are named prefix-yyyyMMdd'T'HHmmss.SSS-sequence.aics using the UTC
+ * time the segment was started, so sorting the names sorts the segments by
+ * time. Finished segments are flushed, synced to disk and closed on a
+ * background thread so starting a new segment doesn't wait on the disk.
+ *
+ * A rolling writer is not thread safe.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSRollingWriter implements Closeable, Flushable {
+
+    /**
+     * The extension of every segment.
+     */
+    public final static String EXTENSION = ".aics";
+
+    // What follows the prefix in a segment's name
+    private final static Pattern SEGMENT_NAME = Pattern.compile(
+            "-\\d{8}T\\d{6}\\.\\d{3}-\\d{6,}" + Pattern.quote(EXTENSION));
+
+    private final Path DIRECTORY;
+    private final String PREFIX;
+    private final short ANDROID_MAJOR;
+    private final byte ANDROID_MINOR;
+    private final byte ANDROID_PATCH;
+    private final long MAX_SIZE;
+    private final long MAX_MILLIS;
+    private final Clock CLOCK;
+    private final ExecutorService CLOSER;
+    private final SimpleDateFormat DATE_FORMAT;
+
+    private FileChannel CHANNEL;
+    private AICSWriter WRITER;
+    private Path SEGMENT;
+    private long SEGMENT_START;
+    private int SEQUENCE;
+    private boolean CLOSED;
+    private volatile IOException FAILURE;
+
+    /**
+     * Creates a rolling writer. The first segment isn't created until the
+     * first intent is written.
+     *
+     * @param directory The directory to create segments in.
+     * @param prefix The start of every segment's file name.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     * @param maxSize The largest a segment can grow in bytes. A segment
+     * always holds at least one intent, even if that intent is larger.
+     * @param maxMillis How long in milliseconds to write to a segment before
+     * starting a new one.
+     */
+    public AICSRollingWriter(Path directory, String prefix, short major,
+            byte minor, byte patch, long maxSize, long maxMillis) {
+        this(directory, prefix, major, minor, patch, maxSize, maxMillis,
+                Clock.systemUTC());
+    }
+
+    AICSRollingWriter(Path directory, String prefix, short major, byte minor,
+            byte patch, long maxSize, long maxMillis, Clock clock) {
+        if (maxSize <= 0 || maxMillis <= 0)
+            throw new IllegalArgumentException("Segment limits must be "
+                    + "positive.");
+        DIRECTORY = directory;
+        PREFIX = prefix;
+        ANDROID_MAJOR = major;
+        ANDROID_MINOR = minor;
+        ANDROID_PATCH = patch;
+        MAX_SIZE = maxSize;
+        MAX_MILLIS = maxMillis;
+        CLOCK = clock;
+        DATE_FORMAT = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS");
+        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
+        CLOSER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AICSRollingWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        SEQUENCE = 0;
+        CLOSED = false;
+    }
+
+    /**
+     * Lists the segments written with a prefix, oldest first.
+     *
+     * @param directory The directory the segments were written to.
+     * @param prefix The prefix the segments were written with.
+     * @return The segments sorted by the time they were started.
+     * @throws IOException If the directory can't be read.
+     */
+    public static List<Path> listSegments(Path directory, String prefix)
+            throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory)) {
+            for (Path path : stream) {
+                // The prefix is matched exactly, so "capture" doesn't pick up
+                // the segments of "capture-old"
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && SEGMENT_NAME.matcher(name)
+                        .region(prefix.length(), name.length()).matches())
+                    segments.add(path);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Appends an intent and its intent data to the current segment, first
+     * starting a new segment if the current one is full or too old.
+     *
+     * @param intent The intent to write.
+     * @return Itself.
+     * @throws IOException If a segment can't be created or written, or an
+     * earlier segment failed to close.
+     * @throws IllegalStateException If the writer is closed.
+     */
+    public AICSRollingWriter write(IntentHeader intent) throws IOException {
+        if (CLOSED) throw new IllegalStateException("Writer is closed.");
+        if (FAILURE != null) throw FAILURE;
+        long size = intent.getSize() + intent.getIntentData().getSize();
+        if (WRITER == null
+                || (WRITER.getIntentCount() > 0
+                        && WRITER.size() + size > MAX_SIZE)
+                || CLOCK.millis() - SEGMENT_START >= MAX_MILLIS)
+            roll();
+        WRITER.write(intent);
+        return this;
+    }
+
+    /**
+     * Finishes the current segment and starts a new one.
+     *
+     * @throws IOException If the new segment can't be created.
+     */
+    public void roll() throws IOException {
+        if (CLOSED) throw new IllegalStateException("Writer is closed.");
+        finishSegment();
+        SEGMENT_START = CLOCK.millis();
+        SEGMENT = DIRECTORY.resolve(String.format("%s-%s-%06d%s", PREFIX,
+                DATE_FORMAT.format(new Date(SEGMENT_START)), SEQUENCE++,
+                EXTENSION));
+        CHANNEL = FileChannel.open(SEGMENT, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        WRITER = new AICSWriter(CHANNEL, ANDROID_MAJOR, ANDROID_MINOR,
+                ANDROID_PATCH);
+    }
+
+    /**
+     * Returns the segment currently being written to.
+     *
+     * @return The current segment or null if no intents have been written.
+     */
+    public Path getCurrentSegment() { return SEGMENT; }
+
+    /**
+     * Writes any buffered intents to the current segment.
+     *
+     * @throws IOException If the segment can't be written to.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (WRITER != null) WRITER.flush();
+    }
+
+    /**
+     * Finishes the current segment and waits for every segment to be synced
+     * and closed.
+     *
+     * @throws IOException If a segment couldn't be written, synced or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (CLOSED) return;
+        CLOSED = true;
+        finishSegment();
+        CLOSER.shutdown();
+        try {
+            while (!CLOSER.awaitTermination(1, TimeUnit.SECONDS)) {}
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing.");
+        }
+        if (FAILURE != null) throw FAILURE;
+    }
+
+    /**
+     * Hands the current segment to the background thread to be flushed,
+     * synced and closed.
+     */
+    private void finishSegment() {
+        if (WRITER == null) return;
+        final FileChannel channel = CHANNEL;
+        final AICSWriter writer = WRITER;
+        CHANNEL = null;
+        WRITER = null;
+        CLOSER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.flush();
+                    channel.force(true);
+                } catch (IOException e) {
+                    if (FAILURE == null) FAILURE = e;
+                } finally {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        if (FAILURE == null) FAILURE = e;
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+
+/**
+ * Reads and writes the sidecar files which the indexes of a capture are
+ * stored in. A sidecar sits next to its capture and is named after it: a
+ * ".aics" extension on the capture is replaced by the sidecar's extension,
+ * otherwise the sidecar's extension is appended.
+ *
+ * Every sidecar starts with a 16 byte header: a 32 bit magic number which
+ * tells the kinds of index apart, a short version, a reserved short and the
+ * number of bytes of the capture that have been indexed as a long. What
+ * follows is up to the index.
+ *
+ * An index is updated after its capture has been appended to by checking that
+ * the last intent it indexed still ends where indexing stopped, and then only
+ * reading the intents after it. If the capture was changed in any other way,
+ * the index is rebuilt from scratch.
+ *
+ * @author Carter Yagemann
+ */
+final class AICSSidecar {
+
+    final static int HEADER_SIZE = 16;
+
+    /**
+     * Receives each intent read by scan().
+     */
+    interface Indexer {
+
+        /**
+         * Adds an intent to an index.
+         *
+         * @param intent The intent.
+         * @param offset Where the intent starts in the capture.
+         * @param end Where the intent ends in the capture.
+         */
+        void add(IntentHeader intent, long offset, long end);
+    }
+
+    /**
+     * Loads a sidecar, for the loaders passed to loadExisting().
+     */
+    interface Loader<T> {
+        T load(Path path) throws IOException, ParseException;
+    }
+
+    private final String NAME;
+    private final String EXTENSION;
+    private final int MAGIC_NUMBER;
+    private final short VERSION;
+
+    /**
+     * Describes one kind of sidecar.
+     *
+     * @param name What the sidecar holds, such as "string index", for error
+     * messages.
+     * @param extension The sidecar's file extension.
+     * @param magic The sidecar's magic number.
+     * @param version The version of the sidecar's format.
+     */
+    AICSSidecar(String name, String extension, int magic, short version) {
+        NAME = name;
+        EXTENSION = extension;
+        MAGIC_NUMBER = magic;
+        VERSION = version;
+    }
+
+    /**
+     * Returns where the sidecar for a capture is stored.
+     */
+    Path getPath(Path capture) {
+        String name = capture.getFileName().toString();
+        if (name.endsWith(".aics"))
+            name = name.substring(0, name.length() - 5);
+        return capture.resolveSibling(name + EXTENSION);
+    }
+
+    /**
+     * Returns the exception thrown for a sidecar which isn't valid.
+     */
+    ParseException invalid(int offset) {
+        return new ParseException("Not a valid " + NAME + ".", offset);
+    }
+
+    /**
+     * Writes the sidecar header at the buffer's position.
+     */
+    void putHeader(ByteBuffer dst, long indexedSize) {
+        dst.putInt(MAGIC_NUMBER)
+                .putShort(VERSION)
+                .putShort((short) 0)
+                .putLong(indexedSize);
+    }
+
+    /**
+     * Checks the magic number and version at the buffer's position and moves
+     * past them to the indexed size.
+     *
+     * @return True if the sidecar is of this kind and version.
+     */
+    boolean checkHeader(ByteBuffer src) throws BufferUnderflowException {
+        if (src.getInt() != MAGIC_NUMBER || src.getShort() != VERSION)
+            return false;
+        src.getShort(); // Reserved
+        return true;
+    }
+
+    /**
+     * Reads a whole sidecar into memory and checks its header.
+     *
+     * @param path The sidecar.
+     * @param headerSize The size of the index's whole header, including the
+     * sidecar header.
+     * @return The sidecar, positioned at the indexed size.
+     * @throws IOException If the sidecar can't be read.
+     * @throws ParseException If the sidecar is too small or too large or
+     * isn't of this kind and version.
+     */
+    ByteBuffer read(Path path, int headerSize)
+            throws IOException, ParseException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < headerSize || fileSize > Integer.MAX_VALUE)
+                throw invalid(0);
+            ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, buffer.position()) < 0)
+                    throw new ParseException("The " + NAME
+                            + " is truncated.", buffer.position());
+            buffer.flip();
+            if (!checkHeader(buffer)) throw invalid(0);
+            return buffer;
+        }
+    }
+
+    /**
+     * Loads the sidecar at a path if there is a valid one.
+     *
+     * @param path The sidecar.
+     * @param loader The index's load() method.
+     * @return The loaded index, or null if there is no sidecar or it isn't
+     * valid, in which case the index should be rebuilt.
+     * @throws IOException If the sidecar can't be read.
+     */
+    <T> T loadExisting(Path path, Loader<T> loader) throws IOException {
+        if (!Files.exists(path)) return null;
+        try {
+            return loader.load(path);
+        } catch (ParseException e) {
+            return null; // Rebuild it
+        }
+    }
+
+    /**
+     * Allocates a buffer for a whole sidecar and writes the sidecar header.
+     *
+     * @param size The size of the sidecar.
+     * @param indexedSize The number of indexed bytes.
+     * @return The buffer, positioned just after the sidecar header.
+     * @throws IOException If the sidecar would be too large.
+     */
+    ByteBuffer allocate(long size, long indexedSize) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("The " + NAME + " is too large.");
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        putHeader(buffer, indexedSize);
+        return buffer;
+    }
+
+    /**
+     * Writes a buffer filled after allocate() to a sidecar, replacing
+     * anything already there.
+     */
+    void write(Path path, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads every intent from the reader's position until the first one that
+     * can't be parsed or is incomplete.
+     *
+     * @param reader A reader over the capture.
+     * @param index Where each intent is added.
+     * @throws IOException If the capture can't be read.
+     */
+    static void scan(AICSFileReader reader, Indexer index)
+            throws IOException {
+        while (reader.hasNext()) {
+            long offset = reader.getPosition();
+            IntentHeader intent;
+            try {
+                intent = reader.next();
+            } catch (BufferUnderflowException | ParseException e) {
+                break; // Index as much as we can.
+            }
+            index.add(intent, offset, reader.getPosition());
+        }
+    }
+
+    /**
+     * Checks that the last indexed intent still ends where indexing stopped
+     * and leaves the reader there if it does.
+     *
+     * @param reader A reader over the capture, positioned at its first
+     * intent.
+     * @param count The number of indexed intents.
+     * @param lastOffset Where the last indexed intent starts.
+     * @param lastType The last indexed intent's type, or -1 if it isn't
+     * known.
+     * @param indexedSize The number of indexed bytes.
+     * @return True if indexing can resume at the indexed size.
+     * @throws IOException If the capture can't be read.
+     */
+    static boolean canResume(AICSFileReader reader, long count,
+            long lastOffset, int lastType, long indexedSize)
+            throws IOException {
+        try {
+            if (count == 0) return indexedSize == reader.getPosition();
+            if (lastOffset < 0) return false;
+            reader.seek(lastOffset);
+            short type = reader.skip();
+            return (lastType < 0 || type == lastType)
+                    && reader.getPosition() == indexedSize;
+        } catch (IllegalArgumentException | BufferUnderflowException
+                | ParseException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the intents of an AICS file on disk. The intents are
+ * found using an AICSIndex, so the spliterator always splits on intent
+ * boundaries and every split parses its own intents with its own reader.
+ *
+ * @author Carter Yagemann
+ */
+class AICSSpliterator implements Spliterator<IntentHeader> {
+
+    private final static int MIN_SPLIT = 64;
+
+    private final FileChannel CHANNEL;
+    private final AICSIndex INDEX;
+    private final int WINDOW_SIZE;
+
+    private AICSFileReader READER;
+    private boolean SEEK;
+    private long FROM;
+    private final long TO;
+
+    /**
+     * Creates a spliterator over every intent in an index.
+     *
+     * @param channel The capture file the index was built from. It isn't
+     * closed by the spliterator.
+     * @param index The index of the capture.
+     * @param windowSize How many bytes each split maps at a time.
+     * @throws IOException If the capture can't be read.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    AICSSpliterator(FileChannel channel, AICSIndex index, int windowSize)
+            throws IOException, ParseException {
+        this(channel, index, windowSize, 0, index.size());
+        READER = new AICSFileReader(channel, windowSize);
+    }
+
+    private AICSSpliterator(FileChannel channel, AICSIndex index,
+            int windowSize, long from, long to) {
+        CHANNEL = channel;
+        INDEX = index;
+        WINDOW_SIZE = windowSize;
+        FROM = from;
+        TO = to;
+        SEEK = true;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super IntentHeader> action) {
+        if (FROM >= TO) return false;
+        try {
+            if (READER == null)
+                READER = new AICSFileReader(CHANNEL, WINDOW_SIZE);
+            if (SEEK) {
+                READER.seek(INDEX.getOffset(FROM));
+                SEEK = false;
+            }
+            IntentHeader intent = READER.next();
+            FROM++;
+            action.accept(intent);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ParseException | BufferUnderflowException e) {
+            throw new IllegalStateException("Failed to parse intent " + FROM
+                    + ".", e);
+        }
+    }
+
+    @Override
+    public Spliterator<IntentHeader> trySplit() {
+        long remaining = TO - FROM;
+        if (remaining < MIN_SPLIT * 2) return null;
+        long middle = FROM + remaining / 2;
+        Spliterator<IntentHeader> prefix = new AICSSpliterator(CHANNEL, INDEX,
+                WINDOW_SIZE, FROM, middle);
+        FROM = middle;
+        SEEK = true;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() { return TO - FROM; }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An inverted index of the actions and component names in an AICS file, for
+ * finding the intents with a given action or component without decoding the
+ * rest of the file.
+ *
+ * Intents are identified by their ordinal, their position in the capture
+ * starting from 0, which is also their index in an AICSFile or AICSIndex. For
+ * each field the index maps every distinct string to a postings list of the
+ * ordinals of the intents which have it. Postings lists are sorted and stored
+ * as varints of the difference from the previous ordinal, so the common case
+ * of a string used by nearby intents takes a byte per intent. Strings are
+ * kept sorted, so every string starting with a prefix can be found too.
+ *
+ * An index is built as intents are added, either by attaching it to an
+ * AICSFile or an AICSWriter or by scanning a capture with build(). Ordinals
+ * only ever grow, so adding an intent only appends to the lists of its
+ * strings.
+ *
+ * The index is stored in a sidecar file next to the capture, with the magic
+ * number 0x41495354. The sidecar header is followed by the offset of the last
+ * indexed intent as a long, the number of intents as an int and the number
+ * of strings as an int. Each string is then stored as its field as a byte,
+ * the length of its UTF-8 bytes as a varint, the bytes, the number of
+ * ordinals in its postings list as a varint, the length of the list in bytes
+ * as a varint and the list. Strings are sorted by field and then by string.
+ *
+ * An index is not thread safe.
+ *
+ * @see AICSSidecar
+ * @author Carter Yagemann
+ */
+public class AICSStringIndex {
+
+    /**
+     * The extension used for string index sidecar files.
+     */
+    public final static String EXTENSION = ".aicsstr";
+
+    /**
+     * The action in an intent's intent data.
+     */
+    public final static int FIELD_ACTION = 0;
+
+    /**
+     * The action in a service intent's header.
+     */
+    public final static int FIELD_SERVICE_ACTION = 1;
+
+    /**
+     * The component which received an intent.
+     */
+    public final static int FIELD_RECEIVER_COMPONENT = 2;
+
+    /**
+     * The component which sent an intent.
+     */
+    public final static int FIELD_CALLER_COMPONENT = 3;
+
+    final static int FIELD_COUNT = 4;
+    final static int MAGIC_NUMBER = 0x41495354;
+    final static short VERSION = 1;
+    final static int HEADER_SIZE = AICSSidecar.HEADER_SIZE + 16;
+
+    private final static AICSSidecar SIDECAR = new AICSSidecar("string index",
+            EXTENSION, MAGIC_NUMBER, VERSION);
+
+    private final ArrayList<TreeMap<String, Postings>> FIELDS;
+    private int SIZE;
+    private long INDEXED_SIZE;
+    private long LAST_OFFSET;
+
+    /**
+     * Creates an empty index.
+     */
+    public AICSStringIndex() {
+        FIELDS = new ArrayList<>(FIELD_COUNT);
+        for (int i = 0; i < FIELD_COUNT; i++) FIELDS.add(new TreeMap<>());
+        SIZE = 0;
+        INDEXED_SIZE = 0;
+        LAST_OFFSET = -1;
+    }
+
+    /**
+     * Returns where the string index sidecar for a capture is stored.
+     *
+     * @param capture The capture file.
+     * @return The path of the capture's string index.
+     */
+    public static Path getIndexPath(Path capture) {
+        return SIDECAR.getPath(capture);
+    }
+
+    /**
+     * Builds or updates the string index sidecar for a capture. If the capture
+     * has only been appended to since the sidecar was saved, only the new
+     * intents are read. Like AICSIndex.build(), indexing stops at the first
+     * intent that can't be parsed or is incomplete.
+     *
+     * @param capture The capture file to index.
+     * @return The index.
+     * @throws IOException If the capture or the index can't be read or
+     * written.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSStringIndex build(Path capture)
+            throws IOException, ParseException {
+        Path path = getIndexPath(capture);
+        AICSStringIndex index = SIDECAR.loadExisting(path,
+                AICSStringIndex::load);
+        try (AICSFileReader reader = new AICSFileReader(capture)) {
+            if (index == null || !AICSSidecar.canResume(reader, index.SIZE,
+                    index.LAST_OFFSET, -1, index.INDEXED_SIZE))
+                index = new AICSStringIndex();
+            index.scan(reader);
+        }
+        index.save(path);
+        return index;
+    }
+
+    /**
+     * Indexes a capture in memory without reading or writing a sidecar.
+     *
+     * @param capture The capture file to index.
+     * @return The index.
+     * @throws IOException If the capture can't be read.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSStringIndex scan(Path capture)
+            throws IOException, ParseException {
+        AICSStringIndex index = new AICSStringIndex();
+        try (AICSFileReader reader = new AICSFileReader(capture)) {
+            index.scan(reader);
+        }
+        return index;
+    }
+
+    /**
+     * Loads a string index sidecar.
+     *
+     * @param path The index file.
+     * @return The loaded index.
+     * @throws IOException If the index can't be read.
+     * @throws ParseException If the file isn't a valid string index.
+     */
+    public static AICSStringIndex load(Path path)
+            throws IOException, ParseException {
+        ByteBuffer buffer = SIDECAR.read(path, HEADER_SIZE);
+        AICSStringIndex loaded = new AICSStringIndex();
+        loaded.INDEXED_SIZE = buffer.getLong();
+        loaded.LAST_OFFSET = buffer.getLong();
+        loaded.SIZE = buffer.getInt();
+        int strings = buffer.getInt();
+        if (loaded.INDEXED_SIZE < 0 || loaded.SIZE < 0 || strings < 0)
+            throw SIDECAR.invalid(0);
+        try {
+            for (int i = 0; i < strings; i++) {
+                int field = buffer.get();
+                if (field < 0 || field >= FIELD_COUNT)
+                    throw new ParseException("Unknown field.",
+                            buffer.position() - 1);
+                byte[] bytes = new byte[BufferUtils.getVarint(buffer)];
+                buffer.get(bytes);
+                int count = BufferUtils.getVarint(buffer);
+                byte[] list = new byte[BufferUtils.getVarint(buffer)];
+                buffer.get(list);
+                Postings postings = new Postings(list, count);
+                if (postings.LAST >= loaded.SIZE)
+                    throw new ParseException("Ordinal is out of range.",
+                            buffer.position());
+                loaded.FIELDS.get(field).put(new String(bytes,
+                        StandardCharsets.UTF_8), postings);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new ParseException("String index is truncated.",
+                    buffer.position());
+        }
+        if (buffer.hasRemaining()) throw SIDECAR.invalid(buffer.position());
+        return loaded;
+    }
+
+    /**
+     * Adds an intent to the index as the next ordinal.
+     *
+     * @param intent The intent, with its intent data attached.
+     * @return The intent's ordinal.
+     */
+    public int add(IntentHeader intent) {
+        if (SIZE == Integer.MAX_VALUE)
+            throw new IllegalStateException("String index is full.");
+        int ordinal = SIZE++;
+        String receiver;
+        String caller;
+        switch (intent.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) intent;
+                receiver = activity.getReceiverComponent();
+                caller = activity.getCallerComponent();
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast =
+                        (BroadcastIntentHeader) intent;
+                receiver = broadcast.getReceiverComponent();
+                caller = broadcast.getCallerComponent();
+                break;
+            default:
+                ServiceIntentHeader service = (ServiceIntentHeader) intent;
+                receiver = service.getReceiverComponent();
+                caller = service.getCallerComponent();
+                add(FIELD_SERVICE_ACTION, service.getAction(), ordinal);
+        }
+        add(FIELD_RECEIVER_COMPONENT, receiver, ordinal);
+        add(FIELD_CALLER_COMPONENT, caller, ordinal);
+        IntentData data = intent.getIntentData();
+        if (data != null) add(FIELD_ACTION, data.getAction(), ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Adds an intent which was written to a capture at a known offset, so
+     * build() can later tell where to resume from.
+     *
+     * @param intent The intent.
+     * @param offset Where the intent starts in the capture.
+     * @param end Where the intent ends in the capture.
+     */
+    void add(IntentHeader intent, long offset, long end) {
+        add(intent);
+        LAST_OFFSET = offset;
+        INDEXED_SIZE = end;
+    }
+
+    private void add(int field, String value, int ordinal) {
+        if (value == null) return;
+        TreeMap<String, Postings> strings = FIELDS.get(field);
+        Postings postings = strings.get(value);
+        if (postings == null) {
+            postings = new Postings();
+            strings.put(value, postings);
+        }
+        postings.add(ordinal);
+    }
+
+    /**
+     * Returns how many intents are in the index.
+     *
+     * @return The number of indexed intents.
+     */
+    public int size() { return SIZE; }
+
+    /**
+     * Returns how many bytes of the capture are covered by the index. This is
+     * 0 unless the index was built from a capture or by an AICSWriter.
+     *
+     * @return The number of indexed bytes.
+     */
+    public long getIndexedSize() { return INDEXED_SIZE; }
+
+    /**
+     * Returns how many distinct strings a field has.
+     *
+     * @param field One of the FIELD constants.
+     * @return The number of strings.
+     */
+    public int getStringCount(int field) { return getField(field).size(); }
+
+    /**
+     * Finds the intents whose field is exactly a string.
+     *
+     * @param field One of the FIELD constants.
+     * @param value The string to look up.
+     * @return The sorted ordinals of the matching intents.
+     */
+    public int[] lookup(int field, String value) {
+        Postings postings = getField(field).get(value);
+        return postings == null ? new int[0] : postings.toArray();
+    }
+
+    /**
+     * Finds the intents whose field starts with a prefix.
+     *
+     * @param field One of the FIELD constants.
+     * @param prefix The prefix to look up.
+     * @return The sorted ordinals of the matching intents.
+     */
+    public int[] lookupPrefix(int field, String prefix) {
+        ArrayList<Postings> matches = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<String, Postings> entry
+                : getField(field).tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) break;
+            matches.add(entry.getValue());
+            total += entry.getValue().COUNT;
+        }
+        if (matches.size() == 1) return matches.get(0).toArray();
+        // Every intent has one string per field so the lists don't overlap
+        int[] ordinals = new int[total];
+        int length = 0;
+        for (Postings postings : matches)
+            length = postings.decode(ordinals, length);
+        Arrays.sort(ordinals);
+        return ordinals;
+    }
+
+    /**
+     * Finds the intents whose field matches a pattern. A pattern ending in
+     * '*', such as "android.intent.action.*", matches every string starting
+     * with the rest of the pattern. Any other pattern must match exactly.
+     *
+     * @param field One of the FIELD constants.
+     * @param pattern The pattern to match.
+     * @return The sorted ordinals of the matching intents.
+     */
+    public int[] find(int field, String pattern) {
+        if (pattern.endsWith("*"))
+            return lookupPrefix(field, pattern.substring(0,
+                    pattern.length() - 1));
+        return lookup(field, pattern);
+    }
+
+    /**
+     * Finds the intents which match a pattern in every field a pattern is
+     * given for.
+     *
+     * @param action The pattern for FIELD_ACTION, or null to match any.
+     * @param serviceAction The pattern for FIELD_SERVICE_ACTION, or null to
+     * match any.
+     * @param receiver The pattern for FIELD_RECEIVER_COMPONENT, or null to
+     * match any.
+     * @param caller The pattern for FIELD_CALLER_COMPONENT, or null to match
+     * any.
+     * @return The sorted ordinals of the matching intents.
+     * @see #find(int, String)
+     */
+    public int[] find(String action, String serviceAction, String receiver,
+            String caller) {
+        String[] patterns = { action, serviceAction, receiver, caller };
+        int[] result = null;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if (patterns[field] == null) continue;
+            int[] ordinals = find(field, patterns[field]);
+            result = result == null ? ordinals : intersect(result, ordinals);
+            if (result.length == 0) break;
+        }
+        if (result == null) {
+            result = new int[SIZE];
+            for (int i = 0; i < SIZE; i++) result[i] = i;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ordinals which are in both of two sorted lists. Each
+     * ordinal of the shorter list is binary searched for in the longer one,
+     * starting from where the last search ended, so a rare string intersected
+     * with a common one only costs a few probes per match.
+     *
+     * @param a A sorted list of ordinals.
+     * @param b Another sorted list of ordinals.
+     * @return The sorted ordinals in both lists.
+     */
+    public static int[] intersect(int[] a, int[] b) {
+        if (a.length > b.length) {
+            int[] swap = a;
+            a = b;
+            b = swap;
+        }
+        int[] result = new int[a.length];
+        int length = 0;
+        int from = 0;
+        for (int i = 0; i < a.length && from < b.length; i++) {
+            int found = Arrays.binarySearch(b, from, b.length, a[i]);
+            if (found >= 0) {
+                result[length++] = a[i];
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Writes the index to a sidecar, replacing anything already there.
+     *
+     * @param path The index file.
+     * @throws IOException If the index can't be written.
+     */
+    public void save(Path path) throws IOException {
+        long size = HEADER_SIZE;
+        int strings = 0;
+        ArrayList<byte[]> keys = new ArrayList<>();
+        for (TreeMap<String, Postings> field : FIELDS) {
+            for (Map.Entry<String, Postings> entry : field.entrySet()) {
+                byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                Postings postings = entry.getValue();
+                keys.add(bytes);
+                size += 1 + BufferUtils.varintSize(bytes.length) + bytes.length
+                        + BufferUtils.varintSize(postings.COUNT)
+                        + BufferUtils.varintSize(postings.LENGTH)
+                        + postings.LENGTH;
+                strings++;
+            }
+        }
+        ByteBuffer buffer = SIDECAR.allocate(size, INDEXED_SIZE);
+        buffer.putLong(LAST_OFFSET)
+                .putInt(SIZE)
+                .putInt(strings);
+        int key = 0;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            for (Postings postings : FIELDS.get(field).values()) {
+                byte[] bytes = keys.get(key++);
+                buffer.put((byte) field);
+                BufferUtils.putVarint(buffer, bytes.length);
+                buffer.put(bytes);
+                BufferUtils.putVarint(buffer, postings.COUNT);
+                BufferUtils.putVarint(buffer, postings.LENGTH);
+                buffer.put(postings.BYTES, 0, postings.LENGTH);
+            }
+        }
+        SIDECAR.write(path, buffer);
+    }
+
+    private TreeMap<String, Postings> getField(int field) {
+        if (field < 0 || field >= FIELD_COUNT)
+            throw new IllegalArgumentException("Unknown field.");
+        return FIELDS.get(field);
+    }
+
+    /**
+     * Indexes every intent from the reader's position until the first one
+     * that can't be parsed or is incomplete.
+     */
+    private void scan(AICSFileReader reader) throws IOException {
+        AICSSidecar.scan(reader, this::add);
+        if (SIZE == 0) INDEXED_SIZE = reader.getPosition();
+    }
+
+    /**
+     * A growable postings list of varint encoded ordinal differences.
+     */
+    private final static class Postings {
+        byte[] BYTES;
+        int LENGTH;
+        int COUNT;
+        int LAST;
+
+        Postings() {
+            BYTES = new byte[4];
+            LENGTH = 0;
+            COUNT = 0;
+            LAST = -1;
+        }
+
+        Postings(byte[] bytes, int count) throws ParseException {
+            // Every ordinal takes at least a byte
+            if (count < 0 || count > bytes.length)
+                throw new ParseException("Postings list is corrupt.", 0);
+            BYTES = bytes;
+            LENGTH = bytes.length;
+            COUNT = count;
+            // Decoding also checks that the list is well formed
+            int[] ordinals = new int[count];
+            if (decode(ordinals, 0) != count)
+                throw new ParseException("Postings list is corrupt.", 0);
+            LAST = count == 0 ? -1 : ordinals[count - 1];
+        }
+
+        void add(int ordinal) {
+            if (ordinal == LAST) return;
+            if (BYTES.length - LENGTH < 5)
+                BYTES = Arrays.copyOf(BYTES, Math.max(BYTES.length * 2,
+                        LENGTH + 5));
+            int delta = ordinal - LAST;
+            while ((delta & ~0x7F) != 0) {
+                BYTES[LENGTH++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            BYTES[LENGTH++] = (byte) delta;
+            LAST = ordinal;
+            COUNT++;
+        }
+
+        int[] toArray() {
+            int[] ordinals = new int[COUNT];
+            decode(ordinals, 0);
+            return ordinals;
+        }
+
+        /**
+         * Decodes the list into an array and returns the array's new length.
+         */
+        int decode(int[] ordinals, int length) {
+            int ordinal = -1;
+            int position = 0;
+            int end = Math.min(ordinals.length, length + COUNT);
+            while (position < LENGTH && length < end) {
+                int delta = 0;
+                for (int shift = 0; position < LENGTH; shift += 7) {
+                    byte b = BYTES[position++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                if (delta <= 0) break; // Only a corrupt list goes backwards
+                ordinals[length++] = ordinal += delta;
+            }
+            return length;
+        }
+    }
+}
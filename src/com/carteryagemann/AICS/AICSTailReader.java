@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Follows an AICS file which is still being written, returning each intent
+ * once all of its bytes have arrived. An intent which is only partly written
+ * is left pending until the rest of it is, rather than being treated as an
+ * error.
+ *
+ * Every byte of the file is read only once. Bytes are read into a buffer as
+ * they are appended and only the bytes of a pending intent are kept between
+ * reads. While the file is idle the reader checks it once per poll interval,
+ * so an intent is returned within about one interval of being written.
+ *
+ * Raw and compact files can be followed. Block-compressed and
+ * dictionary-encoded files can't, since they can only be decoded once they
+ * have been completely written.
+ *
+ * A tail reader is not thread safe.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSTailReader implements Closeable {
+
+    /**
+     * The default time between checks of an idle file, in milliseconds.
+     */
+    public final static long DEFAULT_POLL_INTERVAL = 10;
+
+    private final static int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel CHANNEL;
+    private final long POLL_NANOS;
+
+    private ByteBuffer BUFFER;
+    private long FILE_POSITION;
+    private AICSFile.AICSFileHeader FILE_HEADER;
+    private CompactCodec CODEC;
+    private IntentProjection PROJECTION;
+
+    /**
+     * Opens a file for following with the default poll interval.
+     *
+     * @param path The file to follow. It may not have a file header yet.
+     * @throws IOException If the file can't be opened.
+     */
+    public AICSTailReader(Path path) throws IOException {
+        this(path, DEFAULT_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a file for following.
+     *
+     * @param path The file to follow. It may not have a file header yet.
+     * @param pollInterval The time between checks of an idle file.
+     * @param unit The unit of pollInterval.
+     * @throws IOException If the file can't be opened.
+     */
+    public AICSTailReader(Path path, long pollInterval, TimeUnit unit)
+            throws IOException {
+        if (pollInterval <= 0)
+            throw new IllegalArgumentException("Poll interval must be "
+                    + "positive.");
+        CHANNEL = FileChannel.open(path, StandardOpenOption.READ);
+        POLL_NANOS = unit.toNanos(pollInterval);
+        BUFFER = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        BUFFER.flip();
+        FILE_POSITION = 0;
+    }
+
+    /**
+     * Sets which fields of raw intents are read. Payload slices are copied out
+     * of the reader's buffer, since it is reused.
+     *
+     * @param projection Which fields to read, or null to read them all.
+     * @return Itself.
+     */
+    public AICSTailReader setProjection(IntentProjection projection) {
+        PROJECTION = projection;
+        return this;
+    }
+
+    /**
+     * Returns the next intent if all of it has been written, without
+     * waiting.
+     *
+     * @return The next intent with its intent data attached, or null if it
+     * hasn't been completely written yet.
+     * @throws IOException If the file can't be read or has been truncated.
+     * @throws ParseException If the file header or the next intent can't be
+     * parsed.
+     */
+    public IntentHeader poll() throws IOException, ParseException {
+        IntentHeader intent = parse();
+        while (intent == null && fill()) intent = parse();
+        return intent;
+    }
+
+    /**
+     * Returns the next intent, waiting for it to be written if necessary.
+     *
+     * @param timeout How long to wait.
+     * @param unit The unit of timeout.
+     * @return The next intent with its intent data attached, or null if it
+     * wasn't completely written before the timeout.
+     * @throws IOException If the file can't be read or has been truncated.
+     * @throws InterruptedIOException If the thread is interrupted while
+     * waiting.
+     * @throws ParseException If the file header or the next intent can't be
+     * parsed.
+     */
+    public IntentHeader next(long timeout, TimeUnit unit)
+            throws IOException, ParseException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            IntentHeader intent = poll();
+            if (intent != null) return intent;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            LockSupport.parkNanos(Math.min(POLL_NANOS, remaining));
+            if (Thread.interrupted())
+                throw new InterruptedIOException("Interrupted while waiting "
+                        + "for an intent.");
+        }
+    }
+
+    /**
+     * Returns the offset in the file of the next intent to be returned. Every
+     * byte before it has been read and parsed.
+     *
+     * @return The offset of the next intent.
+     */
+    public long getPosition() { return FILE_POSITION - BUFFER.remaining(); }
+
+    /**
+     * Returns how many bytes have been read but not yet returned as an
+     * intent, such as the start of a partly written intent.
+     *
+     * @return The number of pending bytes.
+     */
+    public int getPendingBytes() { return BUFFER.remaining(); }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        CHANNEL.close();
+    }
+
+    /**
+     * Parses the next intent out of the buffer if all of it is there.
+     */
+    private IntentHeader parse() throws ParseException {
+        if (FILE_HEADER == null && !parseFileHeader()) return null;
+        if (CODEC != null) {
+            int start = BUFFER.position();
+            try {
+                // The codec leaves the position alone if the record is partial
+                return CODEC.decode(BUFFER);
+            } catch (BufferUnderflowException e) {
+                return null;
+            } catch (ParseException e) {
+                BUFFER.position(start); // Leave the bad intent pending
+                throw e;
+            }
+        }
+
+        int size;
+        try {
+            size = IntentHeader.parseIntentSize(BUFFER);
+        } catch (BufferUnderflowException e) {
+            return null; // The fixed-sized fields haven't all arrived
+        }
+        if (size > BUFFER.remaining()) return null;
+        int start = BUFFER.position();
+        ByteBuffer record = BUFFER;
+        if (PROJECTION != null && PROJECTION.usesPayloadSlices())
+            record = ByteBuffer.wrap(BufferUtils.copy(BUFFER, start, size))
+                    .order(BUFFER.order());
+        IntentHeader intent;
+        try {
+            intent = IntentHeader.parseIntent(record, null, PROJECTION);
+        } catch (ParseException e) {
+            BUFFER.position(start); // Leave the bad intent pending
+            throw e;
+        }
+        BUFFER.position(start + size);
+        return intent;
+    }
+
+    private boolean parseFileHeader() throws ParseException {
+        ByteBuffer header = BUFFER.duplicate();
+        try {
+            FILE_HEADER = AICSFile.AICSFileHeader.readFromBuffer(header);
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+        if (FILE_HEADER.isBlockCompressed()
+                || FILE_HEADER.isDictionaryEncoded())
+            throw new ParseException("Only raw and compact files can be "
+                    + "followed.", 0);
+        if (FILE_HEADER.isCompact()) CODEC = new CompactCodec();
+        BUFFER.order(FILE_HEADER.getByteOrder());
+        BUFFER.position(header.position());
+        return true;
+    }
+
+    /**
+     * Reads whatever has been appended to the file since the last read.
+     *
+     * @return True if any bytes were read.
+     */
+    private boolean fill() throws IOException {
+        if (BUFFER.position() == 0 && BUFFER.limit() == BUFFER.capacity()) {
+            // A pending intent fills the whole buffer
+            ByteBuffer larger = ByteBuffer.allocate(BUFFER.capacity() * 2)
+                    .order(BUFFER.order());
+            larger.put(BUFFER).flip();
+            BUFFER = larger;
+        }
+        BUFFER.compact();
+        int read;
+        try {
+            read = CHANNEL.read(BUFFER, FILE_POSITION);
+        } finally {
+            BUFFER.flip();
+        }
+        if (read > 0) {
+            FILE_POSITION += read;
+            return true;
+        }
+        if (CHANNEL.size() < FILE_POSITION)
+            throw new IOException("File was truncated.");
+        return false;
+    }
+}
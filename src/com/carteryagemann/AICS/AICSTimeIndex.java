@@ -0,0 +1,402 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A sparse index of when the intents in an AICS file were captured, for
+ * reading the intents in a time range without reading the rest of the file.
+ * Times are in milliseconds: an intent's timestamp times 1000 plus its
+ * millisecond offset.
+ *
+ * The intents are split into blocks of a fixed number of intents, the stride,
+ * and the index stores where each block starts and the earliest and latest
+ * time in it. Blocks don't have to be in order, so intents which are logged
+ * slightly out of order are still found. A time range is found by binary
+ * searching the running maximum of the latest times for the first block which
+ * could hold the range and the running minimum of the earliest times, taken
+ * from the end, for the last. Only the blocks in between whose times overlap
+ * the range are read.
+ *
+ * The index is stored in a sidecar file next to the capture, with the magic
+ * number 0x41495458. The sidecar header is followed by the number of intents
+ * as a long, the stride as an int and the number of blocks as an int. Each
+ * block is three longs: its offset in the capture and its earliest and
+ * latest time.
+ *
+ * @see AICSSidecar
+ * @author Carter Yagemann
+ */
+public class AICSTimeIndex {
+
+    /**
+     * The extension used for time index sidecar files.
+     */
+    public final static String EXTENSION = ".aicstime";
+
+    /**
+     * The default number of intents per block.
+     */
+    public final static int DEFAULT_STRIDE = 256;
+
+    final static int MAGIC_NUMBER = 0x41495458;
+    final static short VERSION = 1;
+    final static int HEADER_SIZE = AICSSidecar.HEADER_SIZE + 16;
+    final static int ENTRY_SIZE = 24;
+
+    private final static AICSSidecar SIDECAR = new AICSSidecar("time index",
+            EXTENSION, MAGIC_NUMBER, VERSION);
+
+    private final int STRIDE;
+    private final long INDEXED_SIZE;
+    private final long SIZE;
+    private final int BLOCKS;
+    private final long[] OFFSETS;
+    private final long[] MIN_TIMES;
+    private final long[] MAX_TIMES;
+    private final long[] PREFIX_MAX;
+    private final long[] SUFFIX_MIN;
+
+    /**
+     * Returns where the time index sidecar for a capture is stored.
+     *
+     * @param capture The capture file.
+     * @return The path of the capture's time index.
+     */
+    public static Path getIndexPath(Path capture) {
+        return SIDECAR.getPath(capture);
+    }
+
+    /**
+     * Builds or updates the time index sidecar for a capture with the default
+     * stride.
+     *
+     * @param capture The capture file to index.
+     * @return The index.
+     * @throws IOException If the capture or the index can't be read or
+     * written.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     * @see #build(Path, int)
+     */
+    public static AICSTimeIndex build(Path capture)
+            throws IOException, ParseException {
+        return build(capture, DEFAULT_STRIDE);
+    }
+
+    /**
+     * Builds or updates the time index sidecar for a capture. If the sidecar
+     * has the same stride and its last block can still be read, the last
+     * block and everything after it are indexed again and the earlier blocks
+     * are kept. Otherwise the index is rebuilt from scratch. Like
+     * AICSIndex.build(), indexing stops at the first intent that can't be
+     * parsed or is incomplete.
+     *
+     * @param capture The capture file to index.
+     * @param stride The number of intents per block.
+     * @return The index.
+     * @throws IOException If the capture or the index can't be read or
+     * written.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSTimeIndex build(Path capture, int stride)
+            throws IOException, ParseException {
+        Path path = getIndexPath(capture);
+        AICSTimeIndex previous = SIDECAR.loadExisting(path,
+                AICSTimeIndex::load);
+        AICSTimeIndex index = scan(capture, stride, previous);
+        index.write(path);
+        return index;
+    }
+
+    /**
+     * Indexes a capture in memory without reading or writing a sidecar.
+     *
+     * @param capture The capture file to index.
+     * @param stride The number of intents per block.
+     * @return The index.
+     * @throws IOException If the capture can't be read.
+     * @throws ParseException If the capture doesn't start with a supported
+     * file header.
+     */
+    public static AICSTimeIndex scan(Path capture, int stride)
+            throws IOException, ParseException {
+        return scan(capture, stride, null);
+    }
+
+    private static AICSTimeIndex scan(Path capture, int stride,
+            AICSTimeIndex previous) throws IOException, ParseException {
+        if (stride <= 0)
+            throw new IllegalArgumentException("Stride must be positive.");
+        try (AICSFileReader reader = new AICSFileReader(capture)) {
+            reader.setProjection(IntentProjection.headersOnly());
+            int blocks = 0;
+            long count = 0;
+            long[] offsets = new long[64];
+            long[] minTimes = new long[64];
+            long[] maxTimes = new long[64];
+            if (previous != null && previous.STRIDE == stride
+                    && previous.BLOCKS > 0 && canResume(reader, previous)) {
+                // The last block may have grown so it is indexed again
+                blocks = previous.BLOCKS - 1;
+                count = (long) blocks * stride;
+                offsets = Arrays.copyOf(previous.OFFSETS, previous.BLOCKS);
+                minTimes = Arrays.copyOf(previous.MIN_TIMES, previous.BLOCKS);
+                maxTimes = Arrays.copyOf(previous.MAX_TIMES, previous.BLOCKS);
+                reader.seek(offsets[blocks]);
+            }
+
+            long indexed = reader.getPosition();
+            while (reader.hasNext()) {
+                long offset = reader.getPosition();
+                IntentHeader intent;
+                try {
+                    intent = reader.next();
+                } catch (BufferUnderflowException | ParseException e) {
+                    break; // Index as much as we can.
+                }
+                long time = getTime(intent);
+                if (count % stride == 0) {
+                    if (blocks == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, blocks * 2);
+                        minTimes = Arrays.copyOf(minTimes, blocks * 2);
+                        maxTimes = Arrays.copyOf(maxTimes, blocks * 2);
+                    }
+                    offsets[blocks] = offset;
+                    minTimes[blocks] = time;
+                    maxTimes[blocks] = time;
+                    blocks++;
+                } else {
+                    minTimes[blocks - 1] = Math.min(minTimes[blocks - 1], time);
+                    maxTimes[blocks - 1] = Math.max(maxTimes[blocks - 1], time);
+                }
+                indexed = reader.getPosition();
+                count++;
+            }
+            return new AICSTimeIndex(stride, indexed, count, blocks, offsets,
+                    minTimes, maxTimes);
+        }
+    }
+
+    /**
+     * Loads a time index sidecar.
+     *
+     * @param path The index file.
+     * @return The loaded index.
+     * @throws IOException If the index can't be read.
+     * @throws ParseException If the file isn't a valid time index.
+     */
+    public static AICSTimeIndex load(Path path)
+            throws IOException, ParseException {
+        ByteBuffer buffer = SIDECAR.read(path, HEADER_SIZE);
+        long indexed = buffer.getLong();
+        long count = buffer.getLong();
+        int stride = buffer.getInt();
+        int blocks = buffer.getInt();
+        if (indexed < 0 || count < 0 || stride <= 0 || blocks < 0
+                || (long) blocks * ENTRY_SIZE != buffer.remaining()
+                || (count + stride - 1) / stride != blocks)
+            throw SIDECAR.invalid(0);
+
+        long[] offsets = new long[blocks];
+        long[] minTimes = new long[blocks];
+        long[] maxTimes = new long[blocks];
+        for (int i = 0; i < blocks; i++) {
+            offsets[i] = buffer.getLong();
+            minTimes[i] = buffer.getLong();
+            maxTimes[i] = buffer.getLong();
+        }
+        return new AICSTimeIndex(stride, indexed, count, blocks, offsets,
+                minTimes, maxTimes);
+    }
+
+    private AICSTimeIndex(int stride, long indexedSize, long size, int blocks,
+            long[] offsets, long[] minTimes, long[] maxTimes) {
+        STRIDE = stride;
+        INDEXED_SIZE = indexedSize;
+        SIZE = size;
+        BLOCKS = blocks;
+        OFFSETS = offsets;
+        MIN_TIMES = minTimes;
+        MAX_TIMES = maxTimes;
+
+        // Both are sorted, which is what makes binary searching possible
+        PREFIX_MAX = new long[blocks];
+        SUFFIX_MIN = new long[blocks];
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < blocks; i++)
+            PREFIX_MAX[i] = max = Math.max(max, maxTimes[i]);
+        long min = Long.MAX_VALUE;
+        for (int i = blocks - 1; i >= 0; i--)
+            SUFFIX_MIN[i] = min = Math.min(min, minTimes[i]);
+    }
+
+    /**
+     * Returns the time of an intent in milliseconds.
+     *
+     * @param intent The intent.
+     * @return The intent's timestamp times 1000 plus its millisecond offset.
+     */
+    public static long getTime(IntentHeader intent) {
+        return intent.getTimestamp() * 1000L + intent.getOffset();
+    }
+
+    /**
+     * Returns how many intents are in the index.
+     *
+     * @return The number of indexed intents.
+     */
+    public long size() { return SIZE; }
+
+    /**
+     * Returns how many blocks the intents are split into.
+     *
+     * @return The number of blocks.
+     */
+    public int getBlockCount() { return BLOCKS; }
+
+    /**
+     * Returns how many intents are in each block.
+     *
+     * @return The stride.
+     */
+    public int getStride() { return STRIDE; }
+
+    /**
+     * Returns how many bytes of the capture are covered by the index.
+     *
+     * @return The number of indexed bytes.
+     */
+    public long getIndexedSize() { return INDEXED_SIZE; }
+
+    /**
+     * Returns where to start reading to find every intent at or after a time.
+     * Every intent before the returned offset is earlier than the time.
+     *
+     * @param time The time in milliseconds.
+     * @return The offset of the first block which could hold an intent at or
+     * after the time, or the indexed size if there isn't one.
+     */
+    public long getOffset(long time) {
+        int block = firstBlock(time);
+        return block < BLOCKS ? OFFSETS[block] : INDEXED_SIZE;
+    }
+
+    /**
+     * Reads every indexed intent whose time is in a range.
+     *
+     * @param reader A reader over the indexed capture. It is left positioned
+     * after the last block read.
+     * @param from The earliest time to read, in milliseconds.
+     * @param to The latest time to read, in milliseconds.
+     * @return The intents in the range, in the order they appear in the
+     * capture.
+     * @throws IOException If the capture can't be read.
+     * @throws ParseException If an intent in a block which is read can't be
+     * parsed.
+     */
+    public ArrayList<IntentHeader> read(AICSFileReader reader, long from,
+            long to) throws IOException, ParseException {
+        ArrayList<IntentHeader> intents = new ArrayList<>();
+        int last = lastBlock(to);
+        for (int block = firstBlock(from); block <= last; block++) {
+            if (MAX_TIMES[block] < from || MIN_TIMES[block] > to) continue;
+            long end = block + 1 < BLOCKS ? OFFSETS[block + 1] : INDEXED_SIZE;
+            reader.seek(OFFSETS[block]);
+            while (reader.getPosition() < end) {
+                IntentHeader intent = reader.next();
+                long time = getTime(intent);
+                if (time >= from && time <= to) intents.add(intent);
+            }
+        }
+        return intents;
+    }
+
+    /**
+     * Returns the first block whose running maximum is at or after a time.
+     */
+    private int firstBlock(long time) {
+        int low = 0;
+        int high = BLOCKS;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (PREFIX_MAX[middle] < time) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the last block whose running minimum from the end is at or
+     * before a time, or -1 if there isn't one.
+     */
+    private int lastBlock(long time) {
+        int low = 0;
+        int high = BLOCKS;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (SUFFIX_MIN[middle] <= time) low = middle + 1;
+            else high = middle;
+        }
+        return low - 1;
+    }
+
+    /**
+     * Writes the index to a sidecar, replacing anything already there.
+     */
+    private void write(Path path) throws IOException {
+        ByteBuffer buffer = SIDECAR.allocate(HEADER_SIZE
+                + (long) BLOCKS * ENTRY_SIZE, INDEXED_SIZE);
+        buffer.putLong(SIZE)
+                .putInt(STRIDE)
+                .putInt(BLOCKS);
+        for (int i = 0; i < BLOCKS; i++)
+            buffer.putLong(OFFSETS[i]).putLong(MIN_TIMES[i])
+                    .putLong(MAX_TIMES[i]);
+        SIDECAR.write(path, buffer);
+    }
+
+    /**
+     * Checks that the previous index's last block still starts with an intent
+     * and that the capture hasn't shrunk, which is the case when the capture
+     * has only been appended to.
+     */
+    private static boolean canResume(AICSFileReader reader,
+            AICSTimeIndex previous) throws IOException {
+        long start = reader.getPosition();
+        int last = previous.BLOCKS - 1;
+        try {
+            reader.seek(previous.INDEXED_SIZE);
+            reader.seek(previous.OFFSETS[last]);
+            long time = getTime(reader.next());
+            return time >= previous.MIN_TIMES[last]
+                    && time <= previous.MAX_TIMES[last];
+        } catch (IllegalArgumentException | BufferUnderflowException
+                | ParseException e) {
+            return false;
+        } finally {
+            reader.seek(start);
+        }
+    }
+}
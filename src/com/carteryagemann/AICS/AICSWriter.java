@@ -0,0 +1,347 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+
+/**
+ * Writes an AICS file one intent at a time. Intents are encoded into a
+ * reusable buffer which is written to the channel whenever it fills up, so the
+ * memory used stays the same no matter how large the file grows. The bytes
+ * written are identical to those produced by AICSFile.toByteBuffer().
+ *
+ * A writer can instead write a dictionary-encoded file (format version 0.3),
+ * where repeated strings such as component names and actions are stored once
+ * in a string table at the end of the file. See StringTable for the layout.
+ * It can also write a compact file (format version 0.4), where ints are
+ * varints, timestamps are stored as the difference from the previous intent
+ * and empty fields are left out. See CompactCodec for the layout.
+ *
+ * Files are big endian unless another byte order is given. A capture device
+ * can write in its native order, usually little endian, so that encoding
+ * intents never swaps bytes. Readers detect the order from the magic number.
+ *
+ * A writer is not thread safe.
+ *
+ * @author Carter Yagemann
+ */
+public class AICSWriter implements Closeable, Flushable {
+
+    /**
+     * The default size of the buffer intents are encoded into.
+     */
+    public final static int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Write intents in the raw format (format version 0.1).
+     */
+    public final static int ENCODING_RAW = 0;
+
+    /**
+     * Write intents with their strings dictionary encoded (format version
+     * 0.3).
+     */
+    public final static int ENCODING_DICTIONARY = 1;
+
+    /**
+     * Write intents in the compact format (format version 0.4).
+     */
+    public final static int ENCODING_COMPACT = 2;
+
+    private final WritableByteChannel CHANNEL;
+    private final ByteBuffer BUFFER;
+    private final StringTable STRINGS;
+    private final CompactCodec CODEC;
+    private AICSStringIndex STRING_INDEX;
+    private long SIZE;
+    private long COUNT;
+
+    /**
+     * Creates a new AICS file, replacing any existing file at the path.
+     *
+     * @param path The file to write.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     * @throws IOException If the file can't be created.
+     */
+    public AICSWriter(Path path, short major, byte minor, byte patch)
+            throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                major, minor, patch, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a writer which writes a new AICS file to a channel.
+     *
+     * @param channel The channel to write to.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     */
+    public AICSWriter(WritableByteChannel channel, short major, byte minor,
+            byte patch) {
+        this(channel, major, minor, patch, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a writer which writes a new AICS file to a channel.
+     *
+     * @param channel The channel to write to.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     * @param bufferSize The size of the buffer intents are encoded into.
+     * Intents larger than the buffer are written straight to the channel.
+     */
+    public AICSWriter(WritableByteChannel channel, short major, byte minor,
+            byte patch, int bufferSize) {
+        this(channel, major, minor, patch, bufferSize, ENCODING_RAW);
+    }
+    
+    /**
+     * Creates a writer which writes a new AICS file to a channel using the
+     * given encoding. The string table of a dictionary-encoded file is
+     * written when the writer is closed, so the file can't be read until
+     * then.
+     *
+     * @param channel The channel to write to.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     * @param bufferSize The size of the buffer intents are encoded into.
+     * Intents larger than the buffer are written straight to the channel.
+     * @param encoding ENCODING_RAW, ENCODING_DICTIONARY or ENCODING_COMPACT.
+     */
+    public AICSWriter(WritableByteChannel channel, short major, byte minor,
+            byte patch, int bufferSize, int encoding) {
+        this(channel, major, minor, patch, bufferSize, encoding,
+                ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Creates a writer which writes a new AICS file to a channel using the
+     * given encoding and byte order.
+     *
+     * @param channel The channel to write to.
+     * @param major The major Android version the intents were captured on.
+     * @param minor The minor Android version the intents were captured on.
+     * @param patch The patch Android version the intents were captured on.
+     * @param bufferSize The size of the buffer intents are encoded into.
+     * Intents larger than the buffer are written straight to the channel.
+     * @param encoding ENCODING_RAW, ENCODING_DICTIONARY or ENCODING_COMPACT.
+     * @param order The byte order of the file, such as
+     * ByteOrder.nativeOrder().
+     */
+    public AICSWriter(WritableByteChannel channel, short major, byte minor,
+            byte patch, int bufferSize, int encoding, ByteOrder order) {
+        short format;
+        switch (encoding) {
+            case ENCODING_RAW:
+                format = AICSFile.AICSFileHeader.FORMAT_MINOR_VERSION;
+                break;
+            case ENCODING_DICTIONARY:
+                format = AICSFile.AICSFileHeader
+                        .FORMAT_MINOR_VERSION_DICTIONARY;
+                break;
+            case ENCODING_COMPACT:
+                format = AICSFile.AICSFileHeader.FORMAT_MINOR_VERSION_COMPACT;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown encoding.");
+        }
+        AICSFile.AICSFileHeader header = new AICSFile.AICSFileHeader(format,
+                major, minor, patch, order);
+        if (bufferSize < header.getSize())
+            throw new IllegalArgumentException("Buffer size is too small.");
+        CHANNEL = channel;
+        STRINGS = encoding == ENCODING_DICTIONARY ? new StringTable() : null;
+        CODEC = encoding == ENCODING_COMPACT ? new CompactCodec() : null;
+        BUFFER = ByteBuffer.allocateDirect(bufferSize).order(order);
+        header.writeTo(BUFFER);
+        SIZE = header.getSize();
+        COUNT = 0;
+    }
+
+    /**
+     * Appends an intent and its intent data to the file.
+     *
+     * @param intent The intent to write.
+     * @return Itself.
+     * @throws IOException If the channel can't be written to.
+     */
+    public AICSWriter write(IntentHeader intent) throws IOException {
+        if (CODEC != null) return writeCompact(intent);
+        IntentData data = intent.getIntentData();
+        int size = intent.getSize(STRINGS) + data.getSize(STRINGS);
+        if (size > BUFFER.remaining()) flush();
+        if (size > BUFFER.capacity()) {
+            // Too large to buffer so encode it on its own
+            ByteBuffer large = ByteBuffer.allocate(size).order(BUFFER.order());
+            intent.writeTo(large, STRINGS);
+            data.writeTo(large, STRINGS);
+            large.flip();
+            writeFully(large);
+        } else {
+            intent.writeTo(BUFFER, STRINGS);
+            data.writeTo(BUFFER, STRINGS);
+        }
+        if (STRING_INDEX != null) STRING_INDEX.add(intent, SIZE, SIZE + size);
+        SIZE += size;
+        COUNT++;
+        return this;
+    }
+
+    private AICSWriter writeCompact(IntentHeader intent) throws IOException {
+        int size = CODEC.prepare(intent);
+        if (size > BUFFER.remaining()) flush();
+        if (size > BUFFER.capacity()) {
+            ByteBuffer large = ByteBuffer.allocate(size);
+            CODEC.encode(large);
+            large.flip();
+            writeFully(large);
+        } else {
+            CODEC.encode(BUFFER);
+        }
+        if (STRING_INDEX != null) STRING_INDEX.add(intent, SIZE, SIZE + size);
+        SIZE += size;
+        COUNT++;
+        return this;
+    }
+
+    /**
+     * Appends an intent which has already been flattened, such as by
+     * IntentHeader.writeTo() followed by IntentData.writeTo(). The bytes from
+     * the buffer's position to its limit are copied and the position is
+     * advanced to the limit. If the file isn't raw, or the buffer's byte order
+     * isn't the file's, the intent is parsed and written again in the file's
+     * encoding instead.
+     *
+     * @param intent The flattened intent and its intent data.
+     * @return Itself.
+     * @throws IOException If the channel can't be written to or the intent
+     * can't be parsed.
+     */
+    AICSWriter writeEncoded(ByteBuffer intent) throws IOException {
+        if (STRINGS != null || CODEC != null
+                || intent.order() != BUFFER.order()) {
+            try {
+                return write(IntentHeader.parseIntent(intent));
+            } catch (ParseException e) {
+                throw new IOException("Failed to parse intent.", e);
+            }
+        }
+        if (STRING_INDEX != null) {
+            ByteBuffer copy = intent.duplicate().order(intent.order());
+            try {
+                STRING_INDEX.add(IntentHeader.parseIntent(copy), SIZE,
+                        SIZE + intent.remaining());
+            } catch (ParseException e) {
+                throw new IOException("Failed to parse intent.", e);
+            }
+        }
+        int size = intent.remaining();
+        if (size > BUFFER.remaining()) flush();
+        if (size > BUFFER.capacity()) writeFully(intent);
+        else BUFFER.put(intent);
+        SIZE += size;
+        COUNT++;
+        return this;
+    }
+
+    /**
+     * Attaches a string index which every intent written from now on is
+     * added to, along with where it was written. The index should be empty
+     * when the writer is created, so its ordinals match the file's. Saving
+     * the index next to the file lets AICSStringIndex.build() update it later
+     * without reading the intents again.
+     *
+     * @param index The index to keep up to date, or null to stop.
+     * @return Itself.
+     */
+    public AICSWriter setStringIndex(AICSStringIndex index) {
+        STRING_INDEX = index;
+        return this;
+    }
+
+    /**
+     * Returns how many bytes have been written to the file so far, including
+     * bytes which are still buffered.
+     *
+     * @return The size of the file.
+     */
+    public long size() { return SIZE; }
+
+    /**
+     * Returns how many intents have been written to the file so far.
+     *
+     * @return The number of intents.
+     */
+    public long getIntentCount() { return COUNT; }
+
+    /**
+     * Returns the byte order the file is written in.
+     *
+     * @return The file's byte order.
+     */
+    public ByteOrder getByteOrder() { return BUFFER.order(); }
+
+    /**
+     * Writes any buffered intents to the channel.
+     *
+     * @throws IOException If the channel can't be written to.
+     */
+    @Override
+    public void flush() throws IOException {
+        BUFFER.flip();
+        writeFully(BUFFER);
+        BUFFER.clear();
+    }
+
+    /**
+     * Flushes the writer, writes the string table if the file is dictionary
+     * encoded and closes the channel.
+     *
+     * @throws IOException If the channel can't be written to or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            if (STRINGS != null) {
+                ByteBuffer table = STRINGS.toByteBuffer(SIZE, BUFFER.order());
+                SIZE += table.remaining();
+                writeFully(table);
+            }
+        } finally {
+            CHANNEL.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) CHANNEL.write(buffer);
+    }
+}
@@ -15,8 +15,10 @@
  */
 package com.carteryagemann.AICS;
 
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 
 /**
@@ -32,8 +34,11 @@ public class ActivityIntentHeader extends IntentHeader {
     private int CALLER_COMPONENT_SIZE;
     private int OPTIONS_SIZE;
     private String RECEIVER_COMPONENT;
+    private byte[] RECEIVER_COMPONENT_BYTES;
     private String CALLER_COMPONENT;
+    private byte[] CALLER_COMPONENT_BYTES;
     private byte[] OPTIONS;
+    private ByteBuffer OPTIONS_SLICE;
     
     /**
      * The default constructor initializes all the fields as null and size 0.
@@ -67,6 +72,26 @@ public class ActivityIntentHeader extends IntentHeader {
      */
     public ActivityIntentHeader(ByteBuffer buffer)
             throws BufferUnderflowException, ParseException {
+        this(buffer, null, null);
+    }
+    
+    /**
+     * Creates a new activity intent header by parsing a ByteBuffer from a
+     * dictionary-encoded file. The string fields hold ids which are looked up
+     * in the table, so every intent shares the table's String instances.
+     * 
+     * @param buffer The buffer to parse.
+     * @param strings The file's string table, or null if the buffer holds a
+     * raw intent.
+     * @param projection Which fields to read, or null to read them all.
+     * @throws BufferUnderflowException If buffer is too small to be an intent
+     * header.
+     * @throws ParseException If buffer contains an intent header of the wrong
+     * type or an unknown string id.
+     */
+    ActivityIntentHeader(ByteBuffer buffer, StringTable strings,
+            IntentProjection projection)
+            throws BufferUnderflowException, ParseException {
         try {
             TIMESTAMP = buffer.getInt();
             MILLI_OFFSET = buffer.getShort();
@@ -88,21 +113,42 @@ public class ActivityIntentHeader extends IntentHeader {
             if (INTENT_DATA_SIZE < 0)
                 throw new ParseException("Header has no intent data!",
                 buffer.position());
-            if (RECEIVER_COMPONENT_SIZE > 0) {
-                byte[] temp = new byte[RECEIVER_COMPONENT_SIZE];
-                buffer.get(temp);
-                RECEIVER_COMPONENT = new String(temp);
+            if (RECEIVER_COMPONENT_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, RECEIVER_COMPONENT_SIZE);
+                RECEIVER_COMPONENT = strings.getString(id);
+                RECEIVER_COMPONENT_BYTES = strings.getBytes(id);
+                RECEIVER_COMPONENT_SIZE = RECEIVER_COMPONENT_BYTES.length;
+            } else if (RECEIVER_COMPONENT_SIZE > 0) {
+                RECEIVER_COMPONENT_BYTES = new byte[RECEIVER_COMPONENT_SIZE];
+                buffer.get(RECEIVER_COMPONENT_BYTES);
+                RECEIVER_COMPONENT = new String(RECEIVER_COMPONENT_BYTES,
+                        StandardCharsets.UTF_8);
             }
-            if (CALLER_COMPONENT_SIZE > 0) {
-                byte[] temp = new byte[CALLER_COMPONENT_SIZE];
-                buffer.get(temp);
-                CALLER_COMPONENT = new String(temp);
+            if (CALLER_COMPONENT_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, CALLER_COMPONENT_SIZE);
+                CALLER_COMPONENT = strings.getString(id);
+                CALLER_COMPONENT_BYTES = strings.getBytes(id);
+                CALLER_COMPONENT_SIZE = CALLER_COMPONENT_BYTES.length;
+            } else if (CALLER_COMPONENT_SIZE > 0) {
+                CALLER_COMPONENT_BYTES = new byte[CALLER_COMPONENT_SIZE];
+                buffer.get(CALLER_COMPONENT_BYTES);
+                CALLER_COMPONENT = new String(CALLER_COMPONENT_BYTES,
+                        StandardCharsets.UTF_8);
             }
-            if (OPTIONS_SIZE > 0) {
+            if (OPTIONS_SIZE > 0 && projection != null
+                    && !projection.includesOptions()) {
+                BufferUtils.skip(buffer, OPTIONS_SIZE);
+                OPTIONS_SIZE = 0;
+            } else if (OPTIONS_SIZE > 0 && projection != null
+                    && projection.usesPayloadSlices()) {
+                OPTIONS_SLICE = BufferUtils.slice(buffer, buffer.position(),
+                        OPTIONS_SIZE);
+                BufferUtils.skip(buffer, OPTIONS_SIZE);
+            } else if (OPTIONS_SIZE > 0) {
                 OPTIONS = new byte[OPTIONS_SIZE];
                 buffer.get(OPTIONS);
             }
-            INTENT_DATA = new IntentData(buffer);
+            readIntentData(buffer, strings, projection);
         } catch (BufferUnderflowException e) {
             throw e;
         }
@@ -125,20 +171,21 @@ public class ActivityIntentHeader extends IntentHeader {
     
     public ActivityIntentHeader setReceiverComponent(String component) {
         RECEIVER_COMPONENT = component;
-        if (component != null) RECEIVER_COMPONENT_SIZE = component.length();
-        else RECEIVER_COMPONENT_SIZE = 0;
+        RECEIVER_COMPONENT_BYTES = BufferUtils.encode(component);
+        RECEIVER_COMPONENT_SIZE = BufferUtils.size(RECEIVER_COMPONENT_BYTES);
         return this;
     }
     
     public ActivityIntentHeader setCallerComponent(String component) {
         CALLER_COMPONENT = component;
-        if (component != null) CALLER_COMPONENT_SIZE = component.length();
-        else CALLER_COMPONENT_SIZE = 0;
+        CALLER_COMPONENT_BYTES = BufferUtils.encode(component);
+        CALLER_COMPONENT_SIZE = BufferUtils.size(CALLER_COMPONENT_BYTES);
         return this;
     }
     
     public ActivityIntentHeader setOptions(byte[] options) {
         OPTIONS = options;
+        OPTIONS_SLICE = null;
         OPTIONS_SIZE = options.length;
         return this;
     }
@@ -151,14 +198,53 @@ public class ActivityIntentHeader extends IntentHeader {
     
     public String getCallerComponent() { return CALLER_COMPONENT; }
     
-    public byte[] getOptions() { return OPTIONS; }
+    // The strings' cached UTF-8 bytes, for encoders. They mustn't be changed
+    byte[] getReceiverComponentBytes() { return RECEIVER_COMPONENT_BYTES; }
+    
+    byte[] getCallerComponentBytes() { return CALLER_COMPONENT_BYTES; }
+    
+    /**
+     * Returns the options. If the header was parsed with payload slices the
+     * options are copied out of the source buffer the first time this is
+     * called.
+     * 
+     * @return The options, or null if there aren't any.
+     */
+    public byte[] getOptions() {
+        if (OPTIONS == null && OPTIONS_SLICE != null)
+            OPTIONS = BufferUtils.copy(OPTIONS_SLICE, 0, OPTIONS_SIZE);
+        return OPTIONS;
+    }
+    
+    /**
+     * Returns the options without copying them.
+     * 
+     * @return A read-only buffer whose position is 0 and limit is the size of
+     * the options, or null if there aren't any.
+     */
+    public ByteBuffer getOptionsBuffer() {
+        return BufferUtils.readOnly(OPTIONS, OPTIONS_SLICE);
+    }
+    
+    @Override
+    public void writeTo(ByteBuffer dst) throws BufferOverflowException {
+        writeTo(dst, null);
+    }
     
     @Override
-    protected ByteBuffer toByteBuffer() {
+    void writeTo(ByteBuffer dst, StringTable strings)
+            throws BufferOverflowException {
+        if (dst.remaining() < getSize(strings))
+            throw new BufferOverflowException();
+        int receiverSize = StringTable.getFieldSize(strings,
+                RECEIVER_COMPONENT, RECEIVER_COMPONENT_SIZE);
+        int callerSize = StringTable.getFieldSize(strings,
+                CALLER_COMPONENT, CALLER_COMPONENT_SIZE);
+        int dataSize = (strings == null || INTENT_DATA == null)
+                ? INTENT_DATA_SIZE : INTENT_DATA.getSize(strings);
         
-        // Create fix-sized part of buffer
-        ByteBuffer buffer = ByteBuffer.allocate(getSize())
-                .putInt(TIMESTAMP)
+        // Write fix-sized part of buffer
+        dst.putInt(TIMESTAMP)
                 .putShort(MILLI_OFFSET)
                 .putShort(INTENT_TYPE)
                 .putInt(CALLER_UID)
@@ -168,24 +254,31 @@ public class ActivityIntentHeader extends IntentHeader {
                 .putInt(USER_ID)
                 .putInt(REQUEST_CODE)
                 .putInt(START_FLAGS)
-                .putInt(RECEIVER_COMPONENT_SIZE)
-                .putInt(CALLER_COMPONENT_SIZE)
+                .putInt(receiverSize)
+                .putInt(callerSize)
                 .putInt(OPTIONS_SIZE)
-                .putInt(INTENT_DATA_SIZE);
-        
-        // Create variable-sized part of buffer
-        if (RECEIVER_COMPONENT_SIZE > 0)
-            buffer.put(RECEIVER_COMPONENT.getBytes());
-        if (CALLER_COMPONENT_SIZE > 0) buffer.put(CALLER_COMPONENT.getBytes());
-        if (OPTIONS_SIZE > 0) buffer.put(OPTIONS);
+                .putInt(dataSize);
         
-        buffer.rewind();
-        return buffer;
+        // Write variable-sized part of buffer
+        StringTable.putField(dst, strings, RECEIVER_COMPONENT,
+                RECEIVER_COMPONENT_BYTES);
+        StringTable.putField(dst, strings, CALLER_COMPONENT,
+                CALLER_COMPONENT_BYTES);
+        if (OPTIONS_SIZE > 0) BufferUtils.put(dst, OPTIONS, OPTIONS_SLICE);
     }
     
     @Override
     public int getSize() {
-        return 4 * 13 + RECEIVER_COMPONENT_SIZE + CALLER_COMPONENT_SIZE
+        return getSize(null);
+    }
+    
+    @Override
+    int getSize(StringTable strings) {
+        return 4 * 13
+                + StringTable.getFieldSize(strings, RECEIVER_COMPONENT,
+                        RECEIVER_COMPONENT_SIZE)
+                + StringTable.getFieldSize(strings, CALLER_COMPONENT,
+                        CALLER_COMPONENT_SIZE)
                 + OPTIONS_SIZE;
     }
     
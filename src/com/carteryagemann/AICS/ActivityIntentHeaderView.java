@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a flattened activity intent header.
+ * 
+ * @author Carter Yagemann
+ */
+public class ActivityIntentHeaderView extends IntentHeaderView {
+    
+    public ActivityIntentHeaderView() {
+        super(IntentHeader.TYPE_ACTIVITY, 4 * 13);
+    }
+    
+    public int getRequestCode() { return BUFFER.getInt(OFFSET + 28); }
+    
+    public int getStartFlags() { return BUFFER.getInt(OFFSET + 32); }
+    
+    public int getReceiverComponentSize() { return getFieldSize(0); }
+    
+    public int getCallerComponentSize() { return getFieldSize(1); }
+    
+    public int getOptionsSize() { return getFieldSize(2); }
+    
+    public String getReceiverComponent() { return getFieldString(0); }
+    
+    public String getCallerComponent() { return getFieldString(1); }
+    
+    public ByteBuffer getReceiverComponentSlice() { return getFieldSlice(0); }
+    
+    public ByteBuffer getCallerComponentSlice() { return getFieldSlice(1); }
+    
+    public ByteBuffer getOptionsSlice() { return getFieldSlice(2); }
+    
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Helpers for working with ranges of a ByteBuffer without moving its position
+ * and for encoding the String fields of intents. Strings are always stored as
+ * UTF-8. Varints are unsigned base 128 with the least significant group
+ * first.
+ *
+ * @author Carter Yagemann
+ */
+final class BufferUtils {
+
+    private BufferUtils() {}
+
+    /**
+     * Returns a read-only view of part of a buffer. No bytes are copied.
+     *
+     * @param buffer The buffer to slice.
+     * @param position The absolute position of the first byte.
+     * @param size The number of bytes in the slice.
+     * @return A read-only buffer whose position is 0 and limit is size.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, int position, int size) {
+        ByteBuffer slice = buffer.asReadOnlyBuffer();
+        slice.limit(position + size);
+        slice.position(position);
+        return slice.slice();
+    }
+
+    /**
+     * Decodes part of a buffer into a String.
+     *
+     * @param buffer The buffer to decode.
+     * @param position The absolute position of the first byte.
+     * @param size The number of bytes to decode.
+     * @return The decoded String, or null if size is 0.
+     */
+    static String decode(ByteBuffer buffer, int position, int size) {
+        if (size <= 0) return null;
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + position,
+                    size, StandardCharsets.UTF_8);
+        return new String(copy(buffer, position, size), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies part of a buffer into a new array.
+     *
+     * @param buffer The buffer to copy from.
+     * @param position The absolute position of the first byte.
+     * @param size The number of bytes to copy.
+     * @return The copied bytes, or null if size is 0.
+     */
+    static byte[] copy(ByteBuffer buffer, int position, int size) {
+        if (size <= 0) return null;
+        byte[] temp = new byte[size];
+        slice(buffer, position, size).get(temp);
+        return temp;
+    }
+
+    /**
+     * Returns a read-only buffer over a payload field which is held either
+     * as an array or as a slice of the buffer it was parsed from.
+     *
+     * @param bytes The field's array, or null.
+     * @param slice The field's slice, or null.
+     * @return A read-only buffer whose position is 0, or null if the field is
+     * empty.
+     */
+    static ByteBuffer readOnly(byte[] bytes, ByteBuffer slice) {
+        if (bytes != null) return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        if (slice != null) return slice.duplicate();
+        return null;
+    }
+
+    /**
+     * Writes a payload field which is held either as an array or as a slice
+     * of the buffer it was parsed from.
+     *
+     * @param dst The buffer to write into.
+     * @param bytes The field's array, or null.
+     * @param slice The field's slice, or null.
+     */
+    static void put(ByteBuffer dst, byte[] bytes, ByteBuffer slice) {
+        if (bytes != null) dst.put(bytes);
+        else if (slice != null) dst.put(slice.duplicate());
+    }
+
+    /**
+     * Encodes a String field for storing in an intent.
+     *
+     * @param string The String to encode.
+     * @return The UTF-8 bytes of the String, or null if it is null.
+     */
+    static byte[] encode(String string) {
+        if (string == null) return null;
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the size field to store for an encoded field.
+     *
+     * @param bytes The encoded field.
+     * @return The length of the field, or 0 if it is null.
+     */
+    static int size(byte[] bytes) {
+        return (bytes == null) ? 0 : bytes.length;
+    }
+
+    /**
+     * Returns how many bytes a value takes as a varint.
+     *
+     * @param value The value, treated as unsigned.
+     * @return The encoded size, from 1 to 5 bytes.
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    /**
+     * Writes a value as a varint at the buffer's position.
+     *
+     * @param dst The buffer to write into.
+     * @param value The value, treated as unsigned.
+     */
+    static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Reads a varint at the buffer's position.
+     *
+     * @param src The buffer to read from.
+     * @return The decoded value.
+     * @throws ParseException If the varint is longer than 5 bytes.
+     * @throws BufferUnderflowException If the buffer ends inside the varint.
+     */
+    static int getVarint(ByteBuffer src)
+            throws ParseException, BufferUnderflowException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = src.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new ParseException("Varint is too long.", src.position());
+    }
+
+    /**
+     * Moves a buffer's position past bytes which don't need to be read.
+     *
+     * @param buffer The buffer.
+     * @param size The number of bytes to skip.
+     * @throws BufferUnderflowException If fewer bytes remain.
+     */
+    static void skip(ByteBuffer buffer, int size)
+            throws BufferUnderflowException {
+        if (size < 0 || size > buffer.remaining())
+            throw new BufferUnderflowException();
+        buffer.position(buffer.position() + size);
+    }
+
+    /**
+     * Maps a signed value to an unsigned one so values near zero, positive or
+     * negative, make short varints.
+     *
+     * @param value The signed value.
+     * @return The zigzag encoded value.
+     */
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Reverses zigzag().
+     *
+     * @param value The zigzag encoded value.
+     * @return The signed value.
+     */
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Encodes and decodes intents in the compact format (format version 0.4).
+ * Each intent is stored as:
+ *
+ * - the size of the rest of the record as a varint,
+ * - the intent type as a byte,
+ * - the difference between the timestamp and the previous intent's timestamp
+ *   as a zigzag varint (the first intent is relative to 0),
+ * - the millisecond offset as a zigzag varint,
+ * - a presence bitmap as a varint,
+ * - every int field which isn't 0 as a zigzag varint, and
+ * - every variable-sized field which isn't empty as its size as a varint
+ *   followed by its bytes.
+ *
+ * Bits 0 to 4 of the bitmap are the caller UID, caller PID, receiver UID,
+ * receiver PID and user ID. Bits 5 and 6 are the request code and flags of an
+ * activity or broadcast, or the flags of a service in bit 5, and bit 7 is the
+ * intent data's flags. Bits 8 to 10 are the header's variable-sized fields in
+ * the order they appear in the raw format and bits 11 to 16 are the intent
+ * data's action, data, category, type, clip data and extras.
+ *
+ * Because timestamps are delta encoded, a codec must see every intent of a
+ * file in order. A codec is not thread safe.
+ *
+ * @author Carter Yagemann
+ */
+final class CompactCodec {
+
+    private final static int INTS = 8;
+    private final static int FIELDS = 9;
+    private final static int BITS = INTS + FIELDS;
+
+    private final int[] INT_VALUES;
+    private final byte[][] FIELD_VALUES;
+    private IntentHeader PREPARED;
+    private int BODY_SIZE;
+    private int BITMAP;
+    private int PREVIOUS_TIMESTAMP;
+
+    CompactCodec() {
+        INT_VALUES = new int[INTS];
+        FIELD_VALUES = new byte[FIELDS][];
+        PREVIOUS_TIMESTAMP = 0;
+    }
+
+    /**
+     * Gathers an intent's fields so encode() can write it and returns how
+     * many bytes it will write. The intent mustn't change until it has been
+     * encoded.
+     *
+     * @param intent The intent, with its intent data attached.
+     * @return The size of the encoded intent.
+     */
+    int prepare(IntentHeader intent) {
+        BODY_SIZE = gather(intent);
+        PREPARED = intent;
+        return BufferUtils.varintSize(BODY_SIZE) + BODY_SIZE;
+    }
+
+    /**
+     * Encodes an intent and its intent data at the buffer's position.
+     *
+     * @param intent The intent, with its intent data attached.
+     * @param dst The buffer to write into.
+     * @throws BufferOverflowException If there isn't room in the buffer.
+     * Nothing is written in that case.
+     */
+    void encode(IntentHeader intent, ByteBuffer dst)
+            throws BufferOverflowException {
+        prepare(intent);
+        encode(dst);
+    }
+
+    /**
+     * Encodes the intent passed to prepare() at the buffer's position.
+     *
+     * @param dst The buffer to write into.
+     * @throws BufferOverflowException If there isn't room in the buffer.
+     * Nothing is written in that case and the intent stays prepared.
+     * @throws IllegalStateException If no intent is prepared.
+     */
+    void encode(ByteBuffer dst) throws BufferOverflowException {
+        IntentHeader intent = PREPARED;
+        if (intent == null)
+            throw new IllegalStateException("No intent is prepared.");
+        int body = BODY_SIZE;
+        if (dst.remaining() < BufferUtils.varintSize(body) + body)
+            throw new BufferOverflowException();
+        BufferUtils.putVarint(dst, body);
+        dst.put((byte) intent.getIntentType());
+        BufferUtils.putVarint(dst, BufferUtils.zigzag(intent.getTimestamp()
+                - PREVIOUS_TIMESTAMP));
+        BufferUtils.putVarint(dst, BufferUtils.zigzag(intent.getOffset()));
+        BufferUtils.putVarint(dst, BITMAP);
+        for (int i = 0; i < INTS; i++)
+            if ((BITMAP & 1 << i) != 0)
+                BufferUtils.putVarint(dst, BufferUtils.zigzag(INT_VALUES[i]));
+        for (int i = 0; i < FIELDS; i++) {
+            if ((BITMAP & 1 << (INTS + i)) != 0) {
+                BufferUtils.putVarint(dst, FIELD_VALUES[i].length);
+                dst.put(FIELD_VALUES[i]);
+            }
+            FIELD_VALUES[i] = null;
+        }
+        PREVIOUS_TIMESTAMP = intent.getTimestamp();
+        PREPARED = null;
+    }
+
+    /**
+     * Decodes the intent at the buffer's position and moves past it.
+     *
+     * @param src The buffer to read from.
+     * @return The decoded intent with its intent data attached.
+     * @throws ParseException If the intent is malformed.
+     * @throws BufferUnderflowException If the buffer ends before the intent
+     * does. The buffer's position is left unchanged in that case.
+     */
+    IntentHeader decode(ByteBuffer src)
+            throws ParseException, BufferUnderflowException {
+        int start = src.position();
+        int body;
+        try {
+            body = BufferUtils.getVarint(src);
+        } catch (BufferUnderflowException e) {
+            src.position(start);
+            throw e;
+        }
+        if (body < 0)
+            throw new ParseException("Negative record size.", start);
+        if (src.remaining() < body) {
+            src.position(start);
+            throw new BufferUnderflowException();
+        }
+        int end = src.position() + body;
+
+        short type;
+        int timestamp;
+        short offset;
+        int bitmap;
+        int[] ints = new int[INTS];
+        byte[][] fields = new byte[FIELDS][];
+        try {
+            type = src.get();
+            timestamp = PREVIOUS_TIMESTAMP
+                    + BufferUtils.unzigzag(BufferUtils.getVarint(src));
+            offset = (short) BufferUtils.unzigzag(BufferUtils.getVarint(src));
+            bitmap = BufferUtils.getVarint(src);
+            if (type < 0 || type > 2 || bitmap >>> BITS != 0)
+                throw new ParseException("Cannot parse compact intent.", start);
+            for (int i = 0; i < INTS; i++)
+                if ((bitmap & 1 << i) != 0)
+                    ints[i] = BufferUtils.unzigzag(BufferUtils.getVarint(src));
+            for (int i = 0; i < FIELDS; i++) {
+                if ((bitmap & 1 << (INTS + i)) == 0) continue;
+                int size = BufferUtils.getVarint(src);
+                if (size <= 0 || size > end - src.position())
+                    throw new ParseException("Invalid field size.", start);
+                fields[i] = new byte[size];
+                src.get(fields[i]);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("Compact intent is truncated.", start);
+        }
+        if (src.position() != end)
+            throw new ParseException("Compact intent has the wrong size.",
+                    start);
+
+        IntentData data = new IntentData()
+                .setFlags(ints[7])
+                .setAction(decode(fields[3]))
+                .setData(decode(fields[4]))
+                .setCategory(decode(fields[5]))
+                .setType(decode(fields[6]));
+        // Absent byte fields are left null, as they are in a raw intent
+        if (fields[7] != null) data.setClipData(fields[7]);
+        if (fields[8] != null) data.setExtras(fields[8]);
+        IntentHeader intent;
+        switch (type) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = new ActivityIntentHeader()
+                        .setRequestCode(ints[5])
+                        .setStartFlags(ints[6])
+                        .setReceiverComponent(decode(fields[0]))
+                        .setCallerComponent(decode(fields[1]));
+                if (fields[2] != null) activity.setOptions(fields[2]);
+                intent = activity;
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                intent = new BroadcastIntentHeader()
+                        .setRequestCode(ints[5])
+                        .setFlags(ints[6])
+                        .setReceiverComponent(decode(fields[0]))
+                        .setCallerComponent(decode(fields[1]))
+                        .setRequiredPermission(decode(fields[2]));
+                break;
+            default:
+                intent = new ServiceIntentHeader()
+                        .setFlags(ints[5])
+                        .setReceiverComponent(decode(fields[0]))
+                        .setCallerComponent(decode(fields[1]))
+                        .setAction(decode(fields[2]));
+        }
+        try {
+            intent.setOffset(offset);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Invalid millisecond offset.", start);
+        }
+        intent.setTimestamp(timestamp)
+                .setCallerUID(ints[0])
+                .setCallerPID(ints[1])
+                .setReceiverUID(ints[2])
+                .setReceiverPID(ints[3])
+                .setUserID(ints[4])
+                .setIntentData(data);
+        PREVIOUS_TIMESTAMP = timestamp;
+        return intent;
+    }
+
+    /**
+     * Copies an intent's fields into the scratch arrays, sets the bitmap and
+     * returns the size of the record after its size prefix. Strings are taken
+     * from the intent's cached UTF-8 bytes rather than encoded again.
+     */
+    private int gather(IntentHeader intent) {
+        IntentData data = intent.getIntentData();
+        INT_VALUES[0] = intent.getCallerUID();
+        INT_VALUES[1] = intent.getCallerPID();
+        INT_VALUES[2] = intent.getReceiverUID();
+        INT_VALUES[3] = intent.getReceiverPID();
+        INT_VALUES[4] = intent.getUserID();
+        INT_VALUES[7] = data.getFlags();
+        switch (intent.getIntentType()) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) intent;
+                INT_VALUES[5] = activity.getRequestCode();
+                INT_VALUES[6] = activity.getStartFlags();
+                FIELD_VALUES[0] = activity.getReceiverComponentBytes();
+                FIELD_VALUES[1] = activity.getCallerComponentBytes();
+                FIELD_VALUES[2] = activity.getOptions();
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast =
+                        (BroadcastIntentHeader) intent;
+                INT_VALUES[5] = broadcast.getRequestCode();
+                INT_VALUES[6] = broadcast.getFlags();
+                FIELD_VALUES[0] = broadcast.getReceiverComponentBytes();
+                FIELD_VALUES[1] = broadcast.getCallerComponentBytes();
+                FIELD_VALUES[2] = broadcast.getRequiredPermissionBytes();
+                break;
+            default:
+                ServiceIntentHeader service = (ServiceIntentHeader) intent;
+                INT_VALUES[5] = service.getFlags();
+                INT_VALUES[6] = 0;
+                FIELD_VALUES[0] = service.getReceiverComponentBytes();
+                FIELD_VALUES[1] = service.getCallerComponentBytes();
+                FIELD_VALUES[2] = service.getActionBytes();
+        }
+        FIELD_VALUES[3] = data.getActionBytes();
+        FIELD_VALUES[4] = data.getDataBytes();
+        FIELD_VALUES[5] = data.getCategoryBytes();
+        FIELD_VALUES[6] = data.getTypeBytes();
+        FIELD_VALUES[7] = data.getClipData();
+        FIELD_VALUES[8] = data.getExtras();
+
+        BITMAP = 0;
+        int size = 1
+                + BufferUtils.varintSize(BufferUtils.zigzag(
+                        intent.getTimestamp() - PREVIOUS_TIMESTAMP))
+                + BufferUtils.varintSize(BufferUtils.zigzag(
+                        intent.getOffset()));
+        for (int i = 0; i < INTS; i++) {
+            if (INT_VALUES[i] == 0) continue;
+            BITMAP |= 1 << i;
+            size += BufferUtils.varintSize(BufferUtils.zigzag(INT_VALUES[i]));
+        }
+        for (int i = 0; i < FIELDS; i++) {
+            byte[] field = FIELD_VALUES[i];
+            if (field == null || field.length == 0) continue;
+            BITMAP |= 1 << (INTS + i);
+            size += BufferUtils.varintSize(field.length) + field.length;
+        }
+        return size + BufferUtils.varintSize(BITMAP);
+    }
+
+    private static String decode(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -15,8 +15,11 @@
  */
 package com.carteryagemann.AICS;
 
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 
 /**
  * An object for storing the contents of an Android intent. It should be
@@ -35,11 +38,17 @@ public class IntentData {
     private int CLIPDATA_SIZE;
     private int EXTRAS_SIZE;
     private String ACTION;
+    private byte[] ACTION_BYTES;
     private String DATA;
+    private byte[] DATA_BYTES;
     private String CATEGORY;
+    private byte[] CATEGORY_BYTES;
     private String TYPE;
+    private byte[] TYPE_BYTES;
     private byte[] CLIPDATA;
+    private ByteBuffer CLIPDATA_SLICE;
     private byte[] EXTRAS;
+    private ByteBuffer EXTRAS_SLICE;
     
     /**
      * The default constructor initializes all the fields as null and size 0.
@@ -61,6 +70,34 @@ public class IntentData {
      * @throws BufferUnderflowException If the buffer is malformed.
      */
     public IntentData(ByteBuffer buffer) throws BufferUnderflowException {
+        try {
+            read(buffer, null, null);
+        } catch (ParseException e) {
+            throw new IllegalStateException(e); // Only string ids can fail
+        }
+    }
+    
+    /**
+     * Creates a new IntentData object from a ByteBuffer in a
+     * dictionary-encoded file. The action, category and type fields hold ids
+     * which are looked up in the string table.
+     * 
+     * @param buffer The ByteBuffer containing a flattened IntentData object.
+     * @param strings The file's string table, or null if the buffer holds a
+     * raw IntentData.
+     * @param projection Which fields to read, or null to read them all.
+     * @throws BufferUnderflowException If the buffer is malformed.
+     * @throws ParseException If a string id isn't in the table.
+     */
+    IntentData(ByteBuffer buffer, StringTable strings,
+            IntentProjection projection)
+            throws BufferUnderflowException, ParseException {
+        read(buffer, strings, projection);
+    }
+    
+    private void read(ByteBuffer buffer, StringTable strings,
+            IntentProjection projection)
+            throws BufferUnderflowException, ParseException {
         try {
             FLAGS = buffer.getInt();
             ACTION_SIZE = buffer.getInt();
@@ -70,36 +107,69 @@ public class IntentData {
             CLIPDATA_SIZE = buffer.getInt();
             EXTRAS_SIZE = buffer.getInt();
             
-            if (ACTION_SIZE > 0) {
-                byte[] temp = new byte[ACTION_SIZE];
-                buffer.get(temp);
-                ACTION = new String(temp);
+            if (ACTION_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, ACTION_SIZE);
+                ACTION = strings.getString(id);
+                ACTION_BYTES = strings.getBytes(id);
+                ACTION_SIZE = ACTION_BYTES.length;
+            } else if (ACTION_SIZE > 0) {
+                ACTION_BYTES = new byte[ACTION_SIZE];
+                buffer.get(ACTION_BYTES);
+                ACTION = new String(ACTION_BYTES, StandardCharsets.UTF_8);
             }
             
             if (DATA_SIZE > 0) {
-                byte[] temp = new byte[DATA_SIZE];
-                buffer.get(temp);
-                DATA = new String(temp);
+                DATA_BYTES = new byte[DATA_SIZE];
+                buffer.get(DATA_BYTES);
+                DATA = new String(DATA_BYTES, StandardCharsets.UTF_8);
             }
             
-            if (CATEGORY_SIZE > 0) {
-                byte[] temp = new byte[CATEGORY_SIZE];
-                buffer.get(temp);
-                CATEGORY = new String(temp);
+            if (CATEGORY_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, CATEGORY_SIZE);
+                CATEGORY = strings.getString(id);
+                CATEGORY_BYTES = strings.getBytes(id);
+                CATEGORY_SIZE = CATEGORY_BYTES.length;
+            } else if (CATEGORY_SIZE > 0) {
+                CATEGORY_BYTES = new byte[CATEGORY_SIZE];
+                buffer.get(CATEGORY_BYTES);
+                CATEGORY = new String(CATEGORY_BYTES, StandardCharsets.UTF_8);
             }
             
-            if (TYPE_SIZE > 0) {
-                byte[] temp = new byte[TYPE_SIZE];
-                buffer.get(temp);
-                TYPE = new String(temp);
+            if (TYPE_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, TYPE_SIZE);
+                TYPE = strings.getString(id);
+                TYPE_BYTES = strings.getBytes(id);
+                TYPE_SIZE = TYPE_BYTES.length;
+            } else if (TYPE_SIZE > 0) {
+                TYPE_BYTES = new byte[TYPE_SIZE];
+                buffer.get(TYPE_BYTES);
+                TYPE = new String(TYPE_BYTES, StandardCharsets.UTF_8);
             }
             
-            if (CLIPDATA_SIZE > 0) {
+            if (CLIPDATA_SIZE > 0 && projection != null
+                    && !projection.includesClipData()) {
+                BufferUtils.skip(buffer, CLIPDATA_SIZE);
+                CLIPDATA_SIZE = 0;
+            } else if (CLIPDATA_SIZE > 0 && projection != null
+                    && projection.usesPayloadSlices()) {
+                CLIPDATA_SLICE = BufferUtils.slice(buffer, buffer.position(),
+                        CLIPDATA_SIZE);
+                BufferUtils.skip(buffer, CLIPDATA_SIZE);
+            } else if (CLIPDATA_SIZE > 0) {
                 CLIPDATA = new byte[CLIPDATA_SIZE];
                 buffer.get(CLIPDATA);
             }
             
-            if (EXTRAS_SIZE > 0) {
+            if (EXTRAS_SIZE > 0 && projection != null
+                    && !projection.includesExtras()) {
+                BufferUtils.skip(buffer, EXTRAS_SIZE);
+                EXTRAS_SIZE = 0;
+            } else if (EXTRAS_SIZE > 0 && projection != null
+                    && projection.usesPayloadSlices()) {
+                EXTRAS_SLICE = BufferUtils.slice(buffer, buffer.position(),
+                        EXTRAS_SIZE);
+                BufferUtils.skip(buffer, EXTRAS_SIZE);
+            } else if (EXTRAS_SIZE > 0) {
                 EXTRAS = new byte[EXTRAS_SIZE];
                 buffer.get(EXTRAS);
             }
@@ -125,40 +195,42 @@ public class IntentData {
     
     public IntentData setAction(String action) {
         ACTION = action;
-        if (action != null) ACTION_SIZE = action.length();
-        else ACTION_SIZE = 0;
+        ACTION_BYTES = BufferUtils.encode(action);
+        ACTION_SIZE = BufferUtils.size(ACTION_BYTES);
         return this;
     }
     
     public IntentData setData(String data) {
         DATA = data;
-        if (data != null) DATA_SIZE = data.length();
-        else DATA_SIZE = 0;
+        DATA_BYTES = BufferUtils.encode(data);
+        DATA_SIZE = BufferUtils.size(DATA_BYTES);
         return this;
     }
     
     public IntentData setCategory(String category) {
         CATEGORY = category;
-        if (category != null) CATEGORY_SIZE = category.length();
-        else CATEGORY_SIZE = 0;
+        CATEGORY_BYTES = BufferUtils.encode(category);
+        CATEGORY_SIZE = BufferUtils.size(CATEGORY_BYTES);
         return this;
     }
     
     public IntentData setType(String type) {
         TYPE = type;
-        if (type != null) TYPE_SIZE = type.length();
-        else TYPE_SIZE = 0;
+        TYPE_BYTES = BufferUtils.encode(type);
+        TYPE_SIZE = BufferUtils.size(TYPE_BYTES);
         return this;
     }
     
     public IntentData setClipData(byte[] data) {
         CLIPDATA = data;
+        CLIPDATA_SLICE = null;
         CLIPDATA_SIZE = data.length;
         return this;
     }
     
     public IntentData setExtras(byte[] extras) {
         EXTRAS = extras;
+        EXTRAS_SLICE = null;
         EXTRAS_SIZE = extras.length;
         return this;
     }
@@ -173,9 +245,60 @@ public class IntentData {
     
     public String getType() { return TYPE; }
     
-    public byte[] getClipData() { return CLIPDATA; }
+    // The strings' cached UTF-8 bytes, for encoders. They mustn't be changed
+    byte[] getActionBytes() { return ACTION_BYTES; }
+    
+    byte[] getDataBytes() { return DATA_BYTES; }
+    
+    byte[] getCategoryBytes() { return CATEGORY_BYTES; }
+    
+    byte[] getTypeBytes() { return TYPE_BYTES; }
+    
+    /**
+     * Returns the clip data. If the IntentData was parsed with payload slices
+     * the clip data is copied out of the source buffer the first time this is
+     * called.
+     * 
+     * @return The clip data, or null if there isn't any.
+     */
+    public byte[] getClipData() {
+        if (CLIPDATA == null && CLIPDATA_SLICE != null)
+            CLIPDATA = BufferUtils.copy(CLIPDATA_SLICE, 0, CLIPDATA_SIZE);
+        return CLIPDATA;
+    }
+    
+    /**
+     * Returns the clip data without copying it.
+     * 
+     * @return A read-only buffer whose position is 0 and limit is the size of
+     * the clip data, or null if there isn't any.
+     */
+    public ByteBuffer getClipDataBuffer() {
+        return BufferUtils.readOnly(CLIPDATA, CLIPDATA_SLICE);
+    }
+    
+    /**
+     * Returns the extras. If the IntentData was parsed with payload slices
+     * the extras are copied out of the source buffer the first time this is
+     * called.
+     * 
+     * @return The extras, or null if there aren't any.
+     */
+    public byte[] getExtras() {
+        if (EXTRAS == null && EXTRAS_SLICE != null)
+            EXTRAS = BufferUtils.copy(EXTRAS_SLICE, 0, EXTRAS_SIZE);
+        return EXTRAS;
+    }
     
-    public byte[] getExtras() { return EXTRAS; }
+    /**
+     * Returns the extras without copying them.
+     * 
+     * @return A read-only buffer whose position is 0 and limit is the size of
+     * the extras, or null if there aren't any.
+     */
+    public ByteBuffer getExtrasBuffer() {
+        return BufferUtils.readOnly(EXTRAS, EXTRAS_SLICE);
+    }
     
     /**
      * Calculates the total number of bytes needed to write this IntentData.
@@ -184,7 +307,22 @@ public class IntentData {
      * a sequence of bytes.
      */
     public int getSize() {
-        return 4 * 7 + ACTION_SIZE + DATA_SIZE + CATEGORY_SIZE + TYPE_SIZE
+        return getSize(null);
+    }
+    
+    /**
+     * Calculates the number of bytes needed to write this IntentData with a
+     * string table. New strings are added to the table.
+     * 
+     * @param strings The string table, or null for the raw IntentData.
+     * @return The number of bytes writeTo(dst, strings) will write.
+     */
+    int getSize(StringTable strings) {
+        return 4 * 7
+                + StringTable.getFieldSize(strings, ACTION, ACTION_SIZE)
+                + DATA_SIZE
+                + StringTable.getFieldSize(strings, CATEGORY, CATEGORY_SIZE)
+                + StringTable.getFieldSize(strings, TYPE, TYPE_SIZE)
                 + CLIPDATA_SIZE + EXTRAS_SIZE;
     }
     
@@ -195,25 +333,55 @@ public class IntentData {
      * @return A ByteBuffer containing the contents of the IntentData.
      */
     protected ByteBuffer toByteBuffer() {
-        // Created fix-sized part of buffer
-        ByteBuffer buffer = ByteBuffer.allocate(getSize())
-                .putInt(FLAGS)
-                .putInt(ACTION_SIZE)
+        ByteBuffer buffer = ByteBuffer.allocate(getSize());
+        writeTo(buffer);
+        buffer.rewind();
+        return buffer;
+    }
+    
+    /**
+     * Writes the contents of the IntentData into a buffer at its current
+     * position, which is advanced past the IntentData. Nothing is allocated.
+     * 
+     * @param dst The buffer to write into.
+     * @throws BufferOverflowException If there isn't room in the buffer for
+     * the IntentData. Nothing is written in that case.
+     */
+    public void writeTo(ByteBuffer dst) throws BufferOverflowException {
+        writeTo(dst, null);
+    }
+    
+    /**
+     * Writes the IntentData like writeTo(ByteBuffer), but with the action,
+     * category and type replaced by ids from a string table. New strings are
+     * added to the table.
+     * 
+     * @param dst The buffer to write into.
+     * @param strings The string table, or null to write the raw IntentData.
+     * @throws BufferOverflowException If there isn't room in the buffer for
+     * the IntentData. Nothing is written in that case.
+     */
+    void writeTo(ByteBuffer dst, StringTable strings)
+            throws BufferOverflowException {
+        if (dst.remaining() < getSize(strings))
+            throw new BufferOverflowException();
+        
+        // Write fix-sized part of buffer
+        dst.putInt(FLAGS)
+                .putInt(StringTable.getFieldSize(strings, ACTION, ACTION_SIZE))
                 .putInt(DATA_SIZE)
-                .putInt(CATEGORY_SIZE)
-                .putInt(TYPE_SIZE)
+                .putInt(StringTable.getFieldSize(strings, CATEGORY,
+                        CATEGORY_SIZE))
+                .putInt(StringTable.getFieldSize(strings, TYPE, TYPE_SIZE))
                 .putInt(CLIPDATA_SIZE)
                 .putInt(EXTRAS_SIZE);
         
-        // Create variable-sized part of buffer
-        if (ACTION_SIZE > 0) buffer.put(ACTION.getBytes());
-        if (DATA_SIZE > 0) buffer.put(DATA.getBytes());
-        if (CATEGORY_SIZE > 0) buffer.put(CATEGORY.getBytes());
-        if (TYPE_SIZE > 0) buffer.put(TYPE.getBytes());
-        if (CLIPDATA_SIZE > 0) buffer.put(CLIPDATA);
-        if (EXTRAS_SIZE > 0) buffer.put(EXTRAS);
-        
-        buffer.rewind();
-        return buffer;
+        // Write variable-sized part of buffer
+        StringTable.putField(dst, strings, ACTION, ACTION_BYTES);
+        if (DATA_SIZE > 0) dst.put(DATA_BYTES);
+        StringTable.putField(dst, strings, CATEGORY, CATEGORY_BYTES);
+        StringTable.putField(dst, strings, TYPE, TYPE_BYTES);
+        if (CLIPDATA_SIZE > 0) BufferUtils.put(dst, CLIPDATA, CLIPDATA_SLICE);
+        if (EXTRAS_SIZE > 0) BufferUtils.put(dst, EXTRAS, EXTRAS_SLICE);
     }
 }
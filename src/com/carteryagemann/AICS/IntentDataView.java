@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a flattened IntentData. Like IntentHeaderView, nothing
+ * is copied out of the buffer until it's asked for.
+ *
+ * @author Carter Yagemann
+ */
+public class IntentDataView {
+
+    private final static int FIXED_SIZE = 4 * 7;
+
+    private final static int ACTION = 0;
+    private final static int DATA = 1;
+    private final static int CATEGORY = 2;
+    private final static int TYPE = 3;
+    private final static int CLIPDATA = 4;
+    private final static int EXTRAS = 5;
+
+    private ByteBuffer BUFFER;
+    private int OFFSET;
+
+    /**
+     * Points this view at an IntentData in a buffer. The buffer's position
+     * isn't used or changed.
+     *
+     * @param buffer The buffer containing the IntentData.
+     * @param offset The absolute position of the IntentData in the buffer.
+     * @return Itself.
+     * @throws BufferUnderflowException If the buffer is too small to hold the
+     * fixed-sized part of an IntentData.
+     */
+    public IntentDataView wrap(ByteBuffer buffer, int offset)
+            throws BufferUnderflowException {
+        if (offset < 0 || buffer.limit() - offset < FIXED_SIZE)
+            throw new BufferUnderflowException();
+        BUFFER = buffer;
+        OFFSET = offset;
+        return this;
+    }
+
+    public int getFlags() { return BUFFER.getInt(OFFSET); }
+
+    public int getActionSize() { return getFieldSize(ACTION); }
+
+    public int getDataSize() { return getFieldSize(DATA); }
+
+    public int getCategorySize() { return getFieldSize(CATEGORY); }
+
+    public int getTypeSize() { return getFieldSize(TYPE); }
+
+    public int getClipDataSize() { return getFieldSize(CLIPDATA); }
+
+    public int getExtrasSize() { return getFieldSize(EXTRAS); }
+
+    public String getAction() { return getFieldString(ACTION); }
+
+    public String getData() { return getFieldString(DATA); }
+
+    public String getCategory() { return getFieldString(CATEGORY); }
+
+    public String getType() { return getFieldString(TYPE); }
+
+    public ByteBuffer getActionSlice() { return getFieldSlice(ACTION); }
+
+    public ByteBuffer getDataSlice() { return getFieldSlice(DATA); }
+
+    public ByteBuffer getCategorySlice() { return getFieldSlice(CATEGORY); }
+
+    public ByteBuffer getTypeSlice() { return getFieldSlice(TYPE); }
+
+    public ByteBuffer getClipDataSlice() { return getFieldSlice(CLIPDATA); }
+
+    public ByteBuffer getExtrasSlice() { return getFieldSlice(EXTRAS); }
+
+    /**
+     * Returns the absolute position of this IntentData in its buffer.
+     *
+     * @return The position this view was wrapped at.
+     */
+    public int getPosition() { return OFFSET; }
+
+    /**
+     * Calculates the number of bytes used by the viewed IntentData.
+     *
+     * @return The size of the IntentData.
+     */
+    public int getSize() {
+        int size = FIXED_SIZE;
+        for (int i = ACTION; i <= EXTRAS; i++) size += getFieldSize(i);
+        return size;
+    }
+
+    /**
+     * Parses the viewed IntentData into a new IntentData object.
+     *
+     * @return A new IntentData containing copies of all the fields.
+     * @throws BufferUnderflowException If the buffer ends before the
+     * IntentData does.
+     */
+    public IntentData toIntentData() throws BufferUnderflowException {
+        ByteBuffer buffer = BUFFER.duplicate().order(BUFFER.order());
+        buffer.position(OFFSET);
+        return new IntentData(buffer);
+    }
+
+    private int getFieldSize(int field) {
+        return BUFFER.getInt(OFFSET + 4 + 4 * field);
+    }
+
+    private int getFieldPosition(int field) {
+        int position = OFFSET + FIXED_SIZE;
+        for (int i = ACTION; i < field; i++) position += getFieldSize(i);
+        return position;
+    }
+
+    private ByteBuffer getFieldSlice(int field) {
+        return BufferUtils.slice(BUFFER, getFieldPosition(field),
+                getFieldSize(field));
+    }
+
+    private String getFieldString(int field) {
+        return BufferUtils.decode(BUFFER, getFieldPosition(field),
+                getFieldSize(field));
+    }
+}
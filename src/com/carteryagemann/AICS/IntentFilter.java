@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Selects intents by their fields. A filter can be checked against a
+ * flattened intent without parsing it: fixed-sized fields are read straight
+ * from the buffer and strings are compared as UTF-8 bytes, so intents which
+ * don't match can be skipped using only their size fields. Readers given a
+ * filter only parse the intents which match.
+ *
+ * Every condition which has been set must hold for an intent to match. A new
+ * filter matches every intent.
+ *
+ * @author Carter Yagemann
+ */
+public class IntentFilter {
+
+    private final static int CALLER_UID = 1;
+    private final static int CALLER_PID = 1 << 1;
+    private final static int RECEIVER_UID = 1 << 2;
+    private final static int RECEIVER_PID = 1 << 3;
+    private final static int USER_ID = 1 << 4;
+
+    private int CHECKS;
+    private int TYPES;
+    private int FROM;
+    private int TO;
+    private final int[] IDS;
+    private int FLAGS;
+    private int DATA_FLAGS;
+    private byte[] RECEIVER_COMPONENT;
+    private byte[] CALLER_COMPONENT;
+    private byte[] ACTION;
+
+    public IntentFilter() {
+        CHECKS = 0;
+        TYPES = 0x7;
+        FROM = Integer.MIN_VALUE;
+        TO = Integer.MAX_VALUE;
+        IDS = new int[5];
+        FLAGS = 0;
+        DATA_FLAGS = 0;
+    }
+
+    /**
+     * Only matches intents of the given types.
+     *
+     * @param types IntentHeader.TYPE_ACTIVITY, TYPE_BROADCAST or TYPE_SERVICE.
+     * @return Itself.
+     */
+    public IntentFilter setIntentTypes(short... types) {
+        TYPES = 0;
+        for (short type : types) {
+            if (type < 0 || type > 2)
+                throw new IllegalArgumentException("Unknown intent type.");
+            TYPES |= 1 << type;
+        }
+        return this;
+    }
+
+    /**
+     * Only matches intents whose timestamp is in a range.
+     *
+     * @param from The earliest timestamp to match.
+     * @param to The latest timestamp to match.
+     * @return Itself.
+     */
+    public IntentFilter setTimeRange(int from, int to) {
+        FROM = from;
+        TO = to;
+        return this;
+    }
+
+    public IntentFilter setCallerUID(int uid) { return setId(CALLER_UID, uid); }
+
+    public IntentFilter setCallerPID(int pid) { return setId(CALLER_PID, pid); }
+
+    public IntentFilter setReceiverUID(int uid) {
+        return setId(RECEIVER_UID, uid);
+    }
+
+    public IntentFilter setReceiverPID(int pid) {
+        return setId(RECEIVER_PID, pid);
+    }
+
+    public IntentFilter setUserID(int user) { return setId(USER_ID, user); }
+
+    /**
+     * Only matches intents whose header has every one of the given flags set.
+     * For activities these are the start flags.
+     *
+     * @param flags The flags which must be set.
+     * @return Itself.
+     */
+    public IntentFilter setFlags(int flags) {
+        FLAGS = flags;
+        return this;
+    }
+
+    /**
+     * Only matches intents whose intent data has every one of the given flags
+     * set.
+     *
+     * @param flags The flags which must be set.
+     * @return Itself.
+     */
+    public IntentFilter setIntentDataFlags(int flags) {
+        DATA_FLAGS = flags;
+        return this;
+    }
+
+    /**
+     * Only matches intents with the given receiver component.
+     *
+     * @param component The component, or null to match any.
+     * @return Itself.
+     */
+    public IntentFilter setReceiverComponent(String component) {
+        RECEIVER_COMPONENT = BufferUtils.encode(component);
+        return this;
+    }
+
+    /**
+     * Only matches intents with the given caller component.
+     *
+     * @param component The component, or null to match any.
+     * @return Itself.
+     */
+    public IntentFilter setCallerComponent(String component) {
+        CALLER_COMPONENT = BufferUtils.encode(component);
+        return this;
+    }
+
+    /**
+     * Only matches intents whose intent data has the given action.
+     *
+     * @param action The action, or null to match any.
+     * @return Itself.
+     */
+    public IntentFilter setAction(String action) {
+        ACTION = BufferUtils.encode(action);
+        return this;
+    }
+
+    /**
+     * Checks a parsed intent against the filter.
+     *
+     * @param intent The intent, with its intent data attached.
+     * @return True if the intent matches.
+     */
+    public boolean matches(IntentHeader intent) {
+        short type = intent.getIntentType();
+        int flags;
+        String receiver;
+        String caller;
+        switch (type) {
+            case IntentHeader.TYPE_ACTIVITY:
+                ActivityIntentHeader activity = (ActivityIntentHeader) intent;
+                flags = activity.getStartFlags();
+                receiver = activity.getReceiverComponent();
+                caller = activity.getCallerComponent();
+                break;
+            case IntentHeader.TYPE_BROADCAST:
+                BroadcastIntentHeader broadcast =
+                        (BroadcastIntentHeader) intent;
+                flags = broadcast.getFlags();
+                receiver = broadcast.getReceiverComponent();
+                caller = broadcast.getCallerComponent();
+                break;
+            default:
+                ServiceIntentHeader service = (ServiceIntentHeader) intent;
+                flags = service.getFlags();
+                receiver = service.getReceiverComponent();
+                caller = service.getCallerComponent();
+        }
+        IntentData data = intent.getIntentData();
+        return (TYPES & 1 << type) != 0
+                && intent.getTimestamp() >= FROM
+                && intent.getTimestamp() <= TO
+                && checkId(CALLER_UID, intent.getCallerUID())
+                && checkId(CALLER_PID, intent.getCallerPID())
+                && checkId(RECEIVER_UID, intent.getReceiverUID())
+                && checkId(RECEIVER_PID, intent.getReceiverPID())
+                && checkId(USER_ID, intent.getUserID())
+                && (flags & FLAGS) == FLAGS
+                && (data.getFlags() & DATA_FLAGS) == DATA_FLAGS
+                && checkString(RECEIVER_COMPONENT, receiver)
+                && checkString(CALLER_COMPONENT, caller)
+                && checkString(ACTION, data.getAction());
+    }
+
+    /**
+     * Checks a flattened intent against the filter without parsing it or
+     * allocating anything.
+     *
+     * @param buffer The buffer holding the intent. Its position isn't used or
+     * changed.
+     * @param offset The absolute position of the intent. The whole intent
+     * must be in the buffer, as checked by IntentHeader.parseIntentSize().
+     * @return True if the intent matches.
+     */
+    public boolean matches(ByteBuffer buffer, int offset) {
+        return matches(buffer, offset, null);
+    }
+
+    /**
+     * Checks a flattened intent against the filter, looking up its strings in
+     * a dictionary-encoded file's string table if there is one.
+     */
+    boolean matches(ByteBuffer buffer, int offset, StringTable strings) {
+        short type = buffer.getShort(offset + 6);
+        if ((TYPES & 1 << type) == 0) return false;
+        int timestamp = buffer.getInt(offset);
+        if (timestamp < FROM || timestamp > TO) return false;
+        for (int i = 0; i < IDS.length; i++)
+            if (!checkId(1 << i, buffer.getInt(offset + 8 + 4 * i)))
+                return false;
+
+        // Service headers lack a request code so their fields start earlier
+        int fixed = (type == IntentHeader.TYPE_SERVICE) ? 4 * 12 : 4 * 13;
+        int flags = buffer.getInt(offset + fixed - 20);
+        if ((flags & FLAGS) != FLAGS) return false;
+        int receiverSize = buffer.getInt(offset + fixed - 16);
+        int callerSize = buffer.getInt(offset + fixed - 12);
+        int thirdSize = buffer.getInt(offset + fixed - 8);
+        int receiver = offset + fixed;
+        int caller = receiver + receiverSize;
+        int data = caller + callerSize + thirdSize;
+        if ((buffer.getInt(data) & DATA_FLAGS) != DATA_FLAGS) return false;
+        return checkField(RECEIVER_COMPONENT, buffer, receiver, receiverSize,
+                        strings)
+                && checkField(CALLER_COMPONENT, buffer, caller, callerSize,
+                        strings)
+                && checkField(ACTION, buffer, data + 4 * 7,
+                        buffer.getInt(data + 4), strings);
+    }
+
+    private IntentFilter setId(int check, int value) {
+        CHECKS |= check;
+        IDS[Integer.numberOfTrailingZeros(check)] = value;
+        return this;
+    }
+
+    /**
+     * Returns the types the filter matches as a bit per type.
+     */
+    int getIntentTypes() { return TYPES; }
+
+    /**
+     * Returns the earliest timestamp the filter matches.
+     */
+    int getFrom() { return FROM; }
+
+    /**
+     * Returns the latest timestamp the filter matches.
+     */
+    int getTo() { return TO; }
+
+    /**
+     * Returns the encoded receiver component the filter matches, or null if
+     * it matches any.
+     */
+    byte[] getReceiverComponent() { return RECEIVER_COMPONENT; }
+
+    /**
+     * Returns the encoded caller component the filter matches, or null if it
+     * matches any.
+     */
+    byte[] getCallerComponent() { return CALLER_COMPONENT; }
+
+    /**
+     * Returns the encoded action the filter matches, or null if it matches
+     * any.
+     */
+    byte[] getAction() { return ACTION; }
+
+    /**
+     * Returns the caller UID the filter matches, or null if it matches any.
+     */
+    Integer getCallerUID() { return getId(CALLER_UID); }
+
+    /**
+     * Returns the receiver UID the filter matches, or null if it matches any.
+     */
+    Integer getReceiverUID() { return getId(RECEIVER_UID); }
+
+    /**
+     * Returns the user ID the filter matches, or null if it matches any.
+     */
+    Integer getUserID() { return getId(USER_ID); }
+
+    private Integer getId(int check) {
+        if ((CHECKS & check) == 0) return null;
+        return IDS[Integer.numberOfTrailingZeros(check)];
+    }
+
+    private boolean checkId(int check, int value) {
+        return (CHECKS & check) == 0
+                || IDS[Integer.numberOfTrailingZeros(check)] == value;
+    }
+
+    private static boolean checkString(byte[] expected, String value) {
+        if (expected == null) return true;
+        if (value == null) return expected.length == 0;
+        return Arrays.equals(expected, BufferUtils.encode(value));
+    }
+
+    private static boolean checkField(byte[] expected, ByteBuffer buffer,
+            int position, int size, StringTable strings) {
+        if (expected == null) return true;
+        if (size == 0) return expected.length == 0;
+        if (strings != null) {
+            // The field holds the string's id as a varint
+            int id = 0;
+            for (int i = 0; i < size && i < 5; i++)
+                id |= (buffer.get(position + i) & 0x7F) << (7 * i);
+            return id >= 0 && id < strings.size()
+                    && Arrays.equals(expected, strings.getBytes(id));
+        }
+        if (size != expected.length) return false;
+        for (int i = 0; i < size; i++)
+            if (buffer.get(position + i) != expected[i]) return false;
+        return true;
+    }
+}
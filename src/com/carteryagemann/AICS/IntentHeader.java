@@ -15,6 +15,7 @@
  */
 package com.carteryagemann.AICS;
 
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.text.ParseException;
@@ -32,6 +33,12 @@ abstract public class IntentHeader {
     public static final short TYPE_BROADCAST = 1;
     public static final short TYPE_SERVICE = 2;
     
+    /**
+     * The size of the largest fixed-sized part of any intent header. Reading
+     * this many bytes is always enough to determine the size of an intent.
+     */
+    static final int MAX_FIXED_SIZE = 4 * 13;
+    
     protected int TIMESTAMP;
     protected short MILLI_OFFSET;
     protected short INTENT_TYPE;
@@ -44,6 +51,8 @@ abstract public class IntentHeader {
     protected IntentData INTENT_DATA;
     protected int INTENT_DATA_SIZE;
     
+    private final static int EMPTY_DATA_SIZE = new IntentData().getSize();
+    
     /**
      * Returns the type of the first intent header in the buffer. The returned
      * value can then be used to determine which constructor should be called on
@@ -91,6 +100,110 @@ abstract public class IntentHeader {
         }
     }
     
+    /**
+     * Returns the total size of the first intent in the buffer, including its
+     * intent data. Only the size fields of the header are read, so this is a
+     * cheap way to find where the next intent starts without parsing any of
+     * the variable-sized fields. The buffer's position is left unchanged.
+     * 
+     * @param buffer The buffer to parse. The header must start at the current
+     * position of this buffer.
+     * @return The number of bytes used by the intent header and its data.
+     * @throws ParseException If the type or sizes can't be determined.
+     * @throws BufferUnderflowException If buffer is too tiny to hold the
+     * fixed-sized part of an intent header.
+     */
+    public static int parseIntentSize(ByteBuffer buffer)
+            throws ParseException, BufferUnderflowException {
+        int start = buffer.position();
+        if (buffer.remaining() < 8) throw new BufferUnderflowException();
+        short type = parseIntentType(buffer);
+        
+        // Activity and broadcast headers share the same layout. Service
+        // headers lack a request code so their size fields start earlier.
+        int fixed = (type == TYPE_SERVICE) ? 4 * 12 : 4 * 13;
+        if (buffer.remaining() < fixed) throw new BufferUnderflowException();
+        long size = fixed;
+        for (int offset = fixed - 16; offset < fixed; offset += 4) {
+            int field = buffer.getInt(start + offset);
+            if (field < 0)
+                throw new ParseException("Header has a negative size field.",
+                        start + offset);
+            size += field;
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new ParseException("Intent is too large.", start);
+        return (int) size;
+    }
+    
+    /**
+     * Parses the first intent in the buffer using the constructor matching its
+     * type. The buffer's position is advanced past the intent and its data.
+     * 
+     * @param buffer The buffer to parse. The header must start at the current
+     * position of this buffer.
+     * @return The parsed intent header with its intent data attached.
+     * @throws ParseException If the intent can't be parsed.
+     * @throws BufferUnderflowException If buffer is too tiny to hold the
+     * intent.
+     */
+    public static IntentHeader parseIntent(ByteBuffer buffer)
+            throws ParseException, BufferUnderflowException {
+        return parseIntent(buffer, null, null);
+    }
+    
+    /**
+     * Parses the first intent in the buffer like parseIntent(ByteBuffer), but
+     * looks up the string fields in a dictionary-encoded file's string table.
+     * 
+     * @param buffer The buffer to parse.
+     * @param strings The string table, or null if the intent is raw.
+     * @return The parsed intent header with its intent data attached.
+     * @throws ParseException If the intent can't be parsed.
+     * @throws BufferUnderflowException If buffer is too tiny to hold the
+     * intent.
+     */
+    static IntentHeader parseIntent(ByteBuffer buffer, StringTable strings)
+            throws ParseException, BufferUnderflowException {
+        return parseIntent(buffer, strings, null);
+    }
+    
+    /**
+     * Parses the first intent in the buffer like parseIntent(ByteBuffer), but
+     * only reads the fields included in a projection. Fields which aren't
+     * included are skipped using their size fields without being copied, and
+     * are left empty in the returned intent. The buffer's position is still
+     * advanced past the whole intent.
+     * 
+     * @param buffer The buffer to parse.
+     * @param projection Which fields to read, or null to read them all.
+     * @return The parsed intent header. If the projection doesn't include
+     * the intent data, the header gets empty intent data when
+     * getIntentData() is first called.
+     * @throws ParseException If the intent can't be parsed.
+     * @throws BufferUnderflowException If buffer is too tiny to hold the
+     * intent.
+     */
+    public static IntentHeader parseIntent(ByteBuffer buffer,
+            IntentProjection projection)
+            throws ParseException, BufferUnderflowException {
+        return parseIntent(buffer, null, projection);
+    }
+    
+    static IntentHeader parseIntent(ByteBuffer buffer, StringTable strings,
+            IntentProjection projection)
+            throws ParseException, BufferUnderflowException {
+        if (buffer.remaining() < 8) throw new BufferUnderflowException();
+        switch (parseIntentType(buffer)) {
+            case TYPE_ACTIVITY:
+                return new ActivityIntentHeader(buffer, strings, projection);
+            case TYPE_BROADCAST:
+                return new BroadcastIntentHeader(buffer, strings, projection);
+            default:
+                return new ServiceIntentHeader(buffer, strings, projection);
+        }
+    }
+    
     /**
      * Sets the time for the intent this header describes. Should be in UNIX
      * time.
@@ -149,6 +262,30 @@ abstract public class IntentHeader {
         return this;
     }
     
+    /**
+     * Reads the intent data following a header which has just been parsed,
+     * or skips it if the projection doesn't include it. Skipped intent data
+     * is sized as empty intent data, which getIntentData() only allocates if
+     * it's asked for, so the header can still be flattened and filtered.
+     * 
+     * @param buffer The buffer positioned at the intent data.
+     * @param strings The file's string table, or null.
+     * @param projection Which fields to read, or null to read them all.
+     */
+    protected void readIntentData(ByteBuffer buffer, StringTable strings,
+            IntentProjection projection)
+            throws BufferUnderflowException, ParseException {
+        if (projection != null && !projection.includesIntentData()) {
+            BufferUtils.skip(buffer, INTENT_DATA_SIZE);
+            INTENT_DATA = null;
+            INTENT_DATA_SIZE = EMPTY_DATA_SIZE;
+            return;
+        }
+        INTENT_DATA = new IntentData(buffer, strings, projection);
+        if (strings != null || projection != null)
+            INTENT_DATA_SIZE = INTENT_DATA.getSize();
+    }
+    
     public int getTimestamp() { return TIMESTAMP; }
     
     public short getOffset() { return MILLI_OFFSET; }
@@ -165,7 +302,12 @@ abstract public class IntentHeader {
     
     public int getUserID() { return USER_ID; }
     
-    public IntentData getIntentData() { return INTENT_DATA; }
+    public IntentData getIntentData() {
+        // Only a header whose intent data was skipped has a size but no data
+        if (INTENT_DATA == null && INTENT_DATA_SIZE != 0)
+            INTENT_DATA = new IntentData();
+        return INTENT_DATA;
+    }
     
     /**
      * Convert the contents of the intent header into a ByteBuffer which is
@@ -174,7 +316,38 @@ abstract public class IntentHeader {
      * 
      * @return A ByteBuffer containing the contents of the intent header.
      */
-    abstract protected ByteBuffer toByteBuffer();
+    protected ByteBuffer toByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(getSize());
+        writeTo(buffer);
+        buffer.rewind();
+        return buffer;
+    }
+    
+    /**
+     * Writes the contents of the intent header into a buffer at its current
+     * position, which is advanced past the header. Nothing is allocated, so
+     * this is the cheapest way to flatten many intents into one buffer. Only
+     * the header is written. To flatten the data, use
+     * getIntentData().writeTo().
+     * 
+     * @param dst The buffer to write into.
+     * @throws BufferOverflowException If there isn't room in the buffer for
+     * the header. Nothing is written in that case.
+     */
+    abstract public void writeTo(ByteBuffer dst) throws BufferOverflowException;
+    
+    /**
+     * Writes the header like writeTo(ByteBuffer), but with its string fields
+     * replaced by ids from a string table. New strings are added to the
+     * table.
+     * 
+     * @param dst The buffer to write into.
+     * @param strings The string table, or null to write the raw header.
+     * @throws BufferOverflowException If there isn't room in the buffer for
+     * the header. Nothing is written in that case.
+     */
+    abstract void writeTo(ByteBuffer dst, StringTable strings)
+            throws BufferOverflowException;
     
     /**
      * Calculates the total number of bytes needed to write this header.
@@ -184,4 +357,13 @@ abstract public class IntentHeader {
      */
     abstract public int getSize();
     
+    /**
+     * Calculates the number of bytes needed to write this header with a
+     * string table. New strings are added to the table.
+     * 
+     * @param strings The string table, or null for the raw header.
+     * @return The number of bytes writeTo(dst, strings) will write.
+     */
+    abstract int getSize(StringTable strings);
+    
 }
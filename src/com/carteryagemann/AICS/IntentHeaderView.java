@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * A read-only view of a flattened intent header. Unlike IntentHeader, a view
+ * doesn't copy anything out of the buffer. Fixed-sized fields are read straight
+ * from the buffer every time they're requested and variable-sized fields are
+ * only turned into Strings when asked for. A single view can be wrapped over
+ * many intents in turn, so scanning a buffer with views creates no garbage.
+ *
+ * @author Carter Yagemann
+ */
+abstract public class IntentHeaderView {
+
+    private final short INTENT_TYPE;
+    private final int FIXED_SIZE;
+    private final IntentDataView INTENT_DATA;
+
+    protected ByteBuffer BUFFER;
+    protected int OFFSET;
+
+    /**
+     * @param type The type of intent header this view reads.
+     * @param fixedSize The size of the fixed-sized part of the header. The
+     * last four fields of the fixed-sized part must be the sizes of the three
+     * variable-sized fields followed by the intent data size.
+     */
+    protected IntentHeaderView(short type, int fixedSize) {
+        INTENT_TYPE = type;
+        FIXED_SIZE = fixedSize;
+        INTENT_DATA = new IntentDataView();
+    }
+
+    /**
+     * Points this view at an intent header in a buffer. The buffer's position
+     * isn't used or changed.
+     *
+     * @param buffer The buffer containing the header.
+     * @param offset The absolute position of the header in the buffer.
+     * @return Itself.
+     * @throws ParseException If the header at the offset is of the wrong type.
+     * @throws BufferUnderflowException If the buffer is too small to hold the
+     * fixed-sized part of the header.
+     */
+    public IntentHeaderView wrap(ByteBuffer buffer, int offset)
+            throws ParseException, BufferUnderflowException {
+        if (offset < 0 || buffer.limit() - offset < FIXED_SIZE)
+            throw new BufferUnderflowException();
+        if (buffer.getShort(offset + 6) != INTENT_TYPE)
+            throw new ParseException("Wrong intent header type.", offset);
+        BUFFER = buffer;
+        OFFSET = offset;
+        return this;
+    }
+
+    public int getTimestamp() { return BUFFER.getInt(OFFSET); }
+
+    public short getOffset() { return BUFFER.getShort(OFFSET + 4); }
+
+    public short getIntentType() { return INTENT_TYPE; }
+
+    public int getCallerUID() { return BUFFER.getInt(OFFSET + 8); }
+
+    public int getCallerPID() { return BUFFER.getInt(OFFSET + 12); }
+
+    public int getReceiverUID() { return BUFFER.getInt(OFFSET + 16); }
+
+    public int getReceiverPID() { return BUFFER.getInt(OFFSET + 20); }
+
+    public int getUserID() { return BUFFER.getInt(OFFSET + 24); }
+
+    public int getIntentDataSize() {
+        return BUFFER.getInt(OFFSET + FIXED_SIZE - 4);
+    }
+
+    /**
+     * Returns a view of the intent data following this header. The same view
+     * object is returned every time and is rewrapped on each call.
+     *
+     * @return A view of this header's intent data.
+     * @throws BufferUnderflowException If the buffer ends before the intent
+     * data.
+     */
+    public IntentDataView getIntentData() throws BufferUnderflowException {
+        return INTENT_DATA.wrap(BUFFER, OFFSET + getSize());
+    }
+
+    /**
+     * Returns the absolute position of this header in its buffer.
+     *
+     * @return The position this view was wrapped at.
+     */
+    public int getPosition() { return OFFSET; }
+
+    /**
+     * Calculates the number of bytes used by this header, not including its
+     * intent data.
+     *
+     * @return The size of the header.
+     */
+    public int getSize() {
+        return FIXED_SIZE + getFieldSize(0) + getFieldSize(1)
+                + getFieldSize(2);
+    }
+
+    /**
+     * Calculates the number of bytes used by this header and its intent data.
+     *
+     * @return The size of the whole intent.
+     */
+    public int getIntentSize() { return getSize() + getIntentDataSize(); }
+
+    /**
+     * Parses the viewed header and its intent data into an IntentHeader.
+     *
+     * @return A new IntentHeader containing copies of all the fields.
+     * @throws ParseException If the header can't be parsed.
+     * @throws BufferUnderflowException If the buffer ends before the intent
+     * does.
+     */
+    public IntentHeader toIntentHeader()
+            throws ParseException, BufferUnderflowException {
+        ByteBuffer buffer = BUFFER.duplicate().order(BUFFER.order());
+        buffer.position(OFFSET);
+        return IntentHeader.parseIntent(buffer);
+    }
+
+    /**
+     * Returns the size of one of the three variable-sized fields.
+     *
+     * @param field Which field, in the order they're stored.
+     * @return The field's size in bytes.
+     */
+    protected int getFieldSize(int field) {
+        return BUFFER.getInt(OFFSET + FIXED_SIZE - 16 + 4 * field);
+    }
+
+    /**
+     * Returns the absolute position of one of the three variable-sized fields.
+     *
+     * @param field Which field, in the order they're stored.
+     * @return The field's position in the buffer.
+     */
+    protected int getFieldPosition(int field) {
+        int position = OFFSET + FIXED_SIZE;
+        for (int i = 0; i < field; i++) position += getFieldSize(i);
+        return position;
+    }
+
+    protected ByteBuffer getFieldSlice(int field) {
+        return BufferUtils.slice(BUFFER, getFieldPosition(field),
+                getFieldSize(field));
+    }
+
+    protected String getFieldString(int field) {
+        return BufferUtils.decode(BUFFER, getFieldPosition(field),
+                getFieldSize(field));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+/**
+ * Chooses which fields are read when an intent is parsed. Fields which aren't
+ * included are skipped using their size fields, so they're never copied out of
+ * the buffer, and are left empty in the parsed intent. An intent parsed
+ * without some of its fields flattens to a smaller intent, not the original.
+ *
+ * A new projection includes every field. The header's fixed-sized fields and
+ * strings are always read.
+ *
+ * @author Carter Yagemann
+ */
+public class IntentProjection {
+
+    private boolean INTENT_DATA;
+    private boolean OPTIONS;
+    private boolean CLIPDATA;
+    private boolean EXTRAS;
+    private boolean PAYLOAD_SLICES;
+
+    public IntentProjection() {
+        INTENT_DATA = true;
+        OPTIONS = true;
+        CLIPDATA = true;
+        EXTRAS = true;
+        PAYLOAD_SLICES = false;
+    }
+
+    /**
+     * Creates a projection which only reads the intent headers, skipping the
+     * intent data and activity options.
+     *
+     * @return A new projection.
+     */
+    public static IntentProjection headersOnly() {
+        return new IntentProjection().setIntentData(false).setOptions(false);
+    }
+
+    /**
+     * Sets whether the intent data is read. If it isn't, parsed headers have
+     * empty intent data attached.
+     *
+     * @param include True to read the intent data.
+     * @return Itself.
+     */
+    public IntentProjection setIntentData(boolean include) {
+        INTENT_DATA = include;
+        return this;
+    }
+
+    public IntentProjection setOptions(boolean include) {
+        OPTIONS = include;
+        return this;
+    }
+
+    public IntentProjection setClipData(boolean include) {
+        CLIPDATA = include;
+        return this;
+    }
+
+    public IntentProjection setExtras(boolean include) {
+        EXTRAS = include;
+        return this;
+    }
+
+    /**
+     * Sets whether the options, clip data and extras are kept as read-only
+     * slices of the buffer being parsed instead of being copied. The slices
+     * keep the buffer alive, so this suits memory-mapped files whose payloads
+     * are passed along untouched. They're only copied if a caller asks for
+     * them as arrays.
+     *
+     * @param slices True to keep payloads as slices.
+     * @return Itself.
+     */
+    public IntentProjection setPayloadSlices(boolean slices) {
+        PAYLOAD_SLICES = slices;
+        return this;
+    }
+
+    public boolean includesIntentData() { return INTENT_DATA; }
+
+    public boolean includesOptions() { return OPTIONS; }
+
+    public boolean includesClipData() { return CLIPDATA; }
+
+    public boolean includesExtras() { return EXTRAS; }
+
+    public boolean usesPayloadSlices() { return PAYLOAD_SLICES; }
+}
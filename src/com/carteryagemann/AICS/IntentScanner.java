@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+
+/**
+ * Finds where intents start in a raw or dictionary-encoded file after
+ * corruption, so parsing can resume past the damaged bytes.
+ *
+ * Every intent type is a short of 0, 1 or 2 at offset 6, so its high byte,
+ * which is at offset 6 in big-endian files and offset 7 in little-endian
+ * ones, is always zero and an intent can only start that far before a zero
+ * byte. The scanner reads the buffer 8 bytes at a time and finds the zero
+ * bytes in each word with a few arithmetic operations. Only at those offsets
+ * are the millisecond offset, timestamp and size fields checked, and only if
+ * they are plausible is the intent actually parsed.
+ *
+ * @author Carter Yagemann
+ */
+final class IntentScanner {
+
+    /**
+     * How far before or after the last good intent the timestamp of a
+     * resynced intent may be, in seconds.
+     */
+    final static int MAX_CLOCK_SKEW = 24 * 60 * 60;
+
+    private final static long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private IntentScanner() {}
+
+    /**
+     * Finds the next offset at which a whole intent can be parsed.
+     *
+     * @param buffer The buffer to search. Its position isn't used or changed.
+     * @param from The absolute position to start searching from.
+     * @param strings The string table of a dictionary-encoded file, or null.
+     * @param minTimestamp The earliest timestamp a plausible intent can have.
+     * @param maxTimestamp The latest timestamp a plausible intent can have.
+     * @return The absolute position of the next intent, or -1 if there isn't
+     * one before the buffer's limit.
+     */
+    static int find(ByteBuffer buffer, int from, StringTable strings,
+            int minTimestamp, int maxTimestamp) {
+        int limit = buffer.limit();
+        // The type's high byte is the first byte we look for
+        int high = (buffer.order() == ByteOrder.BIG_ENDIAN) ? 6 : 7;
+        // Words are read big-endian so their leading bytes come first
+        ByteBuffer words = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int position = from + high;
+        while (position + 8 <= limit) {
+            long word = words.getLong(position);
+            // Sets the high bit of every byte which is zero
+            long zeros = ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+            while (zeros != 0) {
+                int start = position + (Long.numberOfLeadingZeros(zeros) >>> 3)
+                        - high;
+                if (check(buffer, start, strings, minTimestamp,
+                        maxTimestamp))
+                    return start;
+                zeros &= ~Long.highestOneBit(zeros);
+            }
+            position += 8;
+        }
+        for (; position < limit; position++)
+            if (buffer.get(position) == 0 && check(buffer, position - high,
+                    strings, minTimestamp, maxTimestamp))
+                return position - high;
+        return -1;
+    }
+
+    /**
+     * Checks the cheap fields of a candidate and then tries to parse it.
+     */
+    private static boolean check(ByteBuffer buffer, int start,
+            StringTable strings, int minTimestamp, int maxTimestamp) {
+        if (!isPlausible(buffer, start, minTimestamp, maxTimestamp))
+            return false;
+        ByteBuffer candidate = buffer.duplicate().order(buffer.order());
+        candidate.position(start);
+        try {
+            IntentHeader.parseIntent(candidate, strings,
+                    IntentProjection.headersOnly());
+            return true;
+        } catch (BufferUnderflowException | ParseException
+                | IllegalArgumentException | IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks that an intent could start at an offset using only its fixed
+     * fields: the type must be 0, 1 or 2, the millisecond offset must be under
+     * a second, the timestamp must be in range and every size must fit in the
+     * buffer, with the intent data's sizes adding up to the header's intent
+     * data size.
+     *
+     * @param buffer The buffer to check.
+     * @param start The absolute position of the candidate intent.
+     * @param minTimestamp The earliest timestamp a plausible intent can have.
+     * @param maxTimestamp The latest timestamp a plausible intent can have.
+     * @return True if an intent could start at the offset.
+     */
+    static boolean isPlausible(ByteBuffer buffer, int start,
+            int minTimestamp, int maxTimestamp) {
+        int limit = buffer.limit();
+        if (start < 0 || limit - start < 4 * 12) return false;
+        short type = buffer.getShort(start + 6);
+        if (type < 0 || type > 2) return false;
+        short milli = buffer.getShort(start + 4);
+        if (milli < 0 || milli > 999) return false;
+        int timestamp = buffer.getInt(start);
+        if (timestamp < minTimestamp || timestamp > maxTimestamp) return false;
+
+        int fixed = (type == IntentHeader.TYPE_SERVICE) ? 4 * 12 : 4 * 13;
+        if (limit - start < fixed) return false;
+        long size = fixed;
+        for (int offset = fixed - 16; offset < fixed; offset += 4) {
+            int field = buffer.getInt(start + offset);
+            if (field < 0) return false;
+            size += field;
+        }
+        if (size > limit - start) return false;
+
+        int dataSize = buffer.getInt(start + fixed - 4);
+        if (dataSize < 4 * 7) return false;
+        int data = start + (int) size - dataSize;
+        long fields = 4 * 7;
+        for (int i = 1; i < 7; i++) {
+            int field = buffer.getInt(data + 4 * i);
+            if (field < 0) return false;
+            fields += field;
+        }
+        return fields == dataSize;
+    }
+}
@@ -15,8 +15,10 @@
  */
 package com.carteryagemann.AICS;
 
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 
 /**
@@ -31,8 +33,11 @@ public class ServiceIntentHeader extends IntentHeader {
     private int CALLER_COMPONENT_SIZE;
     private int ACTION_SIZE;
     private String RECEIVER_COMPONENT;
+    private byte[] RECEIVER_COMPONENT_BYTES;
     private String CALLER_COMPONENT;
+    private byte[] CALLER_COMPONENT_BYTES;
     private String ACTION;
+    private byte[] ACTION_BYTES;
     
     /**
      * The default constructor initializes all the fields as null and size 0.
@@ -65,6 +70,26 @@ public class ServiceIntentHeader extends IntentHeader {
      */
     public ServiceIntentHeader(ByteBuffer buffer)
             throws BufferUnderflowException, ParseException {
+        this(buffer, null, null);
+    }
+    
+    /**
+     * Creates a new service intent header by parsing a ByteBuffer from a
+     * dictionary-encoded file. The string fields hold ids which are looked up
+     * in the table, so every intent shares the table's String instances.
+     * 
+     * @param buffer The buffer to parse.
+     * @param strings The file's string table, or null if the buffer holds a
+     * raw intent.
+     * @param projection Which fields to read, or null to read them all.
+     * @throws BufferUnderflowException If buffer is too small to be an intent
+     * header.
+     * @throws ParseException If buffer contains an intent header of the wrong
+     * type or an unknown string id.
+     */
+    ServiceIntentHeader(ByteBuffer buffer, StringTable strings,
+            IntentProjection projection)
+            throws BufferUnderflowException, ParseException {
         try {
             TIMESTAMP = buffer.getInt();
             MILLI_OFFSET = buffer.getShort();
@@ -85,22 +110,39 @@ public class ServiceIntentHeader extends IntentHeader {
             if (INTENT_DATA_SIZE < 0)
                 throw new ParseException("Header has no intent data!",
                 buffer.position());
-            if (RECEIVER_COMPONENT_SIZE > 0) {
-                byte[] temp = new byte[RECEIVER_COMPONENT_SIZE];
-                buffer.get(temp);
-                RECEIVER_COMPONENT = new String(temp);
+            if (RECEIVER_COMPONENT_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, RECEIVER_COMPONENT_SIZE);
+                RECEIVER_COMPONENT = strings.getString(id);
+                RECEIVER_COMPONENT_BYTES = strings.getBytes(id);
+                RECEIVER_COMPONENT_SIZE = RECEIVER_COMPONENT_BYTES.length;
+            } else if (RECEIVER_COMPONENT_SIZE > 0) {
+                RECEIVER_COMPONENT_BYTES = new byte[RECEIVER_COMPONENT_SIZE];
+                buffer.get(RECEIVER_COMPONENT_BYTES);
+                RECEIVER_COMPONENT = new String(RECEIVER_COMPONENT_BYTES,
+                        StandardCharsets.UTF_8);
             }
-            if (CALLER_COMPONENT_SIZE > 0) {
-                byte[] temp = new byte[CALLER_COMPONENT_SIZE];
-                buffer.get(temp);
-                CALLER_COMPONENT = new String(temp);
+            if (CALLER_COMPONENT_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, CALLER_COMPONENT_SIZE);
+                CALLER_COMPONENT = strings.getString(id);
+                CALLER_COMPONENT_BYTES = strings.getBytes(id);
+                CALLER_COMPONENT_SIZE = CALLER_COMPONENT_BYTES.length;
+            } else if (CALLER_COMPONENT_SIZE > 0) {
+                CALLER_COMPONENT_BYTES = new byte[CALLER_COMPONENT_SIZE];
+                buffer.get(CALLER_COMPONENT_BYTES);
+                CALLER_COMPONENT = new String(CALLER_COMPONENT_BYTES,
+                        StandardCharsets.UTF_8);
             }
-            if (ACTION_SIZE > 0) {
-                byte[] temp = new byte[ACTION_SIZE];
-                buffer.get(temp);
-                ACTION = new String(temp);
+            if (ACTION_SIZE > 0 && strings != null) {
+                int id = strings.readId(buffer, ACTION_SIZE);
+                ACTION = strings.getString(id);
+                ACTION_BYTES = strings.getBytes(id);
+                ACTION_SIZE = ACTION_BYTES.length;
+            } else if (ACTION_SIZE > 0) {
+                ACTION_BYTES = new byte[ACTION_SIZE];
+                buffer.get(ACTION_BYTES);
+                ACTION = new String(ACTION_BYTES, StandardCharsets.UTF_8);
             }
-            INTENT_DATA = new IntentData(buffer);
+            readIntentData(buffer, strings, projection);
         } catch (BufferUnderflowException e) {
             throw e;
         }
@@ -118,22 +160,22 @@ public class ServiceIntentHeader extends IntentHeader {
     
     public ServiceIntentHeader setReceiverComponent(String component) {
         RECEIVER_COMPONENT = component;
-        if (component != null) RECEIVER_COMPONENT_SIZE = component.length();
-        else RECEIVER_COMPONENT_SIZE = 0;
+        RECEIVER_COMPONENT_BYTES = BufferUtils.encode(component);
+        RECEIVER_COMPONENT_SIZE = BufferUtils.size(RECEIVER_COMPONENT_BYTES);
         return this;
     }
     
     public ServiceIntentHeader setCallerComponent(String component) {
         CALLER_COMPONENT = component;
-        if (component != null) CALLER_COMPONENT_SIZE = component.length();
-        else CALLER_COMPONENT_SIZE = 0;
+        CALLER_COMPONENT_BYTES = BufferUtils.encode(component);
+        CALLER_COMPONENT_SIZE = BufferUtils.size(CALLER_COMPONENT_BYTES);
         return this;
     }
     
     public ServiceIntentHeader setAction(String action) {
         ACTION = action;
-        if (action != null) ACTION_SIZE = action.length();
-        else ACTION_SIZE = 0;
+        ACTION_BYTES = BufferUtils.encode(action);
+        ACTION_SIZE = BufferUtils.size(ACTION_BYTES);
         return this;
     }
     
@@ -145,12 +187,34 @@ public class ServiceIntentHeader extends IntentHeader {
     
     public String getAction() { return ACTION; }
     
+    // The strings' cached UTF-8 bytes, for encoders. They mustn't be changed
+    byte[] getReceiverComponentBytes() { return RECEIVER_COMPONENT_BYTES; }
+    
+    byte[] getCallerComponentBytes() { return CALLER_COMPONENT_BYTES; }
+    
+    byte[] getActionBytes() { return ACTION_BYTES; }
+    
+    @Override
+    public void writeTo(ByteBuffer dst) throws BufferOverflowException {
+        writeTo(dst, null);
+    }
+    
     @Override
-    protected ByteBuffer toByteBuffer() {
+    void writeTo(ByteBuffer dst, StringTable strings)
+            throws BufferOverflowException {
+        if (dst.remaining() < getSize(strings))
+            throw new BufferOverflowException();
+        int receiverSize = StringTable.getFieldSize(strings,
+                RECEIVER_COMPONENT, RECEIVER_COMPONENT_SIZE);
+        int callerSize = StringTable.getFieldSize(strings,
+                CALLER_COMPONENT, CALLER_COMPONENT_SIZE);
+        int actionSize = StringTable.getFieldSize(strings,
+                ACTION, ACTION_SIZE);
+        int dataSize = (strings == null || INTENT_DATA == null)
+                ? INTENT_DATA_SIZE : INTENT_DATA.getSize(strings);
         
-        // Create fix-sized part of buffer
-        ByteBuffer buffer = ByteBuffer.allocate(getSize())
-                .putInt(TIMESTAMP)
+        // Write fix-sized part of buffer
+        dst.putInt(TIMESTAMP)
                 .putShort(MILLI_OFFSET)
                 .putShort(INTENT_TYPE)
                 .putInt(CALLER_UID)
@@ -159,25 +223,33 @@ public class ServiceIntentHeader extends IntentHeader {
                 .putInt(RECEIVER_PID)
                 .putInt(USER_ID)
                 .putInt(FLAGS)
-                .putInt(RECEIVER_COMPONENT_SIZE)
-                .putInt(CALLER_COMPONENT_SIZE)
-                .putInt(ACTION_SIZE)
-                .putInt(INTENT_DATA_SIZE);
-        
-        // Create variable-sized part of buffer
-        if (RECEIVER_COMPONENT_SIZE > 0)
-            buffer.put(RECEIVER_COMPONENT.getBytes());
-        if (CALLER_COMPONENT_SIZE > 0) buffer.put(CALLER_COMPONENT.getBytes());
-        if (ACTION_SIZE > 0) buffer.put(ACTION.getBytes());
+                .putInt(receiverSize)
+                .putInt(callerSize)
+                .putInt(actionSize)
+                .putInt(dataSize);
         
-        buffer.rewind();
-        return buffer;
+        // Write variable-sized part of buffer
+        StringTable.putField(dst, strings, RECEIVER_COMPONENT,
+                RECEIVER_COMPONENT_BYTES);
+        StringTable.putField(dst, strings, CALLER_COMPONENT,
+                CALLER_COMPONENT_BYTES);
+        StringTable.putField(dst, strings, ACTION, ACTION_BYTES);
     }
     
     @Override
     public int getSize() {
-        return 4 * 12 + RECEIVER_COMPONENT_SIZE + CALLER_COMPONENT_SIZE
-                + ACTION_SIZE;
+        return getSize(null);
+    }
+    
+    @Override
+    int getSize(StringTable strings) {
+        return 4 * 12
+                + StringTable.getFieldSize(strings, RECEIVER_COMPONENT,
+                        RECEIVER_COMPONENT_SIZE)
+                + StringTable.getFieldSize(strings, CALLER_COMPONENT,
+                        CALLER_COMPONENT_SIZE)
+                + StringTable.getFieldSize(strings, ACTION,
+                        ACTION_SIZE);
     }
     
 }
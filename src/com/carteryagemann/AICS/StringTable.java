@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The string table of a dictionary-encoded AICS file (format version 0.3).
+ * In these files the component, action, category, type and required
+ * permission fields don't hold the string itself. Instead they hold the
+ * string's id in the table as a varint and their size field holds the length
+ * of the varint. An empty or null string still has size 0.
+ *
+ * The table is written after the last intent: each string's UTF-8 length as
+ * an int followed by its bytes, in id order. The file ends with a 16 byte
+ * trailer: the table's offset as a long, the number of strings as an int and
+ * the magic number 0x41494353.
+ *
+ * When reading, every id maps to one canonical String and byte array which
+ * are shared by every intent using that id.
+ *
+ * @author Carter Yagemann
+ */
+final class StringTable {
+
+    final static int FOOTER_MAGIC = 0x41494353;
+    final static int TRAILER_SIZE = 16;
+
+    private final HashMap<String, Integer> IDS;
+    private String[] STRINGS;
+    private byte[][] BYTES;
+    private int SIZE;
+    private long OFFSET;
+
+    /**
+     * Creates an empty table for writing.
+     */
+    StringTable() {
+        IDS = new HashMap<>();
+        STRINGS = new String[64];
+        BYTES = new byte[64][];
+        SIZE = 0;
+        OFFSET = -1;
+    }
+
+    /**
+     * Returns the id of a string, adding it to the table if it's new.
+     *
+     * @param string The string.
+     * @return The string's id.
+     */
+    int add(String string) {
+        Integer id = IDS.get(string);
+        if (id != null) return id;
+        if (SIZE == STRINGS.length) {
+            STRINGS = Arrays.copyOf(STRINGS, SIZE * 2);
+            BYTES = Arrays.copyOf(BYTES, SIZE * 2);
+        }
+        STRINGS[SIZE] = string;
+        BYTES[SIZE] = BufferUtils.encode(string);
+        IDS.put(string, SIZE);
+        return SIZE++;
+    }
+
+    /**
+     * Returns how many strings are in the table.
+     *
+     * @return The number of strings.
+     */
+    int size() { return SIZE; }
+
+    /**
+     * Returns the canonical String for an id.
+     *
+     * @param id The id.
+     * @return The shared String instance.
+     */
+    String getString(int id) { return STRINGS[id]; }
+
+    /**
+     * Returns the canonical UTF-8 bytes for an id. The array is shared, so it
+     * must not be changed.
+     *
+     * @param id The id.
+     * @return The shared UTF-8 bytes.
+     */
+    byte[] getBytes(int id) { return BYTES[id]; }
+
+    /**
+     * Returns the offset of the table in the file it was read from, which is
+     * where the last intent ends.
+     *
+     * @return The table's offset or -1 if the table wasn't read from a file.
+     */
+    long getOffset() { return OFFSET; }
+
+    /**
+     * Reads a string id stored in a field of the given size. The buffer's
+     * position is advanced past the field.
+     *
+     * @param buffer The buffer positioned at the field.
+     * @param size The field's size.
+     * @return The id.
+     * @throws ParseException If the field isn't a single varint or the id
+     * isn't in the table.
+     */
+    int readId(ByteBuffer buffer, int size) throws ParseException {
+        int start = buffer.position();
+        int id = BufferUtils.getVarint(buffer);
+        if (buffer.position() - start != size || id < 0 || id >= SIZE)
+            throw new ParseException("Invalid string id.", start);
+        return id;
+    }
+
+    /**
+     * Returns the size of a string field in a dictionary-encoded intent, or
+     * of the raw field if there is no table. The string is added to the table
+     * if it's new.
+     *
+     * @param strings The table or null for the raw format.
+     * @param string The field's value.
+     * @param rawSize The size of the raw field.
+     * @return The size to store in the field's size field.
+     */
+    static int getFieldSize(StringTable strings, String string, int rawSize) {
+        if (strings == null) return rawSize;
+        if (string == null || string.isEmpty()) return 0;
+        return BufferUtils.varintSize(strings.add(string));
+    }
+
+    /**
+     * Writes a string field, as an id if there is a table or as the raw bytes
+     * if there isn't.
+     *
+     * @param dst The buffer to write into.
+     * @param strings The table or null for the raw format.
+     * @param string The field's value.
+     * @param bytes The field's UTF-8 bytes.
+     */
+    static void putField(ByteBuffer dst, StringTable strings, String string,
+            byte[] bytes) {
+        if (strings == null) {
+            if (bytes != null) dst.put(bytes);
+        } else if (string != null && !string.isEmpty()) {
+            BufferUtils.putVarint(dst, strings.add(string));
+        }
+    }
+
+    /**
+     * Flattens the table and the trailer.
+     *
+     * @param offset Where the table will be written in the file.
+     * @param order The byte order of the file.
+     * @return A buffer ready to be written.
+     */
+    ByteBuffer toByteBuffer(long offset, ByteOrder order) {
+        long size = TRAILER_SIZE + 4L * SIZE;
+        for (int i = 0; i < SIZE; i++) size += BYTES[i].length;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("String table is too large.");
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(order);
+        for (int i = 0; i < SIZE; i++)
+            buffer.putInt(BYTES[i].length).put(BYTES[i]);
+        buffer.putLong(offset).putInt(SIZE).putInt(FOOTER_MAGIC);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the table from the end of a dictionary-encoded file held in a
+     * buffer. Offsets are relative to the buffer's position, which isn't
+     * changed. The table is read in the buffer's byte order.
+     *
+     * @param file The buffer holding the file from its position to its limit.
+     * @return The table.
+     * @throws ParseException If the file doesn't end with a valid table.
+     */
+    static StringTable readFromFooter(ByteBuffer file) throws ParseException {
+        int start = file.position();
+        int end = file.limit();
+        if (end - start < 12 + TRAILER_SIZE)
+            throw new ParseException("File has no string table.", end);
+        long offset = file.getLong(end - TRAILER_SIZE);
+        int count = file.getInt(end - TRAILER_SIZE + 8);
+        checkTrailer(offset, count, file.getInt(end - 4), end - start);
+        ByteBuffer table = file.duplicate().order(file.order());
+        table.limit(end - TRAILER_SIZE).position(start + (int) offset);
+        return parse(table, count, offset);
+    }
+
+    /**
+     * Reads the table from the end of a dictionary-encoded file.
+     *
+     * @param channel The file.
+     * @param order The byte order of the file.
+     * @return The table.
+     * @throws IOException If the file can't be read.
+     * @throws ParseException If the file doesn't end with a valid table.
+     */
+    static StringTable readFromFooter(FileChannel channel, ByteOrder order)
+            throws IOException, ParseException {
+        long end = channel.size();
+        if (end < 12 + TRAILER_SIZE)
+            throw new ParseException("File has no string table.", 0);
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(order);
+        readFully(channel, trailer, end - TRAILER_SIZE);
+        long offset = trailer.getLong(0);
+        int count = trailer.getInt(8);
+        checkTrailer(offset, count, trailer.getInt(12), end);
+        long size = end - TRAILER_SIZE - offset;
+        if (size > Integer.MAX_VALUE)
+            throw new ParseException("String table is too large.", 0);
+        ByteBuffer table = ByteBuffer.allocate((int) size).order(order);
+        readFully(channel, table, offset);
+        table.flip();
+        return parse(table, count, offset);
+    }
+
+    private static void checkTrailer(long offset, int count, int magic,
+            long end) throws ParseException {
+        if (magic != FOOTER_MAGIC || offset < 12 || count < 0
+                || offset > end - TRAILER_SIZE
+                || (long) count * 4 > end - TRAILER_SIZE - offset)
+            throw new ParseException("File has no valid string table.", 0);
+    }
+
+    private static StringTable parse(ByteBuffer table, int count, long offset)
+            throws ParseException {
+        StringTable strings = new StringTable();
+        strings.STRINGS = new String[Math.max(count, 1)];
+        strings.BYTES = new byte[Math.max(count, 1)][];
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = table.getInt();
+                if (length < 0)
+                    throw new ParseException("Negative string length.",
+                            table.position());
+                byte[] bytes = new byte[length];
+                table.get(bytes);
+                strings.BYTES[i] = bytes;
+                strings.STRINGS[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ParseException("String table is truncated.",
+                    table.position());
+        }
+        strings.SIZE = count;
+        strings.OFFSET = offset;
+        return strings;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst,
+            long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) throw new EOFException("File is truncated.");
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSBitmapIndexTest {
+
+    /**
+     * Creates a file with a few receivers and users.
+     */
+    private static AICSFile createUsersFile(int count) {
+        AICSFile file = AICSTestUtils.createFile(count);
+        for (int i = 0; i < count; i++)
+            file.getIntent(i).setReceiverUID(20000 + i % 7)
+                    .setUserID(i % 10 == 0 ? 10 : 0);
+        return file;
+    }
+
+    private static void checkIndex(AICSBitmapIndex index, AICSFile file) {
+        assertEquals(file.size(), index.size());
+        assertArrayEquals(new int[] { 0, 1, 2 },
+                index.getValues(AICSBitmapIndex.FIELD_INTENT_TYPE));
+        assertArrayEquals(new int[] { 0, 10 },
+                index.getValues(AICSBitmapIndex.FIELD_USER_ID));
+
+        IntentFilter filter = new IntentFilter()
+                .setIntentTypes(IntentHeader.TYPE_BROADCAST)
+                .setCallerUID(10001)
+                .setUserID(0);
+        assertArrayEquals(AICSTestUtils.ordinals(file, filter::matches),
+                index.find(filter).toArray());
+        filter = new IntentFilter()
+                .setIntentTypes(IntentHeader.TYPE_ACTIVITY,
+                        IntentHeader.TYPE_SERVICE)
+                .setReceiverUID(20003);
+        assertArrayEquals(AICSTestUtils.ordinals(file, filter::matches),
+                index.find(filter).toArray());
+        assertEquals(file.size(),
+                index.find(new IntentFilter()).getCardinality());
+
+        // Everything except user 10
+        AICSBitmap others = index.getAll().andNot(
+                index.get(AICSBitmapIndex.FIELD_USER_ID, 10));
+        assertArrayEquals(AICSTestUtils.ordinals(file,
+                intent -> intent.getUserID() != 10), others.toArray());
+        assertTrue(index.get(AICSBitmapIndex.FIELD_CALLER_UID, 5).isEmpty());
+    }
+
+    /**
+     * Test of getIndexPath method, of class AICSBitmapIndex.
+     */
+    @Test
+    public void testGetIndexPath() {
+        assertEquals(Paths.get("dir", "capture.aicsbmp"),
+                AICSBitmapIndex.getIndexPath(Paths.get("dir", "capture.aics")));
+    }
+
+    /**
+     * Test of find method, of class AICSBitmapIndex.
+     */
+    @Test
+    public void testFind() throws IOException, ParseException {
+        AICSFile file = createUsersFile(20000);
+        Path path = AICSTestUtils.writeFile(file);
+        checkIndex(AICSBitmapIndex.scan(path), file);
+    }
+
+    /**
+     * Test that an index can be built, loaded and updated after the capture
+     * is appended to.
+     */
+    @Test
+    public void testBuildAndLoad() throws IOException, ParseException {
+        AICSFile file = createUsersFile(300);
+        AICSFile first = AICSTestUtils.head(file, 150);
+        Path path = AICSTestUtils.writeFile(first);
+        Path indexPath = AICSBitmapIndex.getIndexPath(path);
+        indexPath.toFile().deleteOnExit();
+
+        AICSBitmapIndex index = AICSBitmapIndex.build(path);
+        assertEquals(150, index.size());
+        AICSBitmapIndex loaded = AICSBitmapIndex.load(indexPath);
+        assertEquals(150, loaded.size());
+        checkIndex(loaded, first);
+
+        // Append the rest of the intents and update the index
+        AICSTestUtils.appendRest(path, file);
+        index = AICSBitmapIndex.build(path);
+        assertEquals(Files.size(path), index.getIndexedSize());
+        checkIndex(index, file);
+        checkIndex(AICSBitmapIndex.load(indexPath), file);
+    }
+
+    /**
+     * Test that a damaged sidecar is rejected.
+     */
+    @Test(expected = ParseException.class)
+    public void testLoadInvalid() throws IOException, ParseException {
+        Path path = Files.createTempFile("aics", AICSBitmapIndex.EXTENSION);
+        path.toFile().deleteOnExit();
+        Files.write(path, new byte[AICSBitmapIndex.HEADER_SIZE]);
+        AICSBitmapIndex.load(path);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSBitmapTest {
+
+    /**
+     * Creates a set mixing sparse containers, dense containers and runs, and
+     * adds the same values to a bitmap.
+     */
+    private static BitSet create(Random random, AICSBitmap bitmap) {
+        BitSet set = new BitSet();
+        for (int container = 0; container < 6; container++) {
+            int base = container << 16;
+            int count;
+            switch (random.nextInt(3)) {
+                case 0:
+                    count = random.nextInt(100);
+                    break;
+                case 1:
+                    count = AICSBitmap.ARRAY_MAX + random.nextInt(20000);
+                    break;
+                default:
+                    count = random.nextInt(AICSBitmap.ARRAY_MAX * 2);
+            }
+            for (int i = 0; i < count; i++) {
+                int value = base + random.nextInt(1 << 16);
+                set.set(value);
+                bitmap.add(value);
+            }
+        }
+        return set;
+    }
+
+    private static void assertBitmapEquals(BitSet expected,
+            AICSBitmap bitmap) {
+        assertEquals(expected.cardinality(), bitmap.getCardinality());
+        assertArrayEquals(expected.stream().toArray(), bitmap.toArray());
+        assertEquals(expected.length() - 1, bitmap.last());
+    }
+
+    /**
+     * Test of add method, of class AICSBitmap.
+     */
+    @Test
+    public void testAdd() {
+        Random random = new Random(1);
+        AICSBitmap bitmap = new AICSBitmap();
+        BitSet set = create(random, bitmap);
+        assertBitmapEquals(set, bitmap);
+        for (int i = 0; i < 1000; i++) {
+            int value = random.nextInt(7 << 16);
+            assertEquals(set.get(value), bitmap.contains(value));
+        }
+        assertFalse(bitmap.contains(-1));
+        assertTrue(new AICSBitmap().isEmpty());
+        assertEquals(-1, new AICSBitmap().last());
+    }
+
+    /**
+     * Test of and, or and andNot methods, of class AICSBitmap.
+     */
+    @Test
+    public void testOperations() {
+        Random random = new Random(2);
+        for (int round = 0; round < 20; round++) {
+            AICSBitmap a = new AICSBitmap();
+            AICSBitmap b = new AICSBitmap();
+            BitSet setA = create(random, a);
+            BitSet setB = create(random, b);
+
+            BitSet expected = (BitSet) setA.clone();
+            expected.and(setB);
+            assertBitmapEquals(expected, a.and(b));
+            expected = (BitSet) setA.clone();
+            expected.or(setB);
+            assertBitmapEquals(expected, a.or(b));
+            expected = (BitSet) setA.clone();
+            expected.andNot(setB);
+            assertBitmapEquals(expected, a.andNot(b));
+            // The operands are unchanged
+            assertBitmapEquals(setA, a);
+            assertBitmapEquals(setB, b);
+        }
+    }
+
+    /**
+     * Test of range method, of class AICSBitmap.
+     */
+    @Test
+    public void testRange() {
+        AICSBitmap bitmap = AICSBitmap.range(65000, 200000);
+        BitSet set = new BitSet();
+        set.set(65000, 200000);
+        assertBitmapEquals(set, bitmap);
+        assertTrue(AICSBitmap.range(5, 5).isEmpty());
+    }
+
+    /**
+     * Test of writeTo and readFrom methods, of class AICSBitmap.
+     */
+    @Test
+    public void testSerialization() throws ParseException {
+        AICSBitmap bitmap = new AICSBitmap();
+        BitSet set = create(new Random(3), bitmap);
+        ByteBuffer buffer = ByteBuffer.allocate(bitmap.getSerializedSize());
+        bitmap.writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        assertBitmapEquals(set, AICSBitmap.readFrom(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    /**
+     * Test that a bitmap with unsorted values is rejected.
+     */
+    @Test(expected = ParseException.class)
+    public void testReadInvalid() throws ParseException {
+        ByteBuffer buffer = ByteBuffer.allocate(14);
+        buffer.putInt(1).putShort((short) 0).putInt(2).putShort((short) 5)
+                .putShort((short) 4).flip();
+        AICSBitmap.readFrom(buffer);
+    }
+}
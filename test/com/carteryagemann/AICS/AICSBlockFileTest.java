@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSBlockFileTest {
+    
+    /**
+     * Test of readIntents method, of class AICSBlockFile.
+     */
+    @Test
+    public void testReadIntents() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(500);
+        Path path = AICSTestUtils.writeBlockFile(file, 1024);
+        try (AICSBlockFile blocks = AICSBlockFile.open(path)) {
+            assertEquals(5, blocks.getAndroidMajorVersion());
+            assertEquals(500, blocks.size());
+            assertTrue(blocks.getBlockCount() > 10);
+            int next = 0;
+            for (int b = 0; b < blocks.getBlockCount(); b++) {
+                assertEquals(next, blocks.getFirstIntent(b));
+                assertEquals(1000 + next, blocks.getFirstTimestamp(b));
+                List<IntentHeader> intents = blocks.readIntents(b);
+                assertEquals(blocks.getIntentCount(b), intents.size());
+                for (IntentHeader intent : intents)
+                    AICSTestUtils.assertIntentEquals(file.getIntent(next++),
+                            intent);
+            }
+            assertEquals(500, next);
+            
+            List<IntentHeader> all = blocks.readIntents(0,
+                    blocks.getBlockCount(), ForkJoinPool.commonPool());
+            assertEquals(500, all.size());
+            for (int i = 0; i < all.size(); i++)
+                AICSTestUtils.assertIntentEquals(file.getIntent(i), all.get(i));
+        }
+    }
+    
+    /**
+     * Test of getIntent method, of class AICSBlockFile.
+     */
+    @Test
+    public void testGetIntent() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        Path path = AICSTestUtils.writeBlockFile(file, 2048);
+        try (AICSBlockFile blocks = AICSBlockFile.open(path)) {
+            for (int i : new int[] { 0, 1, 57, 150, 299 })
+                AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                        blocks.getIntent(i));
+        }
+    }
+    
+    /**
+     * Test of findBlock and findBlockByTime methods, of class AICSBlockFile.
+     */
+    @Test
+    public void testFindBlock() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        Path path = AICSTestUtils.writeBlockFile(file, 2048);
+        try (AICSBlockFile blocks = AICSBlockFile.open(path)) {
+            for (int i = 0; i < 300; i++) {
+                int block = blocks.findBlock(i);
+                assertTrue(blocks.getFirstIntent(block) <= i);
+                assertTrue(i < blocks.getFirstIntent(block)
+                        + blocks.getIntentCount(block));
+                // An earlier block may hold intents from the same time
+                int byTime = blocks.findBlockByTime(1000 + i, (short) 0);
+                assertTrue(byTime == block || byTime == block - 1);
+                assertEquals(block, blocks.findBlockByTime(1000 + i,
+                        (short) 1));
+            }
+            assertEquals(0, blocks.findBlockByTime(0, (short) 0));
+        }
+    }
+    
+    /**
+     * Test that the index is rebuilt when the footer is missing.
+     */
+    @Test
+    public void testRecoverIndex() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        Path path = AICSTestUtils.writeBlockFile(file, 2048);
+        long size;
+        int blockCount;
+        try (AICSBlockFile blocks = AICSBlockFile.open(path)) {
+            size = blocks.getFirstIntent(blocks.getBlockCount() - 1);
+            blockCount = blocks.getBlockCount();
+        }
+        
+        // Cut the file off part way into the last block
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer trailer = ByteBuffer.wrap(bytes, bytes.length - 16, 16);
+        long footer = trailer.getLong();
+        byte[] truncated = new byte[(int) footer - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        
+        AICSBlockFile blocks = AICSBlockFile.wrap(ByteBuffer.wrap(truncated));
+        assertEquals(blockCount - 1, blocks.getBlockCount());
+        assertEquals(size, blocks.size());
+        AICSTestUtils.assertIntentEquals(file.getIntent(10),
+                blocks.getIntent(10));
+    }
+    
+    /**
+     * Test that AICSFile.readFromBuffer can read block-compressed files and
+     * AICSFileReader refuses them.
+     */
+    @Test
+    public void testReadFromBuffer() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(100);
+        Path path = AICSTestUtils.writeBlockFile(file, 1024);
+        AICSFile read = AICSFile.readFromArray(Files.readAllBytes(path));
+        assertEquals(100, read.size());
+        for (int i = 0; i < 100; i++)
+            AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                    read.getIntent(i));
+        
+        try {
+            new AICSFileReader(path).close();
+            fail("Block-compressed file should be refused.");
+        } catch (ParseException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test of readIntents method with a filter, of class AICSBlockFile.
+     */
+    @Test
+    public void testReadIntentsFilter() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(2000);
+        Path path = AICSTestUtils.writeBlockFile(file, 1024);
+        try (AICSBlockFile blocks = AICSBlockFile.open(path)) {
+            assertNotNull(blocks.getStatistics(0));
+            IntentFilter filter = new IntentFilter().setAction("action.1234");
+            List<IntentHeader> intents = blocks.readIntents(filter);
+            assertEquals(1, intents.size());
+            AICSTestUtils.assertIntentEquals(file.getIntent(1234),
+                    intents.get(0));
+            int read = 0;
+            for (int b = 0; b < blocks.getBlockCount(); b++)
+                if (blocks.mightMatch(b, filter)) read++;
+            assertTrue(read * 20 < blocks.getBlockCount());
+
+            filter = new IntentFilter().setTimeRange(1500, 1520)
+                    .setCallerUID(10001);
+            intents = blocks.readIntents(filter);
+            assertEquals(5, intents.size());
+            for (IntentHeader intent : intents)
+                assertTrue(filter.matches(intent));
+        }
+    }
+
+    /**
+     * Test that a filtered readFromBuffer skips the blocks that can't match,
+     * of class AICSFile.
+     */
+    @Test
+    public void testReadFromBufferFilter() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(2000);
+        ByteBuffer buffer = ByteBuffer.wrap(
+                Files.readAllBytes(AICSTestUtils.writeBlockFile(file, 1024)));
+
+        // Corrupt the first block, which can't hold the filtered intent
+        AICSFile.AICSFileHeader.readFromBuffer(buffer);
+        int start = buffer.position() + AICSBlockWriter.BLOCK_HEADER_SIZE;
+        int compressed = buffer.getInt(buffer.position() + 4);
+        for (int i = start; i < start + compressed; i++)
+            buffer.put(i, (byte) 0xFF);
+        buffer.rewind();
+
+        try {
+            AICSFile.readFromBuffer(buffer.duplicate());
+            fail("The corrupt block was read.");
+        } catch (ParseException e) {
+            // Expected
+        }
+        IntentFilter filter = new IntentFilter().setAction("action.1234");
+        AICSFile result = AICSFile.readFromBuffer(buffer, filter);
+        assertEquals(1, result.size());
+        AICSTestUtils.assertIntentEquals(file.getIntent(1234),
+                result.getIntent(0));
+    }
+
+    /**
+     * Test that files written without block statistics can still be read.
+     */
+    @Test
+    public void testNoStatistics() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        Path path = AICSTestUtils.writeBlockFile(file, 1024);
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer trailer = ByteBuffer.wrap(bytes, bytes.length - 16, 16);
+        long footer = trailer.getLong();
+        int blockCount = trailer.getInt();
+
+        // Drop the statistics and use the old magic number
+        int end = (int) footer + blockCount * AICSBlockWriter.INDEX_ENTRY_SIZE;
+        ByteBuffer old = ByteBuffer.allocate(end + 16);
+        old.put(bytes, 0, end).putLong(footer).putInt(blockCount)
+                .putInt(AICSBlockWriter.FOOTER_MAGIC).flip();
+        AICSBlockFile blocks = AICSBlockFile.wrap(old);
+        assertEquals(blockCount, blocks.getBlockCount());
+        assertNull(blocks.getStatistics(0));
+        List<IntentHeader> intents = blocks.readIntents(new IntentFilter()
+                .setAction("action.123"));
+        assertEquals(1, intents.size());
+        AICSTestUtils.assertIntentEquals(file.getIntent(123), intents.get(0));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSBlockStatisticsTest {
+
+    /**
+     * Creates statistics for intents 100 to 199 of a test file.
+     */
+    private static AICSBlockStatistics create() {
+        AICSFile file = AICSTestUtils.createFile(200);
+        AICSBlockStatistics statistics = new AICSBlockStatistics();
+        for (int i = 100; i < 200; i++) statistics.add(file.getIntent(i));
+        statistics.finish();
+        return statistics;
+    }
+
+    /**
+     * Test of the ranges and counts, of class AICSBlockStatistics.
+     */
+    @Test
+    public void testAdd() {
+        AICSBlockStatistics statistics = create();
+        assertEquals(1100000, statistics.getMinTime());
+        assertEquals(1199000, statistics.getMaxTime());
+        assertEquals(10000, statistics.getMinCallerUID());
+        assertEquals(10003, statistics.getMaxCallerUID());
+        assertEquals(33, statistics.getIntentCount(IntentHeader.TYPE_ACTIVITY));
+        assertEquals(34,
+                statistics.getIntentCount(IntentHeader.TYPE_BROADCAST));
+        assertEquals(33, statistics.getIntentCount(IntentHeader.TYPE_SERVICE));
+    }
+
+    /**
+     * Test of mightContain method, of class AICSBlockStatistics.
+     */
+    @Test
+    public void testMightContain() {
+        AICSBlockStatistics statistics = create();
+        for (int i = 100; i < 200; i++)
+            assertTrue(statistics.mightContain("action." + i));
+        assertTrue(statistics.mightContain("component.caller"));
+        assertTrue(statistics.mightContain("component.receiver.102"));
+        assertTrue(statistics.mightContain("service.action.101"));
+        int falsePositives = 0;
+        for (int i = 1000; i < 11000; i++)
+            if (statistics.mightContain("action." + i)) falsePositives++;
+        assertTrue(falsePositives < 300);
+    }
+
+    /**
+     * Test of mightMatch method, of class AICSBlockStatistics.
+     */
+    @Test
+    public void testMightMatch() {
+        AICSBlockStatistics statistics = create();
+        assertTrue(statistics.mightMatch(new IntentFilter()));
+        assertTrue(statistics.mightMatch(new IntentFilter()
+                .setAction("action.150").setCallerUID(10002)));
+        assertTrue(statistics.mightMatch(new IntentFilter()
+                .setTimeRange(1199, 2000)));
+        assertFalse(statistics.mightMatch(new IntentFilter()
+                .setTimeRange(1200, 2000)));
+        assertFalse(statistics.mightMatch(new IntentFilter()
+                .setCallerUID(10004)));
+        assertFalse(statistics.mightMatch(new IntentFilter()
+                .setReceiverUID(1)));
+        assertFalse(statistics.mightMatch(new IntentFilter()
+                .setReceiverComponent("component.receiver.does.not.exist")));
+    }
+
+    /**
+     * Test of writeTo and readFrom methods, of class AICSBlockStatistics.
+     */
+    @Test
+    public void testSerialization() throws ParseException {
+        AICSBlockStatistics statistics = create();
+        ByteBuffer buffer = ByteBuffer.allocate(statistics.getSize());
+        statistics.writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        AICSBlockStatistics read = AICSBlockStatistics.readFrom(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(statistics.getMinTime(), read.getMinTime());
+        assertEquals(statistics.getMaxReceiverUID(),
+                read.getMaxReceiverUID());
+        assertEquals(33, read.getIntentCount(IntentHeader.TYPE_SERVICE));
+        for (int i = 100; i < 200; i++)
+            assertTrue(read.mightContain("action." + i));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSBlockWriterTest {
+    
+    /**
+     * Test that the block-compressed file is smaller than the raw file.
+     */
+    @Test
+    public void testCompresses() throws IOException {
+        AICSFile file = AICSTestUtils.createFile(2000);
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        long written;
+        try (AICSBlockWriter writer = new AICSBlockWriter(path, (short) 5,
+                (byte) 1, (byte) 1)) {
+            for (int i = 0; i < file.size(); i++)
+                writer.write(file.getIntent(i));
+            assertEquals(2000, writer.getIntentCount());
+            written = writer.size();
+        }
+        long size = Files.size(path);
+        assertTrue(size > written);
+        assertTrue(size * 4 < file.toByteBuffer().capacity());
+    }
+    
+    /**
+     * Test that an intent larger than a block gets a block of its own.
+     */
+    @Test
+    public void testOversizedIntent() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(20);
+        IntentHeader large = file.getIntent(10);
+        large.setIntentData(large.getIntentData().setExtras(new byte[5000]));
+        Path path = AICSTestUtils.writeBlockFile(file, 1024);
+        try (AICSBlockFile blocks = AICSBlockFile.open(path)) {
+            int block = blocks.findBlock(10);
+            assertEquals(10, blocks.getFirstIntent(block));
+            assertEquals(1, blocks.getIntentCount(block));
+            assertEquals(20, blocks.size());
+            AICSTestUtils.assertIntentEquals(file.getIntent(10),
+                    blocks.getIntent(10));
+            AICSTestUtils.assertIntentEquals(file.getIntent(11),
+                    blocks.getIntent(11));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSCaptureLoggerTest {
+    
+    private final static int THREADS = 8;
+    private final static int PER_THREAD = 2000;
+    
+    /**
+     * Logs intents from several threads at once and checks that every intent
+     * was written and each thread's intents stayed in order.
+     */
+    private void logConcurrently(AICSCaptureLogger.WaitStrategy strategy)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AICSWriter writer = new AICSWriter(Channels.newChannel(out),
+                (short) 5, (byte) 1, (byte) 1, 4096);
+        final AICSCaptureLogger logger = new AICSCaptureLogger(writer, 64,
+                256, strategy);
+        
+        Thread[] threads = new Thread[THREADS];
+        final Exception[] failures = new Exception[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ServiceIntentHeader intent = new ServiceIntentHeader();
+                        intent.setCallerPID(thread)
+                                .setIntentData(new IntentData());
+                        for (int i = 0; i < PER_THREAD; i++) {
+                            intent.setTimestamp(i);
+                            intent.setAction("action" + i);
+                            logger.log(intent);
+                        }
+                    } catch (Exception e) {
+                        failures[thread] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        logger.close();
+        for (Exception failure : failures) if (failure != null) throw failure;
+        
+        AICSFile file = AICSFile.readFromBuffer(
+                ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(THREADS * PER_THREAD, file.size());
+        int[] next = new int[THREADS];
+        for (int i = 0; i < file.size(); i++) {
+            ServiceIntentHeader intent =
+                    (ServiceIntentHeader) file.getIntent(i);
+            int thread = intent.getCallerPID();
+            assertEquals(next[thread], intent.getTimestamp());
+            assertEquals("action" + next[thread], intent.getAction());
+            next[thread]++;
+        }
+    }
+    
+    /**
+     * Test of log method, of class AICSCaptureLogger, with a busy spin wait
+     * strategy.
+     */
+    @Test
+    public void testLogBusySpin() throws Exception {
+        logConcurrently(AICSCaptureLogger.busySpinWaitStrategy());
+    }
+    
+    /**
+     * Test of log method, of class AICSCaptureLogger, with a yielding wait
+     * strategy.
+     */
+    @Test
+    public void testLogYielding() throws Exception {
+        logConcurrently(AICSCaptureLogger.yieldingWaitStrategy());
+    }
+    
+    /**
+     * Test of log method, of class AICSCaptureLogger, with a sleeping wait
+     * strategy.
+     */
+    @Test
+    public void testLogSleeping() throws Exception {
+        logConcurrently(AICSCaptureLogger.sleepingWaitStrategy(1000));
+    }
+    
+    /**
+     * Test of log method, of class AICSCaptureLogger, with a blocking wait
+     * strategy.
+     */
+    @Test
+    public void testLogBlocking() throws Exception {
+        logConcurrently(AICSCaptureLogger.blockingWaitStrategy());
+    }
+    
+    /**
+     * Test that closing the logger while threads are still logging writes
+     * every intent which was accepted before the close.
+     */
+    @Test
+    public void testCloseWhileLogging() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AICSWriter writer = new AICSWriter(Channels.newChannel(out),
+                (short) 5, (byte) 1, (byte) 1, 4096);
+        final AICSCaptureLogger logger = new AICSCaptureLogger(writer, 16,
+                256, AICSCaptureLogger.yieldingWaitStrategy());
+        
+        Thread[] threads = new Thread[THREADS];
+        final int[] accepted = new int[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ServiceIntentHeader intent = new ServiceIntentHeader();
+                    intent.setCallerPID(thread)
+                            .setIntentData(new IntentData());
+                    try {
+                        while (true) {
+                            intent.setTimestamp(accepted[thread]);
+                            logger.log(intent);
+                            accepted[thread]++;
+                        }
+                    } catch (IllegalStateException | IOException e) {
+                        // Closed
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        Thread.sleep(50);
+        logger.close();
+        for (Thread thread : threads) thread.join();
+        
+        AICSFile file = AICSFile.readFromBuffer(
+                ByteBuffer.wrap(out.toByteArray()));
+        int[] next = new int[THREADS];
+        for (int i = 0; i < file.size(); i++) {
+            IntentHeader intent = file.getIntent(i);
+            int thread = intent.getCallerPID();
+            assertEquals(next[thread]++, intent.getTimestamp());
+        }
+        assertArrayEquals(accepted, next);
+    }
+    
+    /**
+     * Test that intents larger than a slot are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testLogTooLarge() throws IOException {
+        AICSWriter writer = new AICSWriter(Channels.newChannel(
+                new ByteArrayOutputStream()), (short) 5, (byte) 1, (byte) 1);
+        try (AICSCaptureLogger logger = new AICSCaptureLogger(writer, 4, 64,
+                AICSCaptureLogger.blockingWaitStrategy())) {
+            logger.log(new ActivityIntentHeader().setOptions(new byte[100])
+                    .setIntentData(new IntentData()));
+        }
+    }
+    
+    /**
+     * Test that an intent which fails to encode doesn't stall the writer
+     * thread, so the intents after it are written and close returns.
+     */
+    @Test(timeout = 10000)
+    public void testLogEncodeFailure() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AICSWriter writer = new AICSWriter(Channels.newChannel(out),
+                (short) 5, (byte) 1, (byte) 1, 4096);
+        AICSCaptureLogger logger = new AICSCaptureLogger(writer, 4, 256,
+                AICSCaptureLogger.yieldingWaitStrategy());
+        IntentHeader broken = new ServiceIntentHeader() {
+            @Override
+            public void writeTo(ByteBuffer dst) {
+                throw new BufferOverflowException();
+            }
+        }.setIntentData(new IntentData());
+        IntentHeader intent = new ServiceIntentHeader()
+                .setIntentData(new IntentData());
+        // Log past the end of the ring so the failed slots must be freed
+        for (int i = 0; i < 20; i++) {
+            if (i % 2 == 0) {
+                try {
+                    logger.log(broken);
+                    fail("The broken intent was logged.");
+                } catch (BufferOverflowException e) {
+                    // Expected
+                }
+            }
+            logger.log(intent.setTimestamp(i));
+        }
+        logger.close();
+
+        AICSFile file = AICSFile.readFromBuffer(
+                ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(20, file.size());
+        for (int i = 0; i < file.size(); i++)
+            assertEquals(i, file.getIntent(i).getTimestamp());
+    }
+    
+    /**
+     * Test that once the writer thread fails, logging reports the failure
+     * instead of dropping intents.
+     */
+    @Test
+    public void testLogAfterFailure() throws Exception {
+        WritableByteChannel broken = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("Disk is full.");
+            }
+
+            @Override
+            public boolean isOpen() { return true; }
+
+            @Override
+            public void close() {}
+        };
+        AICSWriter writer = new AICSWriter(broken, (short) 5, (byte) 1,
+                (byte) 1, 4096);
+        AICSCaptureLogger logger = new AICSCaptureLogger(writer, 1024, 256,
+                AICSCaptureLogger.yieldingWaitStrategy());
+        IntentHeader intent = new ServiceIntentHeader()
+                .setIntentData(new IntentData());
+        int logged = 0;
+        try {
+            // The ring never fills up, so only the failure can stop this
+            while (logged < 1024) {
+                logger.log(intent);
+                logged++;
+                Thread.sleep(1);
+            }
+            fail("The writer thread's failure was never reported.");
+        } catch (IOException e) {
+            assertEquals("Disk is full.", e.getMessage());
+        }
+    }
+    
+    /**
+     * Test that a little-endian writer gets intents encoded in its order.
+     */
+    @Test
+    public void testLogLittleEndian() throws Exception {
+        AICSFile file = AICSTestUtils.createFile(20);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AICSWriter writer = new AICSWriter(Channels.newChannel(out),
+                (short) 5, (byte) 1, (byte) 1, 4096, AICSWriter.ENCODING_RAW,
+                ByteOrder.LITTLE_ENDIAN);
+        try (AICSCaptureLogger logger = new AICSCaptureLogger(writer)) {
+            for (int i = 0; i < file.size(); i++)
+                logger.log(file.getIntent(i));
+        }
+        assertArrayEquals(AICSTestUtils.write(file, AICSWriter.ENCODING_RAW,
+                ByteOrder.LITTLE_ENDIAN), out.toByteArray());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSColumnFileTest {
+    
+    /**
+     * Test of readFromBuffer method, of class AICSColumnFile.
+     */
+    @Test
+    public void testReadFromBuffer() throws ParseException {
+        AICSFile file = AICSTestUtils.createFile(500);
+        ByteBuffer buffer = file.toByteBuffer();
+        AICSColumnFile columns = AICSColumnFile.readFromBuffer(buffer);
+        assertEquals(0, buffer.position());
+        assertEquals(5, columns.getAndroidMajorVersion());
+        assertEquals(500, columns.size());
+        for (int i = 0; i < 500; i++) {
+            IntentHeader intent = file.getIntent(i);
+            assertEquals(intent.getIntentType(), columns.getIntentType(i));
+            assertEquals(intent.getTimestamp(), columns.getTimestamp(i));
+            assertEquals(intent.getCallerUID(), columns.getCallerUID(i));
+            assertEquals(intent.getIntentData().getAction(),
+                    columns.getAction(i));
+            AICSTestUtils.assertIntentEquals(intent, columns.getIntent(i));
+        }
+        assertArrayEquals(buffer.array(),
+                columns.toAICSFile().toByteBuffer().array());
+    }
+    
+    /**
+     * Test of appendIntent method, of class AICSColumnFile.
+     */
+    @Test
+    public void testAppendIntent() {
+        AICSColumnFile columns = new AICSColumnFile((short) 5, (byte) 1,
+                (byte) 1);
+        columns.appendIntent(new ActivityIntentHeader()
+                .setRequestCode(7)
+                .setStartFlags(8)
+                .setCallerComponent("caller")
+                .setOptions(new byte[] { 1, 2 })
+                .setOffset((short) 12)
+                .setIntentData(new IntentData().setExtras(new byte[300])));
+        columns.appendIntent(new ServiceIntentHeader()
+                .setFlags(9)
+                .setAction("service")
+                .setIntentData(new IntentData().setCategory("category")));
+        assertEquals(2, columns.size());
+        assertEquals(7, columns.getRequestCode(0));
+        assertEquals(8, columns.getFlags(0));
+        assertEquals(12, columns.getOffset(0));
+        assertEquals("caller", columns.getCallerComponent(0));
+        assertNull(columns.getReceiverComponent(0));
+        assertEquals(0, columns.getRequestCode(1));
+        assertEquals(9, columns.getFlags(1));
+        assertNull(columns.getAction(1));
+        assertEquals("service",
+                ((ServiceIntentHeader) columns.getIntent(1)).getAction());
+        assertEquals("category",
+                columns.getIntent(1).getIntentData().getCategory());
+        assertEquals(300,
+                columns.getIntent(0).getIntentData().getExtras().length);
+        
+        columns.trimToSize();
+        columns.appendIntent(columns.getIntent(1));
+        assertEquals(3, columns.size());
+        AICSTestUtils.assertIntentEquals(columns.getIntent(1),
+                columns.getIntent(2));
+    }
+    
+    /**
+     * Test that files in the other formats are decoded first.
+     */
+    @Test
+    public void testReadCompact() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(100);
+        AICSColumnFile columns = AICSColumnFile.readFromArray(
+                AICSTestUtils.write(file, AICSWriter.ENCODING_COMPACT));
+        assertEquals(100, columns.size());
+        for (int i = 0; i < 100; i++)
+            AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                    columns.getIntent(i));
+    }
+    
+    /**
+     * Test that reading stops at a truncated intent.
+     */
+    @Test
+    public void testTruncated() throws ParseException {
+        ByteBuffer buffer = AICSTestUtils.createFile(10).toByteBuffer();
+        buffer.limit(buffer.limit() - 1);
+        assertEquals(9, AICSColumnFile.readFromBuffer(buffer).size());
+    }
+    
+    /**
+     * Test that an index past the last intent is rejected.
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        new AICSColumnFile((short) 5, (byte) 1, (byte) 1).getTimestamp(0);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSFileReaderTest {
+
+    /**
+     * Test that every intent is read in order, including when intents cross
+     * or are larger than the mapped window.
+     */
+    @Test
+    public void testReadAll() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(50);
+        Path path = AICSTestUtils.writeFile(file);
+
+        for (int window : new int[] {
+                IntentHeader.MAX_FIXED_SIZE, 100, 1000,
+                AICSFileReader.DEFAULT_WINDOW_SIZE }) {
+            try (AICSFileReader reader = new AICSFileReader(path, window)) {
+                int i = 0;
+                while (reader.hasNext()) {
+                    IntentHeader intent = reader.next();
+                    assertEquals(file.getIntent(i).getIntentType(),
+                            intent.getIntentType());
+                    assertEquals(file.getIntent(i).getTimestamp(),
+                            intent.getTimestamp());
+                    assertEquals(file.getIntent(i).getIntentData().getAction(),
+                            intent.getIntentData().getAction());
+                    i++;
+                }
+                assertEquals(file.size(), i);
+                assertEquals(Files.size(path), reader.getPosition());
+            }
+        }
+    }
+
+    /**
+     * Test that a reader can share a channel opened by the caller.
+     */
+    @Test
+    public void testReadFromChannel() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(10);
+        Path path = AICSTestUtils.writeFile(file);
+
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            AICSFileReader reader = new AICSFileReader(channel, 256);
+            int i = 0;
+            while (reader.hasNext()) {
+                reader.next();
+                i++;
+            }
+            reader.close();
+            assertEquals(file.size(), i);
+            assertTrue(channel.isOpen());
+        }
+    }
+
+    /**
+     * Test that a truncated intent at the end of the file is reported.
+     */
+    @Test
+    public void testTruncated() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(3);
+        byte[] array = file.toByteBuffer().array();
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, Arrays.copyOf(array, array.length - 10));
+
+        try (AICSFileReader reader = new AICSFileReader(path)) {
+            reader.next();
+            reader.next();
+            try {
+                reader.next();
+                fail("Truncated intent didn't trigger an exception");
+            } catch (BufferUnderflowException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Test that a file with a bad magic number is rejected.
+     */
+    @Test
+    public void testBadMagic() throws IOException {
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, ByteBuffer.allocate(64).putInt(0x12345678).array());
+        try {
+            new AICSFileReader(path).close();
+            fail("Bad magic number didn't trigger an exception");
+        } catch (ParseException e) {
+            // Expected
+        }
+    }
+}
@@ -20,6 +20,14 @@ import org.junit.Test;
 import java.nio.ByteBuffer;
 import java.nio.BufferUnderflowException;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.io.IOException;
+import java.nio.file.Path;
 
 /**
  *
@@ -165,4 +173,107 @@ public class AICSFileTest {
         assertEquals(file.size(), 2);
     }
     
+    /**
+     * Test that parsing in parallel gives the same intents, in the same order,
+     * as parsing sequentially.
+     */
+    @Test
+    public void testReadFromBufferParallel() throws ParseException {
+        AICSFile file = AICSTestUtils.createFile(3000);
+        ByteBuffer buffer = file.toByteBuffer();
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            AICSFile file2 = AICSFile.readFromBufferParallel(buffer, pool);
+            assertEquals(0, buffer.position());
+            assertEquals(file.size(), file2.size());
+            assertArrayEquals(buffer.array(), file2.toByteBuffer().array());
+            
+            // A truncated buffer gives back every complete intent
+            byte[] array = Arrays.copyOf(buffer.array(), buffer.capacity() - 5);
+            AICSFile file3 = AICSFile.readFromBufferParallel(
+                    ByteBuffer.wrap(array), pool);
+            assertEquals(file.size() - 1, file3.size());
+            assertEquals(AICSFile.readFromArray(array).size(), file3.size());
+        } finally {
+            pool.shutdown();
+        }
+        
+        assertEquals(file.size(),
+                AICSFile.readFromBufferParallel(buffer).size());
+    }
+    
+    /**
+     * Test of stream method, of class AICSFile.
+     */
+    @Test
+    public void testStream() {
+        AICSFile file = AICSTestUtils.createFile(30);
+        assertEquals(10, file.stream()
+                .filter(i -> i.getIntentType() == IntentHeader.TYPE_SERVICE)
+                .count());
+        assertEquals(file.getIntent(7), file.stream().skip(7).findFirst()
+                .get());
+    }
+    
+    /**
+     * Test that a file on disk can be streamed, sequentially and in parallel,
+     * with the intents kept in file order.
+     */
+    @Test
+    public void testStreamPath() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(1000);
+        Path path = AICSTestUtils.writeFile(file);
+        
+        try (Stream<IntentHeader> stream = AICSFile.stream(path)) {
+            Spliterator<IntentHeader> spliterator = stream.spliterator();
+            assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED
+                    | Spliterator.ORDERED | Spliterator.IMMUTABLE));
+            assertEquals(file.size(), spliterator.getExactSizeIfKnown());
+        }
+        
+        try (Stream<IntentHeader> stream = AICSFile.stream(path)) {
+            List<Integer> timestamps = stream.parallel()
+                    .map(IntentHeader::getTimestamp)
+                    .collect(Collectors.toList());
+            assertEquals(file.size(), timestamps.size());
+            for (int i = 0; i < file.size(); i++)
+                assertEquals(file.getIntent(i).getTimestamp(),
+                        (int) timestamps.get(i));
+        }
+        
+        try (Stream<IntentHeader> stream = AICSFile.stream(path,
+                AICSIndex.scan(path))) {
+            assertEquals(file.stream().filter(i -> i.getCallerUID() == 10001)
+                    .count(), stream.parallel()
+                    .filter(i -> i.getCallerUID() == 10001).count());
+        }
+    }
+    
+    /**
+     * Test that components with non-ASCII names survive a round trip.
+     */
+    @Test
+    public void testUnicodeComponents() throws ParseException {
+        String component = "com.example/.\u00c4ktivit\u00e4t\u2603";
+        AICSFile file = new AICSFile((short) 5, (byte) 1, (byte) 1);
+        file.appendIntent(new ActivityIntentHeader()
+                .setReceiverComponent(component)
+                .setIntentData(new IntentData()));
+        file.appendIntent(new ServiceIntentHeader()
+                .setCallerComponent(component)
+                .setIntentData(new IntentData()));
+        
+        AICSFile file2 = AICSFile.readFromBuffer(file.toByteBuffer());
+        assertEquals(2, file2.size());
+        assertEquals(component, ((ActivityIntentHeader) file2.getIntent(0))
+                .getReceiverComponent());
+        assertEquals(component, ((ServiceIntentHeader) file2.getIntent(1))
+                .getCallerComponent());
+        
+        ActivityIntentHeaderView view = new ActivityIntentHeaderView();
+        view.wrap(file.toByteBuffer(), 12);
+        assertEquals(component, view.getReceiverComponent());
+    }
+    
 }
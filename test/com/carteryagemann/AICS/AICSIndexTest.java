@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSIndexTest {
+    
+    /**
+     * Checks that every entry of an index points at the matching intent.
+     */
+    private static void checkIndex(AICSIndex index, AICSFile file, Path path)
+            throws IOException, ParseException {
+        assertEquals(file.size(), index.size());
+        try (AICSFileReader reader = new AICSFileReader(path, 128)) {
+            // Visit the intents backwards to make sure no walking is needed
+            for (int i = file.size() - 1; i >= 0; i--) {
+                reader.seek(index.getOffset(i));
+                IntentHeader intent = reader.next();
+                assertEquals(file.getIntent(i).getIntentType(),
+                        index.getIntentType(i));
+                assertEquals(file.getIntent(i).getTimestamp(),
+                        intent.getTimestamp());
+            }
+        }
+    }
+    
+    /**
+     * Test of getIndexPath method, of class AICSIndex.
+     */
+    @Test
+    public void testGetIndexPath() {
+        assertEquals(Paths.get("dir", "capture.aicsidx"),
+                AICSIndex.getIndexPath(Paths.get("dir", "capture.aics")));
+        assertEquals(Paths.get("capture.bin.aicsidx"),
+                AICSIndex.getIndexPath(Paths.get("capture.bin")));
+    }
+    
+    /**
+     * Test that an index can be built and loaded.
+     */
+    @Test
+    public void testBuildAndLoad() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(40);
+        Path path = AICSTestUtils.writeFile(file);
+        Path indexPath = AICSIndex.getIndexPath(path);
+        indexPath.toFile().deleteOnExit();
+        
+        AICSIndex index = AICSIndex.build(path);
+        checkIndex(index, file, path);
+        assertEquals(Files.size(path), index.getIndexedSize());
+        assertEquals(AICSIndex.HEADER_SIZE + 8 * 40, Files.size(indexPath));
+        
+        checkIndex(AICSIndex.load(indexPath), file, path);
+    }
+    
+    /**
+     * Test that an index is extended when intents are appended to the
+     * capture, including when the capture ends with a partial intent.
+     */
+    @Test
+    public void testIncrementalBuild() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(30);
+        byte[] array = file.toByteBuffer().array();
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        AICSIndex.getIndexPath(path).toFile().deleteOnExit();
+        
+        // Find where intent 20 ends
+        int split = 12;
+        for (int i = 0; i < 20; i++)
+            split += file.getIntent(i).getSize()
+                    + file.getIntent(i).getIntentData().getSize();
+        
+        // Index the first 20 intents plus part of the 21st
+        Files.write(path, Arrays.copyOf(array, split + 30));
+        AICSIndex index = AICSIndex.build(path);
+        assertEquals(20, index.size());
+        assertEquals(split, index.getIndexedSize());
+        
+        // Append the rest of the capture and update the index
+        Files.write(path, Arrays.copyOfRange(array, split + 30, array.length),
+                StandardOpenOption.APPEND);
+        index = AICSIndex.build(path);
+        checkIndex(index, file, path);
+        assertEquals(array.length, index.getIndexedSize());
+    }
+    
+    /**
+     * Test that an index is rebuilt when the capture is replaced.
+     */
+    @Test
+    public void testRebuild() throws IOException, ParseException {
+        Path path = AICSTestUtils.writeFile(
+                AICSTestUtils.createFile(30));
+        AICSIndex.getIndexPath(path).toFile().deleteOnExit();
+        AICSIndex.build(path);
+        
+        AICSFile file = AICSTestUtils.createFile(10);
+        Files.write(path, file.toByteBuffer().array());
+        checkIndex(AICSIndex.build(path), file, path);
+    }
+    
+    /**
+     * Test that a capture can be indexed in memory.
+     */
+    @Test
+    public void testScan() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(3000);
+        Path path = AICSTestUtils.writeFile(file);
+        AICSIndex index = AICSIndex.scan(path);
+        checkIndex(index, file, path);
+        assertEquals(Files.size(path), index.getIndexedSize());
+        assertFalse(Files.exists(AICSIndex.getIndexPath(path)));
+    }
+    
+    /**
+     * Test that a file which isn't an index is rejected.
+     */
+    @Test
+    public void testLoadInvalid() throws IOException {
+        Path path = Files.createTempFile("aics", AICSIndex.EXTENSION);
+        path.toFile().deleteOnExit();
+        Files.write(path, ByteBuffer.allocate(64).array());
+        try {
+            AICSIndex.load(path);
+            fail("Invalid index didn't trigger an exception");
+        } catch (ParseException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSRecordArenaTest {
+    
+    /**
+     * Test of readFromBuffer method, of class AICSRecordArena.
+     */
+    @Test
+    public void testReadFromBuffer() throws ParseException {
+        AICSFile file = AICSTestUtils.createFile(500);
+        ByteBuffer buffer = file.toByteBuffer();
+        try (AICSRecordArena arena = AICSRecordArena.readFromBuffer(buffer,
+                4096)) {
+            assertEquals(0, buffer.position());
+            assertEquals(500, arena.size());
+            assertEquals(buffer.limit() - 12, arena.getBytesUsed());
+            for (int i = 0; i < 500; i++) {
+                IntentHeader intent = file.getIntent(i);
+                assertEquals(intent.getIntentType(), arena.getIntentType(i));
+                IntentHeaderView view = arena.get(i);
+                assertEquals(intent.getTimestamp(), view.getTimestamp());
+                assertEquals(intent.getCallerUID(), view.getCallerUID());
+                assertEquals(intent.getIntentData().getAction(),
+                        view.getIntentData().getAction());
+                AICSTestUtils.assertIntentEquals(intent,
+                        view.toIntentHeader());
+            }
+        }
+    }
+    
+    /**
+     * Test of append method, of class AICSRecordArena.
+     */
+    @Test
+    public void testAppend() throws ParseException {
+        AICSRecordArena arena = new AICSRecordArena(1024);
+        IntentHeader large = new ServiceIntentHeader()
+                .setAction("large")
+                .setIntentData(new IntentData().setExtras(new byte[5000]));
+        IntentHeader small = new BroadcastIntentHeader()
+                .setRequestCode(3)
+                .setIntentData(new IntentData().setAction("small"));
+        assertEquals(0, arena.append(small));
+        assertEquals(1, arena.append(large)); // Gets a page of its own
+        assertEquals(2, arena.append(arena.getBuffer(0)));
+        
+        assertEquals(3, arena.size());
+        assertEquals("large", ((ServiceIntentHeaderView) arena.get(1))
+                .getAction());
+        assertEquals(5000, arena.get(1).getIntentData().getExtrasSize());
+        assertEquals(3, ((BroadcastIntentHeaderView) arena.get(2))
+                .getRequestCode());
+        AICSTestUtils.assertIntentEquals(small,
+                arena.get(2).toIntentHeader());
+        
+        arena.clear();
+        assertEquals(0, arena.size());
+        assertEquals(0, arena.append(large));
+        AICSTestUtils.assertIntentEquals(large,
+                arena.get(0).toIntentHeader());
+    }
+    
+    /**
+     * Test that an intent whose sizes don't add up is rejected.
+     */
+    @Test(expected = ParseException.class)
+    public void testAppendCorrupt() throws ParseException {
+        ByteBuffer buffer = new ServiceIntentHeader()
+                .setIntentData(new IntentData().setAction("action"))
+                .toByteBuffer();
+        ByteBuffer intent = ByteBuffer.allocate(buffer.capacity() + 100);
+        intent.put(buffer);
+        new IntentData().writeTo(intent); // Smaller than declared
+        intent.put(new byte[6]);
+        intent.flip();
+        new AICSRecordArena(1024).append(intent);
+    }
+    
+    /**
+     * Test that an index past the last intent is rejected.
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        AICSRecordArena arena = new AICSRecordArena();
+        arena.append(new ServiceIntentHeader().setIntentData(new IntentData()));
+        arena.get(1);
+    }
+    
+    /**
+     * Test that a closed arena can't be appended to.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() {
+        AICSRecordArena arena = new AICSRecordArena();
+        arena.close();
+        arena.append(new ServiceIntentHeader().setIntentData(new IntentData()));
+    }
+}
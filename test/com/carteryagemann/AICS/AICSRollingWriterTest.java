@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSRollingWriterTest {
+    
+    /**
+     * A clock which only moves when told to.
+     */
+    private static class ManualClock extends Clock {
+        long MILLIS = 1474000000000L;
+        
+        @Override
+        public ZoneId getZone() { return ZoneOffset.UTC; }
+        
+        @Override
+        public Clock withZone(ZoneId zone) { return this; }
+        
+        @Override
+        public Instant instant() { return Instant.ofEpochMilli(MILLIS); }
+    }
+    
+    private static Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("aics");
+        directory.toFile().deleteOnExit();
+        return directory;
+    }
+    
+    /**
+     * Reads every segment back and checks they hold the file's intents.
+     */
+    private static void checkSegments(List<Path> segments, AICSFile file)
+            throws IOException, ParseException {
+        int next = 0;
+        for (Path segment : segments) {
+            segment.toFile().deleteOnExit();
+            AICSFile read = AICSFile.readFromArray(Files.readAllBytes(segment));
+            assertEquals(5, read.getAndroidMajorVersion());
+            assertEquals(1, read.getAndroidMinorVersion());
+            assertEquals(2, read.getAndroidPatchVersion());
+            assertTrue(read.size() > 0);
+            for (int i = 0; i < read.size(); i++, next++)
+                assertEquals(file.getIntent(next).getCallerUID(),
+                        read.getIntent(i).getCallerUID());
+        }
+        assertEquals(file.size(), next);
+    }
+    
+    /**
+     * Test that segments are rolled once they would grow too large.
+     */
+    @Test
+    public void testRollOnSize() throws IOException, ParseException {
+        Path directory = createDirectory();
+        AICSFile file = AICSTestUtils.createFile(100);
+        ManualClock clock = new ManualClock();
+        try (AICSRollingWriter writer = new AICSRollingWriter(directory,
+                "capture", (short) 5, (byte) 1, (byte) 2, 1000, 60000,
+                clock)) {
+            for (int i = 0; i < file.size(); i++)
+                writer.write(file.getIntent(i));
+        }
+        List<Path> segments = AICSRollingWriter.listSegments(directory,
+                "capture");
+        assertTrue(segments.size() > 1);
+        for (Path segment : segments) assertTrue(Files.size(segment) <= 1000);
+        checkSegments(segments, file);
+    }
+    
+    /**
+     * Test that segments are rolled once they get too old.
+     */
+    @Test
+    public void testRollOnTime() throws IOException, ParseException {
+        Path directory = createDirectory();
+        AICSFile file = AICSTestUtils.createFile(30);
+        ManualClock clock = new ManualClock();
+        try (AICSRollingWriter writer = new AICSRollingWriter(directory,
+                "capture", (short) 5, (byte) 1, (byte) 2, Long.MAX_VALUE,
+                1000, clock)) {
+            for (int i = 0; i < file.size(); i++) {
+                writer.write(file.getIntent(i));
+                clock.MILLIS += 100;
+            }
+        }
+        List<Path> segments = AICSRollingWriter.listSegments(directory,
+                "capture");
+        assertEquals(3, segments.size());
+        assertEquals("capture-20160916T042640.000-000000.aics",
+                segments.get(0).getFileName().toString());
+        assertEquals("capture-20160916T042641.000-000001.aics",
+                segments.get(1).getFileName().toString());
+        checkSegments(segments, file);
+    }
+    
+    /**
+     * Test of roll method, of class AICSRollingWriter.
+     */
+    @Test
+    public void testRoll() throws IOException, ParseException {
+        Path directory = createDirectory();
+        AICSFile file = AICSTestUtils.createFile(10);
+        try (AICSRollingWriter writer = new AICSRollingWriter(directory,
+                "capture", (short) 5, (byte) 1, (byte) 2, Long.MAX_VALUE,
+                Long.MAX_VALUE)) {
+            assertNull(writer.getCurrentSegment());
+            for (int i = 0; i < 5; i++) writer.write(file.getIntent(i));
+            Path first = writer.getCurrentSegment();
+            writer.roll();
+            for (int i = 5; i < 10; i++) writer.write(file.getIntent(i));
+            assertNotEquals(first, writer.getCurrentSegment());
+        }
+        List<Path> segments = AICSRollingWriter.listSegments(directory,
+                "capture");
+        assertEquals(2, segments.size());
+        checkSegments(segments, file);
+    }
+    
+    /**
+     * Test of listSegments method, of class AICSRollingWriter.
+     */
+    @Test
+    public void testListSegments() throws IOException {
+        Path directory = createDirectory();
+        String[] names = {
+            "cap-20160916T042641.000-000001.aics",
+            "cap-20160916T042640.000-000000.aics",
+            "cap-old-20160916T042640.000-000000.aics",
+            "cap-notes.aics",
+            "cap-20160916T042640.000-000000.aics.tmp",
+            "a[b]-20160916T042640.000-1000000.aics"
+        };
+        for (String name : names)
+            Files.createFile(directory.resolve(name)).toFile().deleteOnExit();
+        
+        List<Path> segments = AICSRollingWriter.listSegments(directory, "cap");
+        assertEquals(2, segments.size());
+        assertEquals(names[1], segments.get(0).getFileName().toString());
+        assertEquals(names[0], segments.get(1).getFileName().toString());
+        segments = AICSRollingWriter.listSegments(directory, "cap-old");
+        assertEquals(1, segments.size());
+        assertEquals(names[2], segments.get(0).getFileName().toString());
+        segments = AICSRollingWriter.listSegments(directory, "a[b]");
+        assertEquals(1, segments.size());
+        assertEquals(names[5], segments.get(0).getFileName().toString());
+    }
+}
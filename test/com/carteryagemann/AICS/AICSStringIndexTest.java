@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSStringIndexTest {
+
+    private final static String[] ACTIONS = {
+        "android.intent.action.MAIN",
+        "android.intent.action.VIEW",
+        "android.intent.action.SEND",
+        "com.example.action.SYNC",
+        "android.intent.category.LAUNCHER"
+    };
+
+    /**
+     * Creates a file whose actions repeat.
+     */
+    private static AICSFile createRepeatingFile(int count) {
+        AICSFile file = AICSTestUtils.createFile(count);
+        for (int i = 0; i < count; i++) {
+            // Set again so the header's intent data size is updated
+            IntentHeader intent = file.getIntent(i);
+            intent.setIntentData(intent.getIntentData()
+                    .setAction(ACTIONS[i % 5]));
+        }
+        return file;
+    }
+
+    /**
+     * Returns the ordinals of the intents whose intent data action starts
+     * with a prefix and, unless it's null, whose caller component is a
+     * string.
+     */
+    private static int[] expected(AICSFile file, String prefix,
+            String caller) {
+        IntentFilter callers = new IntentFilter().setCallerComponent(caller);
+        return AICSTestUtils.ordinals(file, intent -> intent.getIntentData()
+                .getAction().startsWith(prefix) && callers.matches(intent));
+    }
+
+    private static void checkIndex(AICSStringIndex index, AICSFile file) {
+        assertEquals(file.size(), index.size());
+        assertEquals(5, index.getStringCount(AICSStringIndex.FIELD_ACTION));
+        assertArrayEquals(expected(file, ACTIONS[1], null),
+                index.lookup(AICSStringIndex.FIELD_ACTION, ACTIONS[1]));
+        assertArrayEquals(expected(file, "android.intent.action.", null),
+                index.find(AICSStringIndex.FIELD_ACTION,
+                        "android.intent.action.*"));
+        assertArrayEquals(expected(file, "android.", "component.caller"),
+                index.find("android.*", null, null, "component.caller"));
+        assertArrayEquals(new int[] { 2 }, index.lookup(
+                AICSStringIndex.FIELD_SERVICE_ACTION, "service.action.2"));
+        assertArrayEquals(new int[] { 3 }, index.lookup(
+                AICSStringIndex.FIELD_RECEIVER_COMPONENT,
+                "component.receiver.3"));
+        assertEquals(0, index.lookup(AICSStringIndex.FIELD_ACTION,
+                "android.intent.action").length);
+        assertEquals(0, index.lookupPrefix(AICSStringIndex.FIELD_ACTION,
+                "org.").length);
+        assertEquals(file.size(), index.find(null, null, null, null).length);
+    }
+
+    /**
+     * Test of getIndexPath method, of class AICSStringIndex.
+     */
+    @Test
+    public void testGetIndexPath() {
+        assertEquals(Paths.get("dir", "capture.aicsstr"),
+                AICSStringIndex.getIndexPath(Paths.get("dir", "capture.aics")));
+    }
+
+    /**
+     * Test of find method, of class AICSStringIndex.
+     */
+    @Test
+    public void testFind() throws IOException, ParseException {
+        AICSFile file = createRepeatingFile(1000);
+        Path path = AICSTestUtils.writeFile(file);
+        checkIndex(AICSStringIndex.scan(path), file);
+    }
+
+    /**
+     * Test of intersect method, of class AICSStringIndex.
+     */
+    @Test
+    public void testIntersect() {
+        assertArrayEquals(new int[] { 3, 9, 200 }, AICSStringIndex.intersect(
+                new int[] { 1, 3, 5, 9, 200 },
+                new int[] { 0, 2, 3, 4, 6, 7, 8, 9, 10, 150, 200, 300 }));
+        assertArrayEquals(new int[0], AICSStringIndex.intersect(
+                new int[] { 1, 2 }, new int[0]));
+    }
+
+    /**
+     * Test of setStringIndex method, of class AICSFile.
+     */
+    @Test
+    public void testAppendIntent() {
+        AICSFile source = createRepeatingFile(600);
+        AICSFile file = new AICSFile((short) 5, (byte) 1, (byte) 1);
+        for (int i = 0; i < 100; i++) file.appendIntent(source.getIntent(i));
+        AICSStringIndex index = new AICSStringIndex();
+        file.setStringIndex(index);
+        for (int i = 100; i < 600; i++) file.appendIntent(source.getIntent(i));
+        checkIndex(index, source);
+        file.clearIntents().appendIntent(source.getIntent(0));
+        assertEquals(600, index.size());
+    }
+
+    /**
+     * Test that an index written alongside a capture can be saved and then
+     * updated after the capture is appended to.
+     */
+    @Test
+    public void testWriteAndBuild() throws IOException, ParseException {
+        AICSFile file = createRepeatingFile(300);
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Path indexPath = AICSStringIndex.getIndexPath(path);
+        indexPath.toFile().deleteOnExit();
+
+        AICSStringIndex index = new AICSStringIndex();
+        try (AICSWriter writer = new AICSWriter(FileChannel.open(path,
+                StandardOpenOption.WRITE), (short) 5, (byte) 1, (byte) 1)) {
+            writer.setStringIndex(index);
+            for (int i = 0; i < 150; i++) writer.write(file.getIntent(i));
+            assertEquals(writer.size(), index.getIndexedSize());
+        }
+        index.save(indexPath);
+        AICSStringIndex loaded = AICSStringIndex.load(indexPath);
+        assertEquals(150, loaded.size());
+        assertArrayEquals(index.find(AICSStringIndex.FIELD_ACTION,
+                "android.*"), loaded.find(AICSStringIndex.FIELD_ACTION,
+                "android.*"));
+
+        // Append the rest of the intents and update the index
+        AICSTestUtils.appendRest(path, file);
+        AICSStringIndex updated = AICSStringIndex.build(path);
+        assertEquals(Files.size(path), updated.getIndexedSize());
+        checkIndex(updated, file);
+        checkIndex(AICSStringIndex.load(indexPath), file);
+    }
+
+    /**
+     * Test that a damaged sidecar is rejected.
+     */
+    @Test(expected = ParseException.class)
+    public void testLoadInvalid() throws IOException, ParseException {
+        Path path = Files.createTempFile("aics", AICSStringIndex.EXTENSION);
+        path.toFile().deleteOnExit();
+        Files.write(path, new byte[AICSStringIndex.HEADER_SIZE]);
+        AICSStringIndex.load(path);
+    }
+}
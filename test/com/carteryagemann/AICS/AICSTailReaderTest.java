@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSTailReaderTest {
+
+    private static Path createTempFile() throws IOException {
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        return path;
+    }
+
+    private static void append(FileChannel channel, byte[] bytes, int offset,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Appends a file a few bytes at a time and checks that every intent is
+     * returned once it is complete.
+     */
+    private static void follow(int encoding) throws IOException,
+            ParseException {
+        AICSFile file = AICSTestUtils.createFile(50);
+        byte[] bytes = AICSTestUtils.write(file, encoding);
+        Path path = createTempFile();
+        ArrayList<IntentHeader> intents = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(path,
+                StandardOpenOption.WRITE);
+                AICSTailReader reader = new AICSTailReader(path)) {
+            for (int offset = 0; offset < bytes.length; offset += 7) {
+                append(out, bytes, offset, Math.min(7, bytes.length - offset));
+                IntentHeader intent;
+                while ((intent = reader.poll()) != null) intents.add(intent);
+                assertEquals(Math.min(offset + 7, bytes.length),
+                        reader.getPosition() + reader.getPendingBytes());
+            }
+            assertNull(reader.poll());
+            assertEquals(bytes.length, reader.getPosition());
+            assertEquals(0, reader.getPendingBytes());
+        }
+        assertEquals(file.size(), intents.size());
+        for (int i = 0; i < file.size(); i++)
+            AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                    intents.get(i));
+    }
+
+    /**
+     * Test of poll method, of class AICSTailReader.
+     */
+    @Test
+    public void testPoll() throws IOException, ParseException {
+        follow(AICSWriter.ENCODING_RAW);
+    }
+
+    /**
+     * Test that compact files can be followed.
+     */
+    @Test
+    public void testPollCompact() throws IOException, ParseException {
+        follow(AICSWriter.ENCODING_COMPACT);
+    }
+
+    /**
+     * Test of next method, of class AICSTailReader.
+     */
+    @Test
+    public void testNext() throws Exception {
+        AICSFile file = AICSTestUtils.createFile(2);
+        final byte[] bytes = AICSTestUtils.write(file,
+                AICSWriter.ENCODING_RAW);
+        final int first = bytes.length - file.getIntent(1).getSize()
+                - file.getIntent(1).getIntentData().getSize();
+        final Path path = createTempFile();
+        Files.write(path, Arrays.copyOf(bytes, first));
+
+        try (AICSTailReader reader = new AICSTailReader(path, 1,
+                TimeUnit.MILLISECONDS)) {
+            assertNotNull(reader.next(1, TimeUnit.SECONDS));
+            assertNull(reader.next(20, TimeUnit.MILLISECONDS));
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (FileChannel out = FileChannel.open(path,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND)) {
+                        Thread.sleep(50);
+                        append(out, bytes, first, bytes.length - first);
+                    } catch (IOException | InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            writer.start();
+            IntentHeader intent = reader.next(10, TimeUnit.SECONDS);
+            writer.join();
+            AICSTestUtils.assertIntentEquals(file.getIntent(1), intent);
+        }
+    }
+
+    /**
+     * Test that a truncated file is reported.
+     */
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException, ParseException {
+        byte[] bytes = AICSTestUtils.write(AICSTestUtils.createFile(5),
+                AICSWriter.ENCODING_RAW);
+        Path path = createTempFile();
+        Files.write(path, bytes);
+        try (AICSTailReader reader = new AICSTailReader(path)) {
+            while (reader.poll() != null);
+            Files.write(path, Arrays.copyOf(bytes, 20));
+            reader.poll();
+        }
+    }
+
+    /**
+     * Test that a compact intent which can't be decoded is left pending.
+     */
+    @Test
+    public void testPollCompactCorrupt() throws IOException,
+            ParseException {
+        byte[] bytes = AICSTestUtils.write(AICSTestUtils.createFile(1),
+                AICSWriter.ENCODING_COMPACT);
+        // A record whose intent type is invalid
+        byte[] corrupt = {4, 7, 0, 0, 0};
+        Path path = createTempFile();
+        Files.write(path, bytes);
+        Files.write(path, corrupt, StandardOpenOption.APPEND);
+        try (AICSTailReader reader = new AICSTailReader(path)) {
+            assertNotNull(reader.poll());
+            for (int i = 0; i < 2; i++) {
+                try {
+                    reader.poll();
+                    fail("The corrupt intent was decoded.");
+                } catch (ParseException e) {
+                    assertEquals(bytes.length, reader.getPosition());
+                    assertEquals(corrupt.length, reader.getPendingBytes());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that dictionary-encoded files are rejected.
+     */
+    @Test(expected = ParseException.class)
+    public void testDictionary() throws IOException, ParseException {
+        Path path = createTempFile();
+        Files.write(path, AICSTestUtils.write(
+                AICSTestUtils.createFile(5),
+                AICSWriter.ENCODING_DICTIONARY));
+        try (AICSTailReader reader = new AICSTailReader(path)) {
+            reader.poll();
+        }
+    }
+}
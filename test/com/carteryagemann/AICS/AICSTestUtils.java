@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import static org.junit.Assert.*;
+
+/**
+ * Fixtures and assertions shared by the tests.
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+final class AICSTestUtils {
+
+    private AICSTestUtils() {}
+
+    /**
+     * Creates a file with a mix of intent types for the tests to read.
+     */
+    static AICSFile createFile(int count) {
+        AICSFile file = new AICSFile((short) 5, (byte) 1, (byte) 1);
+        for (int i = 0; i < count; i++) {
+            IntentData data = new IntentData()
+                    .setFlags(i)
+                    .setAction("action." + i)
+                    .setExtras(new byte[i % 7]);
+            IntentHeader header;
+            switch (i % 3) {
+                case IntentHeader.TYPE_ACTIVITY:
+                    header = new ActivityIntentHeader()
+                            .setCallerComponent("component.caller")
+                            .setReceiverComponent("component.receiver." + i)
+                            .setOptions(new byte[i % 5]);
+                    break;
+                case IntentHeader.TYPE_BROADCAST:
+                    header = new BroadcastIntentHeader()
+                            .setCallerComponent("component.caller")
+                            .setRequiredPermission("permission." + i);
+                    break;
+                default:
+                    header = new ServiceIntentHeader()
+                            .setReceiverComponent("component.receiver." + i)
+                            .setAction("service.action." + i);
+            }
+            file.appendIntent(header
+                    .setTimestamp(1000 + i)
+                    .setCallerUID(10000 + i % 4)
+                    .setIntentData(data));
+        }
+        return file;
+    }
+
+    /**
+     * Returns a file holding the first intents of another.
+     */
+    static AICSFile head(AICSFile file, int count) {
+        AICSFile head = new AICSFile((short) 5, (byte) 1, (byte) 1);
+        for (int i = 0; i < count; i++) head.appendIntent(file.getIntent(i));
+        return head;
+    }
+
+    /**
+     * Writes a file to a temporary path.
+     */
+    static Path writeFile(AICSFile file) throws IOException {
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, file.toByteBuffer().array());
+        return path;
+    }
+
+    /**
+     * Appends the rest of a file to a capture holding its first intents.
+     */
+    static void appendRest(Path path, AICSFile file) throws IOException {
+        byte[] bytes = file.toByteBuffer().array();
+        Files.write(path, Arrays.copyOfRange(bytes, (int) Files.size(path),
+                bytes.length), StandardOpenOption.APPEND);
+    }
+
+    static byte[] write(AICSFile file, int encoding) throws IOException {
+        return write(file, encoding, ByteOrder.BIG_ENDIAN);
+    }
+
+    static byte[] write(AICSFile file, int encoding, ByteOrder order)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AICSWriter writer = new AICSWriter(Channels.newChannel(out),
+                (short) 5, (byte) 1, (byte) 1, 4096, encoding, order);
+        for (int i = 0; i < file.size(); i++)
+            writer.write(file.getIntent(i));
+        writer.close();
+        assertEquals(out.size(), writer.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a file to a temporary path in the block-compressed format.
+     */
+    static Path writeBlockFile(AICSFile file, int blockSize)
+            throws IOException {
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        try (AICSBlockWriter writer = new AICSBlockWriter(FileChannel.open(
+                path, StandardOpenOption.WRITE), (short) 5, (byte) 1,
+                (byte) 1, blockSize, Deflater.DEFAULT_COMPRESSION)) {
+            for (int i = 0; i < file.size(); i++)
+                writer.write(file.getIntent(i));
+        }
+        return path;
+    }
+
+    /**
+     * Returns the intents of a file which match, found by checking every
+     * intent.
+     */
+    static List<IntentHeader> matching(AICSFile file,
+            Predicate<IntentHeader> matches) {
+        ArrayList<IntentHeader> intents = new ArrayList<>();
+        for (int i = 0; i < file.size(); i++)
+            if (matches.test(file.getIntent(i))) intents.add(file.getIntent(i));
+        return intents;
+    }
+
+    /**
+     * Returns the ordinals of the intents of a file which match, found by
+     * checking every intent.
+     */
+    static int[] ordinals(AICSFile file, Predicate<IntentHeader> matches) {
+        int[] ordinals = new int[file.size()];
+        int count = 0;
+        for (int i = 0; i < file.size(); i++)
+            if (matches.test(file.getIntent(i))) ordinals[count++] = i;
+        return Arrays.copyOf(ordinals, count);
+    }
+
+    /**
+     * Checks that two intents flatten to the same bytes.
+     */
+    static void assertIntentEquals(IntentHeader expected,
+            IntentHeader actual) {
+        assertArrayEquals(expected.toByteBuffer().array(),
+                actual.toByteBuffer().array());
+        assertArrayEquals(expected.getIntentData().toByteBuffer().array(),
+                actual.getIntentData().toByteBuffer().array());
+    }
+
+    /**
+     * Checks that two lists of intents flatten to the same bytes.
+     */
+    static void assertIntentsEqual(List<IntentHeader> expected,
+            List<IntentHeader> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertIntentEquals(expected.get(i), actual.get(i));
+    }
+}
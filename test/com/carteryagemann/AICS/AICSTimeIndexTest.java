@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSTimeIndexTest {
+
+    /**
+     * Creates a file whose times mostly increase but are sometimes a little
+     * out of order.
+     */
+    private static AICSFile createShuffledFile(int count) {
+        AICSFile file = AICSTestUtils.createFile(count);
+        Random random = new Random(7);
+        for (int i = 0; i < count; i++) {
+            long time = 1000000L + i * 100L + random.nextInt(500);
+            file.getIntent(i).setTimestamp((int) (time / 1000))
+                    .setOffset((short) (time % 1000));
+        }
+        return file;
+    }
+
+    /**
+     * Checks that a range read returns exactly the intents a full scan finds.
+     */
+    private static void checkRange(AICSTimeIndex index, AICSFile file,
+            Path path, long from, long to)
+            throws IOException, ParseException {
+        List<IntentHeader> expected = AICSTestUtils.matching(file,
+                intent -> AICSTimeIndex.getTime(intent) >= from
+                        && AICSTimeIndex.getTime(intent) <= to);
+        try (AICSFileReader reader = new AICSFileReader(path)) {
+            AICSTestUtils.assertIntentsEqual(expected,
+                    index.read(reader, from, to));
+        }
+    }
+
+    /**
+     * Test of getIndexPath method, of class AICSTimeIndex.
+     */
+    @Test
+    public void testGetIndexPath() {
+        assertEquals(Paths.get("dir", "capture.aicstime"),
+                AICSTimeIndex.getIndexPath(Paths.get("dir", "capture.aics")));
+    }
+
+    /**
+     * Test of read method, of class AICSTimeIndex.
+     */
+    @Test
+    public void testRead() throws IOException, ParseException {
+        AICSFile file = createShuffledFile(1000);
+        Path path = AICSTestUtils.writeFile(file);
+        AICSTimeIndex index = AICSTimeIndex.scan(path, 16);
+        assertEquals(1000, index.size());
+        assertEquals(63, index.getBlockCount());
+        assertEquals(Files.size(path), index.getIndexedSize());
+
+        checkRange(index, file, path, 1000000, 1000000);
+        checkRange(index, file, path, 1010000, 1010500);
+        checkRange(index, file, path, 1031234, 1042345);
+        checkRange(index, file, path, 1099000, 1200000);
+        checkRange(index, file, path, 0, Long.MAX_VALUE);
+        checkRange(index, file, path, 2000000, 3000000);
+        Random random = new Random(3);
+        for (int i = 0; i < 50; i++) {
+            long from = 1000000 + random.nextInt(100500);
+            checkRange(index, file, path, from, from + random.nextInt(2000));
+        }
+    }
+
+    /**
+     * Test of getOffset method, of class AICSTimeIndex.
+     */
+    @Test
+    public void testGetOffset() throws IOException, ParseException {
+        AICSFile file = createShuffledFile(100);
+        Path path = AICSTestUtils.writeFile(file);
+        AICSTimeIndex index = AICSTimeIndex.scan(path, 10);
+        assertEquals(12, index.getOffset(0));
+        assertEquals(index.getIndexedSize(), index.getOffset(Long.MAX_VALUE));
+        // Nothing before the offset is at or after the time
+        long time = 1005000;
+        long offset = index.getOffset(time);
+        try (AICSFileReader reader = new AICSFileReader(path)) {
+            while (reader.getPosition() < offset)
+                assertTrue(AICSTimeIndex.getTime(reader.next()) < time);
+        }
+    }
+
+    /**
+     * Test that an index can be built, loaded and updated after the capture
+     * is appended to.
+     */
+    @Test
+    public void testBuildAndLoad() throws IOException, ParseException {
+        AICSFile file = createShuffledFile(300);
+        AICSFile first = AICSTestUtils.head(file, 150);
+        Path path = AICSTestUtils.writeFile(first);
+        Path indexPath = AICSTimeIndex.getIndexPath(path);
+        indexPath.toFile().deleteOnExit();
+
+        AICSTimeIndex index = AICSTimeIndex.build(path, 32);
+        assertEquals(150, index.size());
+        assertEquals(AICSTimeIndex.HEADER_SIZE + 5 * AICSTimeIndex.ENTRY_SIZE,
+                Files.size(indexPath));
+        AICSTimeIndex loaded = AICSTimeIndex.load(indexPath);
+        assertEquals(150, loaded.size());
+        checkRange(loaded, first, path, 1003000, 1009000);
+
+        // Append the rest of the intents and update the index
+        AICSTestUtils.appendRest(path, file);
+        index = AICSTimeIndex.build(path, 32);
+        assertEquals(300, index.size());
+        assertEquals(10, index.getBlockCount());
+        assertEquals(Files.size(path), index.getIndexedSize());
+        checkRange(index, file, path, 1010000, 1020000);
+        checkRange(AICSTimeIndex.scan(path, 32), file, path, 0,
+                Long.MAX_VALUE);
+    }
+
+    /**
+     * Test that a damaged sidecar is rejected.
+     */
+    @Test(expected = ParseException.class)
+    public void testLoadInvalid() throws IOException, ParseException {
+        Path path = Files.createTempFile("aics", AICSTimeIndex.EXTENSION);
+        path.toFile().deleteOnExit();
+        Files.write(path, new byte[AICSTimeIndex.HEADER_SIZE]);
+        AICSTimeIndex.load(path);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class AICSWriterTest {
+    
+    /**
+     * Test that the writer produces the same bytes as toByteBuffer, including
+     * when intents don't fit in the writer's buffer.
+     */
+    @Test
+    public void testWrite() throws IOException {
+        AICSFile file = AICSTestUtils.createFile(200);
+        file.appendIntent(new ActivityIntentHeader()
+                .setOptions(new byte[5000])
+                .setIntentData(new IntentData().setExtras(new byte[3000])));
+        byte[] expected = file.toByteBuffer().array();
+        
+        for (int bufferSize : new int[] { 12, 100, 4096,
+                AICSWriter.DEFAULT_BUFFER_SIZE }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AICSWriter writer = new AICSWriter(Channels.newChannel(out),
+                    (short) 5, (byte) 1, (byte) 1, bufferSize);
+            for (int i = 0; i < file.size(); i++)
+                writer.write(file.getIntent(i));
+            assertEquals(expected.length, writer.size());
+            assertEquals(file.size(), writer.getIntentCount());
+            writer.close();
+            assertArrayEquals(expected, out.toByteArray());
+        }
+    }
+    
+    /**
+     * Test that a file written to disk can be read back.
+     */
+    @Test
+    public void testWritePath() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(50);
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        try (AICSWriter writer = new AICSWriter(path, (short) 5, (byte) 1,
+                (byte) 1)) {
+            for (int i = 0; i < file.size(); i++)
+                writer.write(file.getIntent(i));
+        }
+        assertArrayEquals(file.toByteBuffer().array(),
+                Files.readAllBytes(path));
+    }
+    
+    /**
+     * Test of writeTo method, of class AICSFile.
+     */
+    @Test
+    public void testFileWriteTo() throws IOException {
+        AICSFile file = AICSTestUtils.createFile(50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        file.writeTo(Channels.newChannel(out));
+        assertArrayEquals(file.toByteBuffer().array(), out.toByteArray());
+    }
+    
+    /**
+     * Writes a file with the string table enabled.
+     */
+    static byte[] writeDictionary(AICSFile file) throws IOException {
+        return AICSTestUtils.write(file, AICSWriter.ENCODING_DICTIONARY);
+    }
+    
+    /**
+     * Test that a dictionary-encoded file reads back the same intents and
+     * shares one String instance per distinct string.
+     */
+    @Test
+    public void testWriteDictionary() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        byte[] bytes = writeDictionary(file);
+        
+        for (AICSFile read : new AICSFile[] {
+                AICSFile.readFromArray(bytes),
+                AICSFile.readFromBufferParallel(ByteBuffer.wrap(bytes)) }) {
+            assertEquals(300, read.size());
+            for (int i = 0; i < 300; i++)
+                AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                        read.getIntent(i));
+            assertSame(((ActivityIntentHeader) read.getIntent(0))
+                    .getCallerComponent(), ((ActivityIntentHeader)
+                    read.getIntent(3)).getCallerComponent());
+        }
+    }
+    
+    /**
+     * Test that repeated strings make a dictionary-encoded file smaller.
+     */
+    @Test
+    public void testDictionarySize() throws IOException {
+        AICSFile file = new AICSFile((short) 5, (byte) 1, (byte) 1);
+        for (int i = 0; i < 300; i++)
+            file.appendIntent(new BroadcastIntentHeader()
+                    .setCallerComponent("com.android.systemui/.Service" + i % 3)
+                    .setRequiredPermission("android.permission.RECEIVE")
+                    .setIntentData(new IntentData()
+                            .setAction("android.intent.action.TIME_TICK")));
+        byte[] bytes = writeDictionary(file);
+        assertTrue(bytes.length * 3 < file.toByteBuffer().capacity() * 2);
+    }
+    
+    /**
+     * Test that AICSFileReader reads dictionary-encoded files.
+     */
+    @Test
+    public void testReadDictionary() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(100);
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, writeDictionary(file));
+        try (AICSFileReader reader = new AICSFileReader(path)) {
+            for (int i = 0; i < 100; i++)
+                AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                        reader.next());
+            assertFalse(reader.hasNext());
+        }
+        assertEquals(100, AICSIndex.scan(path).size());
+    }
+    
+    /**
+     * Test that an intent referring to a missing string fails to parse.
+     */
+    @Test(expected = ParseException.class)
+    public void testDictionaryBadId() throws ParseException {
+        StringTable strings = new StringTable();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        new ServiceIntentHeader().setAction("action")
+                .setIntentData(new IntentData()).writeTo(buffer, strings);
+        new IntentData().writeTo(buffer, strings);
+        buffer.flip();
+        IntentHeader.parseIntent(buffer, new StringTable());
+    }
+    
+    /**
+     * Test that a compact file reads back the same intents and is smaller.
+     */
+    @Test
+    public void testWriteCompact() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        byte[] bytes = AICSTestUtils.write(file, AICSWriter.ENCODING_COMPACT);
+        assertTrue(bytes.length * 3 < file.toByteBuffer().capacity() * 2);
+        
+        for (AICSFile read : new AICSFile[] {
+                AICSFile.readFromArray(bytes),
+                AICSFile.readFromBufferParallel(ByteBuffer.wrap(bytes)) }) {
+            assertEquals(300, read.size());
+            for (int i = 0; i < 300; i++)
+                AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                        read.getIntent(i));
+            // Read intents are flattened in the raw format
+            assertArrayEquals(file.toByteBuffer().array(),
+                    read.toByteBuffer().array());
+        }
+    }
+    
+    /**
+     * Test that AICSFileReader refuses compact files.
+     */
+    @Test(expected = ParseException.class)
+    public void testReadCompact() throws IOException, ParseException {
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, AICSTestUtils.write(AICSTestUtils.createFile(10),
+                AICSWriter.ENCODING_COMPACT));
+        new AICSFileReader(path).close();
+    }
+    
+    /**
+     * Test that little-endian files of every encoding read back the same
+     * intents.
+     */
+    @Test
+    public void testWriteLittleEndian() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(50);
+        int[] encodings = { AICSWriter.ENCODING_RAW,
+                AICSWriter.ENCODING_DICTIONARY, AICSWriter.ENCODING_COMPACT };
+        for (int encoding : encodings) {
+            byte[] bytes = AICSTestUtils.write(file, encoding,
+                    ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            assertEquals(Integer.reverseBytes(
+                    AICSFile.AICSFileHeader.MAGIC_NUMBER), buffer.getInt(0));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(5, buffer.getShort(8));
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            
+            AICSFile read = AICSFile.readFromBuffer(buffer);
+            assertEquals(0, buffer.position());
+            assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+            assertEquals(file.size(), read.size());
+            for (int i = 0; i < file.size(); i++)
+                AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                        read.getIntent(i));
+            // Decoded files are flattened big endian
+            assertArrayEquals(file.toByteBuffer().array(),
+                    read.toByteBuffer().array());
+        }
+    }
+    
+    /**
+     * Test that every reader decodes little-endian raw files.
+     */
+    @Test
+    public void testReadLittleEndian() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(50);
+        byte[] bytes = AICSTestUtils.write(file, AICSWriter.ENCODING_RAW,
+                ByteOrder.LITTLE_ENDIAN);
+        assertFalse(Arrays.equals(file.toByteBuffer().array(),
+                bytes));
+        assertEquals(file.toByteBuffer().limit(), bytes.length);
+        
+        AICSFile parallel = AICSFile.readFromBufferParallel(
+                ByteBuffer.wrap(bytes));
+        AICSColumnFile columns = AICSColumnFile.readFromArray(bytes);
+        AICSRecordArena arena = AICSRecordArena.readFromBuffer(
+                ByteBuffer.wrap(bytes), AICSRecordArena.DEFAULT_PAGE_SIZE);
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, bytes);
+        try (AICSFileReader reader = new AICSFileReader(path)) {
+            for (int i = 0; i < file.size(); i++) {
+                IntentHeader expected = file.getIntent(i);
+                AICSTestUtils.assertIntentEquals(expected,
+                        parallel.getIntent(i));
+                AICSTestUtils.assertIntentEquals(expected,
+                        columns.getIntent(i));
+                AICSTestUtils.assertIntentEquals(expected,
+                        arena.get(i).toIntentHeader());
+                AICSTestUtils.assertIntentEquals(expected, reader.next());
+            }
+            assertFalse(reader.hasNext());
+        }
+        
+        // Filters read the raw bytes in the file's order
+        assertEquals(13, AICSFile.readFromBuffer(ByteBuffer.wrap(bytes),
+                new IntentFilter().setCallerUID(10001)).size());
+    }
+}
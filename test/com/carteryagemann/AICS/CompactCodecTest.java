@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class CompactCodecTest {
+    
+    /**
+     * Test of encode and decode methods, of class CompactCodec.
+     */
+    @Test
+    public void testRoundTrip() throws ParseException {
+        IntentHeader[] intents = new IntentHeader[] {
+            new ActivityIntentHeader()
+                    .setRequestCode(-1)
+                    .setStartFlags(Integer.MIN_VALUE)
+                    .setCallerComponent("com.android.launcher/.Launcher")
+                    .setOptions(new byte[] { 1, 2, 3 })
+                    .setTimestamp(1474000000)
+                    .setCallerUID(10012)
+                    .setCallerPID(-5)
+                    .setIntentData(new IntentData()
+                            .setAction("android.intent.action.MAIN")
+                            .setCategory("android.intent.category.HOME")
+                            .setExtras(new byte[] { 9 })),
+            new BroadcastIntentHeader()
+                    .setFlags(0x10)
+                    .setRequiredPermission("android.permission.RECEIVE")
+                    .setTimestamp(1473999990) // Earlier than the last intent
+                    .setOffset((short) 999)
+                    .setUserID(Integer.MAX_VALUE)
+                    .setIntentData(new IntentData()),
+            new ServiceIntentHeader()
+                    .setFlags(3)
+                    .setAction("")
+                    .setReceiverComponent("com.example/.S\u00e9rvice")
+                    .setTimestamp(1474000001)
+                    .setReceiverUID(1000)
+                    .setReceiverPID(321)
+                    .setIntentData(new IntentData()
+                            .setFlags(-2)
+                            .setData("content://example")
+                            .setType("text/plain")
+                            .setClipData(new byte[] { 4, 5 }))
+        };
+        
+        CompactCodec encoder = new CompactCodec();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int size = 0;
+        for (IntentHeader intent : intents) {
+            int expected = encoder.prepare(intent);
+            encoder.encode(buffer);
+            size += expected;
+            assertEquals(size, buffer.position());
+        }
+        buffer.flip();
+        
+        CompactCodec decoder = new CompactCodec();
+        for (IntentHeader intent : intents)
+            AICSTestUtils.assertIntentEquals(intent,
+                    decoder.decode(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+    
+    /**
+     * Test that a truncated intent leaves the buffer where it was.
+     */
+    @Test
+    public void testTruncated() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        new CompactCodec().encode(new ServiceIntentHeader()
+                .setAction("action").setIntentData(new IntentData()), buffer);
+        buffer.flip().limit(buffer.limit() - 1);
+        try {
+            new CompactCodec().decode(buffer);
+            fail("Truncated intent was decoded.");
+        } catch (BufferUnderflowException e) {
+            assertEquals(0, buffer.position());
+        } catch (ParseException e) {
+            fail(e.toString());
+        }
+    }
+    
+    /**
+     * Test that an unknown bit in the presence bitmap fails to decode.
+     */
+    @Test(expected = ParseException.class)
+    public void testBadBitmap() throws ParseException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        BufferUtils.putVarint(buffer, 6);
+        buffer.put((byte) IntentHeader.TYPE_SERVICE);
+        BufferUtils.putVarint(buffer, 0);
+        BufferUtils.putVarint(buffer, 0);
+        BufferUtils.putVarint(buffer, 1 << 20);
+        buffer.flip();
+        new CompactCodec().decode(buffer);
+    }
+}
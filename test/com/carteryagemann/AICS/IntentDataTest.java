@@ -15,6 +15,9 @@
  */
 package com.carteryagemann.AICS;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Random;
 import javax.xml.bind.DatatypeConverter;
@@ -276,4 +279,51 @@ public class IntentDataTest {
         assertEquals(expResult, result);
     }
     
+    /**
+     * Test of writeTo method, of class IntentData.
+     */
+    @Test
+    public void testWriteTo() {
+        byte[] extras = new byte[100];
+        RANDOM.nextBytes(extras);
+        IntentData instance = new IntentData()
+                .setAction("android.intent.action.AIRPLANE_MODE")
+                .setExtras(extras);
+        ByteBuffer buffer = ByteBuffer.allocate(instance.getSize() + 4);
+        buffer.put((byte) 1);
+        instance.writeTo(buffer);
+        assertEquals(1 + instance.getSize(), buffer.position());
+        buffer.flip();
+        buffer.position(1);
+        assertEquals(instance.toByteBuffer(), buffer);
+        
+        // Nothing is written if the IntentData doesn't fit
+        buffer.clear();
+        buffer.position(5);
+        try {
+            instance.writeTo(buffer);
+            fail("Small buffer didn't trigger an exception");
+        } catch (BufferOverflowException e) {
+            assertEquals(5, buffer.position());
+        }
+    }
+    
+    /**
+     * Test that non-ASCII strings are stored as UTF-8 and that their size is
+     * the number of encoded bytes.
+     */
+    @Test
+    public void testUnicode() {
+        String action = "com.example.\u00e9v\u00e9nement.\u4e2d\u6587";
+        IntentData instance = new IntentData().setAction(action);
+        int length = action.getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(4 * 7 + length, instance.getSize());
+        
+        ByteBuffer buffer = instance.toByteBuffer();
+        assertEquals(length, buffer.getInt(4));
+        IntentData result = new IntentData(buffer);
+        assertEquals(action, result.getAction());
+        assertEquals(instance.toByteBuffer(), result.toByteBuffer());
+    }
+    
 }
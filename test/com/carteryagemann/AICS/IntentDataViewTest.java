@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class IntentDataViewTest {
+    
+    private final Random RANDOM = new Random(System.currentTimeMillis());
+    
+    /**
+     * Test that a view reads the same values as the parser.
+     */
+    @Test
+    public void testWrap() {
+        byte[] clipdata = new byte[300];
+        byte[] extras = new byte[200];
+        RANDOM.nextBytes(clipdata);
+        RANDOM.nextBytes(extras);
+        IntentData data = new IntentData()
+                .setFlags(1)
+                .setAction("android.intent.action.AIRPLANE_MODE")
+                .setData("file:///tmp/android.txt")
+                .setType("text/plain")
+                .setClipData(clipdata)
+                .setExtras(extras);
+        ByteBuffer buffer = ByteBuffer.allocate(data.getSize() + 4);
+        buffer.putInt(0).put(data.toByteBuffer()).rewind();
+        
+        IntentDataView view = new IntentDataView().wrap(buffer, 4);
+        assertEquals(1, view.getFlags());
+        assertEquals("android.intent.action.AIRPLANE_MODE", view.getAction());
+        assertEquals("file:///tmp/android.txt", view.getData());
+        assertNull(view.getCategory());
+        assertEquals(0, view.getCategorySize());
+        assertEquals("text/plain", view.getType());
+        assertEquals(ByteBuffer.wrap(clipdata), view.getClipDataSlice());
+        assertEquals(ByteBuffer.wrap(extras), view.getExtrasSlice());
+        assertEquals(data.getSize(), view.getSize());
+        assertEquals(0, buffer.position());
+        
+        IntentData parsed = view.toIntentData();
+        assertArrayEquals(extras, parsed.getExtras());
+    }
+    
+    /**
+     * Test that a view refuses a buffer that is too small.
+     */
+    @Test
+    public void testWrapException() {
+        try {
+            new IntentDataView().wrap(ByteBuffer.allocate(27), 0);
+            fail("Short buffer didn't trigger an exception");
+        } catch (BufferUnderflowException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class IntentFilterTest {
+    
+    private static IntentFilter[] filters() {
+        return new IntentFilter[] {
+            new IntentFilter(),
+            new IntentFilter().setIntentTypes(IntentHeader.TYPE_BROADCAST),
+            new IntentFilter().setIntentTypes(IntentHeader.TYPE_ACTIVITY,
+                    IntentHeader.TYPE_SERVICE).setCallerUID(10001),
+            new IntentFilter().setTimeRange(1100, 1199),
+            new IntentFilter().setCallerComponent("component.caller"),
+            new IntentFilter().setReceiverComponent("component.receiver.42"),
+            new IntentFilter().setAction("action.7"),
+            new IntentFilter().setIntentDataFlags(0x5),
+            new IntentFilter().setUserID(1)
+        };
+    }
+    
+    /**
+     * Test that checking raw bytes agrees with checking parsed intents.
+     */
+    @Test
+    public void testMatches() {
+        AICSFile file = AICSTestUtils.createFile(300);
+        ByteBuffer buffer = file.toByteBuffer();
+        for (IntentFilter filter : filters()) {
+            int position = 12;
+            for (int i = 0; i < file.size(); i++) {
+                IntentHeader intent = file.getIntent(i);
+                assertEquals(filter.matches(intent),
+                        filter.matches(buffer, position));
+                position += intent.getSize() + intent.getIntentData().getSize();
+            }
+        }
+        
+        IntentHeader intent = new ActivityIntentHeader().setStartFlags(0x6)
+                .setIntentData(new IntentData());
+        assertTrue(new IntentFilter().setFlags(0x2).matches(intent));
+        assertFalse(new IntentFilter().setFlags(0x3).matches(intent));
+    }
+    
+    /**
+     * Test of readFromBuffer method with a filter, of class AICSFile.
+     */
+    @Test
+    public void testReadFromBuffer() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        byte[][] encodings = new byte[][] {
+            AICSTestUtils.write(file, AICSWriter.ENCODING_RAW),
+            AICSTestUtils.write(file, AICSWriter.ENCODING_DICTIONARY),
+            AICSTestUtils.write(file, AICSWriter.ENCODING_COMPACT)
+        };
+        for (IntentFilter filter : filters()) {
+            AICSFile expected = new AICSFile((short) 5, (byte) 1, (byte) 1);
+            for (int i = 0; i < file.size(); i++)
+                if (filter.matches(file.getIntent(i)))
+                    expected.appendIntent(file.getIntent(i));
+            for (byte[] bytes : encodings) {
+                AICSFile read = AICSFile.readFromBuffer(ByteBuffer.wrap(bytes),
+                        filter);
+                assertArrayEquals(expected.toByteBuffer().array(),
+                        read.toByteBuffer().array());
+            }
+        }
+        assertEquals(100, AICSFile.readFromBuffer(
+                ByteBuffer.wrap(encodings[1]), new IntentFilter()
+                        .setIntentTypes(IntentHeader.TYPE_BROADCAST)).size());
+    }
+    
+    /**
+     * Test of next method with a filter, of class AICSFileReader.
+     */
+    @Test
+    public void testReaderNext() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(300);
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, AICSTestUtils.write(file,
+                AICSWriter.ENCODING_DICTIONARY));
+        IntentFilter filter = new IntentFilter().setCallerUID(10002)
+                .setCallerComponent("component.caller");
+        try (AICSFileReader reader = new AICSFileReader(path)) {
+            for (int i = 0; i < file.size(); i++) {
+                if (!filter.matches(file.getIntent(i))) continue;
+                AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                        reader.next(filter));
+            }
+            assertNull(reader.next(filter));
+        }
+    }
+}
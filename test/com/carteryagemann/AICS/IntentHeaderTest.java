@@ -15,6 +15,7 @@
  */
 package com.carteryagemann.AICS;
 
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.text.ParseException;
@@ -116,4 +117,60 @@ public class IntentHeaderTest {
         }
         assertEquals(type, IntentHeader.TYPE_BROADCAST);
     }
+
+    /**
+     * Test of parseIntentSize method, of class IntentHeader.
+     */
+    @Test
+    public void testParseIntentSize() {
+        IntentHeader[] heads = new IntentHeader[] {
+            new ActivityIntentHeader().setOptions(new byte[5])
+                    .setCallerComponent("component.caller"),
+            new BroadcastIntentHeader().setRequiredPermission("permission"),
+            new ServiceIntentHeader().setAction("action")
+        };
+        for (IntentHeader head : heads) {
+            head.setIntentData(new IntentData().setAction("action.one"));
+            ByteBuffer buffer = ByteBuffer.allocate(head.getSize()
+                    + head.getIntentData().getSize());
+            buffer.put(head.toByteBuffer())
+                    .put(head.getIntentData().toByteBuffer())
+                    .rewind();
+            try {
+                assertEquals(buffer.capacity(),
+                        IntentHeader.parseIntentSize(buffer));
+                assertEquals(0, buffer.position());
+                IntentHeader result = IntentHeader.parseIntent(buffer);
+                assertEquals(head.getIntentType(), result.getIntentType());
+                assertEquals(buffer.capacity(), buffer.position());
+            } catch (ParseException | BufferUnderflowException e) {
+                fail(e.toString());
+            }
+        }
+    }
+
+    /**
+     * Test of writeTo method, of class IntentHeader.
+     */
+    @Test
+    public void testWriteTo() {
+        IntentHeader head = new BroadcastIntentHeader()
+                .setRequiredPermission("permission")
+                .setCallerUID(4);
+        ByteBuffer buffer = ByteBuffer.allocate(head.getSize() + 8);
+        buffer.putInt(0);
+        head.writeTo(buffer);
+        assertEquals(4 + head.getSize(), buffer.position());
+        buffer.flip().position(4);
+        assertEquals(head.toByteBuffer(), buffer);
+        
+        // Nothing is written if the header doesn't fit
+        buffer.clear().position(9);
+        try {
+            head.writeTo(buffer);
+            fail("Small buffer didn't trigger an exception");
+        } catch (BufferOverflowException e) {
+            assertEquals(9, buffer.position());
+        }
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class IntentHeaderViewTest {
+    
+    /**
+     * Flattens a header and its data into one buffer, leaving some padding in
+     * front so views are tested at a non-zero offset.
+     */
+    static ByteBuffer flatten(IntentHeader head, int padding) {
+        ByteBuffer buffer = ByteBuffer.allocate(padding + head.getSize()
+                + head.getIntentData().getSize());
+        buffer.position(padding);
+        buffer.put(head.toByteBuffer())
+                .put(head.getIntentData().toByteBuffer());
+        buffer.rewind();
+        return buffer;
+    }
+    
+    /**
+     * Test that an activity view reads the same values as the parser.
+     */
+    @Test
+    public void testActivityView() throws ParseException {
+        ActivityIntentHeader head = (ActivityIntentHeader)
+                new ActivityIntentHeader()
+                .setRequestCode(7)
+                .setStartFlags(8)
+                .setReceiverComponent("component.receiver")
+                .setCallerComponent("component.caller")
+                .setOptions(new byte[] { 1, 2, 3 })
+                .setTimestamp(100)
+                .setOffset((short) 5)
+                .setCallerUID(1)
+                .setCallerPID(2)
+                .setReceiverUID(3)
+                .setReceiverPID(4)
+                .setUserID(5)
+                .setIntentData(new IntentData().setAction("action.one"));
+        ByteBuffer buffer = flatten(head, 10);
+        
+        ActivityIntentHeaderView view = new ActivityIntentHeaderView();
+        view.wrap(buffer, 10);
+        assertEquals(100, view.getTimestamp());
+        assertEquals(5, view.getOffset());
+        assertEquals(IntentHeader.TYPE_ACTIVITY, view.getIntentType());
+        assertEquals(1, view.getCallerUID());
+        assertEquals(2, view.getCallerPID());
+        assertEquals(3, view.getReceiverUID());
+        assertEquals(4, view.getReceiverPID());
+        assertEquals(5, view.getUserID());
+        assertEquals(7, view.getRequestCode());
+        assertEquals(8, view.getStartFlags());
+        assertEquals("component.receiver", view.getReceiverComponent());
+        assertEquals("component.caller", view.getCallerComponent());
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+                view.getOptionsSlice());
+        assertTrue(view.getOptionsSlice().isReadOnly());
+        assertEquals(head.getSize(), view.getSize());
+        assertEquals(buffer.capacity() - 10, view.getIntentSize());
+        assertEquals("action.one", view.getIntentData().getAction());
+        assertEquals(0, buffer.position());
+        
+        ActivityIntentHeader parsed = (ActivityIntentHeader)
+                view.toIntentHeader();
+        assertEquals("component.caller", parsed.getCallerComponent());
+    }
+    
+    /**
+     * Test that a broadcast view reads the same values as the parser.
+     */
+    @Test
+    public void testBroadcastView() throws ParseException {
+        BroadcastIntentHeader head = (BroadcastIntentHeader)
+                new BroadcastIntentHeader()
+                .setRequestCode(7)
+                .setFlags(8)
+                .setCallerComponent("component.caller")
+                .setRequiredPermission("permission")
+                .setUserID(5)
+                .setIntentData(new IntentData().setAction("action.two"));
+        ByteBuffer buffer = flatten(head, 0);
+        
+        BroadcastIntentHeaderView view = new BroadcastIntentHeaderView();
+        view.wrap(buffer, 0);
+        assertEquals(5, view.getUserID());
+        assertEquals(7, view.getRequestCode());
+        assertEquals(8, view.getFlags());
+        assertNull(view.getReceiverComponent());
+        assertEquals(0, view.getReceiverComponentSize());
+        assertEquals("component.caller", view.getCallerComponent());
+        assertEquals("permission", view.getRequiredPermission());
+        assertEquals("action.two", view.getIntentData().getAction());
+    }
+    
+    /**
+     * Test that a service view reads the same values as the parser.
+     */
+    @Test
+    public void testServiceView() throws ParseException {
+        ServiceIntentHeader head = (ServiceIntentHeader)
+                new ServiceIntentHeader()
+                .setFlags(8)
+                .setReceiverComponent("component.receiver")
+                .setAction("service.action")
+                .setIntentData(new IntentData().setAction("action.three"));
+        ByteBuffer buffer = flatten(head, 3);
+        
+        ServiceIntentHeaderView view = new ServiceIntentHeaderView();
+        view.wrap(buffer, 3);
+        assertEquals(8, view.getFlags());
+        assertEquals("component.receiver", view.getReceiverComponent());
+        assertNull(view.getCallerComponent());
+        assertEquals("service.action", view.getAction());
+        assertEquals(head.getSize(), view.getSize());
+        assertEquals("action.three", view.getIntentData().getAction());
+    }
+    
+    /**
+     * Test that views refuse headers of the wrong type or size.
+     */
+    @Test
+    public void testWrapExceptions() {
+        ByteBuffer buffer = flatten(new ServiceIntentHeader()
+                .setIntentData(new IntentData()), 0);
+        try {
+            new ActivityIntentHeaderView().wrap(buffer, 0);
+            fail("Wrong type didn't trigger an exception");
+        } catch (ParseException e) {
+            // Expected
+        }
+        try {
+            new ServiceIntentHeaderView().wrap(buffer, 40);
+            fail("Short buffer didn't trigger an exception");
+        } catch (ParseException | BufferUnderflowException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Test that the same view can be rewrapped over a direct buffer.
+     */
+    @Test
+    public void testRewrapDirect() throws ParseException {
+        AICSFile file = AICSTestUtils.createFile(9);
+        ByteBuffer heap = file.toByteBuffer();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(heap.capacity());
+        buffer.put(heap).rewind();
+        
+        ServiceIntentHeaderView view = new ServiceIntentHeaderView();
+        int offset = 12;
+        for (int i = 0; i < file.size(); i++) {
+            IntentHeader intent = file.getIntent(i);
+            if (intent.getIntentType() == IntentHeader.TYPE_SERVICE) {
+                view.wrap(buffer, offset);
+                assertEquals(((ServiceIntentHeader) intent).getAction(),
+                        view.getAction());
+                assertEquals(intent.getIntentData().getAction(),
+                        view.getIntentData().getAction());
+            }
+            offset += intent.getSize() + intent.getIntentData().getSize();
+        }
+    }
+}
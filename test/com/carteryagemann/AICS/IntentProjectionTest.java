@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class IntentProjectionTest {
+    
+    private static ByteBuffer flatten(IntentHeader intent) {
+        ByteBuffer buffer = ByteBuffer.allocate(intent.getSize()
+                + intent.getIntentData().getSize());
+        intent.writeTo(buffer);
+        intent.getIntentData().writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+    
+    private static IntentHeader createIntent() {
+        return new ActivityIntentHeader()
+                .setCallerComponent("caller")
+                .setOptions(new byte[100])
+                .setTimestamp(1234)
+                .setCallerUID(10001)
+                .setIntentData(new IntentData()
+                        .setAction("action")
+                        .setClipData(new byte[200])
+                        .setExtras(new byte[300]));
+    }
+    
+    /**
+     * Test of headersOnly method, of class IntentProjection.
+     */
+    @Test
+    public void testHeadersOnly() throws ParseException {
+        ByteBuffer buffer = flatten(createIntent());
+        ActivityIntentHeader intent = (ActivityIntentHeader)
+                IntentHeader.parseIntent(buffer,
+                        IntentProjection.headersOnly());
+        assertFalse(buffer.hasRemaining());
+        assertEquals(1234, intent.getTimestamp());
+        assertEquals(10001, intent.getCallerUID());
+        assertEquals("caller", intent.getCallerComponent());
+        assertNull(intent.getOptions());
+        assertNull(intent.getIntentData().getAction());
+        assertEquals(4 * 7, intent.getIntentData().getSize());
+    }
+    
+    /**
+     * Test that an intent parsed without its intent data can be flattened and
+     * parsed again.
+     */
+    @Test
+    public void testHeadersOnlyRoundTrip() throws ParseException {
+        IntentHeader intent = IntentHeader.parseIntent(flatten(createIntent()),
+                IntentProjection.headersOnly());
+        AICSFile file = new AICSFile((short) 5, (byte) 1, (byte) 1);
+        file.appendIntent(intent);
+        AICSFile read = AICSFile.readFromBuffer(file.toByteBuffer());
+        assertEquals(1, read.size());
+        AICSTestUtils.assertIntentEquals(intent, read.getIntent(0));
+        assertTrue(new IntentFilter().matches(read.getIntent(0)));
+    }
+    
+    /**
+     * Test that skipped payloads are left out of the parsed intent data.
+     */
+    @Test
+    public void testSkipPayloads() throws ParseException {
+        ByteBuffer buffer = flatten(createIntent());
+        IntentHeader intent = IntentHeader.parseIntent(buffer,
+                new IntentProjection().setExtras(false).setClipData(false));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(100, ((ActivityIntentHeader) intent).getOptions().length);
+        IntentData data = intent.getIntentData();
+        assertEquals("action", data.getAction());
+        assertNull(data.getClipData());
+        assertNull(data.getExtras());
+        
+        // The projected intent flattens consistently
+        ByteBuffer projected = flatten(intent);
+        AICSTestUtils.assertIntentEquals(intent,
+                IntentHeader.parseIntent(projected));
+    }
+    
+    /**
+     * Test of setPayloadSlices method, of class IntentProjection.
+     */
+    @Test
+    public void testPayloadSlices() throws ParseException {
+        IntentHeader original = createIntent();
+        byte[] extras = new byte[300];
+        for (int i = 0; i < extras.length; i++) extras[i] = (byte) i;
+        original.getIntentData().setExtras(extras);
+        ByteBuffer flat = flatten(original);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(flat.remaining());
+        buffer.put(flat).flip();
+        
+        ActivityIntentHeader intent = (ActivityIntentHeader)
+                IntentHeader.parseIntent(buffer,
+                        new IntentProjection().setPayloadSlices(true));
+        assertFalse(buffer.hasRemaining());
+        ByteBuffer slice = intent.getIntentData().getExtrasBuffer();
+        assertTrue(slice.isReadOnly());
+        assertTrue(slice.isDirect());
+        assertEquals(300, slice.remaining());
+        assertEquals(100, intent.getOptionsBuffer().remaining());
+        assertEquals(200, intent.getIntentData().getClipDataBuffer()
+                .remaining());
+        
+        // The slice shares the source buffer's memory
+        int position = buffer.limit() - 1;
+        buffer.put(position, (byte) 7);
+        assertEquals(7, slice.get(299));
+        
+        // Flattening writes from the slices
+        ByteBuffer copy = flatten(intent);
+        assertEquals(7, copy.get(copy.limit() - 1));
+        buffer.put(position, extras[299]);
+        
+        // Arrays are only made when asked for
+        assertArrayEquals(extras, intent.getIntentData().getExtras());
+        assertEquals(100, intent.getOptions().length);
+        AICSTestUtils.assertIntentEquals(original, intent);
+    }
+    
+    /**
+     * Test that a truncated intent still fails to parse.
+     */
+    @Test(expected = java.nio.BufferUnderflowException.class)
+    public void testTruncated() throws ParseException {
+        ByteBuffer buffer = flatten(createIntent());
+        buffer.limit(buffer.limit() - 1);
+        IntentHeader.parseIntent(buffer, IntentProjection.headersOnly());
+    }
+    
+    /**
+     * Test of setProjection method, of class AICSFileReader.
+     */
+    @Test
+    public void testReader() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(100);
+        Path path = Files.createTempFile("aics", ".aics");
+        path.toFile().deleteOnExit();
+        Files.write(path, AICSTestUtils.write(file,
+                AICSWriter.ENCODING_DICTIONARY));
+        try (AICSFileReader reader = new AICSFileReader(path)) {
+            reader.setProjection(IntentProjection.headersOnly());
+            for (int i = 0; i < 100; i++) {
+                IntentHeader intent = reader.next();
+                assertEquals(file.getIntent(i).getTimestamp(),
+                        intent.getTimestamp());
+                assertNull(intent.getIntentData().getAction());
+            }
+            assertFalse(reader.hasNext());
+        }
+        
+        AICSFile read = AICSFile.readFromBuffer(ByteBuffer.wrap(
+                Files.readAllBytes(path)), null,
+                new IntentProjection().setExtras(false));
+        assertEquals(100, read.size());
+        for (int i = 0; i < 100; i++) {
+            assertNull(read.getIntent(i).getIntentData().getExtras());
+            assertEquals(file.getIntent(i).getIntentData().getAction(),
+                    read.getIntent(i).getIntentData().getAction());
+        }
+    }
+}
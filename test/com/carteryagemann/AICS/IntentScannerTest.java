@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Carter Yagemann <carter.yagemann@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.carteryagemann.AICS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Carter Yagemann <carter.yagemann@gmail.com>
+ */
+public class IntentScannerTest {
+
+    private static class Skip {
+        final long OFFSET;
+        final int LENGTH;
+
+        Skip(long offset, int length) {
+            OFFSET = offset;
+            LENGTH = length;
+        }
+    }
+
+    private static class Recorder implements AICSFile.CorruptionListener {
+        final ArrayList<Skip> SKIPS = new ArrayList<>();
+
+        @Override
+        public void skipped(long offset, int length, Exception cause) {
+            assertNotNull(cause);
+            SKIPS.add(new Skip(offset, length));
+        }
+    }
+
+    /**
+     * Returns the offset of every intent in a flattened file.
+     */
+    private static int[] offsets(AICSFile file) {
+        int[] offsets = new int[file.size()];
+        int offset = 12;
+        for (int i = 0; i < file.size(); i++) {
+            offsets[i] = offset;
+            offset += file.getIntent(i).getSize()
+                    + file.getIntent(i).getIntentData().getSize();
+        }
+        return offsets;
+    }
+
+    /**
+     * Test of find method, of class IntentScanner.
+     */
+    @Test
+    public void testFind() {
+        AICSFile file = AICSTestUtils.createFile(30);
+        ByteBuffer buffer = file.toByteBuffer();
+        int[] offsets = offsets(file);
+        for (int i = 1; i < offsets.length; i++)
+            assertEquals(offsets[i], IntentScanner.find(buffer,
+                    offsets[i - 1] + 1, null, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE));
+        assertEquals(-1, IntentScanner.find(buffer,
+                offsets[offsets.length - 1] + 1, null, Integer.MIN_VALUE,
+                Integer.MAX_VALUE));
+        // Intents outside the timestamp range are passed over
+        assertEquals(offsets[20], IntentScanner.find(buffer, offsets[0] + 1,
+                null, 1020, Integer.MAX_VALUE));
+        assertEquals(-1, IntentScanner.find(buffer, offsets[0] + 1, null,
+                Integer.MIN_VALUE, 999));
+    }
+
+    /**
+     * Test of find method, of class IntentScanner, with a little-endian file.
+     */
+    @Test
+    public void testFindLittleEndian() throws IOException {
+        AICSFile file = AICSTestUtils.createFile(30);
+        ByteBuffer buffer = ByteBuffer.wrap(AICSTestUtils.write(file,
+                AICSWriter.ENCODING_RAW, ByteOrder.LITTLE_ENDIAN))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int[] offsets = offsets(file);
+        for (int i = 1; i < offsets.length; i++) {
+            assertEquals(offsets[i], IntentScanner.find(buffer,
+                    offsets[i] - 1, null, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE));
+            assertEquals(offsets[i], IntentScanner.find(buffer,
+                    offsets[i - 1] + 1, null, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE));
+        }
+        assertEquals(-1, IntentScanner.find(buffer,
+                offsets[offsets.length - 1] + 1, null, Integer.MIN_VALUE,
+                Integer.MAX_VALUE));
+    }
+
+    /**
+     * Test of readFromBuffer method in recovery mode, of class AICSFile.
+     */
+    @Test
+    public void testRecovery() throws ParseException {
+        AICSFile file = AICSTestUtils.createFile(100);
+        ByteBuffer buffer = file.toByteBuffer();
+        int[] offsets = offsets(file);
+        buffer.putShort(offsets[10] + 6, (short) 0x7F7F); // Bad type
+        buffer.putInt(offsets[50] + 40, -5); // Bad size field of an activity
+        buffer.putInt(offsets[51] + 2, 0x12345678); // Bad offset
+
+        // Without a listener reading stops at the first bad intent
+        assertEquals(10, AICSFile.readFromBuffer(buffer.duplicate()).size());
+
+        Recorder recorder = new Recorder();
+        AICSFile read = AICSFile.readFromBuffer(buffer, null, null, recorder);
+        assertEquals(0, buffer.position());
+        assertEquals(97, read.size());
+        assertEquals(2, recorder.SKIPS.size());
+        assertEquals(offsets[10], recorder.SKIPS.get(0).OFFSET);
+        assertEquals(offsets[11] - offsets[10], recorder.SKIPS.get(0).LENGTH);
+        assertEquals(offsets[50], recorder.SKIPS.get(1).OFFSET);
+        assertEquals(offsets[52] - offsets[50], recorder.SKIPS.get(1).LENGTH);
+        int j = 0;
+        for (int i = 0; i < 100; i++) {
+            if (i == 10 || i == 50 || i == 51) continue;
+            AICSTestUtils.assertIntentEquals(file.getIntent(i),
+                    read.getIntent(j++));
+        }
+    }
+
+    /**
+     * Test that dictionary-encoded files are resynced too.
+     */
+    @Test
+    public void testRecoveryDictionary() throws IOException, ParseException {
+        AICSFile file = AICSTestUtils.createFile(100);
+        byte[] bytes = AICSTestUtils.write(file,
+                AICSWriter.ENCODING_DICTIONARY);
+        AICSFile clean = AICSFile.readFromBuffer(ByteBuffer.wrap(bytes));
+        assertEquals(100, clean.size());
+        // Corrupt the type of an intent near the middle
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int offset = 12;
+        for (int i = 0; i < 40; i++) {
+            ByteBuffer intent = buffer.duplicate();
+            intent.position(offset);
+            offset += IntentHeader.parseIntentSize(intent);
+        }
+        buffer.putShort(offset + 6, (short) -1);
+
+        Recorder recorder = new Recorder();
+        AICSFile read = AICSFile.readFromBuffer(buffer, null, null, recorder);
+        assertEquals(99, read.size());
+        assertEquals(1, recorder.SKIPS.size());
+        assertEquals(offset, recorder.SKIPS.get(0).OFFSET);
+    }
+
+    /**
+     * Test that random damage never stops recovery or loses intents it didn't
+     * touch.
+     */
+    @Test
+    public void testRandomDamage() throws ParseException {
+        AICSFile file = AICSTestUtils.createFile(200);
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            ByteBuffer buffer = file.toByteBuffer();
+            for (int i = 0; i < 5; i++) {
+                int position = 12 + random.nextInt(buffer.limit() - 12);
+                buffer.put(position, (byte) random.nextInt());
+            }
+            Recorder recorder = new Recorder();
+            AICSFile read = AICSFile.readFromBuffer(buffer, null, null,
+                    recorder);
+            assertTrue(read.size() >= 200 - 5 * 2 - recorder.SKIPS.size());
+            long skipped = 0;
+            for (Skip skip : recorder.SKIPS) skipped += skip.LENGTH;
+            assertTrue(skipped < buffer.limit() / 4);
+        }
+    }
+}